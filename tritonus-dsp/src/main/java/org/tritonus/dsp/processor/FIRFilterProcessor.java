@@ -29,19 +29,28 @@ public class FIRFilterProcessor implements FloatSampleProcessor {
         return filters.length;
     }
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The channels are processed as blocks. Pairs of channels are
+     * processed together, so that long filters need only one FFT per pair.
+     */
     @Override
     public void process(FloatSampleBuffer buffer) {
         if (getChannelCount() != buffer.getChannelCount()) {
             throw new IllegalArgumentException(
                     "number of channels of FloatSampleBuffer not equal to number of channels of this filter processor");
         }
-        for (int nChannel = 0; nChannel < buffer.getChannelCount(); nChannel++) {
+        int nSampleCount = buffer.getSampleCount();
+        int nChannel = 0;
+        for (; nChannel + 1 < buffer.getChannelCount(); nChannel += 2) {
+            FIR.process(filters[nChannel], buffer.getChannel(nChannel),
+                    filters[nChannel + 1], buffer.getChannel(nChannel + 1),
+                    0, nSampleCount);
+        }
+        if (nChannel < buffer.getChannelCount()) {
             float[] afBuffer = buffer.getChannel(nChannel);
-            for (int nSample = 0; nSample < buffer.getSampleCount(); nSample++) {
-                afBuffer[nSample] = filters[nChannel]
-                        .process(afBuffer[nSample]);
-            }
+            filters[nChannel].process(afBuffer, 0, afBuffer, nSampleCount);
         }
     }
 }
@@ -0,0 +1,56 @@
+package org.tritonus.dsp.processor;
+
+import org.tritonus.dsp.interfaces.FloatSampleProcessor;
+import org.tritonus.lowlevel.dsp.IIR;
+import org.tritonus.lowlevel.dsp.IIRBiquadFilterDescription;
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+
+public class IIRFilterProcessor implements FloatSampleProcessor {
+
+    private IIR filter;
+
+    public IIRFilterProcessor(int nChannels,
+                              IIRBiquadFilterDescription filterDescription) {
+        filter = new IIR(filterDescription, nChannels);
+    }
+
+    /**
+     * Change the filter coefficients. The number of sections must not
+     * change; the filter state is kept, so the change is click-free for
+     * small changes like those of an equalizer.
+     */
+    public void setFilterDescription(
+            IIRBiquadFilterDescription filterDescription) {
+        filter.setFilterDescription(filterDescription);
+    }
+
+    /**
+     * Clears the filter state of all channels.
+     */
+    public void reset() {
+        filter.reset();
+    }
+
+    private int getChannelCount() {
+        return filter.getChannelCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each channel is processed as one block, in place.
+     */
+    @Override
+    public void process(FloatSampleBuffer buffer) {
+        if (getChannelCount() != buffer.getChannelCount()) {
+            throw new IllegalArgumentException(
+                    "number of channels of FloatSampleBuffer not equal to number of channels of this filter processor");
+        }
+        int nSampleCount = buffer.getSampleCount();
+        for (int nChannel = 0; nChannel < getChannelCount(); nChannel++) {
+            filter.process(nChannel, buffer.getChannel(nChannel), 0,
+                    nSampleCount);
+        }
+    }
+}
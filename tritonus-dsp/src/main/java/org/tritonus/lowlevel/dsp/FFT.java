@@ -0,0 +1,146 @@
+/*
+ * FFT.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+
+package org.tritonus.lowlevel.dsp;
+
+/**
+ * A radix-2 Fast Fourier Transform of fixed size.
+ *
+ * <p>
+ * The twiddle factors are calculated once with {@link Complex}, the
+ * transform itself works in place on separate arrays for the real and
+ * imaginary parts, so that no objects are created per transform.
+ * </p>
+ */
+public class FFT {
+    /**
+     * The size of the transform. Always a power of two.
+     */
+    private int m_nSize;
+
+    /**
+     * Real parts of the twiddle factors e^(-2 pi i k / size), for k = 0 ..
+     * size / 2 - 1.
+     */
+    private float[] m_afCos;
+
+    /**
+     * Imaginary parts of the twiddle factors.
+     */
+    private float[] m_afSin;
+
+    /**
+     * Index of the element to swap with for the bit-reversed order.
+     */
+    private int[] m_anBitReverse;
+
+    /**
+     * Constructor.
+     *
+     * @param nSize the size of the transform
+     * @throws IllegalArgumentException if nSize is not a power of two
+     */
+    public FFT(int nSize) {
+        if (nSize < 1 || (nSize & (nSize - 1)) != 0) {
+            throw new IllegalArgumentException("size must be a power of two");
+        }
+        m_nSize = nSize;
+        m_afCos = new float[nSize / 2];
+        m_afSin = new float[nSize / 2];
+        for (int k = 0; k < nSize / 2; k++) {
+            Complex w = Complex.exp(new Complex(0.0, -2.0 * Math.PI * k / nSize));
+            m_afCos[k] = (float) w.real();
+            m_afSin[k] = (float) w.imag();
+        }
+        m_anBitReverse = new int[nSize];
+        int nBits = Integer.numberOfTrailingZeros(nSize);
+        for (int i = 0; i < nSize; i++) {
+            m_anBitReverse[i] = nBits == 0 ? 0
+                    : Integer.reverse(i) >>> (32 - nBits);
+        }
+    }
+
+    /**
+     * Returns the smallest power of two that is not less than nMinimum.
+     */
+    public static int getSize(int nMinimum) {
+        return nMinimum <= 1 ? 1 : Integer.highestOneBit(nMinimum - 1) << 1;
+    }
+
+    /**
+     * Returns the size of the transform.
+     */
+    public int getSize() {
+        return m_nSize;
+    }
+
+    /**
+     * Transforms in place. The inverse transform is scaled by 1 / size, so
+     * that a forward and an inverse transform give the original values.
+     *
+     * @param afReal   the real parts, at least getSize() elements
+     * @param afImag   the imaginary parts, at least getSize() elements
+     * @param bInverse whether to do the inverse transform
+     */
+    public void transform(float[] afReal, float[] afImag, boolean bInverse) {
+        int nSize = m_nSize;
+        for (int i = 0; i < nSize; i++) {
+            int j = m_anBitReverse[i];
+            if (j > i) {
+                float fTemp = afReal[i];
+                afReal[i] = afReal[j];
+                afReal[j] = fTemp;
+                fTemp = afImag[i];
+                afImag[i] = afImag[j];
+                afImag[j] = fTemp;
+            }
+        }
+        float fSign = bInverse ? -1.0F : 1.0F;
+        for (int nHalf = 1; nHalf < nSize; nHalf <<= 1) {
+            int nStep = nSize / (nHalf << 1);
+            for (int k = 0; k < nHalf; k++) {
+                float fCos = m_afCos[k * nStep];
+                float fSin = fSign * m_afSin[k * nStep];
+                for (int i = k; i < nSize; i += nHalf << 1) {
+                    int j = i + nHalf;
+                    float fRe = afReal[j] * fCos - afImag[j] * fSin;
+                    float fIm = afReal[j] * fSin + afImag[j] * fCos;
+                    afReal[j] = afReal[i] - fRe;
+                    afImag[j] = afImag[i] - fIm;
+                    afReal[i] += fRe;
+                    afImag[i] += fIm;
+                }
+            }
+        }
+        if (bInverse) {
+            float fScale = 1.0F / nSize;
+            for (int i = 0; i < nSize; i++) {
+                afReal[i] *= fScale;
+                afImag[i] *= fScale;
+            }
+        }
+    }
+}
+
+/* FFT.java */
@@ -26,10 +26,26 @@
 
 package org.tritonus.lowlevel.dsp;
 
+import java.util.Arrays;
+
 /**
  * A Finite Impulse Response (FIR) filter.
+ *
+ * <p>
+ * Besides processing sample by sample, the filter can process blocks of
+ * samples. For long filters (at least FFT_THRESHOLD coefficients) and
+ * large enough blocks, the block methods convolve with overlap-save FFT
+ * convolution instead of the direct form. Both ways share the same state,
+ * so they can be mixed, and give the same output up to rounding errors.
+ * </p>
  */
 public class FIR implements Filter {
+    /**
+     * The minimum filter length for which the block methods use FFT
+     * convolution.
+     */
+    public static final int FFT_THRESHOLD = 64;
+
     /**
      * The length of the filter (number of coefficients).
      */
@@ -40,18 +56,70 @@ public class FIR implements Filter {
      */
     private float[] m_afCoefficients;
 
+    /**
+     * The filter coefficients in reversed order, for block convolution.
+     */
+    private float[] m_afReversedCoefficients;
+
     /**
      * The buffer for past input values. This stores the input values needed for
-     * convolution. The buffer is used as a circular buffer.
+     * convolution. The buffer is used as a circular buffer. It has twice the
+     * length of the filter, each value is stored at index and index +
+     * m_nLength, so that the values needed for one output sample are always
+     * in one piece.
      */
     private float[] m_afBuffer;
 
     /**
-     * The index into m_afBuffer. Since m_afBuffer is used as a circular buffer,
-     * a buffer pointer is needed.
+     * The index into m_afBuffer of the most recent input value. Older
+     * values follow at higher indices.
      */
     private int m_nBufferIndex;
 
+    /**
+     * Past input values followed by the current block, for block
+     * processing.
+     */
+    private float[] m_afWork;
+
+    /**
+     * Second work buffer, for processing two channels at once.
+     */
+    private float[] m_afWork2;
+
+    /**
+     * The FFT for overlap-save convolution, or null if the filter is too
+     * short.
+     */
+    private FFT m_fft;
+
+    /**
+     * Real part of the frequency response (the transformed coefficients).
+     */
+    private float[] m_afResponseReal;
+
+    /**
+     * Imaginary part of the frequency response.
+     */
+    private float[] m_afResponseImag;
+
+    /**
+     * Work buffers for the FFT.
+     */
+    private float[] m_afFFTReal;
+    private float[] m_afFFTImag;
+
+    /**
+     * Number of output samples produced by one FFT convolution.
+     */
+    private int m_nFFTBlockSize;
+
+    /**
+     * The minimum number of samples for which FFT convolution is cheaper
+     * than the direct form.
+     */
+    private int m_nFFTMinimumSamples;
+
     /**
      * Constructor with filter coefficients.
      *
@@ -61,9 +129,27 @@ public class FIR implements Filter {
         float[] afCoefficients = filterDescription.getCoefficients();
         m_nLength = afCoefficients.length;
         m_afCoefficients = new float[m_nLength];
-        System.arraycopy(afCoefficients, 0, m_afCoefficients, 0, m_nLength);
-        m_afBuffer = new float[m_nLength];
+        m_afReversedCoefficients = new float[m_nLength];
+        m_afBuffer = new float[2 * m_nLength];
         m_nBufferIndex = 0;
+        m_afWork = new float[0];
+        m_afWork2 = new float[0];
+        if (m_nLength >= FFT_THRESHOLD) {
+            // overlap-save needs at least 2 * m_nLength - 1 points;
+            // a larger transform produces more output per transform
+            int nSize = FFT.getSize(4 * m_nLength);
+            m_fft = new FFT(nSize);
+            m_afResponseReal = new float[nSize];
+            m_afResponseImag = new float[nSize];
+            m_afFFTReal = new float[nSize];
+            m_afFFTImag = new float[nSize];
+            m_nFFTBlockSize = nSize - m_nLength + 1;
+            // an FFT of size n costs about 5 n log2(n) operations, two are
+            // needed per block, the direct form costs 2 m_nLength per sample
+            int nLog = Integer.numberOfTrailingZeros(nSize);
+            m_nFFTMinimumSamples = 5 * nSize * nLog / m_nLength;
+        }
+        setCoefficients(afCoefficients);
     }
 
     /**
@@ -85,7 +171,20 @@ public class FIR implements Filter {
         if (afCoefficients.length != m_nLength) {
             throw new IllegalArgumentException("cannot change length of filter");
         }
+        setCoefficients(afCoefficients);
+    }
+
+    private void setCoefficients(float[] afCoefficients) {
         System.arraycopy(afCoefficients, 0, m_afCoefficients, 0, m_nLength);
+        for (int i = 0; i < m_nLength; i++) {
+            m_afReversedCoefficients[i] = afCoefficients[m_nLength - 1 - i];
+        }
+        if (m_fft != null) {
+            Arrays.fill(m_afResponseReal, 0.0F);
+            Arrays.fill(m_afResponseImag, 0.0F);
+            System.arraycopy(afCoefficients, 0, m_afResponseReal, 0, m_nLength);
+            m_fft.transform(m_afResponseReal, m_afResponseImag, false);
+        }
     }
 
     /**
@@ -93,20 +192,223 @@ public class FIR implements Filter {
      */
     @Override
     public float process(float fInput) {
-        m_afBuffer[m_nBufferIndex] = fInput;
-        int nBufferIndex = m_nBufferIndex;
+        int nLength = m_nLength;
+        int nBufferIndex = m_nBufferIndex - 1;
+        if (nBufferIndex < 0) {
+            nBufferIndex += nLength;
+        }
+        m_afBuffer[nBufferIndex] = fInput;
+        m_afBuffer[nBufferIndex + nLength] = fInput;
+        m_nBufferIndex = nBufferIndex;
+        float[] afCoefficients = m_afCoefficients;
+        float[] afBuffer = m_afBuffer;
         float fOutput = 0.0F;
-        for (int i = 0; i < m_nLength; i++) {
-            fOutput += m_afCoefficients[i] * m_afBuffer[nBufferIndex];
-            nBufferIndex--;
-            if (nBufferIndex < 0) {
-                nBufferIndex += m_nLength;
-            }
+        for (int i = 0; i < nLength; i++) {
+            fOutput += afCoefficients[i] * afBuffer[nBufferIndex + i];
         }
-        m_nBufferIndex = (m_nBufferIndex + 1) % m_nLength;
         return fOutput;
     }
 
+    /**
+     * Process a block of samples. Input and output may be the same array.
+     *
+     * @param afInput  the input samples
+     * @param nOffset  the index of the first sample in afInput and afOutput
+     * @param afOutput the array the output samples are written to
+     * @param nLength  the number of samples
+     */
+    public void process(float[] afInput, int nOffset, float[] afOutput,
+                        int nLength) {
+        process(afInput, nOffset, afOutput, nOffset, nLength);
+    }
+
+    /**
+     * Process a block of samples. Input and output may be the same array,
+     * with the same offset.
+     *
+     * @param afInput       the input samples
+     * @param nInputOffset  the index of the first sample in afInput
+     * @param afOutput      the array the output samples are written to
+     * @param nOutputOffset the index of the first sample in afOutput
+     * @param nLength       the number of samples
+     */
+    public void process(float[] afInput, int nInputOffset, float[] afOutput,
+                        int nOutputOffset, int nLength) {
+        if (nLength <= 0) {
+            return;
+        }
+        float[] afWork = getWork(nLength);
+        m_afWork = afWork;
+        loadHistory(afWork);
+        System.arraycopy(afInput, nInputOffset, afWork, m_nLength - 1, nLength);
+        int nDone = 0;
+        while (nDone < nLength) {
+            int nCount = nLength - nDone;
+            if (useFFT(nCount)) {
+                nCount = Math.min(nCount, m_nFFTBlockSize);
+                convolveFFT(afWork, nDone, afOutput, nOutputOffset + nDone,
+                        null, 0, null, 0, nCount);
+            } else {
+                convolveDirect(afWork, nDone, afOutput, nOutputOffset + nDone,
+                        nCount);
+            }
+            nDone += nCount;
+        }
+        storeHistory(afWork, m_nLength - 1 + nLength);
+    }
+
+    /**
+     * Process blocks of two channels in place with two filters that have
+     * the same coefficients, e.g. the left and right channel of a stereo
+     * signal. With FFT convolution, both channels are transformed together
+     * as real and imaginary part. Otherwise, this is the same as processing
+     * each channel by itself.
+     *
+     * @param fir1     the filter for the first channel
+     * @param afData1  the samples of the first channel
+     * @param fir2     the filter for the second channel
+     * @param afData2  the samples of the second channel
+     * @param nOffset  the index of the first sample in both arrays
+     * @param nLength  the number of samples
+     */
+    public static void process(FIR fir1, float[] afData1, FIR fir2,
+                               float[] afData2, int nOffset, int nLength) {
+        if (fir1 == fir2 || fir1.m_fft == null
+                || !fir1.useFFT(Math.min(nLength, fir1.m_nFFTBlockSize))
+                || !Arrays.equals(fir1.m_afCoefficients, fir2.m_afCoefficients)) {
+            fir1.process(afData1, nOffset, afData1, nOffset, nLength);
+            fir2.process(afData2, nOffset, afData2, nOffset, nLength);
+            return;
+        }
+        int nHistory = fir1.m_nLength - 1;
+        float[] afWork1 = fir1.getWork(nLength);
+        fir1.m_afWork = afWork1;
+        // the second channel's work buffer is kept by the first filter
+        float[] afWork2 = fir1.m_afWork2;
+        if (afWork2.length < nHistory + nLength) {
+            afWork2 = new float[nHistory + nLength];
+            fir1.m_afWork2 = afWork2;
+        }
+        fir1.loadHistory(afWork1);
+        fir2.loadHistory(afWork2);
+        System.arraycopy(afData1, nOffset, afWork1, nHistory, nLength);
+        System.arraycopy(afData2, nOffset, afWork2, nHistory, nLength);
+        int nDone = 0;
+        while (nDone < nLength) {
+            int nCount = nLength - nDone;
+            if (fir1.useFFT(nCount)) {
+                nCount = Math.min(nCount, fir1.m_nFFTBlockSize);
+                fir1.convolveFFT(afWork1, nDone, afData1, nOffset + nDone,
+                        afWork2, nDone, afData2, nOffset + nDone, nCount);
+            } else {
+                fir1.convolveDirect(afWork1, nDone, afData1, nOffset + nDone,
+                        nCount);
+                fir2.convolveDirect(afWork2, nDone, afData2, nOffset + nDone,
+                        nCount);
+            }
+            nDone += nCount;
+        }
+        fir1.storeHistory(afWork1, nHistory + nLength);
+        fir2.storeHistory(afWork2, nHistory + nLength);
+    }
+
+    /**
+     * Returns whether FFT convolution is used for nCount samples.
+     */
+    private boolean useFFT(int nCount) {
+        return m_fft != null && nCount >= m_nFFTMinimumSamples;
+    }
+
+    private float[] getWork(int nLength) {
+        int nSize = m_nLength - 1 + nLength;
+        if (m_afWork.length < nSize) {
+            return new float[nSize];
+        }
+        return m_afWork;
+    }
+
+    /**
+     * Copies the past m_nLength - 1 input values to the beginning of
+     * afWork, oldest first.
+     */
+    private void loadHistory(float[] afWork) {
+        int nHistory = m_nLength - 1;
+        for (int i = 0; i < nHistory; i++) {
+            afWork[nHistory - 1 - i] = m_afBuffer[m_nBufferIndex + i];
+        }
+    }
+
+    /**
+     * Copies the m_nLength - 1 input values before nEnd in afWork to the
+     * delay line.
+     */
+    private void storeHistory(float[] afWork, int nEnd) {
+        int nLength = m_nLength;
+        for (int i = 0; i < nLength - 1; i++) {
+            float fValue = afWork[nEnd - 1 - i];
+            m_afBuffer[i] = fValue;
+            m_afBuffer[i + nLength] = fValue;
+        }
+        m_nBufferIndex = 0;
+    }
+
+    /**
+     * Direct form convolution. Output sample j is calculated from
+     * afWork[nWorkOffset + j] to afWork[nWorkOffset + j + m_nLength - 1].
+     */
+    private void convolveDirect(float[] afWork, int nWorkOffset,
+                                float[] afOutput, int nOutputOffset, int nCount) {
+        float[] afCoefficients = m_afReversedCoefficients;
+        int nLength = m_nLength;
+        for (int j = 0; j < nCount; j++) {
+            int nStart = nWorkOffset + j;
+            float fOutput = 0.0F;
+            for (int i = 0; i < nLength; i++) {
+                fOutput += afCoefficients[i] * afWork[nStart + i];
+            }
+            afOutput[nOutputOffset + j] = fOutput;
+        }
+    }
+
+    /**
+     * Overlap-save convolution of nCount samples (at most
+     * m_nFFTBlockSize). If afWork2 is not null, a second channel is
+     * processed in the imaginary part.
+     */
+    private void convolveFFT(float[] afWork1, int nWorkOffset1,
+                             float[] afOutput1, int nOutputOffset1, float[] afWork2,
+                             int nWorkOffset2, float[] afOutput2, int nOutputOffset2,
+                             int nCount) {
+        float[] afReal = m_afFFTReal;
+        float[] afImag = m_afFFTImag;
+        int nSize = afReal.length;
+        int nSegment = m_nLength - 1 + nCount;
+        System.arraycopy(afWork1, nWorkOffset1, afReal, 0, nSegment);
+        Arrays.fill(afReal, nSegment, nSize, 0.0F);
+        if (afWork2 != null) {
+            System.arraycopy(afWork2, nWorkOffset2, afImag, 0, nSegment);
+            Arrays.fill(afImag, nSegment, nSize, 0.0F);
+        } else {
+            Arrays.fill(afImag, 0.0F);
+        }
+        m_fft.transform(afReal, afImag, false);
+        float[] afResponseReal = m_afResponseReal;
+        float[] afResponseImag = m_afResponseImag;
+        for (int k = 0; k < nSize; k++) {
+            float fRe = afReal[k] * afResponseReal[k] - afImag[k] * afResponseImag[k];
+            float fIm = afReal[k] * afResponseImag[k] + afImag[k] * afResponseReal[k];
+            afReal[k] = fRe;
+            afImag[k] = fIm;
+        }
+        m_fft.transform(afReal, afImag, true);
+        // the first m_nLength - 1 values are wrapped around and discarded
+        System.arraycopy(afReal, m_nLength - 1, afOutput1, nOutputOffset1, nCount);
+        if (afWork2 != null) {
+            System.arraycopy(afImag, m_nLength - 1, afOutput2, nOutputOffset2,
+                    nCount);
+        }
+    }
+
     /**
      * Returns the length of the filter. This returns the length of the filter
      * (the number of coefficients). Note that this is not the same as the order
@@ -0,0 +1,208 @@
+/*
+ * IIR.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+
+package org.tritonus.lowlevel.dsp;
+
+import java.util.Arrays;
+
+/**
+ * An Infinite Impulse Response (IIR) filter, implemented as a cascade of
+ * second order sections in direct form II transposed.
+ *
+ * <p>
+ * One instance can filter several channels with the same coefficients.
+ * The state of all channels is kept in one array. The block methods run
+ * the whole cascade for each sample, like {@link #process(float)}, so
+ * the signal between the sections is not rounded to float. The
+ * calculation is done in double precision.
+ * </p>
+ *
+ * @see IIRFilterDesign
+ */
+public class IIR implements Filter {
+    /**
+     * The number of sections.
+     */
+    private int m_nSections;
+
+    /**
+     * The number of channels.
+     */
+    private int m_nChannels;
+
+    /**
+     * The coefficients: b0, b1, b2, a1, a2 per section.
+     */
+    private double[] m_adCoefficients;
+
+    /**
+     * The state: two values per section and channel, for channel c and
+     * section s at index 2 * (c * m_nSections + s).
+     */
+    private double[] m_adState;
+
+    /**
+     * Constructor for one channel.
+     *
+     * @param filterDescription filter description containing the coefficients
+     */
+    public IIR(IIRBiquadFilterDescription filterDescription) {
+        this(filterDescription, 1);
+    }
+
+    /**
+     * Constructor for several channels.
+     *
+     * @param filterDescription filter description containing the coefficients
+     * @param nChannels         the number of channels
+     */
+    public IIR(IIRBiquadFilterDescription filterDescription, int nChannels) {
+        m_nSections = filterDescription.getSectionCount();
+        m_nChannels = nChannels;
+        m_adCoefficients = new double[m_nSections
+                * IIRBiquadFilterDescription.COEFFICIENTS_PER_SECTION];
+        m_adState = new double[2 * m_nSections * nChannels];
+        setFilterDescription(filterDescription);
+    }
+
+    /**
+     * Change filter coefficients on the fly. The state is kept.
+     *
+     * @param filterDescription filter description containing the new coefficients
+     * @throws IllegalArgumentException if the number of sections is different
+     *                                  from the current number of sections
+     */
+    public void setFilterDescription(
+            IIRBiquadFilterDescription filterDescription) {
+        double[] adCoefficients = filterDescription.getCoefficients();
+        if (adCoefficients.length != m_adCoefficients.length) {
+            throw new IllegalArgumentException(
+                    "cannot change number of sections of filter");
+        }
+        System.arraycopy(adCoefficients, 0, m_adCoefficients, 0,
+                adCoefficients.length);
+    }
+
+    /**
+     * Clears the state of all channels.
+     */
+    public void reset() {
+        Arrays.fill(m_adState, 0.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This processes the first channel.
+     * </p>
+     */
+    @Override
+    public float process(float fInput) {
+        double[] c = m_adCoefficients;
+        double[] adState = m_adState;
+        double x = fInput;
+        for (int nSection = 0; nSection < m_nSections; nSection++) {
+            int i = nSection * IIRBiquadFilterDescription.COEFFICIENTS_PER_SECTION;
+            int s = 2 * nSection;
+            double y = c[i] * x + adState[s];
+            adState[s] = c[i + 1] * x - c[i + 3] * y + adState[s + 1];
+            adState[s + 1] = c[i + 2] * x - c[i + 4] * y;
+            x = y;
+        }
+        return (float) x;
+    }
+
+    /**
+     * Process a block of samples of one channel in place.
+     *
+     * @param nChannel the channel, selects the state to use
+     * @param afData   the samples
+     * @param nOffset  the index of the first sample
+     * @param nLength  the number of samples
+     */
+    public void process(int nChannel, float[] afData, int nOffset, int nLength) {
+        process(nChannel, afData, nOffset, afData, nOffset, nLength);
+    }
+
+    /**
+     * Process a block of samples of one channel.
+     *
+     * @param nChannel      the channel, selects the state to use
+     * @param afInput       the input samples
+     * @param nInputOffset  the index of the first sample in afInput
+     * @param afOutput      the array the output samples are written to
+     * @param nOutputOffset the index of the first sample in afOutput
+     * @param nLength       the number of samples
+     */
+    public void process(int nChannel, float[] afInput, int nInputOffset,
+                        float[] afOutput, int nOutputOffset, int nLength) {
+        if (nChannel < 0 || nChannel >= m_nChannels) {
+            throw new IllegalArgumentException("invalid channel: " + nChannel);
+        }
+        if (nLength <= 0) {
+            return;
+        }
+        if (m_nSections == 0) {
+            if (afInput != afOutput || nInputOffset != nOutputOffset) {
+                System.arraycopy(afInput, nInputOffset, afOutput,
+                        nOutputOffset, nLength);
+            }
+            return;
+        }
+        double[] c = m_adCoefficients;
+        double[] adState = m_adState;
+        int nSections = m_nSections;
+        int nStateOffset = 2 * nChannel * nSections;
+        int nEnd = nOutputOffset + nLength;
+        for (int n = nOutputOffset, nIn = nInputOffset; n < nEnd; n++, nIn++) {
+            double x = afInput[nIn];
+            for (int nSection = 0, i = 0, s = nStateOffset;
+                 nSection < nSections; nSection++,
+                 i += IIRBiquadFilterDescription.COEFFICIENTS_PER_SECTION,
+                 s += 2) {
+                double y = c[i] * x + adState[s];
+                adState[s] = c[i + 1] * x - c[i + 3] * y + adState[s + 1];
+                adState[s + 1] = c[i + 2] * x - c[i + 4] * y;
+                x = y;
+            }
+            afOutput[n] = (float) x;
+        }
+    }
+
+    /**
+     * Returns the number of second order sections.
+     */
+    public int getSectionCount() {
+        return m_nSections;
+    }
+
+    /**
+     * Returns the number of channels.
+     */
+    public int getChannelCount() {
+        return m_nChannels;
+    }
+}
+
+/* IIR.java */
@@ -0,0 +1,117 @@
+/*
+ * IIRBiquadFilterDescription.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+
+package org.tritonus.lowlevel.dsp;
+
+/**
+ * Description of an Infinite Impulse Response (IIR) filter as a cascade of
+ * second order sections (biquads).
+ *
+ * <p>
+ * Each section has the transfer function
+ * H(z) = (b0 + b1 z^-1 + b2 z^-2) / (1 + a1 z^-1 + a2 z^-2).
+ * The coefficients are stored section by section in the order b0, b1, b2,
+ * a1, a2. A first order section has b2 = a2 = 0.
+ * </p>
+ *
+ * @see IIRFilterDesign
+ */
+public class IIRBiquadFilterDescription implements FilterDescription {
+    /**
+     * The number of coefficients per section.
+     */
+    public static final int COEFFICIENTS_PER_SECTION = 5;
+
+    /**
+     * The filter coefficients.
+     */
+    private double[] m_adCoefficients;
+
+    /**
+     * Constructor with filter coefficients.
+     *
+     * @param adCoefficients The coefficients: b0, b1, b2, a1, a2 for each
+     *                       section
+     * @throws IllegalArgumentException if the number of coefficients is not
+     *                                  a multiple of 5
+     */
+    public IIRBiquadFilterDescription(double[] adCoefficients) {
+        if (adCoefficients.length % COEFFICIENTS_PER_SECTION != 0) {
+            throw new IllegalArgumentException(
+                    "number of coefficients must be a multiple of "
+                            + COEFFICIENTS_PER_SECTION);
+        }
+        m_adCoefficients = new double[adCoefficients.length];
+        System.arraycopy(adCoefficients, 0, m_adCoefficients, 0,
+                adCoefficients.length);
+    }
+
+    public double[] getCoefficients() {
+        return m_adCoefficients;
+    }
+
+    /**
+     * Returns the number of second order sections.
+     */
+    public int getSectionCount() {
+        return m_adCoefficients.length / COEFFICIENTS_PER_SECTION;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getFrequencyResponse(double dOmega) {
+        return Complex.abs(getResponse(dOmega));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getPhaseResponse(double dOmega) {
+        return Complex.argument(getResponse(dOmega));
+    }
+
+    private Complex getResponse(double dOmega) {
+        // z^-1 and z^-2
+        Complex z1 = new Complex(Math.cos(dOmega), -Math.sin(dOmega));
+        Complex z2 = new Complex(Math.cos(2 * dOmega), -Math.sin(2 * dOmega));
+        Complex response = new Complex(1.0);
+        double[] c = m_adCoefficients;
+        for (int i = 0; i < c.length; i += COEFFICIENTS_PER_SECTION) {
+            Complex numerator = Complex.plus(
+                    Complex.plus(Complex.times(z1, c[i + 1]),
+                            Complex.times(z2, c[i + 2])), c[i]);
+            Complex denominator = Complex.plus(
+                    Complex.plus(Complex.times(z1, c[i + 3]),
+                            Complex.times(z2, c[i + 4])), 1.0);
+            response = Complex.times(response,
+                    Complex.over(numerator, denominator));
+        }
+        return response;
+    }
+}
+
+/* IIRBiquadFilterDescription.java */
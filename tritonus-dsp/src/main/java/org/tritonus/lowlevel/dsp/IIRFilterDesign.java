@@ -0,0 +1,483 @@
+/*
+ * IIRFilterDesign.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+
+package org.tritonus.lowlevel.dsp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.tritonus.share.TDebug;
+
+
+/**
+ * Several methods to design IIR filters as cascades of second order
+ * sections.
+ *
+ * <p>
+ * The Butterworth, Chebyshev and elliptic designs start from the poles
+ * and zeros of a normalized analog low pass prototype. They are scaled to
+ * the prewarped corner frequency (and transformed to a high pass if
+ * requested), mapped to the z plane with the bilinear transform and
+ * paired into second order sections. The elliptic design follows S. J.
+ * Orfanidis, "Lecture Notes on Elliptic Filter Design", using Landen
+ * transformations for the Jacobi elliptic functions.
+ * </p>
+ *
+ * <p>
+ * Frequencies are given as omega, in radians per sample, 0 to PI. See
+ * {@link Util#absolute2omega(double, double)}.
+ * </p>
+ */
+public class IIRFilterDesign {
+    private static final boolean DEBUG = false;
+
+    /**
+     * Imaginary parts with an absolute value below this are taken as real.
+     */
+    private static final double EPSILON = 1.0E-10;
+
+    /**
+     * Maximum number of Landen transformations.
+     */
+    private static final int MAX_LANDEN_STEPS = 20;
+
+
+    private IIRFilterDesign() {
+    }
+
+    /**
+     * Designs a Butterworth low pass filter.
+     *
+     * @param nOrder       the order of the filter
+     * @param dCornerOmega the -3 dB frequency
+     */
+    public static IIRBiquadFilterDescription designButterworthLowPass(
+            int nOrder, double dCornerOmega) {
+        return design(getButterworthPoles(nOrder), new Complex[0], 1.0,
+                dCornerOmega, false);
+    }
+
+    /**
+     * Designs a Butterworth high pass filter.
+     *
+     * @param nOrder       the order of the filter
+     * @param dCornerOmega the -3 dB frequency
+     */
+    public static IIRBiquadFilterDescription designButterworthHighPass(
+            int nOrder, double dCornerOmega) {
+        return design(getButterworthPoles(nOrder), new Complex[0], 1.0,
+                dCornerOmega, true);
+    }
+
+    /**
+     * Designs a Chebyshev (type I) low pass filter.
+     *
+     * @param nOrder       the order of the filter
+     * @param dCornerOmega the edge of the pass band
+     * @param dRipple      the pass band ripple in dB
+     */
+    public static IIRBiquadFilterDescription designChebyshevLowPass(
+            int nOrder, double dCornerOmega, double dRipple) {
+        return design(getChebyshevPoles(nOrder, dRipple), new Complex[0],
+                getRippleGain(nOrder, dRipple), dCornerOmega, false);
+    }
+
+    /**
+     * Designs a Chebyshev (type I) high pass filter.
+     *
+     * @param nOrder       the order of the filter
+     * @param dCornerOmega the edge of the pass band
+     * @param dRipple      the pass band ripple in dB
+     */
+    public static IIRBiquadFilterDescription designChebyshevHighPass(
+            int nOrder, double dCornerOmega, double dRipple) {
+        return design(getChebyshevPoles(nOrder, dRipple), new Complex[0],
+                getRippleGain(nOrder, dRipple), dCornerOmega, true);
+    }
+
+    /**
+     * Designs an elliptic (Cauer) low pass filter.
+     *
+     * @param nOrder       the order of the filter
+     * @param dCornerOmega the edge of the pass band
+     * @param dRipple      the pass band ripple in dB
+     * @param dAttenuation the minimum stop band attenuation in dB
+     */
+    public static IIRBiquadFilterDescription designEllipticLowPass(
+            int nOrder, double dCornerOmega, double dRipple,
+            double dAttenuation) {
+        List<Complex> poles = new ArrayList<Complex>();
+        List<Complex> zeros = new ArrayList<Complex>();
+        getEllipticPrototype(nOrder, dRipple, dAttenuation, poles, zeros);
+        return design(poles.toArray(new Complex[0]),
+                zeros.toArray(new Complex[0]),
+                getRippleGain(nOrder, dRipple), dCornerOmega, false);
+    }
+
+    /**
+     * Designs an elliptic (Cauer) high pass filter.
+     *
+     * @param nOrder       the order of the filter
+     * @param dCornerOmega the edge of the pass band
+     * @param dRipple      the pass band ripple in dB
+     * @param dAttenuation the minimum stop band attenuation in dB
+     */
+    public static IIRBiquadFilterDescription designEllipticHighPass(
+            int nOrder, double dCornerOmega, double dRipple,
+            double dAttenuation) {
+        List<Complex> poles = new ArrayList<Complex>();
+        List<Complex> zeros = new ArrayList<Complex>();
+        getEllipticPrototype(nOrder, dRipple, dAttenuation, poles, zeros);
+        return design(poles.toArray(new Complex[0]),
+                zeros.toArray(new Complex[0]),
+                getRippleGain(nOrder, dRipple), dCornerOmega, true);
+    }
+
+    /**
+     * Designs a DC blocking filter: H(z) = (1 - z^-1) / (1 - p z^-1).
+     *
+     * @param dPole the pole, a bit below 1.0, e.g. 0.995. The nearer to
+     *              1.0, the lower the cutoff frequency.
+     */
+    public static IIRBiquadFilterDescription designDCBlocker(double dPole) {
+        return new IIRBiquadFilterDescription(new double[]{
+                1.0, -1.0, 0.0, -dPole, 0.0});
+    }
+
+    /**
+     * Designs a peaking equalizer section, as in R. Bristow-Johnson's
+     * "Cookbook formulae for audio EQ biquad filter coefficients".
+     *
+     * @param dCenterOmega the center frequency
+     * @param dQ           the quality factor, controls the bandwidth
+     * @param dGain        the gain at the center frequency in dB
+     */
+    public static IIRBiquadFilterDescription designPeakingEqualizer(
+            double dCenterOmega, double dQ, double dGain) {
+        double dA = Math.pow(10.0, dGain / 40.0);
+        double dAlpha = Math.sin(dCenterOmega) / (2.0 * dQ);
+        double dCos = Math.cos(dCenterOmega);
+        double a0 = 1.0 + dAlpha / dA;
+        return new IIRBiquadFilterDescription(new double[]{
+                (1.0 + dAlpha * dA) / a0,
+                -2.0 * dCos / a0,
+                (1.0 - dAlpha * dA) / a0,
+                -2.0 * dCos / a0,
+                (1.0 - dAlpha / dA) / a0});
+    }
+
+    /**
+     * Returns the gain at DC of the low pass prototype: 1 for odd orders,
+     * the lower edge of the ripple for even orders.
+     */
+    private static double getRippleGain(int nOrder, double dRipple) {
+        return nOrder % 2 == 0 ? Math.pow(10.0, -dRipple / 20.0) : 1.0;
+    }
+
+    private static Complex[] getButterworthPoles(int nOrder) {
+        checkOrder(nOrder);
+        Complex[] poles = new Complex[nOrder];
+        for (int k = 0; k < nOrder; k++) {
+            double dTheta = Math.PI * (2 * k + nOrder + 1) / (2 * nOrder);
+            poles[k] = new Complex(Math.cos(dTheta), Math.sin(dTheta));
+        }
+        return poles;
+    }
+
+    private static Complex[] getChebyshevPoles(int nOrder, double dRipple) {
+        checkOrder(nOrder);
+        double dEpsilon = Math.sqrt(Math.pow(10.0, dRipple / 10.0) - 1.0);
+        double dA = Sfun.asinh(1.0 / dEpsilon) / nOrder;
+        double dSinh = Sfun.sinh(dA);
+        double dCosh = Sfun.cosh(dA);
+        Complex[] poles = new Complex[nOrder];
+        for (int k = 0; k < nOrder; k++) {
+            double dTheta = Math.PI * (2 * k + 1) / (2 * nOrder);
+            poles[k] = new Complex(-dSinh * Math.sin(dTheta),
+                    dCosh * Math.cos(dTheta));
+        }
+        return poles;
+    }
+
+    /**
+     * Calculates the poles and zeros of the elliptic low pass prototype
+     * with the pass band edge at 1.
+     */
+    private static void getEllipticPrototype(int nOrder, double dRipple,
+                                             double dAttenuation, List<Complex> poles, List<Complex> zeros) {
+        checkOrder(nOrder);
+        if (dAttenuation <= dRipple) {
+            throw new IllegalArgumentException(
+                    "attenuation must be greater than ripple");
+        }
+        double dEp = Math.sqrt(Math.pow(10.0, dRipple / 10.0) - 1.0);
+        double dEs = Math.sqrt(Math.pow(10.0, dAttenuation / 10.0) - 1.0);
+        double k1 = dEp / dEs;
+        double k = getEllipticDegree(nOrder, k1);
+        Complex j = new Complex(0.0, 1.0);
+        // v0 is real
+        double v0 = Complex.times(Complex.negative(j),
+                asne(new Complex(0.0, 1.0 / dEp), k1)).real() / nOrder;
+        for (int i = 1; i <= nOrder / 2; i++) {
+            double u = (2.0 * i - 1.0) / nOrder;
+            Complex zeta = cde(new Complex(u), k);
+            Complex zero = Complex.over(j, Complex.times(zeta, k));
+            zeros.add(zero);
+            zeros.add(Complex.conjugate(zero));
+            Complex pole = Complex.times(j, cde(new Complex(u, -v0), k));
+            poles.add(pole);
+            poles.add(Complex.conjugate(pole));
+        }
+        if (nOrder % 2 == 1) {
+            Complex pole = Complex.times(j, sne(new Complex(0.0, v0), k));
+            poles.add(new Complex(pole.real()));
+        }
+    }
+
+    /**
+     * Solves the degree equation for the selectivity parameter k.
+     */
+    private static double getEllipticDegree(int nOrder, double k1) {
+        double k1Prime = Math.sqrt(1.0 - k1 * k1);
+        double dProduct = 1.0;
+        for (int i = 1; i <= nOrder / 2; i++) {
+            double u = (2.0 * i - 1.0) / nOrder;
+            dProduct *= sne(new Complex(u), k1Prime).real();
+        }
+        double kPrime = Math.pow(k1Prime, nOrder) * Math.pow(dProduct, 4);
+        return Math.sqrt(1.0 - kPrime * kPrime);
+    }
+
+    /**
+     * Returns the descending Landen sequence of moduli, starting with the
+     * one after k.
+     */
+    private static double[] landen(double k) {
+        double[] adModuli = new double[MAX_LANDEN_STEPS];
+        int n = 0;
+        while (n < MAX_LANDEN_STEPS) {
+            k = k / (1.0 + Math.sqrt(1.0 - k * k));
+            k *= k;
+            adModuli[n++] = k;
+            if (k < 1.0E-15) {
+                break;
+            }
+        }
+        double[] adResult = new double[n];
+        System.arraycopy(adModuli, 0, adResult, 0, n);
+        return adResult;
+    }
+
+    /**
+     * Jacobi elliptic function cd(u K, k).
+     */
+    private static Complex cde(Complex u, double k) {
+        Complex w = Complex.cos(Complex.times(u, Math.PI / 2.0));
+        return ascendLanden(w, landen(k));
+    }
+
+    /**
+     * Jacobi elliptic function sn(u K, k).
+     */
+    private static Complex sne(Complex u, double k) {
+        Complex w = Complex.sin(Complex.times(u, Math.PI / 2.0));
+        return ascendLanden(w, landen(k));
+    }
+
+    private static Complex ascendLanden(Complex w, double[] adModuli) {
+        for (int n = adModuli.length - 1; n >= 0; n--) {
+            double v = adModuli[n];
+            w = Complex.over(Complex.times(w, 1.0 + v),
+                    Complex.plus(Complex.times(Complex.times(w, w), v), 1.0));
+        }
+        return w;
+    }
+
+    /**
+     * Inverse of sne(u, k): returns u with sn(u K, k) = w.
+     */
+    private static Complex asne(Complex w, double k) {
+        double[] adModuli = landen(k);
+        double dPrevious = k;
+        for (int n = 0; n < adModuli.length; n++) {
+            Complex root = Complex.sqrt(Complex.minus(1.0,
+                    Complex.times(Complex.times(w, w), dPrevious * dPrevious)));
+            w = Complex.times(Complex.over(w, Complex.plus(root, 1.0)),
+                    2.0 / (1.0 + adModuli[n]));
+            dPrevious = adModuli[n];
+        }
+        return Complex.times(Complex.asin(w), 2.0 / Math.PI);
+    }
+
+    private static void checkOrder(int nOrder) {
+        if (nOrder < 1) {
+            throw new IllegalArgumentException("order must be at least 1");
+        }
+    }
+
+    /**
+     * Transforms an analog low pass prototype to a digital filter.
+     *
+     * @param analogPoles  the poles of the prototype, complex ones in
+     *                     conjugate pairs
+     * @param analogZeros  the finite zeros of the prototype
+     * @param dGain        the gain of the prototype at DC
+     * @param dCornerOmega the corner frequency of the digital filter
+     * @param bHighPass    whether to design a high pass
+     */
+    private static IIRBiquadFilterDescription design(Complex[] analogPoles,
+                                                     Complex[] analogZeros, double dGain, double dCornerOmega,
+                                                     boolean bHighPass) {
+        if (dCornerOmega <= 0.0 || dCornerOmega >= Math.PI) {
+            throw new IllegalArgumentException(
+                    "corner frequency must be between 0 and PI");
+        }
+        double dWarped = Math.tan(dCornerOmega / 2.0);
+        List<Complex> poles = new ArrayList<Complex>();
+        for (Complex pole : analogPoles) {
+            poles.add(bilinear(scale(pole, dWarped, bHighPass)));
+        }
+        List<Complex> zeros = new ArrayList<Complex>();
+        for (Complex zero : analogZeros) {
+            zeros.add(bilinear(scale(zero, dWarped, bHighPass)));
+        }
+        // zeros at infinity go to Nyquist for a low pass, to DC for a high pass
+        for (int i = analogZeros.length; i < analogPoles.length; i++) {
+            zeros.add(new Complex(bHighPass ? 1.0 : -1.0));
+        }
+        List<double[]> polePairs = pair(poles);
+        List<double[]> zeroPairs = pair(zeros);
+        // sort by pole radius, so that sections with high Q come last
+        Collections.sort(polePairs, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] p1, double[] p2) {
+                return Double.compare(Math.abs(p1[1]), Math.abs(p2[1]));
+            }
+        });
+        // the reference point is z = 1 for a low pass, z = -1 for a high pass
+        double z = bHighPass ? -1.0 : 1.0;
+        int nSections = polePairs.size();
+        double[] adCoefficients = new double[nSections
+                * IIRBiquadFilterDescription.COEFFICIENTS_PER_SECTION];
+        for (int nSection = 0; nSection < nSections; nSection++) {
+            double[] polePair = polePairs.get(nSection);
+            double[] zeroPair = removeNearest(zeroPairs, polePair);
+            double dNumerator = 1.0 + zeroPair[0] * z + zeroPair[1];
+            double dDenominator = 1.0 + polePair[0] * z + polePair[1];
+            // unity gain of each section at the reference point
+            double dScale = dDenominator / dNumerator;
+            if (nSection == 0) {
+                dScale *= dGain;
+            }
+            int i = nSection * IIRBiquadFilterDescription.COEFFICIENTS_PER_SECTION;
+            adCoefficients[i] = dScale;
+            adCoefficients[i + 1] = dScale * zeroPair[0];
+            adCoefficients[i + 2] = dScale * zeroPair[1];
+            adCoefficients[i + 3] = polePair[0];
+            adCoefficients[i + 4] = polePair[1];
+            if (DEBUG) {
+                TDebug.out("IIRFilterDesign.design(): section " + nSection
+                        + ": b = " + adCoefficients[i] + ", "
+                        + adCoefficients[i + 1] + ", " + adCoefficients[i + 2]
+                        + "; a = 1, " + adCoefficients[i + 3] + ", "
+                        + adCoefficients[i + 4]);
+            }
+        }
+        return new IIRBiquadFilterDescription(adCoefficients);
+    }
+
+    /**
+     * Scales a prototype pole or zero to the corner frequency. For a high
+     * pass, s is replaced by dWarped / s.
+     */
+    private static Complex scale(Complex s, double dWarped, boolean bHighPass) {
+        return bHighPass ? Complex.over(dWarped, s) : Complex.times(s, dWarped);
+    }
+
+    /**
+     * Bilinear transform: z = (1 + s) / (1 - s).
+     */
+    private static Complex bilinear(Complex s) {
+        return Complex.over(Complex.plus(1.0, s), Complex.minus(1.0, s));
+    }
+
+    /**
+     * Groups roots into polynomials 1 + c1 z^-1 + c2 z^-2. Complex roots
+     * are taken with their conjugate, real roots are combined in pairs. A
+     * remaining real root gives a first order polynomial.
+     *
+     * @return a list of {c1, c2}
+     */
+    private static List<double[]> pair(List<Complex> roots) {
+        List<double[]> pairs = new ArrayList<double[]>();
+        List<Double> reals = new ArrayList<Double>();
+        for (Complex root : roots) {
+            if (Math.abs(root.imag()) < EPSILON) {
+                reals.add(root.real());
+            } else if (root.imag() > 0.0) {
+                // the conjugate is skipped
+                pairs.add(new double[]{-2.0 * root.real(),
+                        root.real() * root.real() + root.imag() * root.imag()});
+            }
+        }
+        int i = 0;
+        for (; i + 1 < reals.size(); i += 2) {
+            double r1 = reals.get(i);
+            double r2 = reals.get(i + 1);
+            pairs.add(new double[]{-(r1 + r2), r1 * r2});
+        }
+        if (i < reals.size()) {
+            pairs.add(new double[]{-reals.get(i), 0.0});
+        }
+        return pairs;
+    }
+
+    /**
+     * Removes and returns the zero polynomial that fits best to the pole
+     * polynomial. First order polynomials are matched with each other.
+     */
+    private static double[] removeNearest(List<double[]> zeroPairs,
+                                          double[] polePair) {
+        int nBest = -1;
+        double dBestDistance = Double.MAX_VALUE;
+        for (int i = 0; i < zeroPairs.size(); i++) {
+            double[] zeroPair = zeroPairs.get(i);
+            boolean bFirstOrder = zeroPair[1] == 0.0;
+            double dDistance = Math.abs(zeroPair[0] - polePair[0])
+                    + Math.abs(zeroPair[1] - polePair[1]);
+            if (bFirstOrder != (polePair[1] == 0.0)) {
+                dDistance += 1000.0;
+            }
+            if (dDistance < dBestDistance) {
+                dBestDistance = dDistance;
+                nBest = i;
+            }
+        }
+        return zeroPairs.remove(nBest);
+    }
+}
+
+/* IIRFilterDesign.java */
@@ -0,0 +1,174 @@
+/*
+ * FIRTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test.tritonus.lowlevel.dsp;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.lowlevel.dsp.FIR;
+import org.tritonus.lowlevel.dsp.FIRDirectFormFilterDescription;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Tests for class org.tritonus.lowlevel.dsp.FIR. The block methods,
+ * which switch between the direct form and FFT convolution, are
+ * compared with a direct convolution in double precision.
+ */
+public class FIRTestCase {
+    private static final int SAMPLES = 20000;
+    private static final double TOLERANCE = 1.0E-5;
+
+    /**
+     * Filter lengths: below FFT_THRESHOLD, at it, and one where FFT
+     * convolution is already used for blocks shorter than the filter.
+     */
+    private static final int[] LENGTHS = {17, FIR.FFT_THRESHOLD, 255, 1000};
+
+    /**
+     * Block sizes, shorter and longer than the filters and one FFT
+     * block.
+     */
+    private static final int[] BLOCK_SIZES = {1, 7, 63, 300, 777, 4096, SAMPLES};
+
+
+    @Test
+    public void testBlocks() {
+        for (int nLength : LENGTHS) {
+            float[] afCoefficients = createSignal(new Random(nLength), nLength);
+            float[] afInput = createSignal(new Random(4711), SAMPLES);
+            double[] adExpected = convolve(afCoefficients, afInput);
+            for (int nBlockSize : BLOCK_SIZES) {
+                FIR fir = new FIR(new FIRDirectFormFilterDescription(afCoefficients));
+                float[] afOutput = new float[SAMPLES];
+                for (int nStart = 0; nStart < SAMPLES; nStart += nBlockSize) {
+                    int nCount = Math.min(nBlockSize, SAMPLES - nStart);
+                    fir.process(afInput, nStart, afOutput, nCount);
+                }
+                assertClose(adExpected, afOutput,
+                        "length " + nLength + ", block size " + nBlockSize);
+            }
+        }
+    }
+
+
+    /**
+     * Block sizes that change from block to block, in place, mixed with
+     * processing sample by sample. All share the same history.
+     */
+    @Test
+    public void testMixedBlocks() {
+        Random random = new Random(17);
+        for (int nLength : LENGTHS) {
+            float[] afCoefficients = createSignal(random, nLength);
+            float[] afInput = createSignal(random, SAMPLES);
+            double[] adExpected = convolve(afCoefficients, afInput);
+            FIR fir = new FIR(new FIRDirectFormFilterDescription(afCoefficients));
+            float[] afData = afInput.clone();
+            int nStart = 0;
+            while (nStart < SAMPLES) {
+                int nCount = Math.min(random.nextInt(3 * nLength) + 1,
+                        SAMPLES - nStart);
+                if (nCount % 5 == 0) {
+                    for (int i = nStart; i < nStart + nCount; i++) {
+                        afData[i] = fir.process(afData[i]);
+                    }
+                } else {
+                    fir.process(afData, nStart, afData, nCount);
+                }
+                nStart += nCount;
+            }
+            assertClose(adExpected, afData, "length " + nLength);
+        }
+    }
+
+
+    /**
+     * Two channels with the same coefficients, which FFT convolution
+     * transforms together.
+     */
+    @Test
+    public void testTwoChannels() {
+        for (int nLength : LENGTHS) {
+            float[] afCoefficients = createSignal(new Random(nLength), nLength);
+            float[] afInput1 = createSignal(new Random(1), SAMPLES);
+            float[] afInput2 = createSignal(new Random(2), SAMPLES);
+            double[] adExpected1 = convolve(afCoefficients, afInput1);
+            double[] adExpected2 = convolve(afCoefficients, afInput2);
+            for (int nBlockSize : BLOCK_SIZES) {
+                FIR fir1 = new FIR(new FIRDirectFormFilterDescription(afCoefficients));
+                FIR fir2 = new FIR(new FIRDirectFormFilterDescription(afCoefficients));
+                float[] afData1 = afInput1.clone();
+                float[] afData2 = afInput2.clone();
+                for (int nStart = 0; nStart < SAMPLES; nStart += nBlockSize) {
+                    int nCount = Math.min(nBlockSize, SAMPLES - nStart);
+                    FIR.process(fir1, afData1, fir2, afData2, nStart, nCount);
+                }
+                String strMessage = "length " + nLength + ", block size " + nBlockSize;
+                assertClose(adExpected1, afData1, "channel 1, " + strMessage);
+                assertClose(adExpected2, afData2, "channel 2, " + strMessage);
+            }
+        }
+    }
+
+
+    private static float[] createSignal(Random random, int nLength) {
+        float[] afSignal = new float[nLength];
+        for (int i = 0; i < nLength; i++) {
+            afSignal[i] = random.nextFloat() * 2.0F - 1.0F;
+        }
+        return afSignal;
+    }
+
+
+    /**
+     * Direct convolution, starting with silence.
+     */
+    private static double[] convolve(float[] afCoefficients, float[] afInput) {
+        double[] adOutput = new double[afInput.length];
+        for (int n = 0; n < afInput.length; n++) {
+            double dSum = 0.0;
+            for (int i = 0; i < afCoefficients.length && i <= n; i++) {
+                dSum += (double) afCoefficients[i] * afInput[n - i];
+            }
+            adOutput[n] = dSum;
+        }
+        return adOutput;
+    }
+
+
+    /**
+     * Compares the largest error relative to the peak of the expected
+     * output.
+     */
+    private static void assertClose(double[] adExpected, float[] afActual,
+                                    String strMessage) {
+        double dMaxError = 0.0;
+        double dPeak = 0.0;
+        for (int i = 0; i < adExpected.length; i++) {
+            dMaxError = Math.max(dMaxError, Math.abs(adExpected[i] - afActual[i]));
+            dPeak = Math.max(dPeak, Math.abs(adExpected[i]));
+        }
+        assertEquals(0.0, dMaxError / dPeak, TOLERANCE, strMessage);
+    }
+}
+
+
+/* FIRTestCase.java */
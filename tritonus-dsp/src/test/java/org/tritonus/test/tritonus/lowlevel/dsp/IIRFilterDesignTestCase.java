@@ -0,0 +1,212 @@
+/*
+ * IIRFilterDesignTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test.tritonus.lowlevel.dsp;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.lowlevel.dsp.IIR;
+import org.tritonus.lowlevel.dsp.IIRBiquadFilterDescription;
+import org.tritonus.lowlevel.dsp.IIRFilterDesign;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests for class org.tritonus.lowlevel.dsp.IIRFilterDesign. The
+ * magnitude response of the designed cascades is checked at DC, at the
+ * corner frequency and at Nyquist, and the cascades have to be stable.
+ */
+public class IIRFilterDesignTestCase {
+    private static final int MAX_ORDER = 10;
+    private static final double[] CORNERS = {0.02 * Math.PI, 0.25 * Math.PI,
+            0.5 * Math.PI, 0.9 * Math.PI};
+    private static final double RIPPLE = 0.5;
+    private static final double ATTENUATION = 60.0;
+    private static final double TOLERANCE = 1.0E-6;
+
+
+    @Test
+    public void testButterworth() {
+        double dCornerGain = Math.sqrt(0.5);
+        for (int nOrder = 1; nOrder <= MAX_ORDER; nOrder++) {
+            for (double dCorner : CORNERS) {
+                String strMessage = getMessage(nOrder, dCorner);
+                IIRBiquadFilterDescription lowPass =
+                        IIRFilterDesign.designButterworthLowPass(nOrder, dCorner);
+                assertResponse(lowPass, 1.0, dCornerGain, 0.0, dCorner,
+                        "low pass, " + strMessage);
+                assertStable(lowPass, "low pass, " + strMessage);
+                IIRBiquadFilterDescription highPass =
+                        IIRFilterDesign.designButterworthHighPass(nOrder, dCorner);
+                assertResponse(highPass, 0.0, dCornerGain, 1.0, dCorner,
+                        "high pass, " + strMessage);
+                assertStable(highPass, "high pass, " + strMessage);
+            }
+        }
+    }
+
+
+    /**
+     * At the edge of the pass band, the gain is at the lower edge of the
+     * ripple. At DC (low pass) or Nyquist (high pass), it is there
+     * for even orders and 1 for odd orders.
+     */
+    @Test
+    public void testChebyshev() {
+        double dRippleGain = Math.pow(10.0, -RIPPLE / 20.0);
+        for (int nOrder = 1; nOrder <= MAX_ORDER; nOrder++) {
+            double dPassGain = nOrder % 2 == 0 ? dRippleGain : 1.0;
+            for (double dCorner : CORNERS) {
+                String strMessage = getMessage(nOrder, dCorner);
+                IIRBiquadFilterDescription lowPass =
+                        IIRFilterDesign.designChebyshevLowPass(nOrder, dCorner, RIPPLE);
+                assertResponse(lowPass, dPassGain, dRippleGain, 0.0, dCorner,
+                        "low pass, " + strMessage);
+                assertStable(lowPass, "low pass, " + strMessage);
+                IIRBiquadFilterDescription highPass =
+                        IIRFilterDesign.designChebyshevHighPass(nOrder, dCorner, RIPPLE);
+                assertResponse(highPass, 0.0, dRippleGain, dPassGain, dCorner,
+                        "high pass, " + strMessage);
+                assertStable(highPass, "high pass, " + strMessage);
+            }
+        }
+    }
+
+
+    /**
+     * Like Chebyshev in the pass band. In the stop band, the gain
+     * at DC or Nyquist must not exceed the attenuation.
+     */
+    @Test
+    public void testElliptic() {
+        double dRippleGain = Math.pow(10.0, -RIPPLE / 20.0);
+        double dStopGain = Math.pow(10.0, -ATTENUATION / 20.0);
+        for (int nOrder = 1; nOrder <= MAX_ORDER; nOrder++) {
+            double dPassGain = nOrder % 2 == 0 ? dRippleGain : 1.0;
+            for (double dCorner : CORNERS) {
+                String strMessage = getMessage(nOrder, dCorner);
+                IIRBiquadFilterDescription lowPass = IIRFilterDesign.designEllipticLowPass(
+                        nOrder, dCorner, RIPPLE, ATTENUATION);
+                assertEquals(dPassGain, lowPass.getFrequencyResponse(0.0), TOLERANCE,
+                        "DC, low pass, " + strMessage);
+                assertEquals(dRippleGain, lowPass.getFrequencyResponse(dCorner),
+                        TOLERANCE, "corner, low pass, " + strMessage);
+                assertTrue(lowPass.getFrequencyResponse(Math.PI) <= dStopGain + TOLERANCE,
+                        "Nyquist, low pass, " + strMessage);
+                assertStable(lowPass, "low pass, " + strMessage);
+
+                IIRBiquadFilterDescription highPass = IIRFilterDesign.designEllipticHighPass(
+                        nOrder, dCorner, RIPPLE, ATTENUATION);
+                assertTrue(highPass.getFrequencyResponse(0.0) <= dStopGain + TOLERANCE,
+                        "DC, high pass, " + strMessage);
+                assertEquals(dRippleGain, highPass.getFrequencyResponse(dCorner),
+                        TOLERANCE, "corner, high pass, " + strMessage);
+                assertEquals(dPassGain, highPass.getFrequencyResponse(Math.PI),
+                        TOLERANCE, "Nyquist, high pass, " + strMessage);
+                assertStable(highPass, "high pass, " + strMessage);
+            }
+        }
+    }
+
+
+    @Test
+    public void testDCBlocker() {
+        IIRBiquadFilterDescription description = IIRFilterDesign.designDCBlocker(0.995);
+        assertEquals(0.0, description.getFrequencyResponse(0.0), TOLERANCE, "DC");
+        assertEquals(1.0, description.getFrequencyResponse(Math.PI), 0.01, "Nyquist");
+        assertStable(description, "DC blocker");
+    }
+
+
+    @Test
+    public void testPeakingEqualizer() {
+        for (double dGain : new double[] {-12.0, -3.0, 6.0, 12.0}) {
+            for (double dCenter : CORNERS) {
+                String strMessage = "gain " + dGain + " dB, " + getMessage(0, dCenter);
+                IIRBiquadFilterDescription description =
+                        IIRFilterDesign.designPeakingEqualizer(dCenter, 2.0, dGain);
+                assertEquals(1.0, description.getFrequencyResponse(0.0), TOLERANCE,
+                        "DC, " + strMessage);
+                assertEquals(Math.pow(10.0, dGain / 20.0),
+                        description.getFrequencyResponse(dCenter), TOLERANCE,
+                        "center, " + strMessage);
+                assertEquals(1.0, description.getFrequencyResponse(Math.PI), TOLERANCE,
+                        "Nyquist, " + strMessage);
+                assertStable(description, strMessage);
+            }
+        }
+    }
+
+
+    private static void assertResponse(IIRBiquadFilterDescription description,
+                                       double dDCGain, double dCornerGain, double dNyquistGain,
+                                       double dCorner, String strMessage) {
+        assertEquals(dDCGain, description.getFrequencyResponse(0.0), TOLERANCE,
+                "DC, " + strMessage);
+        assertEquals(dCornerGain, description.getFrequencyResponse(dCorner), TOLERANCE,
+                "corner, " + strMessage);
+        assertEquals(dNyquistGain, description.getFrequencyResponse(Math.PI), TOLERANCE,
+                "Nyquist, " + strMessage);
+    }
+
+
+    /**
+     * Checks that the poles of each section are inside the unit circle
+     * (the stability triangle of the denominator 1 + a1 z^-1 + a2 z^-2)
+     * and that the impulse response of the cascade decays.
+     */
+    private static void assertStable(IIRBiquadFilterDescription description,
+                                     String strMessage) {
+        double[] c = description.getCoefficients();
+        for (int i = 0; i < c.length; i += IIRBiquadFilterDescription.COEFFICIENTS_PER_SECTION) {
+            double a1 = c[i + 3];
+            double a2 = c[i + 4];
+            int nSection = i / IIRBiquadFilterDescription.COEFFICIENTS_PER_SECTION;
+            assertTrue(Math.abs(a2) < 1.0 && Math.abs(a1) < 1.0 + a2,
+                    "poles of section " + nSection + " inside the unit circle, "
+                            + strMessage + ": a1 = " + a1 + ", a2 = " + a2);
+        }
+
+        IIR iir = new IIR(description);
+        float[] afImpulse = new float[50000];
+        afImpulse[0] = 1.0F;
+        iir.process(0, afImpulse, 0, afImpulse.length);
+        double dPeak = 0.0;
+        double dTail = 0.0;
+        for (int n = 0; n < afImpulse.length; n++) {
+            assertTrue(!Float.isNaN(afImpulse[n]) && !Float.isInfinite(afImpulse[n]),
+                    "impulse response finite, " + strMessage);
+            if (n < afImpulse.length - 1000) {
+                dPeak = Math.max(dPeak, Math.abs(afImpulse[n]));
+            } else {
+                dTail = Math.max(dTail, Math.abs(afImpulse[n]));
+            }
+        }
+        assertTrue(dTail < 1.0E-6 * dPeak,
+                "impulse response decays, " + strMessage + ": peak " + dPeak + ", tail " + dTail);
+    }
+
+
+    private static String getMessage(int nOrder, double dOmega) {
+        return "order " + nOrder + ", omega " + dOmega / Math.PI + " pi";
+    }
+}
+
+
+/* IIRFilterDesignTestCase.java */
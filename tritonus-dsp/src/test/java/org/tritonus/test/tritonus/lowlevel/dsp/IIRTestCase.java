@@ -0,0 +1,120 @@
+/*
+ * IIRTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test.tritonus.lowlevel.dsp;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.lowlevel.dsp.IIR;
+import org.tritonus.lowlevel.dsp.IIRBiquadFilterDescription;
+import org.tritonus.lowlevel.dsp.IIRFilterDesign;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+
+/**
+ * Tests for class org.tritonus.lowlevel.dsp.IIR. The block methods have
+ * to give the same output as processing sample by sample, which keeps
+ * double precision through all sections of the cascade.
+ */
+public class IIRTestCase {
+    private static final int SAMPLES = 20000;
+    private static final int[] BLOCK_SIZES = {1, 7, 64, 1000, SAMPLES};
+
+
+    /**
+     * High order designs with a low corner, where rounding between the
+     * sections would show most.
+     */
+    private static IIRBiquadFilterDescription[] getDescriptions() {
+        return new IIRBiquadFilterDescription[] {
+                IIRFilterDesign.designEllipticLowPass(10, 0.01 * Math.PI, 0.5, 80.0),
+                IIRFilterDesign.designChebyshevHighPass(9, 0.02 * Math.PI, 1.0),
+                IIRFilterDesign.designButterworthLowPass(8, 0.5 * Math.PI),
+        };
+    }
+
+
+    @Test
+    public void testBlocks() {
+        float[] afInput = createSignal(new Random(4711));
+        for (IIRBiquadFilterDescription description : getDescriptions()) {
+            float[] afExpected = processSamples(new IIR(description), afInput);
+            for (int nBlockSize : BLOCK_SIZES) {
+                IIR iir = new IIR(description);
+                float[] afOutput = new float[SAMPLES];
+                for (int nStart = 0; nStart < SAMPLES; nStart += nBlockSize) {
+                    int nCount = Math.min(nBlockSize, SAMPLES - nStart);
+                    iir.process(0, afInput, nStart, afOutput, nStart, nCount);
+                }
+                assertArrayEquals(afExpected, afOutput, "sections "
+                        + description.getSectionCount() + ", block size " + nBlockSize);
+            }
+        }
+    }
+
+
+    /**
+     * Two channels processed in place, interleaved block by block.
+     */
+    @Test
+    public void testChannels() {
+        Random random = new Random(17);
+        float[] afInput1 = createSignal(random);
+        float[] afInput2 = createSignal(random);
+        for (IIRBiquadFilterDescription description : getDescriptions()) {
+            float[] afExpected1 = processSamples(new IIR(description), afInput1);
+            float[] afExpected2 = processSamples(new IIR(description), afInput2);
+            IIR iir = new IIR(description, 2);
+            float[] afData1 = afInput1.clone();
+            float[] afData2 = afInput2.clone();
+            int nStart = 0;
+            while (nStart < SAMPLES) {
+                int nCount = Math.min(random.nextInt(500) + 1, SAMPLES - nStart);
+                iir.process(0, afData1, nStart, nCount);
+                iir.process(1, afData2, nStart, nCount);
+                nStart += nCount;
+            }
+            String strMessage = "sections " + description.getSectionCount();
+            assertArrayEquals(afExpected1, afData1, "channel 0, " + strMessage);
+            assertArrayEquals(afExpected2, afData2, "channel 1, " + strMessage);
+        }
+    }
+
+
+    private static float[] processSamples(IIR iir, float[] afInput) {
+        float[] afOutput = new float[afInput.length];
+        for (int i = 0; i < afInput.length; i++) {
+            afOutput[i] = iir.process(afInput[i]);
+        }
+        return afOutput;
+    }
+
+
+    private static float[] createSignal(Random random) {
+        float[] afSignal = new float[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            afSignal[i] = random.nextFloat() * 2.0F - 1.0F;
+        }
+        return afSignal;
+    }
+}
+
+
+/* IIRTestCase.java */
@@ -60,6 +60,23 @@ public class GSMAudioFileReader
     }
 
 
+    /**
+     * Raw GSM data has no header. Each frame of 33 bytes starts with
+     * the magic number, so all frames in the header are checked.
+     */
+    protected boolean matchesHeader(byte[] abHeader, int nLength) {
+        if (nLength == 0) {
+            return false;
+        }
+        for (int i = 0; i < nLength; i += 33) {
+            if ((abHeader[i] & GSM_MAGIC_MASK) != GSM_MAGIC) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     protected AudioFileFormat getAudioFileFormat(InputStream inputStream, long lFileSizeInBytes)
             throws UnsupportedAudioFileException, IOException {
         if (TDebug.TraceAudioFileReader) {
@@ -28,16 +28,15 @@
 package org.tritonus.midi.device.java;
 
 import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiDevice;
-import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Track;
 
 import org.tritonus.share.TDebug;
-import org.tritonus.share.midi.MidiUtils;
 import org.tritonus.share.midi.TSequencer;
 
 
@@ -50,6 +49,12 @@ public class JavaSequencer
     private static final SyncMode[] MASTER_SYNC_MODES = {SyncMode.INTERNAL_CLOCK};
     private static final SyncMode[] SLAVE_SYNC_MODES = {SyncMode.NO_SYNC};
 
+    /**
+     * Default for the time to spin before an event is due, in
+     * microseconds.
+     */
+    private static final long DEFAULT_SPIN_TIME = 500;
+
     // internal states
     /** not running */
     private static final int STATE_STOPPED = 0;
@@ -63,19 +68,49 @@ public class JavaSequencer
     private static final int STATE_CLOSING = 4;
 
     private Thread m_thread;
-    private long m_lMicroSecondsPerTick;
 
-    private int[] m_anTrackPositions;
-    private long m_lTickPosition;
-    private long m_lStartTime;
+    /**
+     * Relation between clock time and the position in the sequence.
+     * This is replaced as a whole, so that readers see consistent
+     * values without locking. It is set first by setTempoImpl(),
+     * called from the constructor of TSequencer.
+     */
+    private volatile TimeBase m_timeBase;
+
+    /**
+     * The tempo passed to setTempoImpl(), with the tempo factor applied.
+     */
+    private float m_fRealTempoInMPQ;
+
+    /**
+     * The position of the tempo event the playback thread is applying,
+     * or -1. While it is set, setTempoImpl() starts the new time base
+     * at this position instead of the one derived from the clock.
+     */
+    private long m_lTempoEventPosition = -1;
+
+    /**
+     * The compiled sequence, null if no sequence is set.
+     */
+    private volatile SequenceTimeline m_timeline;
+
+    /**
+     * Index of the next event in m_timeline.
+     */
+    private int m_nNextEvent;
+
+    /**
+     * The tick of the last event delivered. This is written by the
+     * playback thread and read by getTickPosition() without locking.
+     */
+    private volatile long m_lTickPosition;
 
     /**
      * Internal state of the sequencer.
      * As values, the symbolic constants STATE_*
      * are used.
      */
-    private int m_nPhase;
-    private boolean m_bTempoChanged;
+    private volatile int m_nPhase;
 
     /**
      * The clock to use as time base for this sequencer.
@@ -85,11 +120,18 @@ public class JavaSequencer
     private Clock m_clock;
 
     /**
-     * How long to sleep in the main loop.
-     * The value is initialized in the constructor by reading a
-     * system property.
+     * How long before an event is due the playback thread stops parking
+     * and starts spinning, in microseconds. Parking wakes up too late by
+     * up to the timer resolution of the OS; spinning is exact, but keeps
+     * a CPU busy. The value is initialized in the constructor by reading
+     * the system property tritonus.javasequencer.spintime.
      */
-    private long m_lSleepInterval;
+    private final long m_lSpinTime;
+
+    /**
+     * Delivery delays of the events sent.
+     */
+    private final JitterStatistics m_jitterStatistics = new JitterStatistics();
 
 
     public JavaSequencer(MidiDevice.Info info) {
@@ -99,18 +141,8 @@ public class JavaSequencer
         if (TDebug.TraceSequencer) {
             TDebug.out("JavaSequencer.<init>(): begin");
         }
-        String strVersion = System.getProperty("java.version");
-        if (strVersion.contains("1.4.2")) {
-            setClock(new SunMiscPerfClock());
-        } else {
-            setClock(new SystemCurrentTimeMillisClock());
-        }
-        String strOS = System.getProperty("os.name");
-        if (strOS.equals("Linux")) {
-            m_lSleepInterval = 0;
-        } else {
-            m_lSleepInterval = 1;
-        }
+        setClock(new SystemNanoTimeClock());
+        m_lSpinTime = Long.getLong("tritonus.javasequencer.spintime", DEFAULT_SPIN_TIME);
         if (TDebug.TraceSequencer) {
             TDebug.out("JavaSequencer.<init>(): end");
         }
@@ -161,7 +193,7 @@ public class JavaSequencer
                 // unlock thread waiting for start
                 m_nPhase = STATE_STARTING;  // ask for start
                 this.notifyAll();
-                // wait until m_lStartTime is set
+                // wait until the time base is set
                 while (m_nPhase == STATE_STARTING) {
                     try {
                         this.wait();
@@ -193,6 +225,7 @@ public class JavaSequencer
             } else {
                 if (m_nPhase == STATE_STARTED) {
                     m_nPhase = STATE_STOPPING; // ask for stop
+                    LockSupport.unpark(m_thread);
                     while (m_nPhase == STATE_STOPPING) {
                         try {
                             this.wait();
@@ -239,38 +272,24 @@ public class JavaSequencer
                     TDebug.out("JavaSequencer.run(): now running");
                 }
                 //NOTE: all time calculations are done in microseconds
-                m_lStartTime = getTimeInMicroseconds() - m_lTickPosition * m_lMicroSecondsPerTick;
+                updateTimeline();
+                long lPosition = 0;
+                if (m_timeline != null) {
+                    lPosition = m_timeline.getMicroseconds(m_lTickPosition);
+                }
+                m_timeBase = createTimeBase(getTimeInMicroseconds(), lPosition);
                 m_nPhase = STATE_STARTED;
                 this.notifyAll();
             }
-            Sequence sequence = getSequence();
-            if (sequence == null) {
+            SequenceTimeline timeline = m_timeline;
+            if (getSequence() == null || timeline == null) {
                 stop();
                 continue;
             }
-            Track[] aTracks = sequence.getTracks();
-            // this is used to get a useful time value for the end of track message
-            //long lHighestTime = 0;
+            int nEventCount = timeline.getEventCount();
             while (m_nPhase == STATE_STARTED) {
-                // searching for the next event
-                boolean bTrackPresent = false;
-                long lBestTick = Long.MAX_VALUE;
-                int nBestTrack = -1;
-                for (int nTrack = 0; nTrack < aTracks.length; nTrack++) {
-                    // TDebug.out("track " + nTrack);
-                    // Track track = aTracks[nTrack];
-                    if (m_anTrackPositions[nTrack] < aTracks[nTrack].size()
-                            && isTrackEnabled(nTrack)) {
-                        bTrackPresent = true;
-                        MidiEvent event = aTracks[nTrack].get(m_anTrackPositions[nTrack]);
-                        long lTick = event.getTick();
-                        if (lTick < lBestTick) {
-                            lBestTick = lTick;
-                            nBestTrack = nTrack;
-                        }
-                    }
-                }
-                if (!bTrackPresent) {
+                int nEvent = m_nNextEvent;
+                if (nEvent >= nEventCount) {
                     MetaMessage metaMessage = new MetaMessage();
                     try {
                         metaMessage.setMessage(0x2F, new byte[0], 0);
@@ -282,34 +301,38 @@ public class JavaSequencer
                     if (TDebug.TraceSequencer) {
                         TDebug.out("JavaSequencer.run(): sending End of Track message with tick " + (m_lTickPosition + 1));
                     }
-                    // TODO: calulate us
-                    deliverEvent(metaMessage, m_lTickPosition + 1);
+                    if (waitForPosition(timeline.getMicroseconds(m_lTickPosition + 1))) {
+                        deliverEvent(metaMessage);
+                    }
                     stop();
                     break;
                 }
-                MidiEvent event = aTracks[nBestTrack].get(m_anTrackPositions[nBestTrack]);
-                MidiMessage message = event.getMessage();
-                long lTick = event.getTick();
-                if (message instanceof MetaMessage && ((MetaMessage) message).getType() == 0x2F) {
+                long lTick = timeline.getEventTick(nEvent);
+                if (timeline.isEndOfTrack(nEvent)) {
                     if (TDebug.TraceSequencer) {
                         TDebug.out("JavaSequencer.run(): ignoring End of Track message with tick " + lTick);
                     }
-                    m_anTrackPositions[nBestTrack]++;
-                    synchronized (this) {
-                        m_lTickPosition = lTick;
+                    m_nNextEvent = nEvent + 1;
+                    m_lTickPosition = lTick;
+                } else if (waitForPosition(timeline.getEventMicroseconds(nEvent))) {
+                    // tempo events of muted tracks are applied, too, as they are part of the tempo map
+                    int nTempo = timeline.getTempoChange(nEvent);
+                    if (nTempo > 0) {
+                        // TDebug.out("tempo (us/quarter note): " + nTempo);
+                        applyTempoEvent(nTempo, timeline.getEventMicroseconds(nEvent));
                     }
-                } else {
-                    if (deliverEvent(message, lTick)) {
-                        m_anTrackPositions[nBestTrack]++;
-                        synchronized (this) {
-                            m_lTickPosition = lTick;
-                        }
-                    } else {
-                        // be sure that the current position is before the next event
-                        synchronized (this) {
-                            m_lTickPosition = Math.min(lTick, (getTimeInMicroseconds() - m_lStartTime) / m_lMicroSecondsPerTick);
-                        }
+                    if (isTrackEnabled(timeline.getTrack(nEvent))) {
+                        long lDelay = getTimeInMicroseconds()
+                                - m_timeBase.getTime(timeline.getEventMicroseconds(nEvent));
+                        m_jitterStatistics.record(lDelay);
+                        deliverEvent(timeline.getMessage(nEvent));
                     }
+                    m_nNextEvent = nEvent + 1;
+                    m_lTickPosition = lTick;
+                } else {
+                    // be sure that the current position is before the next event
+                    long lPosition = m_timeBase.getPosition(getTimeInMicroseconds());
+                    m_lTickPosition = Math.min(lTick, timeline.getTick(lPosition));
                 }
             } // while (m_nPhase == STATE_STARTED)
 
@@ -319,56 +342,99 @@ public class JavaSequencer
 
 
     /**
-     * Deliver a message at a certain time.
-     *
-     * @param lScheduledTick when to deliver the message in ticks
-     * @return true if the event was sent, false otherwise
+     * Compile the sequence again if its tracks have been changed since
+     * it was set.
      */
-    private boolean deliverEvent(MidiMessage message, long lScheduledTick) {
-        if (TDebug.TraceSequencer) {
-            TDebug.out("JavaSequencer.deliverEvent(): begin");
+    private void updateTimeline() {
+        Sequence sequence = getSequence();
+        SequenceTimeline timeline = m_timeline;
+        if (sequence != null && (timeline == null || !timeline.isCompiledFrom(sequence))) {
+            timeline = SequenceTimeline.compile(sequence);
+            m_timeline = timeline;
+            // events at the current tick may be sent again
+            m_nNextEvent = timeline.getEventIndexForTick(m_lTickPosition);
         }
-        long lScheduledTime;
-        synchronized (this) {
-            lScheduledTime = lScheduledTick * m_lMicroSecondsPerTick + m_lStartTime;
+    }
+
+
+    /**
+     * Set the tempo of a tempo event. The new time base starts exactly
+     * at the event. The position derived from the clock may be
+     * truncated to a microsecond before the event, where the tempo map
+     * still has the previous tempo.
+     *
+     * @param nTempo    the tempo in microseconds per quarter note
+     * @param lPosition the position of the event in microseconds
+     */
+    private synchronized void applyTempoEvent(int nTempo, long lPosition) {
+        m_lTempoEventPosition = lPosition;
+        try {
+            setTempoInMPQ(nTempo);
+        } finally {
+            m_lTempoEventPosition = -1;
         }
+    }
+
+
+    /**
+     * Create a time base for the current tempo.
+     *
+     * @param lTime     the clock time in microseconds
+     * @param lPosition the position in the sequence at lTime,
+     *                  in microseconds
+     */
+    private TimeBase createTimeBase(long lTime, long lPosition) {
+        SequenceTimeline timeline = m_timeline;
+        float fSequenceTempo = SequenceTimeline.DEFAULT_TEMPO_IN_MPQ;
+        if (timeline != null) {
+            fSequenceTempo = timeline.getTempoInMPQ(lPosition);
+        }
+        // the timeline already follows the tempo events of the sequence
+        return new TimeBase(lTime, lPosition, m_fRealTempoInMPQ / fSequenceTempo);
+    }
 
-        // wait for scheduled time
-        while (getTimeInMicroseconds() < lScheduledTime) {
-            if (m_nPhase != STATE_STARTED)
+
+    /**
+     * Wait until a position in the sequence is reached.
+     * The thread parks until shortly before the time, then spins for
+     * the last m_lSpinTime microseconds. Parking is interrupted by
+     * stopping and by tempo changes.
+     *
+     * @param lPosition the position in microseconds
+     * @return true if the position was reached, false if the
+     * sequencer has been stopped
+     */
+    private boolean waitForPosition(long lPosition) {
+        TimeBase timeBase = m_timeBase;
+        long lScheduledTime = timeBase.getTime(lPosition);
+        while (true) {
+            long lRemaining = lScheduledTime - getTimeInMicroseconds();
+            if (lRemaining <= 0) {
+                return true;
+            }
+            if (m_nPhase != STATE_STARTED) {
                 return false;
-            if (m_bTempoChanged) {
-                synchronized (this) {
-                    lScheduledTime = lScheduledTick * m_lMicroSecondsPerTick + m_lStartTime;
-                    m_bTempoChanged = false;
-                }
             }
-            try {
-                Thread.sleep(m_lSleepInterval);
-            } catch (InterruptedException e) {
-                if (TDebug.TraceAllExceptions) {
-                    TDebug.out(e);
-                }
+            if (m_timeBase != timeBase) {
+                // tempo changed
+                timeBase = m_timeBase;
+                lScheduledTime = timeBase.getTime(lPosition);
+            } else if (lRemaining > m_lSpinTime) {
+                LockSupport.parkNanos(this, (lRemaining - m_lSpinTime) * 1000);
             }
         }
+    }
 
-        // send midi message
-        if (message instanceof MetaMessage) {
-            MetaMessage metaMessage = (MetaMessage) message;
-            if (metaMessage.getType() == 0x51) // set tempo
-            {
-                byte[] abData = metaMessage.getData();
-                int nTempo = MidiUtils.getUnsignedInteger(abData[0]) * 65536 +
-                        MidiUtils.getUnsignedInteger(abData[1]) * 256 +
-                        MidiUtils.getUnsignedInteger(abData[2]);
-                // TDebug.out("tempo (us/quarter note): " + nTempo);
-                setTempoInMPQ(nTempo);
-                // TODO: setTempoInMPQ() seems to be not thread-safe
-            }
-        }
 
+    /**
+     * Send a message to the transmitters and listeners.
+     */
+    private void deliverEvent(MidiMessage message) {
         if (TDebug.TraceSequencer) {
-            TDebug.out("JavaSequencer.deliverEvent(): sending message: " + message + " at: " + lScheduledTime);
+            TDebug.out("JavaSequencer.deliverEvent(): begin");
+        }
+        if (TDebug.TraceSequencer) {
+            TDebug.out("JavaSequencer.deliverEvent(): sending message: " + message);
         }
         // sendImpl(message, event.getTick());
         sendImpl(message, -1);
@@ -378,7 +444,6 @@ public class JavaSequencer
         if (TDebug.TraceSequencer) {
             TDebug.out("JavaSequencer.deliverEvent(): end");
         }
-        return true; // success
     }
 
 
@@ -398,10 +463,11 @@ public class JavaSequencer
         if (bWasRunning) {
             stop();
         }
-        super.setSequence(sequence);
+        // compiled before the tempo is reset by TSequencer
+        m_timeline = (sequence != null) ? SequenceTimeline.compile(sequence) : null;
         m_lTickPosition = 0;
-        m_anTrackPositions = new int[sequence.getTracks().length];
-        Arrays.fill(m_anTrackPositions, 0);
+        m_nNextEvent = 0;
+        super.setSequence(sequence);
         if (bWasRunning) {
             start();
         }
@@ -409,35 +475,49 @@ public class JavaSequencer
 
 
     public void setMicrosecondPosition(long lPosition) {
-        setTickPosition(lPosition / m_lMicroSecondsPerTick);
+        SequenceTimeline timeline = m_timeline;
+        if (timeline != null) {
+            setTickPosition(timeline.getTick(lPosition));
+        }
     }
 
 
     public void setTickPosition(long lPosition) {
-        if (getSequence() == null || m_anTrackPositions == null) {
+        SequenceTimeline timeline = m_timeline;
+        if (getSequence() == null || timeline == null) {
             return;
         }
         boolean bWasRunning = isRunning();
         if (bWasRunning)
             stop();
         m_lTickPosition = Math.min(lPosition, getSequence().getTickLength());
-        for (int i = 0; i < m_anTrackPositions.length; i++) {
-            m_anTrackPositions[i] = getTrackPosition(getSequence().getTracks()[i], lPosition);
-        }
+        m_nNextEvent = timeline.getEventIndexForTick(lPosition);
         if (bWasRunning)
             start();
     }
 
 
-    public synchronized long getTickPosition() {
-        if (m_nPhase == STATE_STARTED) {
-            return Math.max(m_lTickPosition, (getTimeInMicroseconds() - m_lStartTime) / m_lMicroSecondsPerTick);
+    public long getTickPosition() {
+        long lTickPosition = m_lTickPosition;
+        SequenceTimeline timeline = m_timeline;
+        if (m_nPhase == STATE_STARTED && timeline != null) {
+            long lPosition = m_timeBase.getPosition(getTimeInMicroseconds());
+            return Math.max(lTickPosition, timeline.getTick(lPosition));
         } else {
-            return m_lTickPosition;
+            return lTickPosition;
         }
     }
 
 
+    public long getMicrosecondPosition() {
+        SequenceTimeline timeline = m_timeline;
+        if (timeline == null) {
+            return 0;
+        }
+        return timeline.getMicroseconds(getTickPosition());
+    }
+
+
     public void recordDisable(Track track) {
     }
 
@@ -469,46 +549,30 @@ public class JavaSequencer
         if (TDebug.TraceSequencer) {
             TDebug.out("JavaSequencer.setTempoImpl(): begin");
         }
-        int nResolution = getResolution();
-        long currentTime = getTimeInMicroseconds();
-        long currentTickPosition = 0;
-        if (m_lMicroSecondsPerTick != 0)
-            currentTickPosition = (currentTime - m_lStartTime) / m_lMicroSecondsPerTick;
-        m_lMicroSecondsPerTick = (long) fMPQ / nResolution;
-        m_lStartTime = currentTime - currentTickPosition * m_lMicroSecondsPerTick;
-        m_bTempoChanged = true;
-        // TODO: update m_lMicroSecondsPerTick and m_lStartTime only after the next event because the the event now waiting for its schedule is not updated
+        m_fRealTempoInMPQ = fMPQ;
+        TimeBase timeBase = m_timeBase;
+        long lTime;
+        long lPosition = 0;
+        if (m_lTempoEventPosition >= 0 && timeBase != null) {
+            // tempo event: continue at the time the event was due
+            lPosition = m_lTempoEventPosition;
+            lTime = timeBase.getTime(lPosition);
+        } else {
+            lTime = getTimeInMicroseconds();
+            if (timeBase != null)
+                lPosition = timeBase.getPosition(lTime);
+        }
+        m_timeBase = createTimeBase(lTime, lPosition);
+        // let the playback thread recalculate the time it is waiting for
+        if (m_thread != null && Thread.currentThread() != m_thread)
+            LockSupport.unpark(m_thread);
+        // TODO: update the time base only after the next event because the the event now waiting for its schedule is not updated
         if (TDebug.TraceSequencer) {
             TDebug.out("JavaSequencer.setTempoImpl(): end");
         }
     }
 
 
-    /**
-     * Obtain the index of the event with the closest tick value.
-     */
-    private int getTrackPosition(Track track, long tickPosition) {
-        // check params
-        if (track.size() == 0 || tickPosition <= track.get(0).getTick())
-            return 0;
-        if (tickPosition > track.get(track.size() - 1).getTick())
-            return track.size(); // index out of track
-
-        // quick search
-        int idx1 = 0;
-        int idx2 = track.size() - 1;
-        for (; ; ) {
-            if ((idx2 - idx1) == 1)
-                return idx1;
-            int idx3 = (int) (((long) idx1 + (long) idx2) / 2L);
-            if (tickPosition > track.get(idx3).getTick())
-                idx1 = idx3;
-            else
-                idx2 = idx3;
-        }
-    }
-
-
     /**
      * Retrieve system time in microseconds.
      * This method uses the clock as set with {@link #setClock}.
@@ -549,12 +613,56 @@ public class JavaSequencer
     }
 
 
+    /**
+     * Obtain the delivery delay statistics of this sequencer.
+     * The statistics are collected over all events sent since the
+     * sequencer was created or the statistics were reset with
+     * {@link JitterStatistics#reset}.
+     *
+     * @return the statistics object, updated during playback
+     */
+    public JitterStatistics getJitterStatistics() {
+        return m_jitterStatistics;
+    }
+
+
     /**
      * Interface for sequencer clocks.
      */
     public interface Clock {
         long getMicroseconds();
     }
+
+
+    /**
+     * Relation between clock time and the position in the sequence,
+     * both in microseconds.
+     */
+    private static final class TimeBase {
+        /** clock time at the origin */
+        final long m_lStartTime;
+        /** position in the sequence at the origin */
+        final long m_lStartPosition;
+        /** clock microseconds per microsecond of the sequence */
+        final double m_dScale;
+
+
+        public TimeBase(long lStartTime, long lStartPosition, double dScale) {
+            m_lStartTime = lStartTime;
+            m_lStartPosition = lStartPosition;
+            m_dScale = dScale;
+        }
+
+
+        public long getTime(long lPosition) {
+            return m_lStartTime + (long) ((lPosition - m_lStartPosition) * m_dScale);
+        }
+
+
+        public long getPosition(long lTime) {
+            return m_lStartPosition + (long) ((lTime - m_lStartTime) / m_dScale);
+        }
+    }
 }
 
 
@@ -0,0 +1,176 @@
+/*
+ * JitterStatistics.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.midi.device.java;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Statistics of the delivery delay of a sequencer.
+ * <p>
+ * For each event sent, the delay between the scheduled time and the
+ * actual time is recorded. Delays are counted in a histogram with
+ * buckets of powers of two: bucket 0 counts delays below 1 microsecond,
+ * bucket i counts delays from 2^(i-1) up to, but excluding, 2^i
+ * microseconds. The last bucket also counts all longer delays.
+ * <p>
+ * Values are recorded by the playback thread and can be read from
+ * other threads at any time without blocking it. A set of values read
+ * during playback is not necessarily consistent.
+ */
+public class JitterStatistics {
+    /** Number of histogram buckets. The last one starts at about 1 s. */
+    public static final int BUCKET_COUNT = 22;
+
+    private final AtomicLongArray m_alBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong m_lCount = new AtomicLong();
+    private final AtomicLong m_lTotal = new AtomicLong();
+    private final AtomicLong m_lMaximum = new AtomicLong();
+
+
+    /**
+     * Record the delay of one event.
+     *
+     * @param lDelay the delay in microseconds. Negative values
+     *               (early delivery) are counted as 0.
+     */
+    public void record(long lDelay) {
+        if (lDelay < 0) {
+            lDelay = 0;
+        }
+        m_alBuckets.incrementAndGet(getBucket(lDelay));
+        m_lCount.incrementAndGet();
+        m_lTotal.addAndGet(lDelay);
+        long lMaximum = m_lMaximum.get();
+        while (lDelay > lMaximum && !m_lMaximum.compareAndSet(lMaximum, lDelay)) {
+            lMaximum = m_lMaximum.get();
+        }
+    }
+
+
+    /**
+     * Clear all values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            m_alBuckets.set(i, 0);
+        }
+        m_lCount.set(0);
+        m_lTotal.set(0);
+        m_lMaximum.set(0);
+    }
+
+
+    /**
+     * Returns the number of events recorded.
+     */
+    public long getCount() {
+        return m_lCount.get();
+    }
+
+
+    /**
+     * Returns the mean delay in microseconds, 0 if nothing was recorded.
+     */
+    public double getMeanDelay() {
+        long lCount = m_lCount.get();
+        if (lCount == 0) {
+            return 0.0;
+        }
+        return (double) m_lTotal.get() / lCount;
+    }
+
+
+    /**
+     * Returns the largest delay in microseconds.
+     */
+    public long getMaximumDelay() {
+        return m_lMaximum.get();
+    }
+
+
+    /**
+     * Returns a copy of the histogram.
+     *
+     * @return an array of length BUCKET_COUNT with the number of events
+     * per bucket
+     */
+    public long[] getHistogram() {
+        long[] alHistogram = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            alHistogram[i] = m_alBuckets.get(i);
+        }
+        return alHistogram;
+    }
+
+
+    /**
+     * Returns the smallest delay counted in a bucket, in microseconds.
+     */
+    public static long getBucketStart(int nBucket) {
+        return (nBucket == 0) ? 0 : 1L << (nBucket - 1);
+    }
+
+
+    /**
+     * Returns the delay in microseconds below which the given fraction
+     * of the events were delivered, as the upper bound of a bucket.
+     * For instance, getPercentile(0.99) gives an upper bound of the
+     * delay of 99 percent of the events.
+     */
+    public long getPercentile(double dFraction) {
+        long[] alHistogram = getHistogram();
+        long lTotal = 0;
+        for (long lValue : alHistogram) {
+            lTotal += lValue;
+        }
+        long lLimit = (long) Math.ceil(lTotal * dFraction);
+        long lSum = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            lSum += alHistogram[i];
+            if (lSum >= lLimit) {
+                return getBucketStart(i + 1);
+            }
+        }
+        return getMaximumDelay();
+    }
+
+
+    private static int getBucket(long lDelay) {
+        int nBucket = 64 - Long.numberOfLeadingZeros(lDelay);
+        return Math.min(nBucket, BUCKET_COUNT - 1);
+    }
+
+
+    public String toString() {
+        return super.toString() + "[count=" + getCount()
+                + ", mean=" + getMeanDelay() + " us, max="
+                + getMaximumDelay() + " us, 99%<" + getPercentile(0.99) + " us]";
+    }
+}
+
+
+/* JitterStatistics.java */
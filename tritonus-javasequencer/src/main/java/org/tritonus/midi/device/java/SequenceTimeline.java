@@ -0,0 +1,422 @@
+/*
+ * SequenceTimeline.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.midi.device.java;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.tritonus.share.TDebug;
+import org.tritonus.share.midi.MidiUtils;
+
+
+/**
+ * The events of a Sequence, merged into one list and stored in
+ * primitive arrays.
+ * <p>
+ * Events are ordered by tick; events with the same tick are ordered
+ * by track number. For each event, the tick, the time in microseconds
+ * and the track number are stored. Short messages are stored packed into
+ * an int (status, data1 &lt;&lt; 8, data2 &lt;&lt; 16). Other messages
+ * (meta and system exclusive) are stored as negative indices into a
+ * table of MidiMessage objects.
+ * <p>
+ * The microsecond times follow the tempo events of the sequence, with
+ * the tempo factor 1. The tempo map is kept, too, so ticks and
+ * microseconds can be converted in both directions.
+ * <p>
+ * Objects of this class are immutable. If the tracks of the sequence
+ * are changed, the timeline has to be compiled again, see
+ * {@link #isCompiledFrom}.
+ */
+final class SequenceTimeline {
+    /** Tempo of a sequence without tempo events. */
+    public static final float DEFAULT_TEMPO_IN_MPQ = 500000.0F;
+
+    private static final int META_END_OF_TRACK = 0x2F;
+    private static final int META_TEMPO = 0x51;
+
+    private final Sequence m_sequence;
+    private final int[] m_anTrackSizes;
+    private final long[] m_alTrackTicks;
+
+    private final int m_nEventCount;
+    private final long[] m_alTicks;
+    private final long[] m_alMicroseconds;
+    private final int[] m_anTracks;
+    private final int[] m_anMessages;
+    private final MidiMessage[] m_aLongMessages;
+
+    /**
+     * Tempo map: start of each tempo segment in ticks and in
+     * microseconds, and its tempo. The first segment starts at tick 0.
+     */
+    private final long[] m_alTempoTicks;
+    private final long[] m_alTempoMicroseconds;
+    private final float[] m_afTempoInMPQ;
+
+    /**
+     * Microseconds per tick for SMPTE based sequences, 0 for PPQ.
+     */
+    private final double m_dSmpteMicrosecondsPerTick;
+    private final int m_nResolution;
+
+
+    private SequenceTimeline(Sequence sequence, Track[] aTracks) {
+        m_sequence = sequence;
+        m_anTrackSizes = new int[aTracks.length];
+        m_alTrackTicks = new long[aTracks.length];
+        int nEventCount = 0;
+        for (int nTrack = 0; nTrack < aTracks.length; nTrack++) {
+            m_anTrackSizes[nTrack] = aTracks[nTrack].size();
+            m_alTrackTicks[nTrack] = aTracks[nTrack].ticks();
+            nEventCount += m_anTrackSizes[nTrack];
+        }
+        m_nResolution = sequence.getResolution();
+        float fDivisionType = sequence.getDivisionType();
+        if (fDivisionType == Sequence.PPQ) {
+            m_dSmpteMicrosecondsPerTick = 0.0;
+        } else {
+            m_dSmpteMicrosecondsPerTick = 1000000.0 / (fDivisionType * m_nResolution);
+        }
+        m_alTicks = new long[nEventCount];
+        m_alMicroseconds = new long[nEventCount];
+        m_anTracks = new int[nEventCount];
+        m_anMessages = new int[nEventCount];
+        List<MidiMessage> longMessages = new ArrayList<MidiMessage>();
+        List<long[]> tempoChanges = new ArrayList<long[]>();
+
+        // merge the tracks
+        int[] anPositions = new int[aTracks.length];
+        TrackCursorHeap cursors = new TrackCursorHeap(aTracks.length);
+        for (int nTrack = 0; nTrack < aTracks.length; nTrack++) {
+            if (m_anTrackSizes[nTrack] > 0) {
+                cursors.put(nTrack, aTracks[nTrack].get(0).getTick());
+            }
+        }
+        int nEvent = 0;
+        while (!cursors.isEmpty()) {
+            int nTrack = cursors.getFirstTrack();
+            MidiEvent event = aTracks[nTrack].get(anPositions[nTrack]);
+            anPositions[nTrack]++;
+            if (anPositions[nTrack] < m_anTrackSizes[nTrack]) {
+                cursors.put(nTrack, aTracks[nTrack].get(anPositions[nTrack]).getTick());
+            } else {
+                cursors.remove(nTrack);
+            }
+            MidiMessage message = event.getMessage();
+            m_alTicks[nEvent] = event.getTick();
+            m_anTracks[nEvent] = nTrack;
+            int nPacked = pack(message);
+            if (nPacked >= 0) {
+                m_anMessages[nEvent] = nPacked;
+            } else {
+                m_anMessages[nEvent] = -1 - longMessages.size();
+                longMessages.add(message);
+                int nTempo = getTempoInMPQ(message);
+                if (nTempo > 0) {
+                    tempoChanges.add(new long[]{event.getTick(), nTempo});
+                }
+            }
+            nEvent++;
+        }
+        m_nEventCount = nEvent;
+        m_aLongMessages = longMessages.toArray(new MidiMessage[0]);
+
+        // build the tempo map
+        int nSegments = 1;
+        long[] alTempoTicks = new long[tempoChanges.size() + 1];
+        float[] afTempoInMPQ = new float[tempoChanges.size() + 1];
+        afTempoInMPQ[0] = DEFAULT_TEMPO_IN_MPQ;
+        if (m_dSmpteMicrosecondsPerTick == 0.0) {
+            for (long[] alChange : tempoChanges) {
+                if (alChange[0] == alTempoTicks[nSegments - 1]) {
+                    // a later tempo event at the same tick wins
+                    afTempoInMPQ[nSegments - 1] = alChange[1];
+                } else {
+                    alTempoTicks[nSegments] = alChange[0];
+                    afTempoInMPQ[nSegments] = alChange[1];
+                    nSegments++;
+                }
+            }
+        }
+        m_alTempoTicks = Arrays.copyOf(alTempoTicks, nSegments);
+        m_afTempoInMPQ = Arrays.copyOf(afTempoInMPQ, nSegments);
+        m_alTempoMicroseconds = new long[nSegments];
+        for (int i = 1; i < nSegments; i++) {
+            m_alTempoMicroseconds[i] = m_alTempoMicroseconds[i - 1]
+                    + ticksToMicroseconds(m_alTempoTicks[i] - m_alTempoTicks[i - 1],
+                    m_afTempoInMPQ[i - 1]);
+        }
+        for (int i = 0; i < m_nEventCount; i++) {
+            m_alMicroseconds[i] = getMicroseconds(m_alTicks[i]);
+        }
+        if (TDebug.TraceSequencer) {
+            TDebug.out("SequenceTimeline.<init>(): " + m_nEventCount + " events, "
+                    + m_aLongMessages.length + " long messages, "
+                    + nSegments + " tempo segments");
+        }
+    }
+
+
+    /**
+     * Compile a sequence.
+     */
+    public static SequenceTimeline compile(Sequence sequence) {
+        return new SequenceTimeline(sequence, sequence.getTracks());
+    }
+
+
+    /**
+     * Returns true if this timeline was compiled from the sequence and
+     * the tracks of the sequence did not change since. Changes are
+     * detected by the number of tracks, the number of events per
+     * track and the tick of the last event.
+     */
+    public boolean isCompiledFrom(Sequence sequence) {
+        if (sequence != m_sequence) {
+            return false;
+        }
+        Track[] aTracks = sequence.getTracks();
+        if (aTracks.length != m_anTrackSizes.length) {
+            return false;
+        }
+        for (int nTrack = 0; nTrack < aTracks.length; nTrack++) {
+            if (aTracks[nTrack].size() != m_anTrackSizes[nTrack]
+                    || aTracks[nTrack].ticks() != m_alTrackTicks[nTrack]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    public int getEventCount() {
+        return m_nEventCount;
+    }
+
+
+    public long getEventTick(int nEvent) {
+        return m_alTicks[nEvent];
+    }
+
+
+    public long getEventMicroseconds(int nEvent) {
+        return m_alMicroseconds[nEvent];
+    }
+
+
+    public int getTrack(int nEvent) {
+        return m_anTracks[nEvent];
+    }
+
+
+    /**
+     * Returns the packed short message of an event, or a negative value
+     * if the event has a meta or system exclusive message.
+     */
+    public int getShortMessage(int nEvent) {
+        return m_anMessages[nEvent];
+    }
+
+
+    /**
+     * Returns the message of an event that is not a short message.
+     */
+    public MidiMessage getLongMessage(int nEvent) {
+        return m_aLongMessages[-1 - m_anMessages[nEvent]];
+    }
+
+
+    /**
+     * Returns the message of an event. For short messages, a new
+     * ShortMessage is created.
+     */
+    public MidiMessage getMessage(int nEvent) {
+        int nPacked = m_anMessages[nEvent];
+        if (nPacked < 0) {
+            return getLongMessage(nEvent);
+        }
+        ShortMessage message = new ShortMessage();
+        try {
+            message.setMessage(nPacked & 0xFF, (nPacked >> 8) & 0xFF,
+                    (nPacked >> 16) & 0xFF);
+        } catch (InvalidMidiDataException e) {
+            // cannot happen: the values come from a valid message
+            if (TDebug.TraceAllExceptions) {
+                TDebug.out(e);
+            }
+        }
+        return message;
+    }
+
+
+    /**
+     * Returns the new tempo if the event is a tempo event, 0 otherwise.
+     */
+    public int getTempoChange(int nEvent) {
+        if (m_anMessages[nEvent] >= 0) {
+            return 0;
+        }
+        return getTempoInMPQ(getLongMessage(nEvent));
+    }
+
+
+    public boolean isEndOfTrack(int nEvent) {
+        if (m_anMessages[nEvent] >= 0) {
+            return false;
+        }
+        MidiMessage message = getLongMessage(nEvent);
+        return message instanceof MetaMessage
+                && ((MetaMessage) message).getType() == META_END_OF_TRACK;
+    }
+
+
+    /**
+     * Returns the index of the first event with a tick equal to or
+     * greater than the given tick, or the event count if there is none.
+     */
+    public int getEventIndexForTick(long lTick) {
+        return search(m_alTicks, m_nEventCount, lTick);
+    }
+
+
+    /**
+     * Returns the index of the first event with a time equal to or
+     * greater than the given time, or the event count if there is none.
+     */
+    public int getEventIndexForMicroseconds(long lMicroseconds) {
+        return search(m_alMicroseconds, m_nEventCount, lMicroseconds);
+    }
+
+
+    /**
+     * Convert a tick position to microseconds, using the tempo map.
+     */
+    public long getMicroseconds(long lTick) {
+        if (m_dSmpteMicrosecondsPerTick != 0.0) {
+            return (long) (lTick * m_dSmpteMicrosecondsPerTick);
+        }
+        int nSegment = getSegment(m_alTempoTicks, lTick);
+        return m_alTempoMicroseconds[nSegment]
+                + ticksToMicroseconds(lTick - m_alTempoTicks[nSegment],
+                m_afTempoInMPQ[nSegment]);
+    }
+
+
+    /**
+     * Convert a position in microseconds to ticks, using the tempo map.
+     */
+    public long getTick(long lMicroseconds) {
+        if (m_dSmpteMicrosecondsPerTick != 0.0) {
+            return (long) (lMicroseconds / m_dSmpteMicrosecondsPerTick);
+        }
+        int nSegment = getSegment(m_alTempoMicroseconds, lMicroseconds);
+        return m_alTempoTicks[nSegment]
+                + (long) ((lMicroseconds - m_alTempoMicroseconds[nSegment])
+                * (double) m_nResolution / m_afTempoInMPQ[nSegment]);
+    }
+
+
+    /**
+     * Returns the tempo of the sequence at a position in microseconds.
+     * For SMPTE based sequences, this is always the default tempo.
+     */
+    public float getTempoInMPQ(long lMicroseconds) {
+        return m_afTempoInMPQ[getSegment(m_alTempoMicroseconds, lMicroseconds)];
+    }
+
+
+    private long ticksToMicroseconds(long lTicks, float fTempoInMPQ) {
+        return (long) (lTicks * (double) fTempoInMPQ / m_nResolution);
+    }
+
+
+    /**
+     * Returns the last segment starting at or before the value.
+     */
+    private static int getSegment(long[] alStarts, long lValue) {
+        int nIndex = search(alStarts, alStarts.length, lValue + 1) - 1;
+        return Math.max(nIndex, 0);
+    }
+
+
+    /**
+     * Returns the first index with a value equal to or greater than
+     * the key, or nLength if there is none. The array must be sorted.
+     */
+    private static int search(long[] alValues, int nLength, long lKey) {
+        int nLow = 0;
+        int nHigh = nLength;
+        while (nLow < nHigh) {
+            int nMiddle = (nLow + nHigh) >>> 1;
+            if (alValues[nMiddle] < lKey) {
+                nLow = nMiddle + 1;
+            } else {
+                nHigh = nMiddle;
+            }
+        }
+        return nLow;
+    }
+
+
+    private static int pack(MidiMessage message) {
+        if (!(message instanceof ShortMessage)) {
+            return -1;
+        }
+        ShortMessage shortMessage = (ShortMessage) message;
+        int nLength = shortMessage.getLength();
+        if (nLength < 1 || nLength > 3) {
+            return -1;
+        }
+        return shortMessage.getStatus()
+                | (nLength > 1 ? shortMessage.getData1() << 8 : 0)
+                | (nLength > 2 ? shortMessage.getData2() << 16 : 0);
+    }
+
+
+    private static int getTempoInMPQ(MidiMessage message) {
+        if (message instanceof MetaMessage
+                && ((MetaMessage) message).getType() == META_TEMPO) {
+            byte[] abData = ((MetaMessage) message).getData();
+            if (abData.length >= 3) {
+                return MidiUtils.getUnsignedInteger(abData[0]) * 65536 +
+                        MidiUtils.getUnsignedInteger(abData[1]) * 256 +
+                        MidiUtils.getUnsignedInteger(abData[2]);
+            }
+        }
+        return 0;
+    }
+}
+
+
+/* SequenceTimeline.java */
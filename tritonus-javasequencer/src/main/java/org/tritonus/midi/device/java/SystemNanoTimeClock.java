@@ -0,0 +1,58 @@
+/*
+ * SystemNanoTimeClock.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.midi.device.java;
+
+
+/**
+ * Sequencer clock based on System.nanoTime().
+ * The time is monotonic and is not affected by changes of the system
+ * time. It is computed from the nanoseconds elapsed since the clock was
+ * created, so rounding to microseconds does not accumulate.
+ * This is the default clock of JavaSequencer.
+ */
+public class SystemNanoTimeClock
+        implements JavaSequencer.Clock {
+    private final long m_lStartNanos;
+
+
+    public SystemNanoTimeClock() {
+        m_lStartNanos = System.nanoTime();
+    }
+
+
+    /**
+     * Retrieve system time in microseconds.
+     * This method retrieves the time by calling
+     * {@link java.lang.System#nanoTime}.
+     *
+     * @return the time since the creation of this clock in microseconds
+     */
+    public long getMicroseconds() {
+        return (System.nanoTime() - m_lStartNanos) / 1000;
+    }
+}
+
+
+/* SystemNanoTimeClock.java */
@@ -0,0 +1,178 @@
+/*
+ * TrackCursorHeap.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.midi.device.java;
+
+import java.util.Arrays;
+
+
+/**
+ * Min-heap of track cursors for merging the tracks of a sequence.
+ * <p>
+ * Each entry is a track number with the tick of the next event of the
+ * track. The entry with the smallest tick is at the top; for equal ticks,
+ * the lower track number comes first. The heap is stored in primitive
+ * arrays, with an index from track numbers to heap positions, so that the
+ * entry of a track can be updated or removed in O(log n).
+ * <p>
+ * This class is not thread-safe. It is used to compile sequences in
+ * SequenceTimeline.
+ */
+final class TrackCursorHeap {
+    private final long[] m_alTicks;
+    private final int[] m_anTracks;
+
+    /**
+     * Heap position for each track, -1 if the track is not in the heap.
+     */
+    private final int[] m_anPositions;
+
+    private int m_nSize;
+
+
+    public TrackCursorHeap(int nTracks) {
+        m_alTicks = new long[nTracks];
+        m_anTracks = new int[nTracks];
+        m_anPositions = new int[nTracks];
+        Arrays.fill(m_anPositions, -1);
+    }
+
+
+    public boolean isEmpty() {
+        return m_nSize == 0;
+    }
+
+
+    /**
+     * Returns the track with the next event.
+     *
+     * @throws IllegalStateException if the heap is empty
+     */
+    public int getFirstTrack() {
+        if (m_nSize == 0) {
+            throw new IllegalStateException("heap is empty");
+        }
+        return m_anTracks[0];
+    }
+
+
+    /**
+     * Inserts a track or changes its tick.
+     */
+    public void put(int nTrack, long lTick) {
+        int nPosition = m_anPositions[nTrack];
+        if (nPosition < 0) {
+            nPosition = m_nSize++;
+            m_anTracks[nPosition] = nTrack;
+            m_anPositions[nTrack] = nPosition;
+            m_alTicks[nPosition] = lTick;
+            siftUp(nPosition);
+        } else {
+            long lOldTick = m_alTicks[nPosition];
+            m_alTicks[nPosition] = lTick;
+            if (lTick < lOldTick) {
+                siftUp(nPosition);
+            } else {
+                siftDown(nPosition);
+            }
+        }
+    }
+
+
+    /**
+     * Removes a track. Does nothing if the track is not in the heap.
+     */
+    public void remove(int nTrack) {
+        int nPosition = m_anPositions[nTrack];
+        if (nPosition < 0) {
+            return;
+        }
+        m_anPositions[nTrack] = -1;
+        m_nSize--;
+        if (nPosition != m_nSize) {
+            // move the last entry into the gap
+            move(m_nSize, nPosition);
+            siftDown(nPosition);
+            siftUp(nPosition);
+        }
+    }
+
+
+    private boolean isLess(int nPosition1, int nPosition2) {
+        long lTick1 = m_alTicks[nPosition1];
+        long lTick2 = m_alTicks[nPosition2];
+        return lTick1 < lTick2 || (lTick1 == lTick2
+                && m_anTracks[nPosition1] < m_anTracks[nPosition2]);
+    }
+
+
+    private void siftUp(int nPosition) {
+        while (nPosition > 0) {
+            int nParent = (nPosition - 1) >> 1;
+            if (!isLess(nPosition, nParent)) {
+                break;
+            }
+            swap(nPosition, nParent);
+            nPosition = nParent;
+        }
+    }
+
+
+    private void siftDown(int nPosition) {
+        while (true) {
+            int nChild = 2 * nPosition + 1;
+            if (nChild >= m_nSize) {
+                break;
+            }
+            if (nChild + 1 < m_nSize && isLess(nChild + 1, nChild)) {
+                nChild++;
+            }
+            if (!isLess(nChild, nPosition)) {
+                break;
+            }
+            swap(nPosition, nChild);
+            nPosition = nChild;
+        }
+    }
+
+
+    private void swap(int nPosition1, int nPosition2) {
+        long lTick = m_alTicks[nPosition1];
+        int nTrack = m_anTracks[nPosition1];
+        move(nPosition2, nPosition1);
+        m_alTicks[nPosition2] = lTick;
+        m_anTracks[nPosition2] = nTrack;
+        m_anPositions[nTrack] = nPosition2;
+    }
+
+
+    private void move(int nFrom, int nTo) {
+        m_alTicks[nTo] = m_alTicks[nFrom];
+        m_anTracks[nTo] = m_anTracks[nFrom];
+        m_anPositions[m_anTracks[nTo]] = nTo;
+    }
+}
+
+
+/* TrackCursorHeap.java */
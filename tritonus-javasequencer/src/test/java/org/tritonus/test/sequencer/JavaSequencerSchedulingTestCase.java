@@ -0,0 +1,344 @@
+/*
+ * JavaSequencerSchedulingTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test.sequencer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.sound.midi.MetaEventListener;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.midi.device.java.JavaSequencer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests the order in which JavaSequencer delivers the events of several
+ * tracks. A fast clock is used, so that the sequences play instantly.
+ */
+public class JavaSequencerSchedulingTestCase {
+    private static final int TRACKS = 5;
+    private static final int EVENTS = 40;
+
+
+    @Test
+    public void testMergeOrder() throws Exception {
+        JavaSequencer sequencer = createSequencer();
+        List<int[]> events = play(sequencer, createSequence(), null);
+        assertEquals(TRACKS * EVENTS, events.size(), "event count");
+        checkOrder(events);
+        assertEquals(TRACKS * EVENTS, sequencer.getJitterStatistics().getCount(),
+                "jitter statistics");
+    }
+
+
+    @Test
+    public void testRealTime() throws Exception {
+        // default clock; 10 events, 48 ticks (50 ms) apart
+        JavaSequencer sequencer = new JavaSequencer(null);
+        sequencer.open();
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        for (int i = 0; i < 10; i++) {
+            ShortMessage message = new ShortMessage();
+            message.setMessage(ShortMessage.NOTE_ON, 0, 0, i);
+            track.add(new MidiEvent(message, 48 * i));
+        }
+        long lStart = System.nanoTime();
+        List<int[]> events = play(sequencer, sequence, null);
+        long lElapsed = (System.nanoTime() - lStart) / 1000;
+        assertEquals(10, events.size(), "event count");
+        assertTrue(lElapsed >= 9 * 50000, "too fast: " + lElapsed + " us");
+        assertEquals(10, sequencer.getJitterStatistics().getCount(), "jitter statistics");
+        sequencer.close();
+    }
+
+
+    @Test
+    public void testMutedTrack() throws Exception {
+        JavaSequencer sequencer = createSequencer();
+        sequencer.setSequence(createSequence());
+        sequencer.setTrackMute(2, true);
+        List<int[]> events = play(sequencer, null, null);
+        assertEquals((TRACKS - 1) * EVENTS, events.size(), "event count");
+        for (int[] event : events) {
+            assertTrue(event[0] != 2, "muted track played");
+        }
+        checkOrder(events);
+    }
+
+
+    @Test
+    public void testMuteWhilePlaying() throws Exception {
+        final JavaSequencer sequencer = createSequencer();
+        sequencer.setSequence(createSequence());
+        sequencer.setTrackMute(3, true);
+        // change mute and solo from the playback thread at known ticks
+        Receiver listener = new Receiver() {
+            public void send(MidiMessage message, long lTimeStamp) {
+                int nTick = ((ShortMessage) message).getData2();
+                if (nTick == 20) {
+                    sequencer.setTrackMute(1, true);
+                    sequencer.setTrackMute(3, false);
+                }
+            }
+
+            public void close() {
+            }
+        };
+        List<int[]> events = play(sequencer, null, listener);
+        checkOrder(events);
+        for (int[] event : events) {
+            int nTick = event[1];
+            if (event[0] == 1) {
+                assertTrue(nTick <= 20, "muted track played at " + nTick);
+            }
+            if (event[0] == 3) {
+                assertTrue(nTick > 20, "unmuted track played at " + nTick);
+            }
+        }
+    }
+
+
+    @Test
+    public void testSeek() throws Exception {
+        JavaSequencer sequencer = createSequencer();
+        sequencer.setSequence(createSequence());
+        sequencer.setTickPosition(30);
+        List<int[]> events = play(sequencer, null, null);
+        checkOrder(events);
+        assertTrue(events.get(0)[1] >= 30, "first tick after seek");
+        sequencer.close();
+    }
+
+
+    @Test
+    public void testMicrosecondPosition() throws Exception {
+        JavaSequencer sequencer = createSequencer();
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(createTempoMessage(1000000), 0));
+        track.add(new MidiEvent(createTempoMessage(250000), 480));
+        ShortMessage message = new ShortMessage();
+        message.setMessage(ShortMessage.NOTE_ON, 0, 60, 64);
+        track.add(new MidiEvent(message, 960));
+        sequencer.setSequence(sequence);
+
+        sequencer.setTickPosition(960);
+        assertEquals(1250000, sequencer.getMicrosecondPosition(), "tick 960");
+        assertEquals(sequence.getMicrosecondLength(),
+                sequencer.getMicrosecondPosition(), "sequence length");
+        sequencer.setMicrosecondPosition(1125000);
+        assertEquals(720, sequencer.getTickPosition(), "1.125 s");
+        sequencer.setMicrosecondPosition(500000);
+        assertEquals(240, sequencer.getTickPosition(), "0.5 s");
+        sequencer.close();
+    }
+
+
+    /**
+     * Plays a tempo change with a tempo factor of 1.5. The clock
+     * advances by one microsecond every few calls and the playback
+     * thread spins only, so events are delivered in the microsecond
+     * they are due. The notes after the tempo event have to follow the
+     * new tempo.
+     */
+    @Test
+    public void testTempoChangeWithTempoFactor() throws Exception {
+        JavaSequencer sequencer;
+        System.setProperty("tritonus.javasequencer.spintime", Long.toString(Long.MAX_VALUE));
+        try {
+            sequencer = new JavaSequencer(null);
+        } finally {
+            System.clearProperty("tritonus.javasequencer.spintime");
+        }
+        final SlowClock clock = new SlowClock();
+        sequencer.setClock(clock);
+        sequencer.open();
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(createTempoMessage(400000), 0));
+        track.add(new MidiEvent(createTempoMessage(200000), 480));
+        for (int i = 0; i < 4; i++) {
+            ShortMessage message = new ShortMessage();
+            message.setMessage(ShortMessage.NOTE_ON, 0, 60, i);
+            track.add(new MidiEvent(message, 480 * i));
+        }
+        sequencer.setSequence(sequence);
+        sequencer.setTempoFactor(1.5F);
+        final long[] alTimes = new long[4];
+        Receiver receiver = new Receiver() {
+            public void send(MidiMessage message, long lTimeStamp) {
+                alTimes[((ShortMessage) message).getData2()] = clock.getCurrentMicroseconds();
+            }
+
+            public void close() {
+            }
+        };
+        List<int[]> events = play(sequencer, null, receiver);
+        assertEquals(4, events.size(), "event count");
+        // positions 0, 400000, 600000 and 800000 us, played 1.5 times as fast
+        long[] alExpected = {0, 266667, 400000, 533333};
+        for (int i = 1; i < alTimes.length; i++) {
+            long lElapsed = alTimes[i] - alTimes[0];
+            assertTrue(Math.abs(lElapsed - alExpected[i]) <= 10,
+                    "note " + i + " at " + lElapsed + " us, expected " + alExpected[i]);
+        }
+        sequencer.close();
+    }
+
+
+    private static MetaMessage createTempoMessage(int nTempoInMPQ)
+            throws Exception {
+        byte[] abData = {(byte) (nTempoInMPQ >> 16), (byte) (nTempoInMPQ >> 8),
+                (byte) nTempoInMPQ};
+        MetaMessage message = new MetaMessage();
+        message.setMessage(0x51, abData, abData.length);
+        return message;
+    }
+
+
+    private static JavaSequencer createSequencer() throws Exception {
+        JavaSequencer sequencer = new JavaSequencer(null);
+        sequencer.setClock(new FastClock());
+        sequencer.open();
+        return sequencer;
+    }
+
+
+    /**
+     * Creates a sequence where track t has events at ticks t, t + 3,
+     * t + 6, ... Ticks collide between tracks, so the tie breaking is
+     * tested, too. Each event carries its track and tick.
+     */
+    private static Sequence createSequence() throws Exception {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        for (int nTrack = 0; nTrack < TRACKS; nTrack++) {
+            Track track = sequence.createTrack();
+            for (int i = 0; i < EVENTS; i++) {
+                int nTick = nTrack + 3 * i;
+                ShortMessage message = new ShortMessage();
+                message.setMessage(ShortMessage.NOTE_ON, 0, nTrack, nTick);
+                track.add(new MidiEvent(message, nTick));
+            }
+        }
+        return sequence;
+    }
+
+
+    /**
+     * Plays the sequence and returns (track, tick) of each event received.
+     */
+    private static List<int[]> play(JavaSequencer sequencer, Sequence sequence,
+                                    final Receiver listener)
+            throws Exception {
+        if (sequence != null) {
+            sequencer.setSequence(sequence);
+        }
+        final List<int[]> events = Collections.synchronizedList(new ArrayList<int[]>());
+        sequencer.getTransmitter().setReceiver(new Receiver() {
+            public void send(MidiMessage message, long lTimeStamp) {
+                if (message instanceof ShortMessage) {
+                    ShortMessage shortMessage = (ShortMessage) message;
+                    events.add(new int[]{shortMessage.getData1(),
+                            shortMessage.getData2()});
+                    if (listener != null) {
+                        listener.send(message, lTimeStamp);
+                    }
+                }
+            }
+
+            public void close() {
+            }
+        });
+        final CountDownLatch endOfTrack = new CountDownLatch(1);
+        sequencer.addMetaEventListener(new MetaEventListener() {
+            public void meta(MetaMessage message) {
+                if (message.getType() == 0x2F) {
+                    endOfTrack.countDown();
+                }
+            }
+        });
+        sequencer.start();
+        assertTrue(endOfTrack.await(20, TimeUnit.SECONDS), "end of track");
+        return events;
+    }
+
+
+    /**
+     * Checks that ticks do not decrease and that events with the same
+     * tick come in track order.
+     */
+    private static void checkOrder(List<int[]> events) {
+        for (int i = 1; i < events.size(); i++) {
+            int[] previous = events.get(i - 1);
+            int[] current = events.get(i);
+            assertTrue(previous[1] < current[1]
+                    || previous[1] == current[1] && previous[0] < current[0],
+                    "order at event " + i);
+        }
+    }
+
+
+    /**
+     * Clock that advances by one microsecond every CALLS calls.
+     */
+    private static class SlowClock implements JavaSequencer.Clock {
+        private static final int CALLS = 8;
+
+        private long m_lCalls;
+
+        public synchronized long getMicroseconds() {
+            m_lCalls++;
+            return m_lCalls / CALLS;
+        }
+
+
+        public synchronized long getCurrentMicroseconds() {
+            return m_lCalls / CALLS;
+        }
+    }
+
+
+    /**
+     * Clock that advances by one second on each call.
+     */
+    private static class FastClock implements JavaSequencer.Clock {
+        private long m_lTime;
+
+        public synchronized long getMicroseconds() {
+            m_lTime += 1000000;
+            return m_lTime;
+        }
+    }
+}
+
+
+/* JavaSequencerSchedulingTestCase.java */
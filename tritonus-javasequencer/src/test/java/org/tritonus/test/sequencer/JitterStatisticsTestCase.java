@@ -0,0 +1,54 @@
+/*
+ * JitterStatisticsTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test.sequencer;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.midi.device.java.JitterStatistics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+public class JitterStatisticsTestCase {
+    @Test
+    public void testHistogram() {
+        JitterStatistics statistics = new JitterStatistics();
+        long[] alDelays = {-5, 0, 1, 2, 3, 4, 1000, 1L << 40};
+        for (long lDelay : alDelays) {
+            statistics.record(lDelay);
+        }
+        long[] alHistogram = statistics.getHistogram();
+        assertEquals(2, alHistogram[0], "below 1 us");
+        assertEquals(1, alHistogram[1], "1 us");
+        assertEquals(2, alHistogram[2], "2..3 us");
+        assertEquals(1, alHistogram[3], "4..7 us");
+        assertEquals(1, alHistogram[10], "512..1023 us");
+        assertEquals(1, alHistogram[JitterStatistics.BUCKET_COUNT - 1], "overflow");
+        assertEquals(512, JitterStatistics.getBucketStart(10), "bucket start");
+        assertEquals(alDelays.length, statistics.getCount(), "count");
+        assertEquals(1L << 40, statistics.getMaximumDelay(), "maximum");
+        assertEquals(8, statistics.getPercentile(0.75), "75 percent");
+
+        statistics.reset();
+        assertEquals(0, statistics.getCount(), "count after reset");
+        assertEquals(0.0, statistics.getMeanDelay(), "mean after reset");
+    }
+}
+
+
+/* JitterStatisticsTestCase.java */
@@ -50,6 +50,8 @@ public class JorbisAudioFileReader
         extends TAudioFileReader {
     private static final int INITAL_READ_LENGTH = 4096;
     private static final int MARK_LIMIT = INITAL_READ_LENGTH + 1;
+    /** "OggS" */
+    private static final int OGG_MAGIC = 0x4F676753;
 
 
     public JorbisAudioFileReader() {
@@ -57,6 +59,14 @@ public class JorbisAudioFileReader
     }
 
 
+    /**
+     * Recognizes the capture pattern of an Ogg page.
+     */
+    protected boolean matchesHeader(byte[] abHeader, int nLength) {
+        return getBigEndianInt(abHeader, nLength, 0) == OGG_MAGIC;
+    }
+
+
     protected AudioFileFormat getAudioFileFormat(InputStream inputStream, long lFileSizeInBytes)
             throws UnsupportedAudioFileException, IOException {
         // sync and verify incoming physical bitstream
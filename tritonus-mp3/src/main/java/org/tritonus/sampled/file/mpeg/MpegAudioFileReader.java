@@ -66,6 +66,18 @@ public class MpegAudioFileReader
         super(MARK_LIMIT, true);
     }
 
+    /**
+     * Recognizes a stream starting with the header of a frame.
+     * Streams starting with an ID3v2 tag are not read by this class.
+     */
+    @Override
+    protected boolean matchesHeader(byte[] abHeader, int nLength) {
+        int nHeader = getBigEndianInt(abHeader, nLength, 0);
+        return (nHeader & SYNC) == SYNC
+                && ((nHeader >> 19) & 0x3) != 1      // reserved version
+                && ((nHeader >> 17) & 0x3) != 0;     // reserved layer
+    }
+
     @Override
     protected AudioFileFormat getAudioFileFormat(InputStream inputStream, long lFileSizeInBytes)
             throws UnsupportedAudioFileException, IOException {
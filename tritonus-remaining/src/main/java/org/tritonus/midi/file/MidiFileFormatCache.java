@@ -0,0 +1,256 @@
+/*
+ * MidiFileFormatCache.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.midi.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.tritonus.share.TDebug;
+import org.tritonus.share.midi.TMidiFileFormat;
+
+
+/**
+ * Cache of the file formats of MIDI files, including their length in
+ * ticks and microseconds.
+ * <p>
+ * Entries are keyed by the absolute path of a file. An entry is only
+ * used if the modification time and the size of the file are unchanged;
+ * otherwise the file is parsed again. The cache can be stored in a file
+ * with {@link #save} and is loaded from it when created.
+ * <p>
+ * This class is thread-safe. Files can be probed from several threads.
+ */
+public class MidiFileFormatCache {
+    /** "TMFC" */
+    private static final int MAGIC = 0x544d4643;
+    private static final int VERSION = 1;
+
+    private final File m_cacheFile;
+    private final StandardMidiFileParser m_parser;
+    private final Map<String, Entry> m_entries;
+    private volatile boolean m_bModified;
+
+
+    /**
+     * Create a cache that is held in memory only.
+     */
+    public MidiFileFormatCache() {
+        this(null);
+    }
+
+
+    /**
+     * Create a cache stored in a file. If the file exists, the entries
+     * are loaded from it. A file that cannot be read as a cache is
+     * ignored and overwritten on the next save.
+     *
+     * @param cacheFile the file to store the cache in, or null to hold
+     *                  the cache in memory only
+     */
+    public MidiFileFormatCache(File cacheFile) {
+        m_cacheFile = cacheFile;
+        // tracks are parsed in the calling thread; probe files in
+        // parallel instead
+        m_parser = new StandardMidiFileParser(false);
+        m_entries = new ConcurrentHashMap<String, Entry>();
+        if (cacheFile != null && cacheFile.exists()) {
+            try {
+                load(cacheFile);
+            } catch (IOException e) {
+                if (TDebug.TraceAllExceptions) {
+                    TDebug.out(e);
+                }
+                m_entries.clear();
+            }
+        }
+    }
+
+
+    /**
+     * Obtain the file format of a MIDI file. If the cache has no valid
+     * entry for the file, the file is parsed with
+     * {@link StandardMidiFileParser#readFileFormatWithLength} and the
+     * result is added to the cache. Files that cannot be parsed are
+     * not cached.
+     */
+    public TMidiFileFormat getMidiFileFormat(File file)
+            throws InvalidMidiDataException, IOException {
+        Path path = file.toPath().toAbsolutePath();
+        BasicFileAttributes attributes = Files.readAttributes(path,
+                BasicFileAttributes.class);
+        long lModified = attributes.lastModifiedTime().toMillis();
+        long lSize = attributes.size();
+        String strKey = path.toString();
+        Entry entry = m_entries.get(strKey);
+        if (entry != null && entry.m_lModified == lModified
+                && entry.m_lSize == lSize) {
+            return entry.m_format;
+        }
+        TMidiFileFormat format = m_parser.readFileFormatWithLength(file);
+        m_entries.put(strKey, new Entry(lModified, lSize, format));
+        m_bModified = true;
+        return format;
+    }
+
+
+    /**
+     * Returns the number of entries.
+     */
+    public int size() {
+        return m_entries.size();
+    }
+
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        m_entries.clear();
+        m_bModified = true;
+    }
+
+
+    /**
+     * Write the cache to its file, if it has changed since it was
+     * loaded or last saved. The file is replaced atomically where the
+     * file system supports it.
+     */
+    public synchronized void save()
+            throws IOException {
+        if (m_cacheFile == null || !m_bModified) {
+            return;
+        }
+        m_bModified = false;
+        Path target = m_cacheFile.toPath().toAbsolutePath();
+        Path temporary = Files.createTempFile(target.getParent(),
+                m_cacheFile.getName(), ".tmp");
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(temporary)) {
+                write(outputStream);
+            }
+            try {
+                Files.move(temporary, target,
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(temporary, target,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            m_bModified = true;
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+
+    private void load(File cacheFile)
+            throws IOException {
+        try (InputStream inputStream = Files.newInputStream(cacheFile.toPath())) {
+            DataInputStream dataInputStream = new DataInputStream(
+                    new BufferedInputStream(inputStream));
+            if (dataInputStream.readInt() != MAGIC
+                    || dataInputStream.readInt() != VERSION) {
+                throw new IOException("not a MIDI file format cache: " + cacheFile);
+            }
+            int nEntries = dataInputStream.readInt();
+            for (int i = 0; i < nEntries; i++) {
+                String strKey = dataInputStream.readUTF();
+                long lModified = dataInputStream.readLong();
+                long lSize = dataInputStream.readLong();
+                int nType = dataInputStream.readInt();
+                float fDivisionType = dataInputStream.readFloat();
+                int nResolution = dataInputStream.readInt();
+                int nByteLength = dataInputStream.readInt();
+                long lMicrosecondLength = dataInputStream.readLong();
+                long lTickLength = dataInputStream.readLong();
+                int nTrackCount = dataInputStream.readInt();
+                TMidiFileFormat format = new TMidiFileFormat(nType,
+                        fDivisionType, nResolution, nByteLength,
+                        lMicrosecondLength, lTickLength, nTrackCount);
+                m_entries.put(strKey, new Entry(lModified, lSize, format));
+            }
+        }
+    }
+
+
+    private void write(OutputStream outputStream)
+            throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(
+                new BufferedOutputStream(outputStream));
+        // a snapshot, entries may be added concurrently
+        Object[] aEntries = m_entries.entrySet().toArray();
+        dataOutputStream.writeInt(MAGIC);
+        dataOutputStream.writeInt(VERSION);
+        dataOutputStream.writeInt(aEntries.length);
+        for (Object object : aEntries) {
+            @SuppressWarnings("unchecked")
+            Map.Entry<String, Entry> mapEntry = (Map.Entry<String, Entry>) object;
+            Entry entry = mapEntry.getValue();
+            TMidiFileFormat format = entry.m_format;
+            dataOutputStream.writeUTF(mapEntry.getKey());
+            dataOutputStream.writeLong(entry.m_lModified);
+            dataOutputStream.writeLong(entry.m_lSize);
+            dataOutputStream.writeInt(format.getType());
+            dataOutputStream.writeFloat(format.getDivisionType());
+            dataOutputStream.writeInt(format.getResolution());
+            dataOutputStream.writeInt(format.getByteLength());
+            dataOutputStream.writeLong(format.getMicrosecondLength());
+            dataOutputStream.writeLong(format.getTickLength());
+            dataOutputStream.writeInt(format.getTrackCount());
+        }
+        dataOutputStream.flush();
+    }
+
+
+    private static class Entry {
+        private final long m_lModified;
+        private final long m_lSize;
+        private final TMidiFileFormat m_format;
+
+
+        public Entry(long lModified, long lSize, TMidiFileFormat format) {
+            m_lModified = lModified;
+            m_lSize = lSize;
+            m_format = format;
+        }
+    }
+}
+
+
+/* MidiFileFormatCache.java */
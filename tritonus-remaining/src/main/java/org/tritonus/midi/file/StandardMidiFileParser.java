@@ -0,0 +1,762 @@
+/*
+ * StandardMidiFileParser.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.midi.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiFileFormat;
+import javax.sound.midi.Sequence;
+
+import org.tritonus.share.midi.TMidiFileFormat;
+
+
+/**
+ * Parser for Standard MIDI Files that reports events to a visitor.
+ * <p>
+ * The parser works on a ByteBuffer holding the whole file. Files are
+ * read with {@link #readFile}, which memory-maps large files. Events are
+ * passed to a {@link Visitor} as primitive values, so no objects are
+ * created for channel messages. StandardMidiFileReader uses this class
+ * with a visitor that builds a Sequence.
+ * <p>
+ * The track chunks of a file are independent. If parallel parsing is
+ * enabled, the tracks of large files are parsed concurrently in the
+ * common ForkJoinPool. The events of one track are always reported in
+ * file order, from one thread at a time.
+ * <p>
+ * For probing many files, {@link #readFileFormat} reads only the header
+ * and the chunk headers, and {@link #readFileFormatWithLength} computes
+ * the length in ticks and microseconds without creating a Sequence.
+ */
+public class StandardMidiFileParser {
+    /**
+     * Files of at least this size are memory-mapped by readFile().
+     */
+    private static final int MAP_THRESHOLD = 256 * 1024;
+
+    /**
+     * Minimal size of the track data for parsing tracks in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+    /**
+     * Tempo in microseconds per quarter note before the first tempo
+     * change (120 bpm).
+     */
+    private static final long DEFAULT_TEMPO_IN_MPQ = 500000;
+
+    private static final int STATUS_NONE = 0;
+    private static final int STATUS_ONE_BYTE = 1;
+    private static final int STATUS_TWO_BYTES = 2;
+    private static final int STATUS_SYSEX = 3;
+    private static final int STATUS_META = 4;
+
+    private final boolean m_bParallel;
+
+
+    /**
+     * Create a parser that parses large files in parallel.
+     */
+    public StandardMidiFileParser() {
+        this(true);
+    }
+
+
+    /**
+     * Create a parser.
+     *
+     * @param bParallel whether the tracks of large files should be
+     *                  parsed in parallel
+     */
+    public StandardMidiFileParser(boolean bParallel) {
+        m_bParallel = bParallel;
+    }
+
+
+    /**
+     * Read a file into a buffer. Large files are memory-mapped,
+     * smaller files are read into a heap buffer.
+     */
+    public static ByteBuffer readFile(File file)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            long lSize = channel.size();
+            if (lSize > Integer.MAX_VALUE) {
+                throw new IOException("file too large: " + file);
+            }
+            if (lSize >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, lSize);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) lSize);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            // through Buffer: ByteBuffer.flip() does not exist on Java 8
+            ((Buffer) buffer).flip();
+            return buffer;
+        }
+    }
+
+
+    /**
+     * Read the file format of a file without parsing the tracks.
+     * Only the header chunk and the headers of the following chunks are
+     * read; the track chunks are skipped by their length. The byte length
+     * of the returned format is the size of the file.
+     *
+     * @throws EOFException if the file ends before all track chunks
+     *                      given in the header
+     */
+    public static TMidiFileFormat readFileFormat(File file)
+            throws InvalidMidiDataException, IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            long lSize = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(14);
+            readFully(channel, buffer, 0);
+            TMidiFileFormat fileFormat = readHeader(buffer);
+            long lPosition = 8L + (getInt(buffer, 4) & 0xFFFFFFFFL);
+            int nTracks = 0;
+            while (nTracks < fileFormat.getTrackCount()) {
+                ((Buffer) buffer).clear().limit(8);
+                readFully(channel, buffer, lPosition);
+                if (buffer.limit() < 8) {
+                    throw new EOFException();
+                }
+                long lChunkLength = getInt(buffer, 4) & 0xFFFFFFFFL;
+                if (getInt(buffer, 0) == MidiConstants.TRACK_MAGIC) {
+                    nTracks++;
+                } else if (lChunkLength % 2 != 0) {
+                    lChunkLength++;
+                }
+                lPosition += 8 + lChunkLength;
+            }
+            return new TMidiFileFormat(
+                    fileFormat.getType(),
+                    fileFormat.getDivisionType(),
+                    fileFormat.getResolution(),
+                    getByteLength(lSize),
+                    MidiFileFormat.UNKNOWN_LENGTH,
+                    fileFormat.getTrackCount());
+        }
+    }
+
+
+    /**
+     * Read the file format of a file, including the length in ticks
+     * and in microseconds. All events are parsed, but only tempo changes
+     * and the time of the last event of each track are kept.
+     */
+    public TMidiFileFormat readFileFormatWithLength(File file)
+            throws InvalidMidiDataException, IOException {
+        return readFileFormatWithLength(readFile(file));
+    }
+
+
+    /**
+     * Read the file format of a file in a buffer, including the length
+     * in ticks and in microseconds. The position of the buffer is not
+     * changed. The byte length of the returned format is the number
+     * of bytes remaining in the buffer.
+     */
+    public TMidiFileFormat readFileFormatWithLength(ByteBuffer buffer)
+            throws InvalidMidiDataException, IOException {
+        ByteBuffer data = buffer.duplicate();
+        TMidiFileFormat fileFormat = readHeader(data);
+        LengthVisitor visitor = new LengthVisitor(fileFormat.getTrackCount());
+        parseTracks(data, fileFormat.getTrackCount(), visitor);
+        long lTickLength = visitor.getTickLength();
+        return new TMidiFileFormat(
+                fileFormat.getType(),
+                fileFormat.getDivisionType(),
+                fileFormat.getResolution(),
+                buffer.remaining(),
+                visitor.getMicrosecondLength(fileFormat.getDivisionType(),
+                        fileFormat.getResolution()),
+                lTickLength,
+                fileFormat.getTrackCount());
+    }
+
+
+    /**
+     * Parse a file.
+     *
+     * @return the file format from the header
+     */
+    public MidiFileFormat parse(File file, Visitor visitor)
+            throws InvalidMidiDataException, IOException {
+        return parse(readFile(file), visitor);
+    }
+
+
+    /**
+     * Parse a file in a buffer, from the position to the limit of the
+     * buffer. The position of the buffer is not changed.
+     *
+     * @return the file format from the header
+     */
+    public MidiFileFormat parse(ByteBuffer buffer, Visitor visitor)
+            throws InvalidMidiDataException, IOException {
+        ByteBuffer data = buffer.duplicate();
+        TMidiFileFormat fileFormat = readHeader(data);
+        parseTracks(data, fileFormat.getTrackCount(), visitor);
+        return fileFormat;
+    }
+
+
+    /**
+     * Read the header chunk. The position of the buffer is advanced to
+     * the first byte after the header.
+     */
+    public static TMidiFileFormat readHeader(ByteBuffer buffer)
+            throws InvalidMidiDataException, IOException {
+        if (buffer.remaining() < 14) {
+            if (buffer.remaining() >= 4
+                    && getInt(buffer, buffer.position()) != MidiConstants.HEADER_MAGIC) {
+                throw new InvalidMidiDataException("not a MIDI file: wrong header magic");
+            }
+            throw new EOFException();
+        }
+        int nPosition = buffer.position();
+        int nHeaderMagic = getInt(buffer, nPosition);
+        int nHeaderLength = getInt(buffer, nPosition + 4);
+        int nType = (short) getUnsignedShort(buffer, nPosition + 8);
+        int nNumTracks = (short) getUnsignedShort(buffer, nPosition + 10);
+        int nDivision = getUnsignedShort(buffer, nPosition + 12);
+        TMidiFileFormat fileFormat = createFileFormat(nHeaderMagic,
+                nHeaderLength, nType, nNumTracks, nDivision);
+        // skip additional bytes in the header
+        ((Buffer) buffer).position((int) Math.min(buffer.limit(), nPosition + 8L + nHeaderLength));
+        return fileFormat;
+    }
+
+
+    /**
+     * Check the fields of the header chunk and create the file format.
+     */
+    static TMidiFileFormat createFileFormat(int nHeaderMagic,
+                                            int nHeaderLength, int nType, int nNumTracks, int nDivision)
+            throws InvalidMidiDataException {
+        if (nHeaderMagic != MidiConstants.HEADER_MAGIC) {
+            throw new InvalidMidiDataException("not a MIDI file: wrong header magic");
+        }
+        if (nHeaderLength < 6) {
+            throw new InvalidMidiDataException("corrupt MIDI file: wrong header length");
+        }
+        if (nType < 0 || nType > 2) {
+            throw new InvalidMidiDataException("corrupt MIDI file: illegal type");
+        }
+        if (nType == 2) {
+            throw new InvalidMidiDataException("this implementation doesn't support type 2 MIDI files");
+        }
+        if (nNumTracks <= 0) {
+            throw new InvalidMidiDataException("corrupt MIDI file: number of tracks must be positive");
+        }
+        if (nType == 0 && nNumTracks != 1) {
+            throw new InvalidMidiDataException("corrupt MIDI file:  type 0 files must contain exactely one track");
+        }
+        float fDivisionType;
+        int nResolution;
+        if ((nDivision & 0x8000) != 0) //frame division
+        {
+            // TODO:
+            int nFrameType = -((byte) (nDivision >>> 8));
+            switch (nFrameType) {
+            case 24:
+                fDivisionType = Sequence.SMPTE_24;
+                break;
+
+            case 25:
+                fDivisionType = Sequence.SMPTE_25;
+                break;
+
+            case 29:
+                fDivisionType = Sequence.SMPTE_30DROP;
+                break;
+
+            case 30:
+                fDivisionType = Sequence.SMPTE_30;
+                break;
+
+            default:
+                throw new InvalidMidiDataException("corrupt MIDI file: illegal frame division type");
+            }
+            nResolution = nDivision & 0xff;
+        } else    // BPM division
+        {
+            fDivisionType = Sequence.PPQ;
+            nResolution = nDivision & 0x7fff;
+        }
+        return new TMidiFileFormat(
+                nType,
+                fDivisionType,
+                nResolution,
+                MidiFileFormat.UNKNOWN_LENGTH,
+                MidiFileFormat.UNKNOWN_LENGTH,
+                nNumTracks);
+    }
+
+
+    /**
+     * Parse the track chunks following the header. Chunks that are
+     * not track chunks are skipped. The position of the buffer is
+     * advanced to the first byte after the last track.
+     *
+     * @param nTracks the number of tracks, as given in the header
+     */
+    public void parseTracks(ByteBuffer buffer, int nTracks, Visitor visitor)
+            throws InvalidMidiDataException, IOException {
+        ByteBuffer data = buffer.duplicate();
+        // locate the track chunks
+        int[] anStarts = new int[nTracks];
+        int[] anEnds = new int[nTracks];
+        int nPosition = data.position();
+        int nLimit = data.limit();
+        for (int nTrack = 0; nTrack < nTracks; nTrack++) {
+            // search for a "MTrk" chunk
+            while (true) {
+                if (nLimit - nPosition < 8) {
+                    throw new EOFException();
+                }
+                int nMagic = getInt(data, nPosition);
+                long lChunkLength = getInt(data, nPosition + 4) & 0xFFFFFFFFL;
+                nPosition += 8;
+                if (nMagic == MidiConstants.TRACK_MAGIC) {
+                    anStarts[nTrack] = nPosition;
+                    nPosition = (int) Math.min(nLimit, nPosition + lChunkLength);
+                    anEnds[nTrack] = nPosition;
+                    break;
+                }
+                if (lChunkLength % 2 != 0) {
+                    lChunkLength++;
+                }
+                nPosition = (int) Math.min(nLimit, nPosition + lChunkLength);
+            }
+        }
+        ((Buffer) buffer).position(nPosition);
+
+        int nTrackBytes = nPosition - (nTracks > 0 ? anStarts[0] : nPosition);
+        if (m_bParallel && nTracks > 1 && nTrackBytes >= PARALLEL_THRESHOLD) {
+            parseTracksParallel(data, anStarts, anEnds, visitor);
+        } else {
+            for (int nTrack = 0; nTrack < nTracks; nTrack++) {
+                parseTrack(data, nTrack, anStarts[nTrack], anEnds[nTrack], visitor);
+            }
+        }
+    }
+
+
+    private static void parseTracksParallel(final ByteBuffer data,
+                                            final int[] anStarts, final int[] anEnds, final Visitor visitor)
+            throws InvalidMidiDataException, IOException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < anStarts.length; i++) {
+            final int nTrack = i;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    parseTrack(data, nTrack, anStarts[nTrack], anEnds[nTrack], visitor);
+                    return null;
+                }
+            });
+        }
+        List<Future<Void>> futures = ForkJoinPool.commonPool().invokeAll(tasks);
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while parsing tracks");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof InvalidMidiDataException) {
+                    throw (InvalidMidiDataException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+
+    /**
+     * Parse the events of one track chunk.
+     */
+    private static void parseTrack(ByteBuffer data, int nTrack, int nStart,
+                                   int nEnd, Visitor visitor)
+            throws InvalidMidiDataException, IOException {
+        boolean bCancelRunningStatus =
+                StandardMidiFileReader.CANCEL_RUNNING_STATUS_ON_META_AND_SYSEX;
+        int nPosition = nStart;
+        long lTicks = 0;
+        // indicates no running status in effect
+        int nRunningStatusByte = -1;
+        while (nPosition < nEnd) {
+            // delta time
+            long lDeltaTicks = 0;
+            int nByteCount = 0;
+            int nByte;
+            do {
+                if (nByteCount == 4) {
+                    throw new InvalidMidiDataException("not a MIDI file: unterminated variable-length quantity");
+                }
+                nByte = getUnsignedByte(data, nPosition++, nEnd);
+                lDeltaTicks = (lDeltaTicks << 7) | (nByte & 0x7f);
+                nByteCount++;
+            } while (nByte >= 0x80);
+            lTicks += lDeltaTicks;
+
+            int nStatusByte = getUnsignedByte(data, nPosition++, nEnd);
+            boolean bRunningStatusApplies = false;
+            if (nStatusByte < 0x80) {
+                if (nRunningStatusByte != -1) {
+                    bRunningStatusApplies = true;
+                    // the byte read is the first data byte
+                    nPosition--;
+                    nStatusByte = nRunningStatusByte;
+                } else {
+                    throw new InvalidMidiDataException("corrupt MIDI file: status byte missing");
+                }
+            }
+            switch (getType(nStatusByte)) {
+            case STATUS_ONE_BYTE: {
+                if (!bRunningStatusApplies) {
+                    nRunningStatusByte = nStatusByte;
+                }
+                int nData1 = getUnsignedByte(data, nPosition++, nEnd);
+                visitor.shortMessage(nTrack, lTicks, nStatusByte, nData1, 0);
+                break;
+            }
+
+            case STATUS_TWO_BYTES: {
+                if (!bRunningStatusApplies) {
+                    nRunningStatusByte = nStatusByte;
+                }
+                int nData1 = getUnsignedByte(data, nPosition++, nEnd);
+                int nData2 = getUnsignedByte(data, nPosition++, nEnd);
+                visitor.shortMessage(nTrack, lTicks, nStatusByte, nData1, nData2);
+                break;
+            }
+
+            case STATUS_SYSEX: {
+                if (bCancelRunningStatus) {
+                    nRunningStatusByte = -1;
+                }
+                long lLength = 0;
+                for (nByteCount = 0; ; nByteCount++) {
+                    if (nByteCount == 4) {
+                        throw new InvalidMidiDataException("not a MIDI file: unterminated variable-length quantity");
+                    }
+                    nByte = getUnsignedByte(data, nPosition++, nEnd);
+                    lLength = (lLength << 7) | (nByte & 0x7f);
+                    if (nByte < 0x80) {
+                        break;
+                    }
+                }
+                byte[] abData = getBytes(data, nPosition, lLength, nEnd);
+                nPosition += abData.length;
+                visitor.sysexMessage(nTrack, lTicks, nStatusByte, abData);
+                break;
+            }
+
+            case STATUS_META: {
+                if (bCancelRunningStatus) {
+                    nRunningStatusByte = -1;
+                }
+                int nType = getUnsignedByte(data, nPosition++, nEnd);
+                long lLength = 0;
+                for (nByteCount = 0; ; nByteCount++) {
+                    if (nByteCount == 4) {
+                        throw new InvalidMidiDataException("not a MIDI file: unterminated variable-length quantity");
+                    }
+                    nByte = getUnsignedByte(data, nPosition++, nEnd);
+                    lLength = (lLength << 7) | (nByte & 0x7f);
+                    if (nByte < 0x80) {
+                        break;
+                    }
+                }
+                byte[] abData = getBytes(data, nPosition, lLength, nEnd);
+                nPosition += abData.length;
+                visitor.metaMessage(nTrack, lTicks, nType, abData);
+                break;
+            }
+
+            default:
+                throw new InvalidMidiDataException("corrupt MIDI file: illegal status byte: " + nStatusByte);
+            }
+        }
+    }
+
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+                                  long lPosition)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int nRead = channel.read(buffer, lPosition);
+            if (nRead < 0) {
+                break;
+            }
+            lPosition += nRead;
+        }
+        ((Buffer) buffer).flip();
+    }
+
+
+    private static int getByteLength(long lSize) {
+        return (lSize > Integer.MAX_VALUE) ? MidiFileFormat.UNKNOWN_LENGTH
+                : (int) lSize;
+    }
+
+
+    // TODO: use table
+
+    private static int getType(int nStatusByte) {
+        if (nStatusByte < 0xf0) // channel voice or mode command
+        {
+            int nCommand = nStatusByte & 0xf0;
+            switch (nCommand) {
+            case 0x80: // note off
+            case 0x90: // note on
+            case 0xa0: // polyphonic key pressure
+            case 0xb0: // control change
+            case 0xe0: // pitch wheel change
+                return STATUS_TWO_BYTES;
+
+            case 0xc0: // program change
+            case 0xd0: // channel pressure
+                return STATUS_ONE_BYTE;
+
+            default:
+                return STATUS_NONE;
+            }
+        } else if (nStatusByte == 0xf0 || nStatusByte == 0xf7) {
+            return STATUS_SYSEX;
+        } else if (nStatusByte == 0xff) {
+            return STATUS_META;
+        } else {
+            return STATUS_NONE;
+        }
+    }
+
+
+    private static int getUnsignedByte(ByteBuffer data, int nPosition, int nEnd)
+            throws EOFException {
+        if (nPosition >= nEnd) {
+            throw new EOFException("event exceeds track chunk");
+        }
+        return data.get(nPosition) & 0xFF;
+    }
+
+
+    private static byte[] getBytes(ByteBuffer data, int nPosition, long lLength,
+                                   int nEnd)
+            throws EOFException {
+        if (lLength > nEnd - nPosition) {
+            throw new EOFException("event exceeds track chunk");
+        }
+        byte[] abData = new byte[(int) lLength];
+        // absolute bulk get is not available in Java 8
+        ByteBuffer source = data.duplicate();
+        ((Buffer) source).position(nPosition);
+        source.get(abData);
+        return abData;
+    }
+
+
+    /**
+     * Big endian, independent of the order of the buffer.
+     */
+    private static int getInt(ByteBuffer data, int nPosition) {
+        return (getUnsignedShort(data, nPosition) << 16)
+                | getUnsignedShort(data, nPosition + 2);
+    }
+
+
+    private static int getUnsignedShort(ByteBuffer data, int nPosition) {
+        return ((data.get(nPosition) & 0xFF) << 8)
+                | (data.get(nPosition + 1) & 0xFF);
+    }
+
+
+    /**
+     * Visitor that keeps the tempo changes and the tick of the last
+     * event of each track. Each track only touches its own entries, so
+     * tracks may be parsed in parallel.
+     */
+    private static class LengthVisitor
+            implements Visitor {
+        private final long[] m_alLastTicks;
+        private final List<List<long[]>> m_tempoChanges;
+
+
+        public LengthVisitor(int nTracks) {
+            m_alLastTicks = new long[nTracks];
+            m_tempoChanges = new ArrayList<List<long[]>>(nTracks);
+            for (int nTrack = 0; nTrack < nTracks; nTrack++) {
+                m_tempoChanges.add(new ArrayList<long[]>());
+            }
+        }
+
+
+        public void shortMessage(int nTrack, long lTick, int nStatus,
+                                 int nData1, int nData2) {
+            m_alLastTicks[nTrack] = lTick;
+        }
+
+
+        public void sysexMessage(int nTrack, long lTick, int nStatus,
+                                 byte[] abData) {
+            m_alLastTicks[nTrack] = lTick;
+        }
+
+
+        public void metaMessage(int nTrack, long lTick, int nType,
+                                byte[] abData) {
+            m_alLastTicks[nTrack] = lTick;
+            // set tempo
+            if (nType == 0x51 && abData.length == 3) {
+                long lTempoInMPQ = ((abData[0] & 0xFF) << 16)
+                        | ((abData[1] & 0xFF) << 8) | (abData[2] & 0xFF);
+                m_tempoChanges.get(nTrack).add(new long[]{lTick, lTempoInMPQ});
+            }
+        }
+
+
+        public long getTickLength() {
+            long lTickLength = 0;
+            for (long lTick : m_alLastTicks) {
+                lTickLength = Math.max(lTickLength, lTick);
+            }
+            return lTickLength;
+        }
+
+
+        /**
+         * Computes the length like JavaSequencer does: tempo changes of
+         * all tracks apply, the default tempo is 120 bpm. If all tempo
+         * changes are in the first track, as they should be in type 1
+         * files, this equals Sequence.getMicrosecondLength().
+         */
+        public long getMicrosecondLength(float fDivisionType,
+                                         int nResolution) {
+            long lTickLength = getTickLength();
+            if (fDivisionType != Sequence.PPQ) {
+                return (long) (1000000.0 * lTickLength
+                        / (fDivisionType * nResolution));
+            }
+            List<long[]> tempoChanges = new ArrayList<long[]>();
+            for (List<long[]> trackChanges : m_tempoChanges) {
+                tempoChanges.addAll(trackChanges);
+            }
+            // stable: changes at the same tick keep the track order
+            Collections.sort(tempoChanges, new Comparator<long[]>() {
+                public int compare(long[] a, long[] b) {
+                    return Long.compare(a[0], b[0]);
+                }
+            });
+            long lMicroseconds = 0;
+            long lTick = 0;
+            long lTempoInMPQ = DEFAULT_TEMPO_IN_MPQ;
+            for (long[] change : tempoChanges) {
+                if (change[0] >= lTickLength) {
+                    break;
+                }
+                lMicroseconds += ticksToMicroseconds(change[0] - lTick,
+                        lTempoInMPQ, nResolution);
+                lTick = change[0];
+                lTempoInMPQ = change[1];
+            }
+            return lMicroseconds + ticksToMicroseconds(lTickLength - lTick,
+                    lTempoInMPQ, nResolution);
+        }
+
+
+        private static long ticksToMicroseconds(long lTicks, long lTempoInMPQ,
+                                                int nResolution) {
+            return (long) (((double) lTicks) * lTempoInMPQ / nResolution);
+        }
+    }
+
+
+    /**
+     * Receiver of the events parsed. For each track, the methods are
+     * called in the order of the events in the file. If tracks are
+     * parsed in parallel, methods may be called for different tracks
+     * at the same time.
+     */
+    public interface Visitor {
+        /**
+         * A channel message.
+         *
+         * @param nTrack  the track number, starting with 0
+         * @param lTick   the absolute time of the event in ticks
+         * @param nStatus the status byte
+         * @param nData1  the first data byte
+         * @param nData2  the second data byte, 0 for messages with
+         *                one data byte
+         */
+        void shortMessage(int nTrack, long lTick, int nStatus, int nData1, int nData2)
+                throws InvalidMidiDataException;
+
+        /**
+         * A system exclusive message (status 0xF0 or 0xF7). The data
+         * array does not include the status byte and is not used
+         * by the parser after the call.
+         */
+        void sysexMessage(int nTrack, long lTick, int nStatus, byte[] abData)
+                throws InvalidMidiDataException;
+
+        /**
+         * A meta message. The data array is not used by the parser
+         * after the call.
+         */
+        void metaMessage(int nTrack, long lTick, int nType, byte[] abData)
+                throws InvalidMidiDataException;
+    }
+}
+
+
+/* StandardMidiFileParser.java */
@@ -1,5 +1,5 @@
 /*
- * StandardMidiFileReader.java
+ * StandardMidiFileWriter.java
  *
  * This file is part of Tritonus: http://www.tritonus.org/
  */
@@ -26,11 +26,20 @@
 
 package org.tritonus.midi.file;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
@@ -47,6 +56,13 @@ import org.tritonus.share.TDebug;
  * Writer for Standard Midi Files.
  * This writer can write type 0 and type 1 files. It cannot write type
  * 2 files.
+ * <p>
+ * Each track is encoded in one pass into a growable byte buffer,
+ * starting with the chunk header; the chunk length is filled in when
+ * the track is complete. When writing to a File, the header and all
+ * track buffers are written with one gathering write. If parallel
+ * encoding is enabled, the tracks of large type 1 files are encoded
+ * concurrently in the common ForkJoinPool.
  */
 public class StandardMidiFileWriter
         extends MidiFileWriter {
@@ -60,6 +76,34 @@ public class StandardMidiFileWriter
      */
     public static boolean CANCEL_RUNNING_STATUS_ON_META_AND_SYSEX = true;
 
+    /**
+     * Minimal number of events in a sequence for encoding the tracks
+     * in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 10000;
+
+    private final boolean m_bParallel;
+
+
+    /**
+     * Create a writer that encodes the tracks of large type 1 files
+     * in parallel.
+     */
+    public StandardMidiFileWriter() {
+        this(true);
+    }
+
+
+    /**
+     * Create a writer.
+     *
+     * @param bParallel whether the tracks of large type 1 files should
+     *                  be encoded in parallel
+     */
+    public StandardMidiFileWriter(boolean bParallel) {
+        m_bParallel = bParallel;
+    }
+
 
     /**
      * Return supported MIDI file types.
@@ -106,26 +150,22 @@ public class StandardMidiFileWriter
             throw new IllegalArgumentException("file type is not supported for this sequence");
         }
         Track[] aTracks = sequence.getTracks();
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-        dataOutputStream.writeInt(MidiConstants.HEADER_MAGIC);
-        dataOutputStream.writeInt(6); // header length
-        dataOutputStream.writeShort(nFileType);
-        dataOutputStream.writeShort(aTracks.length);
-        float fDivisionType = sequence.getDivisionType();
-        int nResolution = sequence.getResolution();
-        int nDivision = 0;
-        if (fDivisionType == Sequence.PPQ) {
-            nDivision = nResolution & 0x7fff;
+        byte[] abHeader = createHeader(sequence, nFileType, aTracks.length);
+        outputStream.write(abHeader);
+        int nBytesWritten = abHeader.length;
+        if (isParallel(nFileType, aTracks)) {
+            for (TrackBuffer buffer : encodeTracksParallel(aTracks)) {
+                nBytesWritten += buffer.writeTo(outputStream);
+            }
         } else {
-            // TODO:
-        }
-        dataOutputStream.writeShort(nDivision); // unsigned?
-        int nBytesWritten = 14;
-        for (Track aTrack : aTracks) {
-            nBytesWritten += writeTrack(aTrack,
-                    dataOutputStream);
+            // one buffer is reused for all tracks
+            TrackBuffer buffer = new TrackBuffer();
+            for (Track track : aTracks) {
+                buffer.reset();
+                encodeTrack(track, buffer);
+                nBytesWritten += buffer.writeTo(outputStream);
+            }
         }
-
         return nBytesWritten;
     }
 
@@ -141,248 +181,275 @@ public class StandardMidiFileWriter
                      int nFileType,
                      File file)
             throws IOException {
-        OutputStream outputStream = Files.newOutputStream(file.toPath());
-        int nBytes = write(sequence,
-                nFileType,
-                outputStream);
-        outputStream.close();
-        return nBytes;
+        if (!isFileTypeSupported(nFileType, sequence)) {
+            throw new IllegalArgumentException("file type is not supported for this sequence");
+        }
+        Track[] aTracks = sequence.getTracks();
+        TrackBuffer[] aBuffers;
+        if (isParallel(nFileType, aTracks)) {
+            aBuffers = encodeTracksParallel(aTracks);
+        } else {
+            aBuffers = new TrackBuffer[aTracks.length];
+            for (int nTrack = 0; nTrack < aTracks.length; nTrack++) {
+                aBuffers[nTrack] = new TrackBuffer();
+                encodeTrack(aTracks[nTrack], aBuffers[nTrack]);
+            }
+        }
+        ByteBuffer[] aByteBuffers = new ByteBuffer[aBuffers.length + 1];
+        aByteBuffers[0] = ByteBuffer.wrap(
+                createHeader(sequence, nFileType, aTracks.length));
+        long lBytes = aByteBuffers[0].remaining();
+        for (int nTrack = 0; nTrack < aBuffers.length; nTrack++) {
+            aByteBuffers[nTrack + 1] = aBuffers[nTrack].toByteBuffer();
+            lBytes += aByteBuffers[nTrack + 1].remaining();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long lWritten = 0;
+            while (lWritten < lBytes) {
+                lWritten += channel.write(aByteBuffers);
+            }
+        }
+        return (int) lBytes;
     }
 
 
-    /**
-     * Write a Track to a DataOutputStream.
-     *
-     * @return The number of bytes written.
-     */
-    private static int writeTrack(Track track,
-                                  DataOutputStream dataOutputStream)
-            throws IOException {
-        /** The number of bytes written. This is used as return
-         value for this method.
-         */
-        int nLength = 0;
-        if (dataOutputStream != null) {
-            dataOutputStream.writeInt(MidiConstants.TRACK_MAGIC);
+    private boolean isParallel(int nFileType, Track[] aTracks) {
+        if (!m_bParallel || nFileType != 1 || aTracks.length < 2) {
+            return false;
         }
-        /*
-         * This is a recursive call!
-         * It is to find out the length of the track without
-         * actually writing. Having the second parameter as
-         * null tells writeTrack() and its subordinate
-         * methods to not write out data bytes.
-         */
-        int nTrackLength = 0;
-        if (dataOutputStream != null) {
-            nTrackLength = writeTrack(track, null);
+        long lEvents = 0;
+        for (Track track : aTracks) {
+            lEvents += track.size();
         }
-        if (dataOutputStream != null) {
-            dataOutputStream.writeInt(nTrackLength);
-        }
-        MidiEvent previousEvent = null;
-        int[] anRunningStatusByte = new int[1];
-        anRunningStatusByte[0] = -1;
-        for (int nEvent = 0; nEvent < track.size(); nEvent++) {
-            MidiEvent event = track.get(nEvent);
-            nLength += writeEvent(event,
-                    previousEvent,
-                    anRunningStatusByte,
-                    dataOutputStream);
-            previousEvent = event;
-        }
-        return nLength;
+        return lEvents >= PARALLEL_THRESHOLD;
     }
 
 
     /**
-     * TODO:
+     * Create the header chunk.
      */
-    private static int writeEvent(MidiEvent event,
-                                  MidiEvent previousEvent,
-                                  int[] anRunningStatusByte,
-                                  DataOutputStream dataOutputStream)
-            throws IOException {
-        /** The number of bytes written. This is used as return
-         value for this method.
-         */
-        int nLength = 0;
-        long lTickDelta = 0;
-        if (previousEvent != null) {
-            lTickDelta = event.getTick() - previousEvent.getTick();
+    private static byte[] createHeader(Sequence sequence, int nFileType,
+                                       int nTracks) {
+        float fDivisionType = sequence.getDivisionType();
+        int nResolution = sequence.getResolution();
+        int nDivision;
+        if (fDivisionType == Sequence.PPQ) {
+            nDivision = nResolution & 0x7fff;
+        } else {
+            // negative frame rate (29 for 29.97 drop frame), ticks per frame
+            int nFrameRate = (int) fDivisionType;
+            nDivision = ((-nFrameRate & 0xff) << 8) | (nResolution & 0xff);
         }
-        if (lTickDelta < 0) {
-            TDebug.out("StandardMidiFileWriter.writeEvent(): warning: events not in order");
+        TrackBuffer header = new TrackBuffer();
+        header.writeInt(MidiConstants.HEADER_MAGIC);
+        header.writeInt(6); // header length
+        header.writeShort(nFileType);
+        header.writeShort(nTracks);
+        header.writeShort(nDivision);
+        return Arrays.copyOf(header.m_abData, header.m_nSize);
+    }
+
+
+    private static TrackBuffer[] encodeTracksParallel(final Track[] aTracks)
+            throws IOException {
+        List<Callable<TrackBuffer>> tasks = new ArrayList<Callable<TrackBuffer>>();
+        for (final Track track : aTracks) {
+            tasks.add(new Callable<TrackBuffer>() {
+                public TrackBuffer call() {
+                    TrackBuffer buffer = new TrackBuffer();
+                    encodeTrack(track, buffer);
+                    return buffer;
+                }
+            });
         }
-        // add bytes according to coded length of delta
-        nLength += writeVariableLengthQuantity(lTickDelta, dataOutputStream);
-        MidiMessage message = event.getMessage();
-        // int  nDataLength = message.getLength();
-        if (message instanceof ShortMessage) {
-            nLength += writeShortMessage((ShortMessage) message,
-                    anRunningStatusByte,
-                    dataOutputStream);
-        } else if (message instanceof SysexMessage) {
-            nLength += writeSysexMessage((SysexMessage) message,
-                    anRunningStatusByte,
-                    dataOutputStream);
-        } else if (message instanceof MetaMessage) {
-            nLength += writeMetaMessage((MetaMessage) message,
-                    anRunningStatusByte,
-                    dataOutputStream);
-        } else {
-            TDebug.out("StandardMidiFileWriter.writeEvent(): warning: unknown message class");
+        List<Future<TrackBuffer>> futures = ForkJoinPool.commonPool().invokeAll(tasks);
+        TrackBuffer[] aBuffers = new TrackBuffer[aTracks.length];
+        for (int nTrack = 0; nTrack < aTracks.length; nTrack++) {
+            try {
+                aBuffers[nTrack] = futures.get(nTrack).get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while encoding tracks");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
         }
-        return nLength;
+        return aBuffers;
     }
 
 
     /**
-     * TODO:
+     * Encode a Track as track chunk, including the chunk header.
      */
-    private static int writeShortMessage(ShortMessage message,
-                                         int[] anRunningStatusByte,
-                                         DataOutputStream dataOutputStream)
-            throws IOException {
-        /** The number of bytes written. This is used as return
-         value for this method.
-         */
-        int nLength = 0;
-        int nDataLength = message.getLength();
-        if (USE_RUNNING_STATUS && anRunningStatusByte[0] == message.getStatus()) {
-            /*
-             * Write without status byte.
-             */
-            if (dataOutputStream != null) {
-                dataOutputStream.write(
-                        message.getMessage(),
-                        1, nDataLength - 1);
+    private static void encodeTrack(Track track, TrackBuffer buffer) {
+        buffer.writeInt(MidiConstants.TRACK_MAGIC);
+        int nLengthPosition = buffer.m_nSize;
+        buffer.writeInt(0); // filled in below
+        long lPreviousTick = 0;
+        int nRunningStatusByte = -1;
+        for (int nEvent = 0; nEvent < track.size(); nEvent++) {
+            MidiEvent event = track.get(nEvent);
+            long lTickDelta = event.getTick() - lPreviousTick;
+            if (lTickDelta < 0) {
+                TDebug.out("StandardMidiFileWriter.encodeTrack(): warning: events not in order");
+                lTickDelta = 0;
+            } else {
+                lPreviousTick = event.getTick();
             }
-            nLength += nDataLength - 1;
-        } else {
-            /*
-             * Write with status byte.
-             */
-            if (dataOutputStream != null) {
-                dataOutputStream.write(
-                        message.getMessage(),
-                        0, nDataLength);
+            buffer.writeVariableLengthQuantity(lTickDelta);
+            MidiMessage message = event.getMessage();
+            if (message instanceof ShortMessage) {
+                nRunningStatusByte = encodeShortMessage((ShortMessage) message,
+                        nRunningStatusByte, buffer);
+            } else if (message instanceof SysexMessage) {
+                if (CANCEL_RUNNING_STATUS_ON_META_AND_SYSEX) {
+                    nRunningStatusByte = -1;
+                }
+                // status byte followed by the data
+                byte[] abMessage = message.getMessage();
+                buffer.write(abMessage[0] & 0xFF);
+                buffer.writeVariableLengthQuantity(abMessage.length - 1);
+                buffer.write(abMessage, 1, abMessage.length - 1);
+            } else if (message instanceof MetaMessage) {
+                if (CANCEL_RUNNING_STATUS_ON_META_AND_SYSEX) {
+                    nRunningStatusByte = -1;
+                }
+                MetaMessage metaMessage = (MetaMessage) message;
+                byte[] abData = metaMessage.getData();
+                buffer.write(metaMessage.getStatus());
+                buffer.write(metaMessage.getType());
+                buffer.writeVariableLengthQuantity(abData.length);
+                buffer.write(abData, 0, abData.length);
+            } else {
+                TDebug.out("StandardMidiFileWriter.encodeTrack(): warning: unknown message class");
             }
-            nLength += nDataLength;
-            anRunningStatusByte[0] = message.getStatus();
         }
-        return nLength;
+        buffer.setInt(nLengthPosition, buffer.m_nSize - nLengthPosition - 4);
     }
 
 
     /**
-     * TODO:
+     * Encode a channel message, omitting the status byte if running
+     * status applies.
+     *
+     * @return the running status after the message
      */
-    private static int writeSysexMessage(SysexMessage message,
-                                         int[] anRunningStatusByte,
-                                         DataOutputStream dataOutputStream)
-            throws IOException {
-        /** The number of bytes written. This is used as return
-         value for this method.
-         */
-        int nLength = 0;
+    private static int encodeShortMessage(ShortMessage message,
+                                          int nRunningStatusByte,
+                                          TrackBuffer buffer) {
+        int nStatus = message.getStatus();
         int nDataLength = message.getLength();
-        if (CANCEL_RUNNING_STATUS_ON_META_AND_SYSEX) {
-            anRunningStatusByte[0] = -1;
+        if (!USE_RUNNING_STATUS || nRunningStatusByte != nStatus) {
+            buffer.write(nStatus);
+            nRunningStatusByte = nStatus;
         }
-        if (dataOutputStream != null) {
-            dataOutputStream.write(message.getStatus());
+        if (nDataLength > 1) {
+            buffer.write(message.getData1());
         }
-        nLength++;
-        nLength += writeVariableLengthQuantity(
-                nDataLength - 1,
-                dataOutputStream);
-        if (dataOutputStream != null) {
-            dataOutputStream.write(
-                    message.getData(),
-                    0, nDataLength - 1);
+        if (nDataLength > 2) {
+            buffer.write(message.getData2());
         }
-        nLength += nDataLength - 1;
-        return nLength;
+        return nRunningStatusByte;
     }
 
 
     /**
-     * TODO:
+     * Growable byte array holding an encoded chunk.
      */
-    private static int writeMetaMessage(MetaMessage message,
-                                        int[] anRunningStatusByte,
-                                        DataOutputStream dataOutputStream)
-            throws IOException {
-        /** The number of bytes written. This is used as return
-         value for this method.
+    private static class TrackBuffer {
+        private byte[] m_abData = new byte[4096];
+        private int m_nSize;
+
+
+        public void reset() {
+            m_nSize = 0;
+        }
+
+
+        public void write(int nByte) {
+            ensureCapacity(1);
+            m_abData[m_nSize++] = (byte) nByte;
+        }
+
+
+        public void write(byte[] abData, int nOffset, int nLength) {
+            ensureCapacity(nLength);
+            System.arraycopy(abData, nOffset, m_abData, m_nSize, nLength);
+            m_nSize += nLength;
+        }
+
+
+        /**
+         * Big endian.
          */
-        int nLength = 0;
-        byte[] abData = message.getData();
-        int nDataLength = abData.length;
-        if (CANCEL_RUNNING_STATUS_ON_META_AND_SYSEX) {
-            anRunningStatusByte[0] = -1;
+        public void writeInt(int nValue) {
+            ensureCapacity(4);
+            m_nSize += 4;
+            setInt(m_nSize - 4, nValue);
         }
-        if (dataOutputStream != null) {
-            dataOutputStream.write(message.getStatus());
-            dataOutputStream.write(message.getType());
+
+
+        public void writeShort(int nValue) {
+            write(nValue >> 8);
+            write(nValue);
         }
-        nLength += 2;
-        nLength += writeVariableLengthQuantity(
-                nDataLength,
-                dataOutputStream);
-        if (dataOutputStream != null) {
-            dataOutputStream.write(abData);
+
+
+        public void setInt(int nPosition, int nValue) {
+            m_abData[nPosition] = (byte) (nValue >> 24);
+            m_abData[nPosition + 1] = (byte) (nValue >> 16);
+            m_abData[nPosition + 2] = (byte) (nValue >> 8);
+            m_abData[nPosition + 3] = (byte) nValue;
         }
-        nLength += nDataLength;
-        return nLength;
-    }
 
 
-    /**
-     * TODO:
-     * outputStream == 0 signals to only calculate the number of
-     * needed to represent the value.
-     */
-    private static int writeVariableLengthQuantity(long lValue, OutputStream outputStream)
-            throws IOException {
-        /** The number of bytes written. This is used as return
-         value for this method.
+        /**
+         * Write a value of up to 28 bits in 1 to 4 bytes, most
+         * significant group first.
          */
-        int nLength = 0;
-        // IDEA: use a loop
-        boolean bWritingStarted = false;
-        int nByte = (int) ((lValue >> 21) & 0x7f);
-        if (nByte != 0) {
-            if (outputStream != null) {
-                outputStream.write(nByte | 0x80);
+        public void writeVariableLengthQuantity(long lValue) {
+            int nBytes = 1;
+            while (nBytes < 4 && (lValue >> (7 * nBytes)) != 0) {
+                nBytes++;
             }
-            nLength++;
-            bWritingStarted = true;
-        }
-        nByte = (int) ((lValue >> 14) & 0x7f);
-        if (nByte != 0 || bWritingStarted) {
-            if (outputStream != null) {
-                outputStream.write(nByte | 0x80);
+            ensureCapacity(nBytes);
+            for (int i = nBytes - 1; i > 0; i--) {
+                m_abData[m_nSize++] = (byte) (((lValue >> (7 * i)) & 0x7f) | 0x80);
             }
-            nLength++;
-            bWritingStarted = true;
+            m_abData[m_nSize++] = (byte) (lValue & 0x7f);
         }
-        nByte = (int) ((lValue >> 7) & 0x7f);
-        if (nByte != 0 || bWritingStarted) {
-            if (outputStream != null) {
-                outputStream.write(nByte | 0x80);
-            }
-            nLength++;
+
+
+        /**
+         * @return the number of bytes written
+         */
+        public int writeTo(OutputStream outputStream)
+                throws IOException {
+            outputStream.write(m_abData, 0, m_nSize);
+            return m_nSize;
+        }
+
+
+        public ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(m_abData, 0, m_nSize);
         }
-        nByte = (int) (lValue & 0x7f);
-        if (outputStream != null) {
-            outputStream.write(nByte);
+
+
+        private void ensureCapacity(int nAdditional) {
+            if (m_nSize + nAdditional > m_abData.length) {
+                m_abData = Arrays.copyOf(m_abData,
+                        Math.max(m_abData.length * 2, m_nSize + nAdditional));
+            }
         }
-        nLength++;
-        return nLength;
     }
 }
 
 
 /* StandardMidiFileWriter.java */
-
@@ -0,0 +1,270 @@
+/*
+ * FusedPCMConverter.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+
+package org.tritonus.sampled.convert;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.tritonus.share.TDebug;
+
+
+/**
+ * Single pass conversion between integer PCM formats that do not lose
+ * precision, used by PCM2PCMConversionProvider.
+ * <p>
+ * Sign conversion, byte order conversion, widening of the sample size and
+ * duplication of a mono channel are all moves of bytes: each byte of a
+ * target sample is either a byte of the source sample, possibly with the
+ * sign bit flipped, or zero. The planner composes the steps into one map
+ * from target byte positions to source byte positions with an AND mask
+ * (0 for the zero bytes) and an XOR mask (0x80 for the sign bit). The
+ * conversion is then one loop over the samples, specialized for the
+ * target sample size, without intermediate buffers.
+ * <p>
+ * Converters are immutable and cached per pair of formats.
+ */
+final class FusedPCMConverter {
+
+    private static final boolean DEBUG = false;
+
+    private static final ConcurrentMap<Integer, FusedPCMConverter> cache =
+            new ConcurrentHashMap<Integer, FusedPCMConverter>();
+
+    /** bytes per source sample */
+    private final int sourceBytes;
+
+    /** bytes per target sample */
+    private final int targetBytes;
+
+    /** number of channels in the source */
+    private final int sourceChannels;
+
+    /** number of times each source sample is written */
+    private final int copies;
+
+    /** per target byte: offset of the source byte in the source sample */
+    private final int[] map;
+
+    /** per target byte: 0xFF, or 0 for a zero byte */
+    private final int[] and;
+
+    /** per target byte: 0x80 to flip the sign bit, or 0 */
+    private final int[] xor;
+
+    private FusedPCMConverter(int sourceBytes, boolean sourceBigEndian,
+                              boolean sourceUnsigned, int sourceChannels,
+                              int targetBytes, boolean targetBigEndian,
+                              boolean targetUnsigned, int targetChannels) {
+        this.sourceBytes = sourceBytes;
+        this.targetBytes = targetBytes;
+        this.sourceChannels = sourceChannels;
+        this.copies = targetChannels / sourceChannels;
+        map = new int[targetBytes];
+        and = new int[targetBytes];
+        xor = new int[targetBytes];
+        for (int pos = 0; pos < targetBytes; pos++) {
+            // significance of this byte: 0 is the most significant byte
+            int significance = targetBigEndian ? pos : targetBytes - 1 - pos;
+            if (significance < sourceBytes) {
+                map[pos] = sourceBigEndian ? significance
+                        : sourceBytes - 1 - significance;
+                and[pos] = 0xFF;
+            }
+            if (significance == 0 && sourceUnsigned != targetUnsigned) {
+                xor[pos] = 0x80;
+            }
+        }
+        if (TDebug.TraceAudioConverter && DEBUG) {
+            TDebug.out("FusedPCMConverter: " + sourceBytes + " -> "
+                    + targetBytes + " bytes, " + sourceChannels + " -> "
+                    + targetChannels + " channels");
+        }
+    }
+
+    /**
+     * Returns true if the conversion can be done by a fused converter: the
+     * sample size must not decrease (this needs dithering), and the
+     * channel count must be the same or the source must be mono.
+     */
+    static boolean isSupported(int sourceBits, int sourceChannels,
+                               int targetBits, int targetChannels) {
+        return sourceBits % 8 == 0 && targetBits % 8 == 0
+                && sourceBits >= 8 && targetBits <= 32
+                && sourceBits <= targetBits
+                && sourceChannels > 0
+                && (sourceChannels == targetChannels || sourceChannels == 1
+                && targetChannels > 1);
+    }
+
+    /**
+     * Get the converter for the given formats. 8 bit samples may be signed
+     * or unsigned, larger samples are signed.
+     *
+     * @throws IllegalArgumentException if isSupported() returns false
+     */
+    static FusedPCMConverter getConverter(int sourceBits,
+                                          boolean sourceBigEndian, boolean sourceUnsigned,
+                                          int sourceChannels, int targetBits, boolean targetBigEndian,
+                                          boolean targetUnsigned, int targetChannels) {
+        if (!isSupported(sourceBits, sourceChannels, targetBits,
+                targetChannels) || targetChannels > 0xFFFF
+                || sourceChannels > 0xFFFF) {
+            throw new IllegalArgumentException("conversion not supported");
+        }
+        // byte order does not matter for 8 bit
+        sourceBigEndian &= sourceBits > 8;
+        targetBigEndian &= targetBits > 8;
+        int sourceBytes = sourceBits / 8;
+        int targetBytes = targetBits / 8;
+        // sourceChannels is 1 or equal to targetChannels
+        int key = (sourceBytes - 1) | (targetBytes - 1) << 2
+                | (sourceBigEndian ? 1 << 4 : 0) | (targetBigEndian ? 1 << 5 : 0)
+                | (sourceUnsigned ? 1 << 6 : 0) | (targetUnsigned ? 1 << 7 : 0)
+                | (sourceChannels == 1 ? 1 << 8 : 0) | targetChannels << 9;
+        FusedPCMConverter converter = cache.get(key);
+        if (converter == null) {
+            converter = new FusedPCMConverter(sourceBytes, sourceBigEndian,
+                    sourceUnsigned, sourceChannels, targetBytes,
+                    targetBigEndian, targetUnsigned, targetChannels);
+            FusedPCMConverter previous = cache.putIfAbsent(key, converter);
+            if (previous != null) {
+                converter = previous;
+            }
+        }
+        return converter;
+    }
+
+    /**
+     * Returns true if source and target have the same frame size, so that
+     * the conversion can be done in place.
+     */
+    boolean canConvertInPlace() {
+        return sourceBytes == targetBytes && copies == 1;
+    }
+
+    /**
+     * Convert frameCount frames from inBuffer to outBuffer. The buffers
+     * may be the same with the same offsets if canConvertInPlace() returns
+     * true.
+     */
+    void convert(byte[] inBuffer, int inByteOffset, byte[] outBuffer,
+                 int outByteOffset, int frameCount) {
+        int sampleCount = frameCount * sourceChannels;
+        switch (targetBytes) {
+        case 1:
+            convert1(inBuffer, inByteOffset, outBuffer, outByteOffset,
+                    sampleCount);
+            break;
+        case 2:
+            convert2(inBuffer, inByteOffset, outBuffer, outByteOffset,
+                    sampleCount);
+            break;
+        case 3:
+            convert3(inBuffer, inByteOffset, outBuffer, outByteOffset,
+                    sampleCount);
+            break;
+        default:
+            convert4(inBuffer, inByteOffset, outBuffer, outByteOffset,
+                    sampleCount);
+            break;
+        }
+    }
+
+    private void convert1(byte[] in, int i, byte[] out, int o,
+                          int sampleCount) {
+        int m0 = map[0];
+        int a0 = and[0];
+        int x0 = xor[0];
+        int step = sourceBytes;
+        int lCopies = copies;
+        for (; sampleCount > 0; sampleCount--, i += step) {
+            byte b0 = (byte) ((in[i + m0] & a0) ^ x0);
+            for (int c = 0; c < lCopies; c++) {
+                out[o++] = b0;
+            }
+        }
+    }
+
+    private void convert2(byte[] in, int i, byte[] out, int o,
+                          int sampleCount) {
+        int m0 = map[0], m1 = map[1];
+        int a0 = and[0], a1 = and[1];
+        int x0 = xor[0], x1 = xor[1];
+        int step = sourceBytes;
+        int lCopies = copies;
+        for (; sampleCount > 0; sampleCount--, i += step) {
+            byte b0 = (byte) ((in[i + m0] & a0) ^ x0);
+            byte b1 = (byte) ((in[i + m1] & a1) ^ x1);
+            for (int c = 0; c < lCopies; c++) {
+                out[o++] = b0;
+                out[o++] = b1;
+            }
+        }
+    }
+
+    private void convert3(byte[] in, int i, byte[] out, int o,
+                          int sampleCount) {
+        int m0 = map[0], m1 = map[1], m2 = map[2];
+        int a0 = and[0], a1 = and[1], a2 = and[2];
+        int x0 = xor[0], x1 = xor[1], x2 = xor[2];
+        int step = sourceBytes;
+        int lCopies = copies;
+        for (; sampleCount > 0; sampleCount--, i += step) {
+            byte b0 = (byte) ((in[i + m0] & a0) ^ x0);
+            byte b1 = (byte) ((in[i + m1] & a1) ^ x1);
+            byte b2 = (byte) ((in[i + m2] & a2) ^ x2);
+            for (int c = 0; c < lCopies; c++) {
+                out[o++] = b0;
+                out[o++] = b1;
+                out[o++] = b2;
+            }
+        }
+    }
+
+    private void convert4(byte[] in, int i, byte[] out, int o,
+                          int sampleCount) {
+        int m0 = map[0], m1 = map[1], m2 = map[2], m3 = map[3];
+        int a0 = and[0], a1 = and[1], a2 = and[2], a3 = and[3];
+        int x0 = xor[0], x1 = xor[1], x2 = xor[2], x3 = xor[3];
+        int step = sourceBytes;
+        int lCopies = copies;
+        for (; sampleCount > 0; sampleCount--, i += step) {
+            byte b0 = (byte) ((in[i + m0] & a0) ^ x0);
+            byte b1 = (byte) ((in[i + m1] & a1) ^ x1);
+            byte b2 = (byte) ((in[i + m2] & a2) ^ x2);
+            byte b3 = (byte) ((in[i + m3] & a3) ^ x3);
+            for (int c = 0; c < lCopies; c++) {
+                out[o++] = b0;
+                out[o++] = b1;
+                out[o++] = b2;
+                out[o++] = b3;
+            }
+        }
+    }
+}
+
+
+/* FusedPCMConverter.java */
@@ -38,7 +38,6 @@ import org.tritonus.share.TDebug;
 import org.tritonus.share.sampled.AudioFormats;
 import org.tritonus.share.sampled.AudioUtils;
 import org.tritonus.share.sampled.FloatSampleBuffer;
-import org.tritonus.share.sampled.TConversionTool;
 import org.tritonus.share.sampled.convert.TSimpleFormatConversionProvider;
 import org.tritonus.share.sampled.convert.TSynchronousFilteredAudioInputStream;
 
@@ -54,20 +53,16 @@ import org.tritonus.share.sampled.convert.TSynchronousFilteredAudioInputStream;
  * </ul>
  * The class uses 2 different approaches for conversion:
  * <ol>
- * <li>Simple, often used conversions with performance-optimized methods.<br>
- * These are the following conversions:<br>
+ * <li>Conversions that do not reduce the sample size are done in one pass
+ * by a FusedPCMConverter, cached per pair of formats. It combines:<br>
  * <ul>
  * <li>8 Signed <-> 8 unsigned
- * <li>16 signed little endian <--> 16 signed big endian
- * <li>24 signed little endian <--> 24 signed big endian
- * <li>32 signed little endian <--> 32 signed big endian
- * <li>16 signed little endian <--> 8 signed
- * <li>16 signed big endian <--> 8 signed
- * <li>16 signed little endian <--> 8 unsigned
- * <li>16 signed big endian <--> 8 unsigned
+ * <li>16/24/32 signed little endian <--> 16/24/32 signed big endian
+ * <li>8/16/24 bit -> 16/24/32 bit
+ * <li>1 channel -> x channels
  * </ul>
  * <br>
- * Downsampling from 16bit to 8bit is currently done using the float conversion
+ * Downsampling to a smaller sample size is done using the float conversion
  * (see next point), in order to profit of dithering.
  * <li>All other conversions are done using the FloatSampleBuffer.<br>
  * Mixdown of channels (x channels -> 1 channel) is done by plainly adding all
@@ -84,7 +79,6 @@ import org.tritonus.share.sampled.convert.TSynchronousFilteredAudioInputStream;
  *
  * @author Florian Bomers
  * @see org.tritonus.share.sampled.FloatSampleBuffer
- * @see org.tritonus.share.sampled.TConversionTool
  */
 
 public class PCM2PCMConversionProvider extends TSimpleFormatConversionProvider {
@@ -132,19 +126,7 @@ public class PCM2PCMConversionProvider extends TSimpleFormatConversionProvider {
 
     // conversionType
     private static final int CONVERT_NOT_POSSIBLE = 0;
-    private static final int CONVERT_SIGN = 1;
-    private static final int CONVERT_BYTE_ORDER16 = 2;
-    private static final int CONVERT_BYTE_ORDER24 = 3;
-    private static final int CONVERT_BYTE_ORDER32 = 4;
-    private static final int CONVERT_16LTO8S = 5;
-    private static final int CONVERT_16LTO8U = 6;
-    private static final int CONVERT_16BTO8S = 7;
-    private static final int CONVERT_16BTO8U = 8;
-    private static final int CONVERT_8STO16L = 9;
-    private static final int CONVERT_8STO16B = 10;
-    private static final int CONVERT_8UTO16L = 11;
-    private static final int CONVERT_8UTO16B = 12;
-    private static final int CONVERT_ONLY_EXPAND_CHANNELS = 13;
+    private static final int CONVERT_FUSED = 1; // see FusedPCMConverter
     private static final int CONVERT_FLOAT = 100; // all other conversions
     private static final int CONVERT_NONE = 101; // no conversion necessary
 
@@ -286,52 +268,38 @@ public class PCM2PCMConversionProvider extends TSimpleFormatConversionProvider {
                 || (sourceChannels != 1 && targetChannels != 1 && targetChannels != sourceChannels)) {
             return CONVERT_NOT_POSSIBLE;
         }
-        if (sourceType == targetType) {
-            if (sourceChannels == targetChannels) {
-                return CONVERT_NONE;
-            } else if (sourceChannels == 1 && targetChannels > 1) {
-                return CONVERT_ONLY_EXPAND_CHANNELS;
-            }
+        if (sourceType == targetType && sourceChannels == targetChannels) {
+            return CONVERT_NONE;
         }
         if (!ONLY_FLOAT_CONVERSION
-                && (sourceChannels == 1 && targetChannels >= 1 || sourceChannels == targetChannels)) {
-            // when channels only have to be duplicated, direct conversions can
-            // be done
-            if ((sourceType == UNSIGNED8 && targetType == SIGNED8)
-                    || (sourceType == SIGNED8 && targetType == UNSIGNED8)) {
-                return CONVERT_SIGN;
-            } else if ((sourceType == BIG_ENDIAN16 && targetType == LITTLE_ENDIAN16)
-                    || (sourceType == LITTLE_ENDIAN16 && targetType == BIG_ENDIAN16)) {
-                return CONVERT_BYTE_ORDER16;
-            } else if ((sourceType == BIG_ENDIAN24 && targetType == LITTLE_ENDIAN24)
-                    || (sourceType == LITTLE_ENDIAN24 && targetType == BIG_ENDIAN24)) {
-                return CONVERT_BYTE_ORDER24;
-            } else if ((sourceType == BIG_ENDIAN32 && targetType == LITTLE_ENDIAN32)
-                    || (sourceType == LITTLE_ENDIAN32 && targetType == BIG_ENDIAN32)) {
-                return CONVERT_BYTE_ORDER32;
-                /*
-                 * downsampling is better handled with Float conversion ->
-                 * dithering } else if (sourceType==LITTLE_ENDIAN16 &&
-                 * targetType==SIGNED8) { return CONVERT_16LTO8S; } else if
-                 * (sourceType==LITTLE_ENDIAN16 && targetType==UNSIGNED8) {
-                 * return CONVERT_16LTO8U; } else if (sourceType==BIG_ENDIAN16 &&
-                 * targetType==SIGNED8) { return CONVERT_16BTO8S; } else if
-                 * (sourceType==BIG_ENDIAN16 && targetType==UNSIGNED8) { return
-                 * CONVERT_16BTO8U;
-                 */
-            } else if (sourceType == SIGNED8 && targetType == LITTLE_ENDIAN16) {
-                return CONVERT_8STO16L;
-            } else if (sourceType == SIGNED8 && targetType == BIG_ENDIAN16) {
-                return CONVERT_8STO16B;
-            } else if (sourceType == UNSIGNED8 && targetType == LITTLE_ENDIAN16) {
-                return CONVERT_8UTO16L;
-            } else if (sourceType == UNSIGNED8 && targetType == BIG_ENDIAN16) {
-                return CONVERT_8UTO16B;
-            }
+                && FusedPCMConverter.isSupported(getSampleSizeInBits(sourceType),
+                sourceChannels, getSampleSizeInBits(targetType), targetChannels)) {
+            // sign, byte order, widening and expanding of channels are
+            // done in one pass. Reducing the sample size is better handled
+            // with Float conversion -> dithering
+            return CONVERT_FUSED;
         }
         return CONVERT_FLOAT;
     }
 
+    private static int getSampleSizeInBits(int formatType) {
+        switch (formatType) {
+        case UNSIGNED8:
+        case SIGNED8:
+            return 8;
+        case BIG_ENDIAN16:
+        case LITTLE_ENDIAN16:
+            return 16;
+        case BIG_ENDIAN24:
+        case LITTLE_ENDIAN24:
+            return 24;
+        case BIG_ENDIAN32:
+        case LITTLE_ENDIAN32:
+            return 32;
+        }
+        return 0;
+    }
+
     /**
      * Debugging function
      */
@@ -366,32 +334,8 @@ public class PCM2PCMConversionProvider extends TSimpleFormatConversionProvider {
         switch (conversionType) {
         case CONVERT_NOT_POSSIBLE:
             return "CONVERT_NOT_POSSIBLE";
-        case CONVERT_SIGN:
-            return "CONVERT_SIGN";
-        case CONVERT_BYTE_ORDER16:
-            return "CONVERT_BYTE_ORDER16";
-        case CONVERT_BYTE_ORDER24:
-            return "CONVERT_BYTE_ORDER24";
-        case CONVERT_BYTE_ORDER32:
-            return "CONVERT_BYTE_ORDER32";
-        case CONVERT_16LTO8S:
-            return "CONVERT_16LTO8S";
-        case CONVERT_16LTO8U:
-            return "CONVERT_16LTO8U";
-        case CONVERT_16BTO8S:
-            return "CONVERT_16BTO8S";
-        case CONVERT_16BTO8U:
-            return "CONVERT_16BTO8U";
-        case CONVERT_8STO16L:
-            return "CONVERT_8STO16L";
-        case CONVERT_8STO16B:
-            return "CONVERT_8STO16B";
-        case CONVERT_8UTO16L:
-            return "CONVERT_8UTO16L";
-        case CONVERT_8UTO16B:
-            return "CONVERT_8UTO16B";
-        case CONVERT_ONLY_EXPAND_CHANNELS:
-            return "CONVERT_ONLY_EXPAND_CHANNELS";
+        case CONVERT_FUSED:
+            return "CONVERT_FUSED";
         case CONVERT_FLOAT:
             return "CONVERT_FLOAT";
         case CONVERT_NONE:
@@ -402,12 +346,13 @@ public class PCM2PCMConversionProvider extends TSimpleFormatConversionProvider {
 
     /**
      * PCM2PCMStream Provides direct conversion of some selected formats and
-     * rxpanding of channels.
+     * expanding of channels.
      */
     static class PCM2PCMStream extends TSynchronousFilteredAudioInputStream {
         private int conversionType;
         private boolean needExpandChannels;
         private boolean needMixDown;
+        private FusedPCMConverter fusedConverter;
 
         private AudioFormat intermediateFloatBufferFormat;
         private FloatSampleBuffer floatBuffer = null;
@@ -465,66 +410,26 @@ public class PCM2PCMConversionProvider extends TSimpleFormatConversionProvider {
                 enableConvertInPlace();
             }
 
-            if (!needExpandChannels
-                    && (conversionType == CONVERT_SIGN
-                    || conversionType == CONVERT_BYTE_ORDER16
-                    || conversionType == CONVERT_BYTE_ORDER24 || conversionType == CONVERT_BYTE_ORDER32)) {
-                enableConvertInPlace();
+            if (conversionType == CONVERT_FUSED) {
+                AudioFormat sourceFormat = sourceStream.getFormat();
+                fusedConverter = FusedPCMConverter.getConverter(
+                        sourceFormat.getSampleSizeInBits(),
+                        sourceFormat.isBigEndian(),
+                        sourceFormat.getEncoding().equals(PCM_UNSIGNED),
+                        sourceFormat.getChannels(),
+                        targetFormat.getSampleSizeInBits(),
+                        targetFormat.isBigEndian(),
+                        targetFormat.getEncoding().equals(PCM_UNSIGNED),
+                        targetFormat.getChannels());
+                if (fusedConverter.canConvertInPlace()) {
+                    enableConvertInPlace();
+                }
             }
 
             // can always convert in float layer
             enableFloatConversion();
         }
 
-        // these functions only treat the highbyte of 16bit samples
-        // obsolete: is handled with FloatBuffer because of dithering
-        private void do16BTO8S(byte[] inBuffer, int inCounter,
-                               byte[] outBuffer, int outByteOffset, int sampleCount) {
-            for (; sampleCount > 0; sampleCount--, inCounter++) {
-                outBuffer[outByteOffset++] = inBuffer[inCounter++];
-            }
-        }
-
-        // obsolete: is handled with FloatBuffer because of dithering
-        private void do16BTO8U(byte[] inBuffer, int inCounter,
-                               byte[] outBuffer, int outByteOffset, int sampleCount) {
-            for (; sampleCount > 0; sampleCount--, inCounter++) {
-                outBuffer[outByteOffset++] = (byte) (inBuffer[inCounter++] + 128);
-            }
-        }
-
-        private void do8STO16L(byte[] inBuffer, byte[] outBuffer,
-                               int outByteOffset, int sampleCount) {
-            for (int inCounter = 0; sampleCount > 0; sampleCount--) {
-                outBuffer[outByteOffset++] = 0;
-                outBuffer[outByteOffset++] = inBuffer[inCounter++];
-            }
-        }
-
-        private void do8UTO16L(byte[] inBuffer, byte[] outBuffer,
-                               int outByteOffset, int sampleCount) {
-            for (int inCounter = 0; sampleCount > 0; sampleCount--) {
-                outBuffer[outByteOffset++] = 0;
-                outBuffer[outByteOffset++] = (byte) (inBuffer[inCounter++] + 128);
-            }
-        }
-
-        private void do8STO16B(byte[] inBuffer, byte[] outBuffer,
-                               int outByteOffset, int sampleCount) {
-            for (int inCounter = 0; sampleCount > 0; sampleCount--) {
-                outBuffer[outByteOffset++] = inBuffer[inCounter++];
-                outBuffer[outByteOffset++] = 0;
-            }
-        }
-
-        private void do8UTO16B(byte[] inBuffer, byte[] outBuffer,
-                               int outByteOffset, int sampleCount) {
-            for (int inCounter = 0; sampleCount > 0; sampleCount--) {
-                outBuffer[outByteOffset++] = (byte) (inBuffer[inCounter++] + 128);
-                outBuffer[outByteOffset++] = 0;
-            }
-        }
-
         /** copy the channels: in the buffer there is only one channel */
         private void expandChannels(byte[] buffer, int offset,
                                     int frameCount, int bytesPerFrame, int channels) {
@@ -613,56 +518,11 @@ public class PCM2PCMConversionProvider extends TSimpleFormatConversionProvider {
             int sampleCount = inFrameCount
                     * getOriginalStream().getFormat().getChannels();
             switch (conversionType) {
-            case CONVERT_SIGN:
-                TConversionTool.convertSign8(inBuffer, 0, outBuffer,
-                        outByteOffset, sampleCount);
-                break;
-            case CONVERT_BYTE_ORDER16:
-                TConversionTool.swapOrder16(inBuffer, 0, outBuffer,
-                        outByteOffset, sampleCount);
-                break;
-            case CONVERT_BYTE_ORDER24:
-                TConversionTool.swapOrder24(inBuffer, 0, outBuffer,
-                        outByteOffset, sampleCount);
-                break;
-            case CONVERT_BYTE_ORDER32:
-                TConversionTool.swapOrder32(inBuffer, 0, outBuffer,
-                        outByteOffset, sampleCount);
-                break;
-            case CONVERT_16LTO8S:
-                do16BTO8S(inBuffer, 1, outBuffer, outByteOffset, sampleCount);
-                break;
-            case CONVERT_16LTO8U:
-                do16BTO8U(inBuffer, 1, outBuffer, outByteOffset, sampleCount);
-                break;
-            case CONVERT_16BTO8S:
-                do16BTO8S(inBuffer, 0, outBuffer, outByteOffset, sampleCount);
-                break;
-            case CONVERT_16BTO8U:
-                do16BTO8U(inBuffer, 0, outBuffer, outByteOffset, sampleCount);
-                break;
-            case CONVERT_8STO16L:
-                do8STO16L(inBuffer, outBuffer, outByteOffset, sampleCount);
-                break;
-            case CONVERT_8STO16B:
-                do8STO16B(inBuffer, outBuffer, outByteOffset, sampleCount);
-                break;
-            case CONVERT_8UTO16L:
-                do8UTO16L(inBuffer, outBuffer, outByteOffset, sampleCount);
-                break;
-            case CONVERT_8UTO16B:
-                do8UTO16B(inBuffer, outBuffer, outByteOffset, sampleCount);
-                break;
-            case CONVERT_ONLY_EXPAND_CHANNELS:
-                // implicit: channelCount in inBuffer=1
-                System.arraycopy(
-                        inBuffer,
-                        0,
-                        outBuffer,
-                        outByteOffset,
-                        inFrameCount
-                                * getOriginalStream().getFormat().getFrameSize());
-                break;
+            case CONVERT_FUSED:
+                // includes expanding of channels
+                fusedConverter.convert(inBuffer, 0, outBuffer, outByteOffset,
+                        inFrameCount);
+                return inFrameCount;
             case CONVERT_FLOAT:
                 doFloatConversion(inBuffer, 0, outBuffer, outByteOffset,
                         sampleCount);
@@ -685,17 +545,9 @@ public class PCM2PCMConversionProvider extends TSimpleFormatConversionProvider {
             int sampleCount = frameCount
                     * getOriginalStream().getFormat().getChannels();
             switch (conversionType) {
-            case CONVERT_SIGN:
-                TConversionTool.convertSign8(buffer, byteOffset, sampleCount);
-                break;
-            case CONVERT_BYTE_ORDER16:
-                TConversionTool.swapOrder16(buffer, byteOffset, sampleCount);
-                break;
-            case CONVERT_BYTE_ORDER24:
-                TConversionTool.swapOrder24(buffer, byteOffset, sampleCount);
-                break;
-            case CONVERT_BYTE_ORDER32:
-                TConversionTool.swapOrder32(buffer, byteOffset, sampleCount);
+            case CONVERT_FUSED:
+                fusedConverter.convert(buffer, byteOffset, buffer, byteOffset,
+                        frameCount);
                 break;
             case CONVERT_FLOAT:
                 doFloatConversion(buffer, byteOffset, buffer, byteOffset,
@@ -0,0 +1,304 @@
+/*
+ * ResampleFilter.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+
+package org.tritonus.sampled.convert;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.tritonus.share.TDebug;
+
+
+/**
+ * Polyphase filter table for band-limited sample rate conversion, used by
+ * the RESAMPLE algorithm of SampleRateConverterStream.
+ * <p>
+ * The filter is a Kaiser-windowed sinc low pass. Its cutoff is at the
+ * lower one of the two Nyquist frequencies, so that down sampling does
+ * not alias. Each output sample is the dot product of <code>taps</code>
+ * input samples with one row of the table. The row is selected by the
+ * fractional part of the output sample's position in the input.
+ * <p>
+ * If the ratio of the sample rates is a fraction L/M with a small L (e.g.
+ * 44100 -> 48000 = 160/147, 48000 -> 16000 = 1/3, 44100 -> 22050 = 1/2),
+ * there are only L different fractional positions. Then the table has
+ * exactly one row per position, and no interpolation is necessary. For
+ * other ratios, the table has a fixed number of rows, and the
+ * coefficients are linearly interpolated between two rows.
+ * <p>
+ * Tables are shared by all streams with the same rates and quality.
+ */
+class ResampleFilter {
+
+    private static final boolean DEBUG = false;
+
+    /** maximum L for a table with exact rows */
+    private static final int MAX_EXACT_PHASES = 1024;
+
+    /** maximum number of coefficients in a table with exact rows */
+    private static final int MAX_EXACT_TABLE_SIZE = 1 << 20;
+
+    /** number of rows for ratios without exact table */
+    private static final int INTERPOLATED_PHASES = 256;
+
+    /** number of tables kept in the cache */
+    private static final int MAX_CACHED_FILTERS = 16;
+
+    private static final Map<String, ResampleFilter> cache = new LinkedHashMap<String, ResampleFilter>(
+            MAX_CACHED_FILTERS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, ResampleFilter> eldest) {
+            return size() > MAX_CACHED_FILTERS;
+        }
+    };
+
+    /** number of input samples on each side of the filter center */
+    private final int halfTaps;
+
+    /** number of input samples per output sample */
+    private final int taps;
+
+    /** number of rows, for fractional positions 0, 1/phases, ... */
+    private final int phases;
+
+    /** true if the ratio is rational with <code>phases</code> as L */
+    private final boolean exact;
+
+    /** the coefficients, row by row */
+    private final float[] table;
+
+    private ResampleFilter(double sourceRate, double targetRate,
+                           int zeroCrossings, double rolloff, double beta) {
+        // cutoff relative to the source's Nyquist frequency
+        double cutoff = rolloff * Math.min(1.0, targetRate / sourceRate);
+        halfTaps = (int) Math.ceil(zeroCrossings / cutoff);
+        taps = 2 * halfTaps;
+        int l = getInterpolationFactor(sourceRate, targetRate);
+        if (l > 0 && l <= MAX_EXACT_PHASES
+                && (long) l * taps <= MAX_EXACT_TABLE_SIZE) {
+            exact = true;
+            phases = l;
+        } else {
+            exact = false;
+            phases = INTERPOLATED_PHASES;
+        }
+        // one more row for the fraction 1.0: for interpolation at the end,
+        // and for positions that round up to the next input sample
+        int rows = phases + 1;
+        table = new float[rows * taps];
+        double i0Beta = bessel0(beta);
+        for (int row = 0; row < rows; row++) {
+            double frac = ((double) row) / phases;
+            int rowOffset = row * taps;
+            double sum = 0.0;
+            for (int k = 0; k < taps; k++) {
+                // distance of the input sample from the filter center
+                double x = k - halfTaps + 1 - frac;
+                double w = x / halfTaps;
+                double window = bessel0(beta * Math.sqrt(Math.max(0.0, 1.0 - w * w)))
+                        / i0Beta;
+                double coeff = cutoff * sinc(cutoff * x) * window;
+                table[rowOffset + k] = (float) coeff;
+                sum += coeff;
+            }
+            // normalize to unity gain at DC for each row
+            for (int k = 0; k < taps; k++) {
+                table[rowOffset + k] /= (float) sum;
+            }
+        }
+        if (TDebug.TraceAudioConverter && DEBUG) {
+            TDebug.out("ResampleFilter: " + sourceRate + " -> " + targetRate
+                    + ": " + taps + " taps, " + phases + " phases, exact="
+                    + exact);
+        }
+    }
+
+    /**
+     * Get the filter for the conversion of the given sample rates. The
+     * filter is created if it is not in the cache.
+     *
+     * @param zeroCrossings number of zero crossings of the sinc on each
+     *                      side, i.e. the filter length in output samples
+     *                      when down sampling
+     * @param rolloff       the cutoff frequency relative to the Nyquist
+     *                      frequency, a bit below 1.0
+     * @param beta          the Kaiser window parameter, higher values give
+     *                      more stop band attenuation and a wider transition
+     */
+    static ResampleFilter getFilter(float sourceRate, float targetRate,
+                                    int zeroCrossings, double rolloff, double beta) {
+        String key = sourceRate + ">" + targetRate + ":" + zeroCrossings + ":"
+                + rolloff + ":" + beta;
+        synchronized (cache) {
+            ResampleFilter filter = cache.get(key);
+            if (filter == null) {
+                filter = new ResampleFilter(sourceRate, targetRate,
+                        zeroCrossings, rolloff, beta);
+                cache.put(key, filter);
+            }
+            return filter;
+        }
+    }
+
+    /**
+     * Returns L of the ratio targetRate/sourceRate = L/M in lowest terms,
+     * or 0 if the rates are not integral.
+     */
+    static int getInterpolationFactor(double sourceRate, double targetRate) {
+        if (sourceRate != Math.rint(sourceRate)
+                || targetRate != Math.rint(targetRate) || sourceRate < 1.0
+                || targetRate < 1.0 || targetRate > Integer.MAX_VALUE) {
+            return 0;
+        }
+        long source = (long) sourceRate;
+        long target = (long) targetRate;
+        long a = source;
+        long b = target;
+        while (b != 0) {
+            long temp = a % b;
+            a = b;
+            b = temp;
+        }
+        return (int) (target / a);
+    }
+
+    /**
+     * @return the number of input samples on each side of the filter
+     * center. The output lags the newest input sample used by this
+     * number of samples.
+     */
+    int getHalfTaps() {
+        return halfTaps;
+    }
+
+    /**
+     * @return the number of input samples used for one output sample
+     */
+    int getTaps() {
+        return taps;
+    }
+
+    boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Convert a block of samples. The parameters are the same as for the
+     * other conversion methods of SampleRateConverterStream: output sample
+     * i is at position <code>inSampleOffset + increment * i</code> in
+     * <code>inSamples</code>, negative positions are in
+     * <code>history</code>. The output sample is calculated from the
+     * <code>taps</code> input samples up to this position, so it lags the
+     * position by <code>getHalfTaps()</code> samples. Input samples before
+     * the start of the history are taken as silence.
+     */
+    void convert(float[] inSamples, double inSampleOffset, double increment,
+                 float[] outSamples, int outSampleOffset, int outSampleCount,
+                 float[] history, int historyLength) {
+        for (int i = 0; i < outSampleCount; i++) {
+            // do not accumulate, to keep the phase exact
+            double pos = inSampleOffset + increment * i;
+            int iPos = (int) Math.floor(pos);
+            double frac = pos - iPos;
+            int start = iPos - taps + 1;
+            float value;
+            if (exact) {
+                // the last row keeps the input samples up to iPos, which
+                // are all there are when iPos is the last one
+                int row = (int) Math.round(frac * phases);
+                value = filter(row * taps, inSamples, start, history,
+                        historyLength);
+            } else {
+                double rowPos = frac * phases;
+                int row = (int) rowPos;
+                float factor = (float) (rowPos - row);
+                float value0 = filter(row * taps, inSamples, start, history,
+                        historyLength);
+                float value1 = filter((row + 1) * taps, inSamples, start,
+                        history, historyLength);
+                value = value0 + factor * (value1 - value0);
+            }
+            outSamples[outSampleOffset + i] = value;
+        }
+    }
+
+    /**
+     * Dot product of one table row with the input samples starting at
+     * <code>start</code>.
+     */
+    private float filter(int rowOffset, float[] inSamples, int start,
+                         float[] history, int historyLength) {
+        float[] lTable = table;
+        int lTaps = taps;
+        float sum = 0.0f;
+        int k = 0;
+        if (start < 0) {
+            // the first samples are in the history
+            int end = Math.min(lTaps, -start);
+            for (; k < end; k++) {
+                int histIndex = historyLength + start + k;
+                if (histIndex >= 0) {
+                    sum += lTable[rowOffset + k] * history[histIndex];
+                }
+            }
+        }
+        for (int inIndex = start + k; k < lTaps; k++, inIndex++) {
+            sum += lTable[rowOffset + k] * inSamples[inIndex];
+        }
+        return sum;
+    }
+
+    private static double sinc(double x) {
+        if (x == 0.0) {
+            return 1.0;
+        }
+        double px = Math.PI * x;
+        return Math.sin(px) / px;
+    }
+
+    /**
+     * Modified Bessel function of the first kind, order 0.
+     */
+    private static double bessel0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        double halfX = x / 2.0;
+        for (int k = 1; k < 50; k++) {
+            term *= halfX / k;
+            double square = term * term;
+            sum += square;
+            if (square < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+}
+
+
+/* ResampleFilter.java */
@@ -37,6 +37,7 @@ import javax.sound.sampled.AudioSystem;
 
 import org.tritonus.share.ArraySet;
 import org.tritonus.share.TDebug;
+import org.tritonus.share.TSettings;
 import org.tritonus.share.sampled.AudioFormats;
 import org.tritonus.share.sampled.AudioUtils;
 import org.tritonus.share.sampled.FloatSampleBuffer;
@@ -257,9 +258,29 @@ public class SampleRateConversionProvider extends
         public static final int SAMPLE_AND_HOLD = 1;
         /** Conversion algorithm */
         public static final int LINEAR_INTERPOLATION = 2;
-        /** Conversion algorithm */
+        /**
+         * Conversion algorithm: band-limited interpolation with a windowed
+         * sinc filter. The output is aligned to the input. At the end of the
+         * source stream, the filter is flushed with silence, so that the
+         * last input samples are converted, too.
+         *
+         * @see #setResampleQuality(int)
+         */
         public static final int RESAMPLE = 3;
 
+        /**
+         * Quality for RESAMPLE: short filter, for low latency. About 60 dB
+         * stop band attenuation.
+         */
+        public static final int RESAMPLE_QUALITY_LOW = 1;
+        /** Quality for RESAMPLE: about 80 dB stop band attenuation */
+        public static final int RESAMPLE_QUALITY_MEDIUM = 2;
+        /**
+         * Quality for RESAMPLE: long filter with a steep transition. About
+         * 100 dB stop band attenuation.
+         */
+        public static final int RESAMPLE_QUALITY_HIGH = 3;
+
         private boolean eofReached = false;
 
         /** source stream is read in buffers of this size - in milliseconds */
@@ -269,9 +290,16 @@ public class SampleRateConversionProvider extends
         private int sourceBufferSizeSamples;
 
         /** the current conversion algorithm */
-        private int conversionAlgorithm = LINEAR_INTERPOLATION;
+        private int conversionAlgorithm = TSettings.SampleRateConversionResample ? RESAMPLE
+                : LINEAR_INTERPOLATION;
         // private int conversionAlgorithm=SAMPLE_AND_HOLD;
 
+        /** the quality of the RESAMPLE algorithm */
+        private int resampleQuality = RESAMPLE_QUALITY_MEDIUM;
+
+        /** the filter for RESAMPLE, null for the other algorithms */
+        private ResampleFilter resampleFilter = null;
+
         // History support
         /** the buffer with history samples */
         private FloatSampleBuffer historyBuffer = null;
@@ -279,11 +307,17 @@ public class SampleRateConversionProvider extends
          * the minimum number of samples that must be present in the history
          * buffer
          */
-        private static final int minimumSamplesInHistory = 1;
+        private int minimumSamplesInHistory = 1;
 
         /** force to discard current contents in thisBuffer if true */
         private boolean thisBufferValid = false;
 
+        /** true if the silence after the end of the source was appended */
+        private boolean tailFlushed = false;
+
+        /** framePos at the last call of mark() */
+        private long markFramePos = 0;
+
         public SampleRateConverterStream(AudioInputStream sourceStream,
                                          AudioFormat targetFormat) {
             // clean up targetFormat:
@@ -346,6 +380,13 @@ public class SampleRateConversionProvider extends
          * the size of the buffers.
          */
         private synchronized void resizeBuffers() {
+            if (conversionAlgorithm == RESAMPLE) {
+                resampleFilter = createResampleFilter();
+                minimumSamplesInHistory = resampleFilter.getTaps();
+            } else {
+                resampleFilter = null;
+                minimumSamplesInHistory = 1;
+            }
             sourceBufferSizeSamples = (int) AudioUtils.millis2Frames(
                     (long) sourceBufferTime, sourceSampleRate);
             if (sourceBufferSizeSamples < minimumSamplesInHistory) {
@@ -375,6 +416,20 @@ public class SampleRateConversionProvider extends
             }
         }
 
+        private ResampleFilter createResampleFilter() {
+            switch (resampleQuality) {
+            case RESAMPLE_QUALITY_LOW:
+                return ResampleFilter.getFilter(sourceSampleRate,
+                        targetSampleRate, 8, 0.85, 6.0);
+            case RESAMPLE_QUALITY_HIGH:
+                return ResampleFilter.getFilter(sourceSampleRate,
+                        targetSampleRate, 32, 0.95, 10.0);
+            default:
+                return ResampleFilter.getFilter(sourceSampleRate,
+                        targetSampleRate, 16, 0.9, 8.0);
+            }
+        }
+
         /**
          * Maintenance work before reading from the source stream. In
          * particular, it is ensured that the temporary buffer for reading from
@@ -388,11 +443,12 @@ public class SampleRateConversionProvider extends
         }
 
         /**
-         * Reads from a source stream that cannot handle float buffers. After
-         * this method has been called, it is to be checked whether we are
-         * closed ! Precondition: sourceStream!=null
+         * Reads from a source stream that cannot handle float buffers.
+         * Precondition: sourceStream!=null
+         *
+         * @return false if the source stream is at its end
          */
-        private void readFromByteSourceStream() {
+        private boolean readFromByteSourceStream() {
             int byteCount = thisBuffer.getByteArrayBufferSize(sourceStream.getFormat());
             if (byteBuffer == null || byteBuffer.length < byteCount) {
                 byteBuffer = new byte[byteCount];
@@ -419,23 +475,27 @@ public class SampleRateConversionProvider extends
             if (bytesRead == 0) {
                 // sourceStream is closed. We don't accept 0 bytes read from
                 // source stream
-                close();
-            } else {
-                thisBuffer.initFromByteArray(byteBuffer, 0, bytesRead, sourceStream.getFormat());
-                if (TDebug.TraceAudioConverter && DEBUG_STREAM) {
-                    TDebug.out("in readFromByteSourceStream: initialized thisBuffer with "
-                            + thisBuffer.getSampleCount() + " samples");
-                }
+                return false;
             }
+            thisBuffer.initFromByteArray(byteBuffer, 0, bytesRead, sourceStream.getFormat());
+            if (TDebug.TraceAudioConverter && DEBUG_STREAM) {
+                TDebug.out("in readFromByteSourceStream: initialized thisBuffer with "
+                        + thisBuffer.getSampleCount() + " samples");
+            }
+            return true;
         }
 
-        /** pre-condition: sourceInput != null, thisBuffer.getSampleCount()>0 */
-        private void readFromSourceInput() {
+        /**
+         * pre-condition: sourceInput != null, thisBuffer.getSampleCount()>0
+         *
+         * @return false if the source input is done
+         */
+        private boolean readFromSourceInput() {
             if (sourceInput.isDone()) {
-                close();
-            } else {
-                sourceInput.read(thisBuffer);
+                return false;
             }
+            sourceInput.read(thisBuffer);
+            return true;
         }
 
         private long testInFramesRead = 0;
@@ -452,6 +512,7 @@ public class SampleRateConversionProvider extends
             if (isClosed()) {
                 return;
             }
+            int historySampleCount = historyBuffer.getSampleCount();
             // reuse history buffer
             FloatSampleBuffer lBuffer = historyBuffer;
             historyBuffer = thisBuffer;
@@ -471,7 +532,7 @@ public class SampleRateConversionProvider extends
                                 + " samples, inFramesRead=" + testInFramesRead
                                 + " samples.");
                     }
-                    close();
+                    endOfSourceStream(historySampleCount);
                     return;
                 }
                 if (TDebug.TraceAudioConverter && DEBUG_STREAM) {
@@ -482,10 +543,11 @@ public class SampleRateConversionProvider extends
                 lBuffer.changeSampleCount((int) remaining, false);
             }
 
-            if (sourceInput != null) {
-                readFromSourceInput();
-            } else {
-                readFromByteSourceStream();
+            boolean read = (sourceInput != null) ? readFromSourceInput()
+                    : readFromByteSourceStream();
+            if (!read) {
+                endOfSourceStream(historySampleCount);
+                return;
             }
 
             int sampleCount = (lBuffer == null) ? 0 : lBuffer.getSampleCount();
@@ -500,7 +562,10 @@ public class SampleRateConversionProvider extends
             double inc = outSamples2inSamples(1.0);
             if (!thisBufferValid) {
                 thisBufferValid = true;
-                dPos = 0.0;
+                // RESAMPLE needs samples ahead of the position. Start
+                // later so that the output is aligned to the input.
+                dPos = (resampleFilter == null) ? 0.0
+                        : resampleFilter.getHalfTaps();
             } else {
                 double temp = dPos;
                 dPos -= oldSampleCount;
@@ -517,6 +582,38 @@ public class SampleRateConversionProvider extends
             }
         }
 
+        /**
+         * Called by readFromSourceStream() when the source has no more
+         * samples, after thisBuffer and historyBuffer have been swapped.
+         * RESAMPLE converts the samples up to halfTaps before the position,
+         * so the last halfTaps samples of the source are still to be
+         * converted. For them, the buffer just used up is taken again,
+         * extended by halfTaps samples of silence. The stream is closed
+         * when the end is reached the next time.
+         *
+         * @param historySampleCount the sample count of historyBuffer
+         *                           before the swap
+         */
+        private void endOfSourceStream(int historySampleCount) {
+            if (resampleFilter == null || tailFlushed || !thisBufferValid) {
+                close();
+                return;
+            }
+            tailFlushed = true;
+            FloatSampleBuffer lBuffer = thisBuffer;
+            thisBuffer = historyBuffer;
+            historyBuffer = lBuffer;
+            historyBuffer.changeSampleCount(historySampleCount, true);
+            int sampleCount = thisBuffer.getSampleCount();
+            int halfTaps = resampleFilter.getHalfTaps();
+            thisBuffer.changeSampleCount(sampleCount + halfTaps, true);
+            thisBuffer.makeSilence(sampleCount, halfTaps);
+            if (TDebug.TraceAudioConverter && DEBUG_STREAM) {
+                TDebug.out("End of source stream: appended " + halfTaps
+                        + " samples of silence");
+            }
+        }
+
         protected void convertSampleAndHold1(float[] inSamples,
                                              double inSampleOffset, int inSampleCount, double increment,
                                              float[] outSamples, int outSampleOffset, int outSampleCount,
@@ -770,6 +867,31 @@ public class SampleRateConversionProvider extends
             }
         }
 
+        /**
+         * Band-limited conversion with the current resample filter. The
+         * output sample at position p is calculated from the input samples
+         * up to p, centered at p minus half the filter length.
+         *
+         * @see ResampleFilter#convert(float[], double, double, float[], int,
+         * int, float[], int)
+         */
+        protected void convertResample(float[] inSamples,
+                                       double inSampleOffset, int inSampleCount, double increment,
+                                       float[] outSamples, int outSampleOffset, int outSampleCount,
+                                       float[] history, int historyLength) {
+            if (DEBUG_STREAM) {
+                TDebug.out("convertResample(inSamples[" + inSamples.length
+                        + "], " + ((int) inSampleOffset) + " to "
+                        + ((int) (inSampleOffset + increment
+                        * (outSampleCount - 1))) + ", " + "outSamples["
+                        + outSamples.length + "], " + outSampleOffset + " to "
+                        + (outSampleOffset + outSampleCount - 1) + ")");
+            }
+            resampleFilter.convert(inSamples, inSampleOffset, increment,
+                    outSamples, outSampleOffset, outSampleCount, history,
+                    historyLength);
+        }
+
         private double inSamples2outSamples(double inSamples) {
             return inSamples * targetSampleRate / sourceSampleRate;
         }
@@ -819,6 +941,8 @@ public class SampleRateConversionProvider extends
          * outBuffer.getSampleCount() are converted. In general, if
          * outBuffer.getSampleCount()) is less after processing this function,
          * then it is an indicator that it was the last block to be processed.
+         * No more than getFrameLength() samples are returned, if it is
+         * known.
          *
          * @param outBuffer the buffer that the converted samples will be
          *                  written to.
@@ -832,6 +956,17 @@ public class SampleRateConversionProvider extends
                 outBuffer.setSampleCount(offset, true);
                 return;
             }
+            int requestedCount = count;
+            if (frameLength != AudioSystem.NOT_SPECIFIED
+                    && framePos + count > frameLength) {
+                // rounding of the positions may give one sample more
+                count = (int) Math.max(0, frameLength - framePos);
+                if (count == 0) {
+                    close();
+                    outBuffer.setSampleCount(offset, true);
+                    return;
+                }
+            }
             if (outBuffer.getChannelCount() != thisBuffer.getChannelCount()) {
                 throw new IllegalArgumentException(
                         "passed buffer has different channel count");
@@ -916,14 +1051,21 @@ public class SampleRateConversionProvider extends
                                 writtenSamples + offset, writeCount, history,
                                 historyBuffer.getSampleCount());
                         break;
+                    case RESAMPLE:
+                        convertResample(inSamples, dPos, inSampleCount,
+                                increment, outSamples, writtenSamples + offset,
+                                writeCount, history,
+                                historyBuffer.getSampleCount());
+                        break;
                     }
                 }
                 writtenSamples += writeCount;
                 // adjust new position
                 dPos += outSamples2inSamples(writeCount);
-            } while (!isClosed() && writtenSamples < outBuffer.getSampleCount());
+            } while (!isClosed() && writtenSamples < count);
 
-            if (writtenSamples < count) {
+            framePos += writtenSamples;
+            if (writtenSamples < requestedCount) {
                 outBuffer.changeSampleCount(writtenSamples + offset, true);
             }
             if (TDebug.TraceAudioConverter && DEBUG_STREAM) {
@@ -1028,7 +1170,9 @@ public class SampleRateConversionProvider extends
             long sourceSkipped = sourceStream != null ? sourceStream.skip(sourceSkip)
                     : 0;
             flush();
-            return sourceBytes2targetBytes(sourceSkipped);
+            long skipped = sourceBytes2targetBytes(sourceSkipped);
+            framePos += skipped / getFrameSize();
+            return skipped;
         }
 
         @Override
@@ -1043,6 +1187,7 @@ public class SampleRateConversionProvider extends
         public void mark(int readlimit) {
             if (sourceStream != null) {
                 sourceStream.mark((int) targetBytes2sourceBytes(readlimit));
+                markFramePos = framePos;
             }
         }
 
@@ -1050,6 +1195,7 @@ public class SampleRateConversionProvider extends
         public synchronized void reset() throws IOException {
             if (sourceStream != null) {
                 sourceStream.reset();
+                framePos = markFramePos;
                 flush();
             }
         }
@@ -1094,6 +1240,7 @@ public class SampleRateConversionProvider extends
         public synchronized void flush() {
             if (!isClosed()) {
                 thisBufferValid = false;
+                tailFlushed = false;
                 historyBuffer.makeSilence();
             }
         }
@@ -1110,13 +1257,33 @@ public class SampleRateConversionProvider extends
         }
 
         public synchronized void setConversionAlgorithm(int algo) {
-            if ((algo == SAMPLE_AND_HOLD || algo == LINEAR_INTERPOLATION)
-                    && (algo != conversionAlgorithm)) {
+            if ((algo == SAMPLE_AND_HOLD || algo == LINEAR_INTERPOLATION
+                    || algo == RESAMPLE) && (algo != conversionAlgorithm)) {
                 conversionAlgorithm = algo;
                 resizeBuffers();
             }
         }
 
+        /**
+         * Sets the quality of the RESAMPLE algorithm. Higher quality uses
+         * longer filters, which need more processing.
+         *
+         * @param quality one of RESAMPLE_QUALITY_LOW, RESAMPLE_QUALITY_MEDIUM
+         *                and RESAMPLE_QUALITY_HIGH
+         */
+        public synchronized void setResampleQuality(int quality) {
+            if ((quality == RESAMPLE_QUALITY_LOW
+                    || quality == RESAMPLE_QUALITY_MEDIUM || quality == RESAMPLE_QUALITY_HIGH)
+                    && (quality != resampleQuality)) {
+                resampleQuality = quality;
+                resizeBuffers();
+            }
+        }
+
+        public synchronized int getResampleQuality() {
+            return resampleQuality;
+        }
+
         public synchronized float getTargetSampleRate() {
             return targetSampleRate;
         }
@@ -21,12 +21,27 @@
 
 package org.tritonus.sampled.convert;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.spi.FormatConversionProvider;
 
+import org.tritonus.share.TDebug;
+import org.tritonus.share.sampled.AudioFormats;
 import org.tritonus.share.sampled.convert.TFormatConversionProvider;
 
 
@@ -38,84 +53,163 @@ import org.tritonus.share.sampled.convert.TFormatConversionProvider;
  * format conversion given to this provider.
  * <p>
  * Name suggested by Florian: MetaFormatConversionProvider
- * Additinal explanation:
- * > Ich hab mal kurz in den SmartConverter reingeguckt, warum machst Du das mit den
- * > Threads ? In Rekursion wird doch nicht ein neuer Thread benutzt ? Und sonst
- * > koennte man das doch mit synchronized bzw. einem echten lock machen ?
- *
- * Bei der Rekursion bezu"glich der selben Konvertersuche befindet man sich
- * im gleichen Thread; diese Eigenschaft nutze ich ja gerade aus. Es kann
- * aber das Anwendungsprogramm von mehreren Threads aus gleichzeitig einen
- * Konverter anfordern. Diese Aufrufe gehen alle in das gleiche SmartF.C.P.
- * Objekt (es gibt nur eins). Die Methoden des Konverters (das gilt fu"r
- * alle) mu"ssen also reentrant sein. Die Alternative wa"re ein globaler
- * Lock. Das halte ich aber fu"r nicht akzeptabel. Bei meiner Soundmachine
- * zum Beispiel wu"rde das zu Problemen fu"hren: da ist es no"tig, da? beim
- * Abspielen mehrere Kana"le on the fly konvertiert wird. Ein globaler Lock
- * wu"rde zu Verzo"gerungen im Abspielen fu"hren. Die "einfache" Variante der
- * Rekursionserkennung (ohne Beru"cksichtigung von Threads) braucht nur ein
- * einfaches Flag, das gesetzt wird, wenn keine Rekursion mehr stattfinden
- * soll. Dieses Flag wird bei meiner Implementierung mit der Hashtabelle
- * realisiert; sie simuliert ein thread-lokales Verhalten dieses Flags.
- * Alles klar? Ich seh' ein, man braucht zwei Knoten im Hirn, um das zu
- * verstehen...
+ * <p>
+ * The other providers are asked once for their source and target
+ * encodings. This gives a graph with the encodings as nodes and the
+ * providers as edges. A request is answered by a shortest path search
+ * over concrete formats along this graph. Each step costs
+ * {@link #STEP_COST}, an intermediate format costs
+ * {@link #PRECISION_LOSS_COST} more per byte its samples are smaller than
+ * those of source or target. Chains are limited to
+ * {@link #MAX_CONVERSION_STEPS} conversions.
+ * <p>
+ * The results of the searches are cached per pair of source and target
+ * format. The graph and the cache are an immutable snapshot plus
+ * concurrent maps, so lookups do not lock. If two threads search the same
+ * pair at the same time, both search and one result is kept. The other
+ * providers are called directly, never through AudioSystem, so this class
+ * does not recurse into itself.
+ * <p>
+ * By default, the other providers are loaded with the ServiceLoader of the
+ * context class loader. The snapshot is rebuilt if the context class
+ * loader changes, if {@link #setFormatConversionProviders(Collection)} is
+ * called or after {@link #invalidate()}.
  *
  * @author Matthias Pfisterer
  */
 public class SmartFormatConversionProvider extends TFormatConversionProvider {
 
     /**
-     * Stores the threads currently blocked.
-     * To avoid recursion, this class stores which threads have already "passed"
-     * methods of this class once. On entry of a method prone to recursion, it is
-     * checked if the current thread is in the set. If so, this indicates a recursion
-     * and the method will return immediately. If not, the current thread is entered
-     * this data structure, so that further invocations can detect a recursion. On
-     * exit of this method, it is removed from this data structure to indicate it is
-     * "free".
+     * The maximum number of conversions in a chain.
+     */
+    public static final int MAX_CONVERSION_STEPS = 4;
+
+    /**
+     * The cost of one conversion.
+     */
+    public static final int STEP_COST = 2;
+
+    /**
+     * The additional cost per byte of sample size that an intermediate
+     * format is smaller than the larger one of source and target.
+     */
+    public static final int PRECISION_LOSS_COST = 1;
+
+    /**
+     * The maximum number of cached search results. If there are more, the
+     * cache is cleared.
+     */
+    private static final int MAX_CACHED_ROUTES = 1024;
+
+    /**
+     * Marks a cached negative search result.
+     */
+    private static final Route NO_ROUTE = new Route(EMPTY_FORMAT_ARRAY,
+            new FormatConversionProvider[0]);
+
+    /**
+     * The providers set explicitly, or null to use the ServiceLoader.
+     */
+    private volatile List<FormatConversionProvider> m_providers;
+
+    /**
+     * The current snapshot, or null if it has to be built.
      */
-    private Set<Thread> m_blockedThreads;
+    private volatile ConversionGraph m_graph;
+
 
     public SmartFormatConversionProvider() {
-        m_blockedThreads = new HashSet<>();
     }
 
-    // TODO: can use AudioSystem to return all source encodings? (don't forget to block!)
+    /**
+     * Constructor with an explicit set of providers to combine.
+     */
+    public SmartFormatConversionProvider(
+            Collection<? extends FormatConversionProvider> providers) {
+        setFormatConversionProviders(providers);
+    }
+
+    /**
+     * Sets the providers to combine. The cache is invalidated.
+     *
+     * @param providers the providers, or null to load them with the
+     *                  ServiceLoader
+     */
+    public void setFormatConversionProviders(
+            Collection<? extends FormatConversionProvider> providers) {
+        m_providers = providers == null ? null
+                : new ArrayList<FormatConversionProvider>(providers);
+        invalidate();
+    }
+
+    /**
+     * Discards the conversion graph and all cached search results. This
+     * has to be called if the set of installed providers changes.
+     */
+    public void invalidate() {
+        m_graph = null;
+    }
+
     public AudioFormat.Encoding[] getSourceEncodings() {
-        return EMPTY_ENCODING_ARRAY;
+        return getGraph().m_sourceEncodings.clone();
     }
 
-    // TODO: can use AudioSystem to return all target encodings? (don't forget to block!)
     public AudioFormat.Encoding[] getTargetEncodings() {
-        return EMPTY_ENCODING_ARRAY;
+        return getGraph().m_targetEncodings.clone();
     }
 
-    public AudioFormat.Encoding[] getTargetEncodings(AudioFormat sourceFormat) { // TODO:
-        return null;
+    public AudioFormat.Encoding[] getTargetEncodings(AudioFormat sourceFormat) {
+        Set<AudioFormat.Encoding> encodings = new LinkedHashSet<AudioFormat.Encoding>();
+        for (AudioFormat format : getReachableFormats(sourceFormat)) {
+            encodings.add(format.getEncoding());
+        }
+        return encodings.toArray(EMPTY_ENCODING_ARRAY);
     }
 
     public boolean isConversionSupported(AudioFormat.Encoding targetEncoding, AudioFormat sourceFormat) {
+        for (AudioFormat format : getReachableFormats(sourceFormat)) {
+            if (format.getEncoding().equals(targetEncoding)) {
+                return true;
+            }
+        }
         return false;
     }
 
     public AudioFormat[] getTargetFormats(AudioFormat.Encoding targetEncoding, AudioFormat sourceFormat) {
-        return null;
-    }
-
-    public boolean isConversionSupported(AudioFormat targetFormat, AudioFormat sourceFormat) {
-        if (isCurrentThreadBlocked()) {
-            return false;
+        List<AudioFormat> formats = new ArrayList<AudioFormat>();
+        for (AudioFormat format : getReachableFormats(sourceFormat)) {
+            if (format.getEncoding().equals(targetEncoding)) {
+                formats.add(format);
+            }
         }
-        AudioFormat[] aIntermediateFormats = getIntermediateFormats(sourceFormat, targetFormat);
-        return aIntermediateFormats != null;
+        return formats.toArray(EMPTY_FORMAT_ARRAY);
     }
 
-    public AudioInputStream getAudioInputStream(AudioFormat.Encoding targetEncoding, AudioInputStream audioInputStream) {
-        return null;
+    public boolean isConversionSupported(AudioFormat targetFormat, AudioFormat sourceFormat) {
+        return getIntermediateFormats(sourceFormat, targetFormat) != null;
     }
 
+    /**
+     * Builds the chain of conversion streams found by the search.
+     *
+     * @throws IllegalArgumentException if the conversion is not possible
+     */
     public AudioInputStream getAudioInputStream(AudioFormat targetFormat, AudioInputStream audioInputStream) {
-        return null;
+        Route route = findRoute(audioInputStream.getFormat(), targetFormat);
+        if (route == null) {
+            throw new IllegalArgumentException("conversion not supported");
+        }
+        AudioInputStream stream = audioInputStream;
+        for (int i = 0; i < route.m_providers.length; i++) {
+            if (TDebug.TraceAudioConverter) {
+                TDebug.out("SmartFormatConversionProvider.getAudioInputStream(): step "
+                        + i + ": " + route.m_providers[i].getClass().getName()
+                        + " to " + route.m_formats[i]);
+            }
+            stream = route.m_providers[i].getAudioInputStream(
+                    route.m_formats[i], stream);
+        }
+        return stream;
     }
 
     /**
@@ -126,90 +220,399 @@ public class SmartFormatConversionProvider extends TFormatConversionProvider {
      *  possible.
      */
     private AudioFormat[] getIntermediateFormats(AudioFormat sourceFormat, AudioFormat targetFormat) {
-        AudioFormat.Encoding sourceEncoding = sourceFormat.getEncoding();
-        AudioFormat.Encoding targetEncoding = targetFormat.getEncoding();
-        blockCurrentThread();
-        boolean bDirectConversionPossible = AudioSystem.isConversionSupported(targetFormat, sourceFormat);
-        unblockCurrentThread();
-        if (bDirectConversionPossible) {
-            return EMPTY_FORMAT_ARRAY;
-        } else if (isPCM(sourceEncoding) && isPCM(targetEncoding)) {
-            // The SR converter is not yet implemented. The PCM2PCM converter
-            // should handle all other cases.
-            return null;
-            // eventually block
-        } else if (!isPCM(sourceEncoding)) {
-            AudioFormat intermediateFormat = new AudioFormat(
-                    AudioFormat.Encoding.PCM_SIGNED,
-                    sourceFormat.getSampleRate(),
-                    sourceFormat.getSampleSizeInBits(),
-                    sourceFormat.getChannels(),
-                    AudioSystem.NOT_SPECIFIED,
-                    sourceFormat.getSampleRate(),
-                    true);
-            blockCurrentThread();
-            AudioFormat[] aPreIntermediateFormats = getIntermediateFormats(sourceFormat, intermediateFormat);
-            unblockCurrentThread();
-            AudioFormat[] aPostIntermediateFormats = getIntermediateFormats(intermediateFormat, targetFormat);
-            if (aPreIntermediateFormats != null && aPostIntermediateFormats != null) {
-                AudioFormat[] aIntermediateFormats = new AudioFormat[aPreIntermediateFormats.length + 1 + aPostIntermediateFormats.length];
-                System.arraycopy(aPreIntermediateFormats, 0, aIntermediateFormats, 0, aPreIntermediateFormats.length);
-                aIntermediateFormats[aPreIntermediateFormats.length] = intermediateFormat;
-                System.arraycopy(aPostIntermediateFormats, 0, aIntermediateFormats, aPreIntermediateFormats.length, aPostIntermediateFormats.length);
-                return aIntermediateFormats;
-            } else {
-                return null;
-            }
-        } else if (!isPCM(targetEncoding)) {
-            AudioFormat intermediateFormat = new AudioFormat(
-                    AudioFormat.Encoding.PCM_SIGNED,
-                    targetFormat.getSampleRate(),
-                    targetFormat.getSampleSizeInBits(),
-                    targetFormat.getChannels(),
-                    AudioSystem.NOT_SPECIFIED,
-                    targetFormat.getSampleRate(),
-                    true);
-            AudioFormat[] aPreIntermediateFormats = getIntermediateFormats(sourceFormat, intermediateFormat);
-            blockCurrentThread();
-            AudioFormat[] aPostIntermediateFormats = getIntermediateFormats(intermediateFormat, targetFormat);
-            unblockCurrentThread();
-            if (aPreIntermediateFormats != null && aPostIntermediateFormats != null) {
-                AudioFormat[] aIntermediateFormats = new AudioFormat[aPreIntermediateFormats.length + 1 + aPostIntermediateFormats.length];
-                System.arraycopy(aPreIntermediateFormats, 0, aIntermediateFormats, 0, aPreIntermediateFormats.length);
-                aIntermediateFormats[aPreIntermediateFormats.length] = intermediateFormat;
-                System.arraycopy(aPostIntermediateFormats, 0, aIntermediateFormats, aPreIntermediateFormats.length, aPostIntermediateFormats.length);
-                return aIntermediateFormats;
-            } else {
-                return null;
-            }
-        } else {
+        Route route = findRoute(sourceFormat, targetFormat);
+        if (route == null) {
             return null;
         }
+        int nIntermediate = Math.max(0, route.m_formats.length - 1);
+        AudioFormat[] aIntermediateFormats = new AudioFormat[nIntermediate];
+        System.arraycopy(route.m_formats, 0, aIntermediateFormats, 0, nIntermediate);
+        return aIntermediateFormats;
     }
 
-    // General helper methods.
+    /**
+     * Returns the cached route or searches it.
+     *
+     * @return the route or null if the conversion is not possible
+     */
+    private Route findRoute(AudioFormat sourceFormat, AudioFormat targetFormat) {
+        ConversionGraph graph = getGraph();
+        FormatKey key = new FormatKey(sourceFormat, targetFormat);
+        Route route = graph.m_routes.get(key);
+        if (route == null) {
+            route = graph.search(sourceFormat, targetFormat);
+            if (graph.m_routes.size() >= MAX_CACHED_ROUTES) {
+                graph.m_routes.clear();
+            }
+            Route previous = graph.m_routes.putIfAbsent(key, route);
+            if (previous != null) {
+                route = previous;
+            }
+        }
+        return route == NO_ROUTE ? null : route;
+    }
 
-    private static boolean isPCM(AudioFormat.Encoding encoding) {
-        return encoding.equals(AudioFormat.Encoding.PCM_SIGNED)
-                || encoding.equals(AudioFormat.Encoding.PCM_SIGNED);
+    private AudioFormat[] getReachableFormats(AudioFormat sourceFormat) {
+        ConversionGraph graph = getGraph();
+        FormatKey key = new FormatKey(sourceFormat, null);
+        AudioFormat[] formats = graph.m_reachableFormats.get(key);
+        if (formats == null) {
+            formats = graph.getReachableFormats(sourceFormat);
+            if (graph.m_reachableFormats.size() >= MAX_CACHED_ROUTES) {
+                graph.m_reachableFormats.clear();
+            }
+            graph.m_reachableFormats.putIfAbsent(key, formats);
+        }
+        return formats;
+    }
+
+    private ConversionGraph getGraph() {
+        ConversionGraph graph = m_graph;
+        List<FormatConversionProvider> providers = m_providers;
+        ClassLoader classLoader = providers == null ?
+                Thread.currentThread().getContextClassLoader() : null;
+        if (graph == null || graph.m_classLoader != classLoader) {
+            if (providers == null) {
+                providers = loadProviders(classLoader);
+            }
+            graph = new ConversionGraph(providers, classLoader);
+            m_graph = graph;
+        }
+        return graph;
+    }
+
+    private static List<FormatConversionProvider> loadProviders(ClassLoader classLoader) {
+        List<FormatConversionProvider> providers = new ArrayList<FormatConversionProvider>();
+        for (FormatConversionProvider provider : ServiceLoader.load(
+                FormatConversionProvider.class, classLoader)) {
+            providers.add(provider);
+        }
+        return providers;
     }
 
+    // General helper methods.
+
     protected static boolean isSignedPCM(AudioFormat.Encoding encoding) {
         return encoding.equals(AudioFormat.Encoding.PCM_SIGNED);
     }
 
-    // Methods for recursion detection/blocking.
+    /**
+     * Returns a format with the fields of the preferred format, where
+     * these are specified, and the fields of the fallback format otherwise.
+     * The frame size is calculated for a new sample size, the frame rate of
+     * PCM formats is the sample rate.
+     */
+    private static AudioFormat merge(AudioFormat preferred, AudioFormat fallback) {
+        float fSampleRate = preferred.getSampleRate() != AudioSystem.NOT_SPECIFIED ?
+                preferred.getSampleRate() : fallback.getSampleRate();
+        int nSampleSize = preferred.getSampleSizeInBits() != AudioSystem.NOT_SPECIFIED ?
+                preferred.getSampleSizeInBits() : fallback.getSampleSizeInBits();
+        int nChannels = preferred.getChannels() != AudioSystem.NOT_SPECIFIED ?
+                preferred.getChannels() : fallback.getChannels();
+        boolean bPCM = preferred.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)
+                || preferred.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED);
+        int nFrameSize = preferred.getFrameSize();
+        if (nFrameSize == AudioSystem.NOT_SPECIFIED) {
+            if (nSampleSize != AudioSystem.NOT_SPECIFIED
+                    && nChannels != AudioSystem.NOT_SPECIFIED) {
+                nFrameSize = ((nSampleSize + 7) / 8) * nChannels;
+            } else if (preferred.getEncoding().equals(fallback.getEncoding())) {
+                nFrameSize = fallback.getFrameSize();
+            }
+        }
+        float fFrameRate = preferred.getFrameRate();
+        if (fFrameRate == AudioSystem.NOT_SPECIFIED) {
+            fFrameRate = bPCM ? fSampleRate : fallback.getFrameRate();
+        }
+        return new AudioFormat(preferred.getEncoding(), fSampleRate,
+                nSampleSize, nChannels, nFrameSize, fFrameRate,
+                preferred.isBigEndian());
+    }
+
+
+    /**
+     * A found chain of conversions. Format i is the result of provider i.
+     */
+    private static final class Route {
+        private final AudioFormat[] m_formats;
+        private final FormatConversionProvider[] m_providers;
+
+        Route(AudioFormat[] formats, FormatConversionProvider[] providers) {
+            m_formats = formats;
+            m_providers = providers;
+        }
+    }
+
+
+    /**
+     * A conversion from a provider to a target encoding.
+     */
+    private static final class Edge {
+        private final FormatConversionProvider m_provider;
+        private final AudioFormat.Encoding m_targetEncoding;
 
-    private boolean isCurrentThreadBlocked() {
-        return m_blockedThreads.contains(Thread.currentThread());
+        Edge(FormatConversionProvider provider, AudioFormat.Encoding targetEncoding) {
+            m_provider = provider;
+            m_targetEncoding = targetEncoding;
+        }
     }
 
-    private void blockCurrentThread() {
-        m_blockedThreads.add(Thread.currentThread());
+
+    /**
+     * A format reached during the search.
+     */
+    private static final class Node implements Comparable<Node> {
+        private final AudioFormat m_format;
+        private final int m_nCost;
+        private final int m_nSteps;
+        private final Node m_previous;
+        private final FormatConversionProvider m_provider;
+
+        Node(AudioFormat format, int nCost, Node previous,
+             FormatConversionProvider provider) {
+            m_format = format;
+            m_nCost = nCost;
+            m_nSteps = previous == null ? 0 : previous.m_nSteps + 1;
+            m_previous = previous;
+            m_provider = provider;
+        }
+
+        public int compareTo(Node other) {
+            if (m_nCost != other.m_nCost) {
+                return m_nCost < other.m_nCost ? -1 : 1;
+            }
+            return m_nSteps - other.m_nSteps;
+        }
+
+        Route toRoute() {
+            AudioFormat[] formats = new AudioFormat[m_nSteps];
+            FormatConversionProvider[] providers = new FormatConversionProvider[m_nSteps];
+            for (Node node = this; node.m_previous != null; node = node.m_previous) {
+                formats[node.m_nSteps - 1] = node.m_format;
+                providers[node.m_nSteps - 1] = node.m_provider;
+            }
+            return new Route(formats, providers);
+        }
     }
 
-    private void unblockCurrentThread() {
-        m_blockedThreads.remove(Thread.currentThread());
+
+    /**
+     * Key for the caches: the exact values of one or two formats.
+     */
+    private static final class FormatKey {
+        private final String m_strSourceEncoding;
+        private final String m_strTargetEncoding;
+        private final float[] m_afRates;
+        private final int[] m_anValues;
+
+        FormatKey(AudioFormat source, AudioFormat target) {
+            m_strSourceEncoding = source.getEncoding().toString();
+            m_strTargetEncoding = target == null ? null : target.getEncoding().toString();
+            m_afRates = new float[]{source.getSampleRate(), source.getFrameRate(),
+                    target == null ? 0.0F : target.getSampleRate(),
+                    target == null ? 0.0F : target.getFrameRate()};
+            m_anValues = new int[]{source.getSampleSizeInBits(),
+                    source.getChannels(), source.getFrameSize(),
+                    source.isBigEndian() ? 1 : 0,
+                    target == null ? 0 : target.getSampleSizeInBits(),
+                    target == null ? 0 : target.getChannels(),
+                    target == null ? 0 : target.getFrameSize(),
+                    target == null || !target.isBigEndian() ? 0 : 1};
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FormatKey)) {
+                return false;
+            }
+            FormatKey other = (FormatKey) obj;
+            return m_strSourceEncoding.equals(other.m_strSourceEncoding)
+                    && (m_strTargetEncoding == null ? other.m_strTargetEncoding == null
+                    : m_strTargetEncoding.equals(other.m_strTargetEncoding))
+                    && Arrays.equals(m_afRates, other.m_afRates)
+                    && Arrays.equals(m_anValues, other.m_anValues);
+        }
+
+        @Override
+        public int hashCode() {
+            int nHash = m_strSourceEncoding.hashCode();
+            if (m_strTargetEncoding != null) {
+                nHash = nHash * 31 + m_strTargetEncoding.hashCode();
+            }
+            nHash = nHash * 31 + Arrays.hashCode(m_afRates);
+            return nHash * 31 + Arrays.hashCode(m_anValues);
+        }
+    }
+
+
+    /**
+     * Snapshot of the providers with the caches for search results.
+     */
+    private static final class ConversionGraph {
+        private final ClassLoader m_classLoader;
+        private final Map<AudioFormat.Encoding, List<Edge>> m_edges;
+        private final AudioFormat.Encoding[] m_sourceEncodings;
+        private final AudioFormat.Encoding[] m_targetEncodings;
+        private final ConcurrentMap<FormatKey, Route> m_routes =
+                new ConcurrentHashMap<FormatKey, Route>();
+        private final ConcurrentMap<FormatKey, AudioFormat[]> m_reachableFormats =
+                new ConcurrentHashMap<FormatKey, AudioFormat[]>();
+
+        ConversionGraph(List<FormatConversionProvider> providers,
+                        ClassLoader classLoader) {
+            m_classLoader = classLoader;
+            Map<AudioFormat.Encoding, List<Edge>> edges = new HashMap<AudioFormat.Encoding, List<Edge>>();
+            Set<AudioFormat.Encoding> sourceEncodings = new LinkedHashSet<AudioFormat.Encoding>();
+            Set<AudioFormat.Encoding> targetEncodings = new LinkedHashSet<AudioFormat.Encoding>();
+            for (FormatConversionProvider provider : providers) {
+                if (provider instanceof SmartFormatConversionProvider) {
+                    continue;
+                }
+                AudioFormat.Encoding[] aTargetEncodings = provider.getTargetEncodings();
+                for (AudioFormat.Encoding sourceEncoding : provider.getSourceEncodings()) {
+                    sourceEncodings.add(sourceEncoding);
+                    List<Edge> list = edges.get(sourceEncoding);
+                    if (list == null) {
+                        list = new ArrayList<Edge>();
+                        edges.put(sourceEncoding, list);
+                    }
+                    for (AudioFormat.Encoding targetEncoding : aTargetEncodings) {
+                        list.add(new Edge(provider, targetEncoding));
+                    }
+                }
+                Collections.addAll(targetEncodings, aTargetEncodings);
+            }
+            m_edges = edges;
+            m_sourceEncodings = sourceEncodings.toArray(EMPTY_ENCODING_ARRAY);
+            m_targetEncodings = targetEncodings.toArray(EMPTY_ENCODING_ARRAY);
+            if (TDebug.TraceAudioConverter) {
+                TDebug.out("SmartFormatConversionProvider: graph with "
+                        + providers.size() + " providers, "
+                        + edges.size() + " source encodings");
+            }
+        }
+
+        /**
+         * Shortest path search from the source format to the target format.
+         *
+         * @return the route or NO_ROUTE
+         */
+        Route search(AudioFormat sourceFormat, AudioFormat targetFormat) {
+            if (AudioFormats.matches(sourceFormat, targetFormat)) {
+                return new Route(EMPTY_FORMAT_ARRAY, new FormatConversionProvider[0]);
+            }
+            int nMaximumBits = Math.max(sourceFormat.getSampleSizeInBits(),
+                    targetFormat.getSampleSizeInBits());
+            PriorityQueue<Node> queue = new PriorityQueue<Node>();
+            Set<FormatKey> visited = new HashSet<FormatKey>();
+            queue.add(new Node(sourceFormat, 0, null, null));
+            Node best = null;
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                if (best != null && node.m_nCost + STEP_COST >= best.m_nCost) {
+                    break;
+                }
+                if (!visited.add(new FormatKey(node.m_format, null))) {
+                    continue;
+                }
+                List<Edge> edges = getEdges(node.m_format);
+                for (Edge edge : edges) {
+                    if (edge.m_targetEncoding.equals(targetFormat.getEncoding())
+                            && isConversionSupported(edge.m_provider, targetFormat, node.m_format)) {
+                        AudioFormat last = targetFormat;
+                        for (AudioFormat candidate : getTargetFormats(edge, node.m_format)) {
+                            if (AudioFormats.matches(candidate, targetFormat)) {
+                                last = merge(candidate, node.m_format);
+                                break;
+                            }
+                        }
+                        last = merge(targetFormat, merge(last, node.m_format));
+                        int nCost = node.m_nCost + STEP_COST;
+                        if (best == null || nCost < best.m_nCost) {
+                            best = new Node(last, nCost, node, edge.m_provider);
+                        }
+                    }
+                }
+                if (node.m_nSteps + 2 > MAX_CONVERSION_STEPS) {
+                    // no room for an intermediate format and a last step
+                    continue;
+                }
+                for (Edge edge : edges) {
+                    for (AudioFormat candidate : getTargetFormats(edge, node.m_format)) {
+                        AudioFormat next = merge(candidate, node.m_format);
+                        int nBits = next.getSampleSizeInBits();
+                        int nCost = node.m_nCost + STEP_COST;
+                        if (nBits != AudioSystem.NOT_SPECIFIED && nBits < nMaximumBits) {
+                            nCost += PRECISION_LOSS_COST * ((nMaximumBits - nBits) / 8);
+                        }
+                        queue.add(new Node(next, nCost, node, edge.m_provider));
+                    }
+                }
+            }
+            if (TDebug.TraceAudioConverter) {
+                TDebug.out("SmartFormatConversionProvider.search(): " + sourceFormat
+                        + " -> " + targetFormat + ": "
+                        + (best == null ? "not possible" : best.m_nSteps + " steps"));
+            }
+            return best == null ? NO_ROUTE : best.toRoute();
+        }
+
+        /**
+         * Returns all formats that can be reached from the source format.
+         */
+        AudioFormat[] getReachableFormats(AudioFormat sourceFormat) {
+            Set<FormatKey> visited = new HashSet<FormatKey>();
+            List<AudioFormat> formats = new ArrayList<AudioFormat>();
+            List<Node> current = new ArrayList<Node>();
+            current.add(new Node(sourceFormat, 0, null, null));
+            visited.add(new FormatKey(sourceFormat, null));
+            for (int nStep = 0; nStep < MAX_CONVERSION_STEPS && !current.isEmpty(); nStep++) {
+                List<Node> next = new ArrayList<Node>();
+                for (Node node : current) {
+                    for (Edge edge : getEdges(node.m_format)) {
+                        for (AudioFormat candidate : getTargetFormats(edge, node.m_format)) {
+                            AudioFormat format = merge(candidate, node.m_format);
+                            if (visited.add(new FormatKey(format, null))) {
+                                formats.add(format);
+                                next.add(new Node(format, 0, node, edge.m_provider));
+                            }
+                        }
+                    }
+                }
+                current = next;
+            }
+            return formats.toArray(EMPTY_FORMAT_ARRAY);
+        }
+
+        private List<Edge> getEdges(AudioFormat format) {
+            List<Edge> edges = m_edges.get(format.getEncoding());
+            return edges == null ? Collections.<Edge>emptyList() : edges;
+        }
+
+        private static AudioFormat[] getTargetFormats(Edge edge, AudioFormat sourceFormat) {
+            try {
+                AudioFormat[] formats = edge.m_provider.getTargetFormats(
+                        edge.m_targetEncoding, sourceFormat);
+                return formats == null ? EMPTY_FORMAT_ARRAY : formats;
+            } catch (RuntimeException e) {
+                if (TDebug.TraceAllExceptions) {
+                    TDebug.out(e);
+                }
+                return EMPTY_FORMAT_ARRAY;
+            }
+        }
+
+        private static boolean isConversionSupported(FormatConversionProvider provider,
+                                                     AudioFormat targetFormat, AudioFormat sourceFormat) {
+            try {
+                return provider.isConversionSupported(targetFormat, sourceFormat);
+            } catch (RuntimeException e) {
+                if (TDebug.TraceAllExceptions) {
+                    TDebug.out(e);
+                }
+                return false;
+            }
+        }
     }
 }
 
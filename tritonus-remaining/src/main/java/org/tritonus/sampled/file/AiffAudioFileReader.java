@@ -57,6 +57,21 @@ public class AiffAudioFileReader extends TAudioFileReader {
     }
 
 
+    /**
+     * Audio data is read by positional reads from the file.
+     */
+    protected boolean isFileChannelSupported() {
+        return true;
+    }
+
+
+    protected boolean matchesHeader(byte[] abHeader, int nLength) {
+        int nType = getBigEndianInt(abHeader, nLength, 8);
+        return getBigEndianInt(abHeader, nLength, 0) == AiffTool.AIFF_FORM_MAGIC
+                && (nType == AiffTool.AIFF_AIFF_MAGIC || nType == AiffTool.AIFF_AIFC_MAGIC);
+    }
+
+
     private void skipChunk(DataInputStream dataInputStream, int chunkLength, int chunkRead)
             throws IOException {
         chunkLength -= chunkRead;
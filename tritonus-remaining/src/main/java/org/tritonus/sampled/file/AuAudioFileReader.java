@@ -59,6 +59,19 @@ public class AuAudioFileReader extends TAudioFileReader {
     }
 
 
+    /**
+     * Audio data is read by positional reads from the file.
+     */
+    protected boolean isFileChannelSupported() {
+        return true;
+    }
+
+
+    protected boolean matchesHeader(byte[] abHeader, int nLength) {
+        return getBigEndianInt(abHeader, nLength, 0) == AuTool.AU_HEADER_MAGIC;
+    }
+
+
     private static String readDescription(DataInputStream dis, int len) throws IOException {
         byte c = -1;
         StringBuilder ret = new StringBuilder();
@@ -25,21 +25,31 @@
 
 package org.tritonus.sampled.file;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 import org.tritonus.share.TDebug;
+import org.tritonus.share.sampled.file.FileChannelAudioInputStream;
 import org.tritonus.share.sampled.file.TAudioFileFormat;
 import org.tritonus.share.sampled.file.TAudioFileReader;
 
 
 /**
  * Class for reading wave files.
+ * Files are read with a {@link WaveChunkIndex}, so the chunks may be
+ * in any order. Streams are read sequentially. RF64 files are
+ * supported in both cases.
  *
  * @author Florian Bomers
  * @author Matthias Pfisterer
@@ -47,17 +57,93 @@ import org.tritonus.share.sampled.file.TAudioFileReader;
 public class WaveAudioFileReader extends TAudioFileReader {
 
     private static final int READ_LIMIT = 1000;
+    // larger format chunks are considered corrupt
+    private static final int MAX_FMT_CHUNK_LENGTH = 0x10000;
 
     public WaveAudioFileReader() {
         super(READ_LIMIT);
     }
 
+    protected boolean matchesHeader(byte[] abHeader, int nLength) {
+        int nMagic = getBigEndianInt(abHeader, nLength, 0);
+        return (nMagic == WaveTool.WAVE_RIFF_MAGIC || nMagic == WaveTool.WAVE_RF64_MAGIC)
+                && getBigEndianInt(abHeader, nLength, 8) == WaveTool.WAVE_WAVE_MAGIC;
+    }
+
+    /**
+     * Reads the format from the chunk index of the file.
+     */
+    @Override
+    public AudioFileFormat getAudioFileFormat(File file)
+            throws UnsupportedAudioFileException, IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return getAudioFileFormat(WaveChunkIndex.getIndex(file, channel), channel);
+        }
+    }
+
+    /**
+     * Returns a FileChannelAudioInputStream positioned by the chunk
+     * index of the file, without reading the chunks in front of the
+     * audio data.
+     */
+    @Override
+    public AudioInputStream getAudioInputStream(File file)
+            throws UnsupportedAudioFileException, IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            WaveChunkIndex index = WaveChunkIndex.getIndex(file, channel);
+            AudioFileFormat audioFileFormat = getAudioFileFormat(index, channel);
+            WaveChunkIndex.Chunk dataChunk = index.getChunk(WaveTool.WAVE_DATA_MAGIC);
+            AudioFormat format = audioFileFormat.getFormat();
+            return new FileChannelAudioInputStream(channel, format,
+                    dataChunk.getLength() / format.getFrameSize(),
+                    dataChunk.getOffset());
+        } catch (UnsupportedAudioFileException | IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    protected AudioFileFormat getAudioFileFormat(WaveChunkIndex index, FileChannel channel)
+            throws UnsupportedAudioFileException, IOException {
+        WaveChunkIndex.Chunk formatChunk = index.getChunk(WaveTool.WAVE_FMT_MAGIC);
+        WaveChunkIndex.Chunk dataChunk = index.getChunk(WaveTool.WAVE_DATA_MAGIC);
+        if (formatChunk == null || dataChunk == null) {
+            throw new UnsupportedAudioFileException("unsupported WAVE file: required chunk not found.");
+        }
+        if (formatChunk.getLength() > MAX_FMT_CHUNK_LENGTH) {
+            throw new UnsupportedAudioFileException("corrupt WAVE file: format chunk is too large");
+        }
+        ByteBuffer buffer = index.readChunk(channel, formatChunk);
+        byte[] abFormatChunk = new byte[buffer.remaining()];
+        buffer.get(abFormatChunk);
+        AudioFormat format = readFormatChunk(new DataInputStream(
+                new ByteArrayInputStream(abFormatChunk)), formatChunk.getLength());
+        if (format.getFrameSize() <= 0) {
+            throw new UnsupportedAudioFileException("corrupt WAVE file: frame size must be positive");
+        }
+        long lFrameLength = dataChunk.getLength() / format.getFrameSize();
+        long lByteLength = index.getRiffLength() + WaveTool.CHUNK_HEADER_SIZE;
+        if (TDebug.TraceAudioFileReader) {
+            TDebug.out("WaveAudioFileReader.getAudioFileFormat(): total length: "
+                    + lByteLength + ", frame length = " + lFrameLength);
+        }
+        return new TAudioFileFormat(AudioFileFormat.Type.WAVE,
+                format,
+                toInt(lFrameLength),
+                toInt(lByteLength));
+    }
+
     protected void advanceChunk(DataInputStream dis, long prevLength, long prevRead) throws IOException {
         long l = ((prevLength + 1) & 0xFFFFFFFE) - prevRead;
         if (prevLength > 0) {
             long r = 0;
             while (r < l) {
-                r += dis.skip(l);
+                long n = dis.skip(l - r);
+                if (n <= 0) {
+                    break;
+                }
+                r += n;
             }
         }
     }
@@ -228,7 +314,8 @@ public class WaveAudioFileReader extends TAudioFileReader {
             throws UnsupportedAudioFileException, IOException {
         DataInputStream dataInputStream = new DataInputStream(inputStream);
         int magic = dataInputStream.readInt();
-        if (magic != WaveTool.WAVE_RIFF_MAGIC) {
+        boolean bRF64 = magic == WaveTool.WAVE_RF64_MAGIC;
+        if (magic != WaveTool.WAVE_RIFF_MAGIC && !bRF64) {
             throw new UnsupportedAudioFileException(
                     "not a WAVE file: wrong header magic");
         }
@@ -237,12 +324,29 @@ public class WaveAudioFileReader extends TAudioFileReader {
         if (magic != WaveTool.WAVE_WAVE_MAGIC) {
             throw new UnsupportedAudioFileException("not a WAVE file: wrong header magic");
         }
+        long dataLength64 = 0;
+        if (bRF64) {
+            // the ds64 chunk is the first chunk
+            if (dataInputStream.readInt() != WaveTool.WAVE_DS64_MAGIC) {
+                throw new UnsupportedAudioFileException("corrupt RF64 file: ds64 chunk missing");
+            }
+            long ds64Length = readLittleEndianInt(dataInputStream) & 0xFFFFFFFFL;
+            if (ds64Length < WaveTool.MIN_DS64_CHUNK_LENGTH) {
+                throw new UnsupportedAudioFileException("corrupt RF64 file: ds64 chunk is too small");
+            }
+            totalLength = readLittleEndianLong(dataInputStream);
+            dataLength64 = readLittleEndianLong(dataInputStream);
+            advanceChunk(dataInputStream, ds64Length, 16);
+        }
         // search for "fmt " chunk
         long chunkLength = findChunk(dataInputStream, WaveTool.WAVE_FMT_MAGIC);
         AudioFormat format = readFormatChunk(dataInputStream, chunkLength);
 
         // search for "data" chunk
         long dataChunkLength = findChunk(dataInputStream, WaveTool.WAVE_DATA_MAGIC);
+        if (bRF64 && dataChunkLength == WaveTool.RF64_SIZE_IN_DS64) {
+            dataChunkLength = dataLength64;
+        }
 
         long frameLength = dataChunkLength / format.getFrameSize();
 
@@ -252,8 +356,20 @@ public class WaveAudioFileReader extends TAudioFileReader {
         }
         return new TAudioFileFormat(AudioFileFormat.Type.WAVE,
                 format,
-                (int) frameLength,
-                (int) (totalLength + WaveTool.CHUNK_HEADER_SIZE));
+                toInt(frameLength),
+                toInt(totalLength + WaveTool.CHUNK_HEADER_SIZE));
+    }
+
+    private static long readLittleEndianLong(InputStream is)
+            throws IOException {
+        long low = readLittleEndianInt(is) & 0xFFFFFFFFL;
+        long high = readLittleEndianInt(is);
+        return (high << 32) | low;
+    }
+
+    // lengths of RF64 files may not fit into AudioFileFormat
+    private static int toInt(long lLength) {
+        return lLength <= Integer.MAX_VALUE ? (int) lLength : AudioSystem.NOT_SPECIFIED;
     }
 }
 
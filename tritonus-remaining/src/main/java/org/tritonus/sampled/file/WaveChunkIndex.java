@@ -0,0 +1,417 @@
+/*
+ * WaveChunkIndex.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.sampled.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.tritonus.share.TDebug;
+
+
+/**
+ * Index of the chunks of a WAVE file.
+ * <p>
+ * The index is built in one pass over the chunk headers with
+ * positional reads; the contents of the chunks are not read. So the
+ * position of the audio data is known without reading the chunks in
+ * front of it, and chunks after the audio data (for instance LIST or
+ * cue chunks of broadcast files) are found without reading the audio
+ * data. The contents of a chunk are read on demand with
+ * {@link #readChunk}.
+ * <p>
+ * RF64 files, which hold the sizes of chunks larger than 4 GB in a
+ * ds64 chunk, are supported.
+ * <p>
+ * Indexes are immutable. {@link #getIndex(File, FileChannel)} caches
+ * the indexes of recently used files; an entry is only used if the
+ * file key (the inode on Unix), the modification time and the size of
+ * the file are unchanged and the RIFF header, the ds64 chunk of RF64
+ * files and the header of the data chunk still read the same. The
+ * modification time alone is not reliable: its resolution may be
+ * coarse, and it can be set back.
+ */
+public class WaveChunkIndex {
+    /** number of indexes kept in the cache */
+    private static final int MAX_CACHED_INDEXES = 64;
+
+    private static final Map<String, WaveChunkIndex> sm_cache = new LinkedHashMap<String, WaveChunkIndex>(
+            MAX_CACHED_INDEXES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, WaveChunkIndex> eldest) {
+            return size() > MAX_CACHED_INDEXES;
+        }
+    };
+
+    private final Object m_fileKey;
+    private final long m_lModified;
+    private final long m_lSize;
+    /** the headers compared on a cache hit, see readSignature() */
+    private final byte[] m_abSignature;
+    private final boolean m_bRF64;
+    private final long m_lRiffLength;
+    private final List<Chunk> m_chunks;
+
+
+    private WaveChunkIndex(Object fileKey, long lModified, long lSize,
+                           byte[] abSignature, boolean bRF64, long lRiffLength,
+                           List<Chunk> chunks) {
+        m_fileKey = fileKey;
+        m_abSignature = abSignature;
+        m_lModified = lModified;
+        m_lSize = lSize;
+        m_bRF64 = bRF64;
+        m_lRiffLength = lRiffLength;
+        m_chunks = Collections.unmodifiableList(chunks);
+    }
+
+
+    /**
+     * Obtain the index of a file, from the cache if possible.
+     *
+     * @param channel a channel of the file. It is used to build the
+     *                index if there is no valid one in the cache.
+     * @throws UnsupportedAudioFileException if the file is not a WAVE
+     *                                       file
+     */
+    public static WaveChunkIndex getIndex(File file, FileChannel channel)
+            throws UnsupportedAudioFileException, IOException {
+        Path path = file.toPath().toAbsolutePath();
+        BasicFileAttributes attributes = Files.readAttributes(path,
+                BasicFileAttributes.class);
+        Object fileKey = attributes.fileKey();
+        long lModified = attributes.lastModifiedTime().toMillis();
+        long lSize = attributes.size();
+        String strKey = path.toString();
+        WaveChunkIndex index;
+        synchronized (sm_cache) {
+            index = sm_cache.get(strKey);
+        }
+        if (index != null && Objects.equals(index.m_fileKey, fileKey)
+                && index.m_lModified == lModified && index.m_lSize == lSize
+                && Arrays.equals(index.m_abSignature,
+                readSignature(channel, index.m_chunks))) {
+            return index;
+        }
+        index = createIndex(channel, fileKey, lModified, lSize);
+        synchronized (sm_cache) {
+            sm_cache.put(strKey, index);
+        }
+        return index;
+    }
+
+
+    /**
+     * Obtain the index of a file, from the cache if possible.
+     */
+    public static WaveChunkIndex getIndex(File file)
+            throws UnsupportedAudioFileException, IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            return getIndex(file, channel);
+        }
+    }
+
+
+    /**
+     * Build the index of a file without using the cache.
+     */
+    public static WaveChunkIndex createIndex(FileChannel channel)
+            throws UnsupportedAudioFileException, IOException {
+        return createIndex(channel, null, 0, channel.size());
+    }
+
+
+    private static WaveChunkIndex createIndex(FileChannel channel,
+                                              Object fileKey, long lModified, long lSize)
+            throws UnsupportedAudioFileException, IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(WaveTool.RIFF_CONTAINER_CHUNK_SIZE);
+        if (!readFully(channel, buffer, 0)) {
+            throw new UnsupportedAudioFileException("not a WAVE file: too short");
+        }
+        int nMagic = buffer.getInt(0);
+        boolean bRF64 = nMagic == WaveTool.WAVE_RF64_MAGIC;
+        if ((nMagic != WaveTool.WAVE_RIFF_MAGIC && !bRF64)
+                || buffer.getInt(8) != WaveTool.WAVE_WAVE_MAGIC) {
+            throw new UnsupportedAudioFileException("not a WAVE file: wrong header magic");
+        }
+        long lRiffLength = getUnsignedInt(buffer, 4);
+        long lDataLength = 0;
+        Map<Integer, Long> ds64Table = new HashMap<Integer, Long>();
+
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        ByteBuffer header = ByteBuffer.allocate(WaveTool.CHUNK_HEADER_SIZE);
+        long lPosition = WaveTool.RIFF_CONTAINER_CHUNK_SIZE;
+        long lEnd = channel.size();
+        while (lPosition + WaveTool.CHUNK_HEADER_SIZE <= lEnd) {
+            ((Buffer) header).clear();
+            if (!readFully(channel, header, lPosition)) {
+                break;
+            }
+            int nId = header.getInt(0);
+            long lLength = getUnsignedInt(header, 4);
+            long lOffset = lPosition + WaveTool.CHUNK_HEADER_SIZE;
+            if (bRF64 && chunks.isEmpty()) {
+                // the ds64 chunk has to be the first one
+                if (nId != WaveTool.WAVE_DS64_MAGIC
+                        || lLength < WaveTool.MIN_DS64_CHUNK_LENGTH) {
+                    throw new UnsupportedAudioFileException("corrupt RF64 file: ds64 chunk missing");
+                }
+                ByteBuffer ds64 = read(channel, lOffset, (int) Math.min(lLength, 0x10000));
+                if (ds64.limit() < WaveTool.MIN_DS64_CHUNK_LENGTH) {
+                    throw new UnsupportedAudioFileException("corrupt RF64 file: ds64 chunk truncated");
+                }
+                lRiffLength = getLong(ds64, 0);
+                lDataLength = getLong(ds64, 8);
+                if (ds64.limit() >= 28) {
+                    // table of the sizes of other large chunks
+                    int nTableLength = Integer.reverseBytes(ds64.getInt(24));
+                    for (int i = 0; i < nTableLength
+                            && 28 + i * 12 + 12 <= ds64.limit(); i++) {
+                        ds64Table.put(ds64.getInt(28 + i * 12),
+                                getLong(ds64, 28 + i * 12 + 4));
+                    }
+                }
+            } else if (bRF64 && lLength == WaveTool.RF64_SIZE_IN_DS64) {
+                if (nId == WaveTool.WAVE_DATA_MAGIC) {
+                    lLength = lDataLength;
+                } else if (ds64Table.containsKey(nId)) {
+                    lLength = ds64Table.get(nId);
+                }
+            }
+            chunks.add(new Chunk(nId, lOffset, lLength));
+            // chunks are padded to an even length
+            lPosition = lOffset + lLength + (lLength & 1);
+        }
+        if (TDebug.TraceAudioFileReader) {
+            TDebug.out("WaveChunkIndex.createIndex(): " + chunks);
+        }
+        return new WaveChunkIndex(fileKey, lModified, lSize,
+                readSignature(channel, chunks), bRF64, lRiffLength, chunks);
+    }
+
+
+    /**
+     * Read the parts of the file an index depends on most: the RIFF
+     * header, the lengths in the ds64 chunk of RF64 files and the
+     * header of the data chunk. A file rewritten in place with the same
+     * size and modification time is detected by them.
+     */
+    private static byte[] readSignature(FileChannel channel,
+                                        List<Chunk> chunks) throws IOException {
+        ByteBuffer signature = ByteBuffer.allocate(WaveTool.RIFF_CONTAINER_CHUNK_SIZE
+                + 16 + WaveTool.CHUNK_HEADER_SIZE);
+        // through Buffer: ByteBuffer.limit(int) does not exist on Java 8
+        Buffer window = signature;
+        window.limit(WaveTool.RIFF_CONTAINER_CHUNK_SIZE);
+        readFully(channel, signature, 0);
+        Chunk ds64Chunk = findChunk(chunks, WaveTool.WAVE_DS64_MAGIC);
+        if (ds64Chunk != null) {
+            window.limit(window.position() + 16);
+            readFully(channel, signature, ds64Chunk.getOffset());
+        }
+        Chunk dataChunk = findChunk(chunks, WaveTool.WAVE_DATA_MAGIC);
+        if (dataChunk != null) {
+            window.limit(window.position() + WaveTool.CHUNK_HEADER_SIZE);
+            readFully(channel, signature, dataChunk.getOffset()
+                    - WaveTool.CHUNK_HEADER_SIZE);
+        }
+        return Arrays.copyOf(signature.array(), signature.position());
+    }
+
+
+    /**
+     * Whether the file is an RF64 file.
+     */
+    public boolean isRF64() {
+        return m_bRF64;
+    }
+
+
+    /**
+     * Returns the length of the RIFF (or RF64) chunk as given in the
+     * file, excluding its chunk header.
+     */
+    public long getRiffLength() {
+        return m_lRiffLength;
+    }
+
+
+    /**
+     * Returns the chunks in the order of the file, including the ds64
+     * chunk of RF64 files.
+     */
+    public List<Chunk> getChunks() {
+        return m_chunks;
+    }
+
+
+    /**
+     * Returns the first chunk with an id, or null if there is none.
+     *
+     * @param nId the chunk id, for instance WaveTool.WAVE_DATA_MAGIC
+     */
+    public Chunk getChunk(int nId) {
+        return findChunk(m_chunks, nId);
+    }
+
+
+    private static Chunk findChunk(List<Chunk> chunks, int nId) {
+        for (Chunk chunk : chunks) {
+            if (chunk.getId() == nId) {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Read the contents of a chunk. The buffer holds the contents
+     * followed by the pad byte of odd-length chunks, as far as they are
+     * in the file.
+     *
+     * @param channel a channel of the file this index belongs to
+     * @throws IOException if the chunk is larger than 2 GB
+     */
+    public ByteBuffer readChunk(FileChannel channel, Chunk chunk)
+            throws IOException {
+        long lLength = chunk.getLength() + (chunk.getLength() & 1);
+        if (lLength > Integer.MAX_VALUE) {
+            throw new IOException("chunk too large to be read into memory: " + chunk);
+        }
+        return read(channel, chunk.getOffset(), (int) lLength);
+    }
+
+
+    private static ByteBuffer read(FileChannel channel, long lOffset, int nLength)
+            throws IOException {
+        long lAvailable = Math.max(0, channel.size() - lOffset);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(nLength, lAvailable));
+        if (!readFully(channel, buffer, lOffset)) {
+            throw new EOFException();
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long lPosition)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int nRead = channel.read(buffer, lPosition);
+            if (nRead < 0) {
+                return false;
+            }
+            lPosition += nRead;
+        }
+        return true;
+    }
+
+
+    private static long getUnsignedInt(ByteBuffer buffer, int nOffset) {
+        return Integer.reverseBytes(buffer.getInt(nOffset)) & 0xFFFFFFFFL;
+    }
+
+
+    private static long getLong(ByteBuffer buffer, int nOffset) {
+        return Long.reverseBytes(buffer.getLong(nOffset));
+    }
+
+
+    /**
+     * A chunk of a WAVE file.
+     */
+    public static class Chunk {
+        private final int m_nId;
+        private final long m_lOffset;
+        private final long m_lLength;
+
+
+        public Chunk(int nId, long lOffset, long lLength) {
+            m_nId = nId;
+            m_lOffset = lOffset;
+            m_lLength = lLength;
+        }
+
+
+        /**
+         * Returns the id as a big endian int, like the constants in
+         * WaveTool.
+         */
+        public int getId() {
+            return m_nId;
+        }
+
+
+        /**
+         * Returns the position of the contents in the file, after the
+         * chunk header.
+         */
+        public long getOffset() {
+            return m_lOffset;
+        }
+
+
+        /**
+         * Returns the length of the contents, excluding the pad byte.
+         * The contents may extend beyond the end of a truncated file.
+         */
+        public long getLength() {
+            return m_lLength;
+        }
+
+
+        public String toString() {
+            char[] acId = new char[4];
+            for (int i = 0; i < 4; i++) {
+                acId[i] = (char) ((m_nId >> (24 - 8 * i)) & 0xFF);
+            }
+            return new String(acId) + "@" + m_lOffset + "+" + m_lLength;
+        }
+    }
+}
+
+
+/* WaveChunkIndex.java */
@@ -45,6 +45,8 @@ public class WaveTool {
     public static final int WAVE_FMT_MAGIC = 0x666D7420; // "fmt "
     public static final int WAVE_DATA_MAGIC = 0x64617461; // "DATA"
     public static final int WAVE_FACT_MAGIC = 0x66616374; // "fact"
+    public static final int WAVE_RF64_MAGIC = 0x52463634; // "RF64"
+    public static final int WAVE_DS64_MAGIC = 0x64733634; // "ds64"
 
     public static final short WAVE_FORMAT_UNSPECIFIED = 0;
     public static final short WAVE_FORMAT_PCM = 1;
@@ -60,6 +62,10 @@ public class WaveTool {
     public static final int MIN_FMT_CHUNK_LENGTH = 14;
     public static final int MIN_DATA_OFFSET = 12 + 8 + MIN_FMT_CHUNK_LENGTH + 8;
     public static final int MIN_FACT_CHUNK_LENGTH = 4;
+    // riff size, data size and sample count
+    public static final int MIN_DS64_CHUNK_LENGTH = 24;
+    // chunk size of RF64 files that is given in the ds64 chunk
+    public static final long RF64_SIZE_IN_DS64 = 0xFFFFFFFFL;
 
     // we always write the sample size in bits and the length of extra bytes.
     // There are programs (CoolEdit) that rely on the
@@ -20,17 +20,21 @@ package org.tritonus.share.sampled;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
 
 import org.tritonus.sampled.file.AiffAudioOutputStream;
 import org.tritonus.sampled.file.AuAudioOutputStream;
 import org.tritonus.sampled.file.WaveAudioOutputStream;
+import org.tritonus.share.sampled.file.AudioFileSniffer;
 import org.tritonus.share.sampled.file.AudioOutputStream;
 import org.tritonus.share.sampled.file.TDataOutputStream;
+import org.tritonus.share.sampled.file.TFileChannelDataOutputStream;
 import org.tritonus.share.sampled.file.TNonSeekableDataOutputStream;
-import org.tritonus.share.sampled.file.TSeekableDataOutputStream;
 
 
 /**
@@ -42,7 +46,7 @@ public class AudioSystemShadow {
 
     public static TDataOutputStream getDataOutputStream(File file)
             throws IOException {
-        return new TSeekableDataOutputStream(file);
+        return new TFileChannelDataOutputStream(file);
     }
 
     public static TDataOutputStream getDataOutputStream(OutputStream stream)
@@ -78,6 +82,41 @@ public class AudioSystemShadow {
         AudioOutputStream audioOutputStream = getAudioOutputStream(type, audioFormat, lLengthInBytes, dataOutputStream);
         return audioOutputStream;
     }
+
+    /**
+     * Like AudioSystem.getAudioFileFormat(), but the header is read
+     * only once to select the readers to try (see AudioFileSniffer).
+     */
+    public static AudioFileFormat getAudioFileFormat(InputStream inputStream)
+            throws UnsupportedAudioFileException, IOException {
+        return SnifferHolder.SNIFFER.getAudioFileFormat(inputStream);
+    }
+
+    public static AudioFileFormat getAudioFileFormat(File file)
+            throws UnsupportedAudioFileException, IOException {
+        return SnifferHolder.SNIFFER.getAudioFileFormat(file);
+    }
+
+    /**
+     * Like AudioSystem.getAudioInputStream(), but the header is read
+     * only once to select the readers to try (see AudioFileSniffer).
+     */
+    public static AudioInputStream getAudioInputStream(InputStream inputStream)
+            throws UnsupportedAudioFileException, IOException {
+        return SnifferHolder.SNIFFER.getAudioInputStream(inputStream);
+    }
+
+    public static AudioInputStream getAudioInputStream(File file)
+            throws UnsupportedAudioFileException, IOException {
+        return SnifferHolder.SNIFFER.getAudioInputStream(file);
+    }
+
+    /**
+     * The providers are looked up on first use.
+     */
+    private static class SnifferHolder {
+        private static final AudioFileSniffer SNIFFER = new AudioFileSniffer();
+    }
 }
 
 /* AudioSystemShadow.java */
@@ -0,0 +1,665 @@
+/*
+ * TranscodingEngine.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.share.sampled;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.sound.sampled.spi.AudioFileWriter;
+import javax.sound.sampled.spi.FormatConversionProvider;
+
+import org.tritonus.share.TDebug;
+
+
+/**
+ * Converts audio files in parallel.
+ * <p>
+ * Each job reads a file with {@link AudioSystemShadow#getAudioInputStream(File)},
+ * converts it to a target format with the installed
+ * FormatConversionProviders and writes it with an installed
+ * AudioFileWriter. Jobs run on a ForkJoinPool with a fixed number of
+ * threads. The providers and writers are looked up once when the
+ * engine is created and shared by all jobs, so they have to be
+ * thread-safe, as the Tritonus ones are.
+ * <p>
+ * Data is pulled through the conversion chain by the writer one buffer
+ * at a time, so a job never reads ahead of what it has written.
+ * {@link #submit} blocks while the maximum number of pending jobs is
+ * reached, so that a producer cannot queue an unbounded number of
+ * jobs.
+ * <p>
+ * The engine counts the files, bytes and seconds of audio processed;
+ * see {@link #getFilesPerSecond}, {@link #getMegabytesPerSecond} and
+ * {@link #getRealtimeFactor}.
+ */
+public class TranscodingEngine {
+    private final ForkJoinPool m_pool;
+    private final Semaphore m_pendingJobs;
+    private final Set<Job> m_activeJobs = ConcurrentHashMap.newKeySet();
+    private final List<FormatConversionProvider> m_conversionProviders;
+    private final List<AudioFileWriter> m_fileWriters;
+
+    private final LongAdder m_completedFiles = new LongAdder();
+    private final LongAdder m_failedFiles = new LongAdder();
+    private final LongAdder m_bytesRead = new LongAdder();
+    private final LongAdder m_bytesWritten = new LongAdder();
+    // in microseconds
+    private final LongAdder m_audioLength = new LongAdder();
+    private final AtomicLong m_lStartTime = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong m_lEndTime = new AtomicLong(Long.MIN_VALUE);
+
+
+    /**
+     * Create an engine with one thread per processor.
+     */
+    public TranscodingEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+     * @param nThreads the number of jobs run at the same time. Up to
+     *                 four times as many jobs may be pending.
+     */
+    public TranscodingEngine(int nThreads) {
+        this(nThreads, nThreads * 4);
+    }
+
+
+    /**
+     * @param nThreads         the number of jobs run at the same time
+     * @param nMaxPendingJobs  the number of submitted jobs that are
+     *                         not finished, above which submit() blocks
+     */
+    public TranscodingEngine(int nThreads, int nMaxPendingJobs) {
+        if (nThreads < 1 || nMaxPendingJobs < 1) {
+            throw new IllegalArgumentException("number of threads and jobs must be positive");
+        }
+        m_pool = new ForkJoinPool(nThreads);
+        m_pendingJobs = new Semaphore(nMaxPendingJobs);
+        m_conversionProviders = load(FormatConversionProvider.class);
+        m_fileWriters = load(AudioFileWriter.class);
+    }
+
+
+    /**
+     * Convert a file, keeping its audio format.
+     *
+     * @see #submit(File, File, AudioFileFormat.Type, AudioFormat, Listener)
+     */
+    public Job submit(File source, File target, AudioFileFormat.Type fileType)
+            throws InterruptedException {
+        return submit(source, target, fileType, null, null);
+    }
+
+
+    /**
+     * Convert a file. Blocks while the maximum number of pending jobs
+     * is reached.
+     *
+     * @param targetFormat the audio format of the target file, or null
+     *                     to keep the format of the source file. Fields
+     *                     that are AudioSystem.NOT_SPECIFIED are taken
+     *                     from the source format.
+     * @param listener     notified of the progress of the job, or null
+     */
+    public Job submit(File source, File target, AudioFileFormat.Type fileType,
+                      AudioFormat targetFormat, Listener listener)
+            throws InterruptedException {
+        m_pendingJobs.acquire();
+        Job job = new Job(source, target, fileType, targetFormat, listener);
+        m_activeJobs.add(job);
+        try {
+            m_pool.execute(job::run);
+        } catch (RuntimeException e) {
+            m_activeJobs.remove(job);
+            m_pendingJobs.release();
+            throw e;
+        }
+        return job;
+    }
+
+
+    /**
+     * Do not accept new jobs. Submitted jobs are completed.
+     */
+    public void shutdown() {
+        m_pool.shutdown();
+    }
+
+
+    /**
+     * Do not accept new jobs and cancel all jobs that are running or
+     * pending.
+     */
+    public void shutdownNow() {
+        m_pool.shutdown();
+        for (Job job : m_activeJobs) {
+            job.cancel(true);
+        }
+    }
+
+
+    public boolean awaitTermination(long lTimeout, TimeUnit unit)
+            throws InterruptedException {
+        return m_pool.awaitTermination(lTimeout, unit);
+    }
+
+
+    /**
+     * Returns the number of files converted successfully.
+     */
+    public long getCompletedFiles() {
+        return m_completedFiles.sum();
+    }
+
+
+    /**
+     * Returns the number of jobs that failed or were cancelled.
+     */
+    public long getFailedFiles() {
+        return m_failedFiles.sum();
+    }
+
+
+    /**
+     * Returns the total length of the source files converted.
+     */
+    public long getBytesRead() {
+        return m_bytesRead.sum();
+    }
+
+
+    /**
+     * Returns the total length of the target files written.
+     */
+    public long getBytesWritten() {
+        return m_bytesWritten.sum();
+    }
+
+
+    /**
+     * Returns the total duration of the audio converted, in seconds.
+     */
+    public double getAudioSeconds() {
+        return m_audioLength.sum() / 1000000.0;
+    }
+
+
+    /**
+     * Returns the time from the start of the first job to the end of
+     * the last job finished, in seconds.
+     */
+    public double getElapsedSeconds() {
+        long lStart = m_lStartTime.get();
+        long lEnd = m_lEndTime.get();
+        return lEnd > lStart ? (lEnd - lStart) / 1.0E9 : 0.0;
+    }
+
+
+    public double getFilesPerSecond() {
+        return rate(getCompletedFiles());
+    }
+
+
+    /**
+     * Returns the rate of reading the source files in megabytes
+     * (10^6 bytes) per second.
+     */
+    public double getMegabytesPerSecond() {
+        return rate(getBytesRead() / 1.0E6);
+    }
+
+
+    /**
+     * Returns the seconds of audio converted per second of elapsed
+     * time.
+     */
+    public double getRealtimeFactor() {
+        return rate(getAudioSeconds());
+    }
+
+
+    private double rate(double dAmount) {
+        double dSeconds = getElapsedSeconds();
+        return dSeconds > 0.0 ? dAmount / dSeconds : 0.0;
+    }
+
+
+    /**
+     * Returns a stream in the target format. The conversion is done
+     * directly if a provider supports it, or else through PCM: decode
+     * to PCM, change sample rate and channels, encode.
+     */
+    private AudioInputStream getConvertedStream(AudioInputStream stream,
+                                                AudioFormat targetFormat) {
+        AudioFormat sourceFormat = stream.getFormat();
+        if (targetFormat == null || sourceFormat.matches(targetFormat)) {
+            return stream;
+        }
+        AudioInputStream converted = convertDirectly(stream, targetFormat);
+        if (converted != null) {
+            return converted;
+        }
+        AudioFormat[] aSteps = new AudioFormat[]{
+                getPCMFormat(sourceFormat, targetFormat.isBigEndian()),
+                getPCMFormat(targetFormat, targetFormat.isBigEndian()),
+                targetFormat};
+        for (AudioFormat stepFormat : aSteps) {
+            if (stream.getFormat().matches(stepFormat)) {
+                continue;
+            }
+            converted = convertDirectly(stream, stepFormat);
+            if (converted == null) {
+                throw new IllegalArgumentException("conversion not supported: "
+                        + sourceFormat + " to " + targetFormat);
+            }
+            stream = converted;
+        }
+        return stream;
+    }
+
+
+    private AudioInputStream convertDirectly(AudioInputStream stream,
+                                             AudioFormat targetFormat) {
+        for (FormatConversionProvider provider : m_conversionProviders) {
+            if (provider.isConversionSupported(targetFormat, stream.getFormat())) {
+                return provider.getAudioInputStream(targetFormat, stream);
+            }
+        }
+        return null;
+    }
+
+
+    private AudioFileWriter getFileWriter(AudioFileFormat.Type fileType,
+                                          AudioInputStream stream) {
+        for (AudioFileWriter writer : m_fileWriters) {
+            if (writer.isFileTypeSupported(fileType, stream)) {
+                return writer;
+            }
+        }
+        throw new IllegalArgumentException("cannot write " + fileType
+                + " files in format " + stream.getFormat());
+    }
+
+
+    /**
+     * Returns the format with the fields that are not specified taken
+     * from the source format.
+     */
+    private static AudioFormat complete(AudioFormat format, AudioFormat sourceFormat) {
+        if (format == null) {
+            return null;
+        }
+        float fSampleRate = specified(format.getSampleRate(), sourceFormat.getSampleRate());
+        int nChannels = specified(format.getChannels(), sourceFormat.getChannels());
+        int nSampleSize = format.getSampleSizeInBits();
+        int nFrameSize = format.getFrameSize();
+        float fFrameRate = format.getFrameRate();
+        if (AudioUtils.isPCM(format)) {
+            nSampleSize = specified(nSampleSize, 16);
+            nFrameSize = specified(nFrameSize, ((nSampleSize + 7) / 8) * nChannels);
+            fFrameRate = specified(fFrameRate, fSampleRate);
+        }
+        return new AudioFormat(format.getEncoding(), fSampleRate, nSampleSize,
+                nChannels, nFrameSize, fFrameRate, format.isBigEndian());
+    }
+
+
+    private static AudioFormat getPCMFormat(AudioFormat format, boolean bBigEndian) {
+        int nSampleSize = AudioUtils.isPCM(format) && format.getSampleSizeInBits() > 8
+                ? format.getSampleSizeInBits() : 16;
+        int nChannels = format.getChannels();
+        return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+                format.getSampleRate(), nSampleSize, nChannels,
+                ((nSampleSize + 7) / 8) * nChannels,
+                format.getSampleRate(), bBigEndian);
+    }
+
+
+    private static int specified(int nValue, int nDefault) {
+        return nValue != AudioSystem.NOT_SPECIFIED ? nValue : nDefault;
+    }
+
+
+    private static float specified(float fValue, float fDefault) {
+        return fValue != AudioSystem.NOT_SPECIFIED ? fValue : fDefault;
+    }
+
+
+    private static <T> List<T> load(Class<T> providerClass) {
+        List<T> providers = new ArrayList<T>();
+        for (T provider : ServiceLoader.load(providerClass)) {
+            providers.add(provider);
+        }
+        return Collections.unmodifiableList(providers);
+    }
+
+
+    /**
+     * Receives notifications about a job. The methods are called in
+     * the thread running the job. If a job is cancelled before it has
+     * started, finished() is called in the thread cancelling it.
+     */
+    public interface Listener {
+        /**
+         * Called after each buffer converted.
+         *
+         * @param lFrames      the number of frames converted so far
+         * @param lTotalFrames the length of the source in frames, or
+         *                     AudioSystem.NOT_SPECIFIED
+         */
+        public void progress(Job job, long lFrames, long lTotalFrames);
+
+
+        /**
+         * Called when the job has ended.
+         *
+         * @param exception null if the file was converted, else the
+         *                  reason of the failure. It is a
+         *                  CancellationException if the job was
+         *                  cancelled; its cause is the exception the
+         *                  conversion ended with, if any.
+         */
+        public void finished(Job job, Throwable exception);
+    }
+
+
+    /**
+     * The conversion of one file. If the job fails or is cancelled
+     * after writing the target file has begun, the target file is
+     * deleted.
+     */
+    public class Job
+            implements Future<Void> {
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int ENDED = 2;
+        private static final int CANCELLED = 3;
+
+        private final File m_source;
+        private final File m_target;
+        private final AudioFileFormat.Type m_fileType;
+        private final AudioFormat m_targetFormat;
+        private final Listener m_listener;
+        private final CompletableFuture<Void> m_result = new CompletableFuture<Void>();
+        private final AtomicInteger m_state = new AtomicInteger(PENDING);
+        private volatile long m_lFrames;
+        // set by the thread running the job
+        private boolean m_bTargetWritten;
+        private long m_lAudioLength;
+
+
+        private Job(File source, File target, AudioFileFormat.Type fileType,
+                    AudioFormat targetFormat, Listener listener) {
+            m_source = source;
+            m_target = target;
+            m_fileType = fileType;
+            m_targetFormat = targetFormat;
+            m_listener = listener;
+        }
+
+
+        public File getSource() {
+            return m_source;
+        }
+
+
+        public File getTarget() {
+            return m_target;
+        }
+
+
+        /**
+         * Returns the number of frames converted so far.
+         */
+        public long getFrames() {
+            return m_lFrames;
+        }
+
+
+        /**
+         * Cancel the job. The job is done when this method returns.
+         * A pending job does not start and no longer counts as pending
+         * for submit(). A running job stops after the current buffer.
+         *
+         * @return false if the job has already ended
+         */
+        public boolean cancel(boolean bMayInterruptIfRunning) {
+            while (true) {
+                int nState = m_state.get();
+                if (nState == ENDED || nState == CANCELLED) {
+                    return false;
+                }
+                if (m_state.compareAndSet(nState, CANCELLED)) {
+                    m_result.cancel(false);
+                    if (nState == PENDING) {
+                        // run() skips the job
+                        end(new CancellationException("cancelled: " + m_source));
+                    }
+                    return true;
+                }
+            }
+        }
+
+
+        public boolean isCancelled() {
+            return m_result.isCancelled();
+        }
+
+
+        public boolean isDone() {
+            return m_result.isDone();
+        }
+
+
+        /**
+         * Wait for the job to end.
+         *
+         * @throws ExecutionException    if the conversion failed. The
+         *                               cause is the exception thrown.
+         * @throws CancellationException if the job was cancelled
+         */
+        public Void get()
+                throws InterruptedException, ExecutionException {
+            return m_result.get();
+        }
+
+
+        public Void get(long lTimeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return m_result.get(lTimeout, unit);
+        }
+
+
+        private void run() {
+            if (!m_state.compareAndSet(PENDING, RUNNING)) {
+                // cancelled before it started
+                return;
+            }
+            m_lStartTime.accumulateAndGet(System.nanoTime(), Math::min);
+            Throwable exception = null;
+            try {
+                convert();
+            } catch (Throwable e) {
+                exception = e;
+            }
+            // cancel() may have succeeded after the conversion, too
+            boolean bCancelled = !m_state.compareAndSet(RUNNING, ENDED);
+            if (bCancelled) {
+                CancellationException cancellation = new CancellationException("cancelled: " + m_source);
+                if (exception != null) {
+                    cancellation.initCause(exception);
+                }
+                exception = cancellation;
+            }
+            try {
+                end(exception);
+            } finally {
+                // a cancelled job has been completed by cancel()
+                if (!bCancelled) {
+                    if (exception == null) {
+                        m_result.complete(null);
+                    } else {
+                        m_result.completeExceptionally(exception);
+                    }
+                }
+            }
+        }
+
+
+        /**
+         * Update the statistics, notify the listener and free the
+         * place of the job.
+         */
+        private void end(Throwable exception) {
+            try {
+                if (exception == null) {
+                    m_completedFiles.increment();
+                    m_bytesRead.add(m_source.length());
+                    m_bytesWritten.add(m_target.length());
+                    m_audioLength.add(m_lAudioLength);
+                } else {
+                    m_failedFiles.increment();
+                    if (m_bTargetWritten) {
+                        m_target.delete();
+                    }
+                    if (TDebug.TraceAllExceptions) {
+                        TDebug.out(exception);
+                    }
+                }
+                m_lEndTime.accumulateAndGet(System.nanoTime(), Math::max);
+                if (m_listener != null) {
+                    try {
+                        m_listener.finished(this, exception);
+                    } catch (RuntimeException e) {
+                        if (TDebug.TraceAllExceptions) {
+                            TDebug.out(e);
+                        }
+                    }
+                }
+            } finally {
+                m_activeJobs.remove(this);
+                m_pendingJobs.release();
+            }
+        }
+
+
+        private void convert()
+                throws IOException, UnsupportedAudioFileException {
+            try (AudioInputStream sourceStream = AudioSystemShadow.getAudioInputStream(m_source)) {
+                AudioFormat targetFormat = complete(m_targetFormat, sourceStream.getFormat());
+                AudioInputStream convertedStream = getConvertedStream(sourceStream, targetFormat);
+                MonitoringStream monitoringStream = new MonitoringStream(this, convertedStream);
+                AudioFileWriter writer = getFileWriter(m_fileType, monitoringStream);
+                checkCancelled();
+                // from here on, a failure leaves a partial target file
+                m_bTargetWritten = true;
+                writer.write(monitoringStream, m_fileType, m_target);
+                AudioFormat format = convertedStream.getFormat();
+                if (format.getFrameRate() > 0) {
+                    m_lAudioLength = (long) (m_lFrames * 1000000.0 / format.getFrameRate());
+                }
+                if (TDebug.TraceAudioFileWriter) {
+                    TDebug.out("TranscodingEngine: " + m_source + " -> " + m_target
+                            + ": " + m_lFrames + " frames");
+                }
+            }
+        }
+
+
+        private void checkCancelled()
+                throws InterruptedIOException {
+            if (m_state.get() == CANCELLED) {
+                throw new InterruptedIOException("cancelled");
+            }
+        }
+
+
+        private void progress(long lFrames, long lTotalFrames) {
+            m_lFrames = lFrames;
+            if (m_listener != null) {
+                m_listener.progress(this, lFrames, lTotalFrames);
+            }
+        }
+    }
+
+
+    /**
+     * Counts the frames read by the writer. Reading fails with an
+     * InterruptedIOException when the job is cancelled.
+     */
+    private static class MonitoringStream
+            extends AudioInputStream {
+        private final Job m_job;
+        private final long m_lTotalFrames;
+        private long m_lFrames;
+
+
+        public MonitoringStream(Job job, AudioInputStream stream) {
+            super(stream, stream.getFormat(), stream.getFrameLength());
+            m_job = job;
+            m_lTotalFrames = stream.getFrameLength();
+        }
+
+
+        @Override
+        public int read(byte[] abData, int nOffset, int nLength)
+                throws IOException {
+            m_job.checkCancelled();
+            int nRead = super.read(abData, nOffset, nLength);
+            if (nRead > 0 && frameSize > 0) {
+                m_lFrames += nRead / frameSize;
+                m_job.progress(m_lFrames, m_lTotalFrames);
+            }
+            return nRead;
+        }
+    }
+}
+
+
+/* TranscodingEngine.java */
@@ -0,0 +1,220 @@
+/*
+ * AudioFileSnifferTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.sound.sampled.spi.AudioFileReader;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.sampled.file.AiffAudioFileReader;
+import org.tritonus.sampled.file.AuAudioFileReader;
+import org.tritonus.sampled.file.WaveAudioFileReader;
+import org.tritonus.sampled.file.WaveChunkIndex;
+import org.tritonus.share.sampled.file.AudioFileSniffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+public class AudioFileSnifferTestCase {
+    private static final int FRAMES = 1000;
+    private static final AudioFormat FORMAT = new AudioFormat(8000.0F, 16, 1, true, true);
+
+
+    @Test
+    public void testWave() throws Exception {
+        check(AudioFileFormat.Type.WAVE, 0);
+    }
+
+
+    @Test
+    public void testAiff() throws Exception {
+        check(AudioFileFormat.Type.AIFF, 1);
+    }
+
+
+    @Test
+    public void testAu() throws Exception {
+        check(AudioFileFormat.Type.AU, 2);
+    }
+
+
+    @Test
+    public void testUnknownFormat() throws Exception {
+        CountingWaveReader wave = new CountingWaveReader();
+        CountingAiffReader aiff = new CountingAiffReader();
+        CountingAuReader au = new CountingAuReader();
+        AudioFileSniffer sniffer = new AudioFileSniffer(Arrays.asList(wave, aiff, au));
+        byte[] abGarbage = new byte[100];
+        assertThrows(UnsupportedAudioFileException.class,
+                () -> sniffer.getAudioInputStream(new ByteArrayInputStream(abGarbage)));
+        // all readers are tried as a fallback
+        assertEquals(1, wave.m_nCalls, "wave calls");
+        assertEquals(1, aiff.m_nCalls, "aiff calls");
+        assertEquals(1, au.m_nCalls, "au calls");
+    }
+
+
+    private static void check(AudioFileFormat.Type type, int nMatching) throws Exception {
+        byte[] abData = new byte[FRAMES * FORMAT.getFrameSize()];
+        for (int i = 0; i < abData.length; i++) {
+            abData[i] = (byte) (i * 3);
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(abData),
+                FORMAT, FRAMES), type, outputStream);
+        byte[] abFile = outputStream.toByteArray();
+
+        CountingWaveReader wave = new CountingWaveReader();
+        CountingAiffReader aiff = new CountingAiffReader();
+        CountingAuReader au = new CountingAuReader();
+        List<AudioFileReader> readers = Arrays.asList(wave, aiff, au);
+        AudioFileSniffer sniffer = new AudioFileSniffer(readers);
+
+        // not markable, so the sniffer has to buffer the header
+        InputStream inputStream = new FilterInputStream(new ByteArrayInputStream(abFile)) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+        AudioInputStream audioInputStream = sniffer.getAudioInputStream(inputStream);
+        assertEquals(FRAMES, audioInputStream.getFrameLength(), "frame length");
+        byte[] abRead = new byte[abData.length];
+        int nRead = 0;
+        while (nRead < abRead.length) {
+            int n = audioInputStream.read(abRead, nRead, abRead.length - nRead);
+            if (n < 0) {
+                break;
+            }
+            nRead += n;
+        }
+        assertEquals(abData.length, nRead, "bytes read");
+        if (audioInputStream.getFormat().isBigEndian() == FORMAT.isBigEndian()) {
+            assertArrayEquals(abData, abRead, "data");
+        }
+
+        File file = File.createTempFile("tritonus", "." + type.getExtension());
+        try {
+            AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(abData),
+                    FORMAT, FRAMES), type, file);
+            AudioFileFormat fileFormat = sniffer.getAudioFileFormat(file);
+            assertEquals(type, fileFormat.getType(), "type");
+        } finally {
+            file.delete();
+        }
+
+        // only the reader recognizing the header has been asked
+        for (int i = 0; i < readers.size(); i++) {
+            assertEquals(i == nMatching ? 2 : 0, ((Counting) readers.get(i)).getCalls(),
+                    "calls of reader " + i);
+        }
+    }
+
+
+    private interface Counting {
+        public int getCalls();
+    }
+
+
+    private static class CountingWaveReader
+            extends WaveAudioFileReader implements Counting {
+        private int m_nCalls;
+
+
+        @Override
+        public int getCalls() {
+            return m_nCalls;
+        }
+
+
+        @Override
+        protected AudioFileFormat getAudioFileFormat(InputStream inputStream, long lFileSizeInBytes)
+                throws UnsupportedAudioFileException, IOException {
+            m_nCalls++;
+            return super.getAudioFileFormat(inputStream, lFileSizeInBytes);
+        }
+
+
+        // files are read through the chunk index
+        @Override
+        protected AudioFileFormat getAudioFileFormat(WaveChunkIndex index, FileChannel channel)
+                throws UnsupportedAudioFileException, IOException {
+            m_nCalls++;
+            return super.getAudioFileFormat(index, channel);
+        }
+    }
+
+
+    private static class CountingAiffReader
+            extends AiffAudioFileReader implements Counting {
+        private int m_nCalls;
+
+
+        @Override
+        public int getCalls() {
+            return m_nCalls;
+        }
+
+
+        @Override
+        protected AudioFileFormat getAudioFileFormat(InputStream inputStream, long lFileSizeInBytes)
+                throws UnsupportedAudioFileException, IOException {
+            m_nCalls++;
+            return super.getAudioFileFormat(inputStream, lFileSizeInBytes);
+        }
+    }
+
+
+    private static class CountingAuReader
+            extends AuAudioFileReader implements Counting {
+        private int m_nCalls;
+
+
+        @Override
+        public int getCalls() {
+            return m_nCalls;
+        }
+
+
+        @Override
+        protected AudioFileFormat getAudioFileFormat(InputStream inputStream, long lFileSizeInBytes)
+                throws UnsupportedAudioFileException, IOException {
+            m_nCalls++;
+            return super.getAudioFileFormat(inputStream, lFileSizeInBytes);
+        }
+    }
+}
+
+
+/* AudioFileSnifferTestCase.java */
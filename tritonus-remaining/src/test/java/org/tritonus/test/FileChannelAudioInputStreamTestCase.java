@@ -0,0 +1,111 @@
+/*
+ * FileChannelAudioInputStreamTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.spi.AudioFileReader;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.sampled.file.AiffAudioFileReader;
+import org.tritonus.sampled.file.AuAudioFileReader;
+import org.tritonus.sampled.file.WaveAudioFileReader;
+import org.tritonus.share.sampled.file.FileChannelAudioInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class FileChannelAudioInputStreamTestCase {
+    private static final int FRAMES = 10000;
+
+
+    @Test
+    public void testWave() throws Exception {
+        check(new WaveAudioFileReader(), AudioFileFormat.Type.WAVE, false);
+    }
+
+
+    @Test
+    public void testAiff() throws Exception {
+        check(new AiffAudioFileReader(), AudioFileFormat.Type.AIFF, true);
+    }
+
+
+    @Test
+    public void testAu() throws Exception {
+        check(new AuAudioFileReader(), AudioFileFormat.Type.AU, true);
+    }
+
+
+    private static void check(AudioFileReader reader, AudioFileFormat.Type type,
+                              boolean bBigEndian) throws Exception {
+        AudioFormat format = new AudioFormat(44100.0F, 16, 2, true, bBigEndian);
+        byte[] abData = new byte[FRAMES * format.getFrameSize()];
+        for (int i = 0; i < abData.length; i++) {
+            abData[i] = (byte) (i * 7 + i / 251);
+        }
+        File file = File.createTempFile("tritonus", "." + type.getExtension());
+        try {
+            AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(abData),
+                    format, FRAMES), type, file);
+            try (AudioInputStream audioInputStream = reader.getAudioInputStream(file)) {
+                assertTrue(audioInputStream instanceof FileChannelAudioInputStream, "stream class");
+                FileChannelAudioInputStream stream = (FileChannelAudioInputStream) audioInputStream;
+                assertEquals(FRAMES, stream.getFrameLength(), "frame length");
+                assertEquals(abData.length, stream.available(), "available");
+
+                byte[] abRead = new byte[abData.length];
+                assertEquals(0, stream.read(abRead, 0, 3), "partial frame");
+                stream.mark(0);
+                assertEquals(abData.length, stream.read(abRead), "read all");
+                assertArrayEquals(abData, abRead, "data");
+                assertEquals(-1, stream.read(abRead), "end of data");
+
+                stream.reset();
+                assertEquals(400, stream.skip(401), "skip");
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1002);
+                assertEquals(1000, stream.read(buffer), "read into buffer");
+                byte[] abBuffer = new byte[1000];
+                buffer.flip();
+                buffer.get(abBuffer);
+                assertArrayEquals(Arrays.copyOfRange(abData, 400, 1400), abBuffer, "buffer data");
+                assertEquals(350, stream.getFramePosition(), "frame position");
+
+                stream.setFramePosition(FRAMES - 2);
+                assertEquals(8, stream.read(abRead), "read at end");
+                assertArrayEquals(Arrays.copyOfRange(abData, abData.length - 8, abData.length),
+                        Arrays.copyOf(abRead, 8), "data at end");
+                assertEquals(0, stream.skip(100), "skip at end");
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
+
+
+/* FileChannelAudioInputStreamTestCase.java */
@@ -0,0 +1,116 @@
+/*
+ * MidiFileFormatCacheTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.midi.file.MidiFileFormatCache;
+import org.tritonus.midi.file.StandardMidiFileWriter;
+import org.tritonus.share.midi.TMidiFileFormat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+public class MidiFileFormatCacheTestCase {
+    @Test
+    public void testCache() throws Exception {
+        File midiFile = File.createTempFile("tritonus", ".mid");
+        File cacheFile = File.createTempFile("tritonus", ".cache");
+        try {
+            byte[] abFile = createFile(480);
+            Files.write(midiFile.toPath(), abFile);
+            cacheFile.delete();
+            MidiFileFormatCache cache = new MidiFileFormatCache(cacheFile);
+            TMidiFileFormat format = cache.getMidiFileFormat(midiFile);
+            assertEquals(480, format.getTickLength(), "tick length");
+            assertEquals(500000, format.getMicrosecondLength(), "microsecond length");
+            assertEquals(abFile.length, format.getByteLength(), "byte length");
+            assertSame(format, cache.getMidiFileFormat(midiFile), "cached");
+            cache.save();
+
+            // same size and time: the file is not read again
+            long lModified = midiFile.lastModified();
+            byte[] abGarbage = new byte[abFile.length];
+            Arrays.fill(abGarbage, (byte) 0x55);
+            Files.write(midiFile.toPath(), abGarbage);
+            midiFile.setLastModified(lModified);
+            cache = new MidiFileFormatCache(cacheFile);
+            assertEquals(1, cache.size(), "entries loaded");
+            format = cache.getMidiFileFormat(midiFile);
+            assertEquals(480, format.getTickLength(), "loaded tick length");
+            assertEquals(500000, format.getMicrosecondLength(), "loaded length");
+            assertEquals(1, format.getTrackCount(), "loaded tracks");
+
+            // changed time: the file is parsed again
+            midiFile.setLastModified(lModified - 10000);
+            final MidiFileFormatCache finalCache = cache;
+            assertThrows(InvalidMidiDataException.class,
+                    () -> finalCache.getMidiFileFormat(midiFile));
+            byte[] abLonger = createFile(960);
+            Files.write(midiFile.toPath(), abLonger);
+            midiFile.setLastModified(lModified - 20000);
+            assertEquals(960, cache.getMidiFileFormat(midiFile).getTickLength(),
+                    "changed file");
+        } finally {
+            midiFile.delete();
+            cacheFile.delete();
+        }
+    }
+
+
+    @Test
+    public void testCorruptCacheFile() throws Exception {
+        File cacheFile = File.createTempFile("tritonus", ".cache");
+        try {
+            Files.write(cacheFile.toPath(), "no cache".getBytes());
+            assertEquals(0, new MidiFileFormatCache(cacheFile).size(), "entries");
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+
+    private static byte[] createFile(long lTicks) throws Exception {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        ShortMessage program = new ShortMessage();
+        program.setMessage(ShortMessage.PROGRAM_CHANGE, 0, 1, 0);
+        track.add(new MidiEvent(program, 0));
+        ShortMessage message = new ShortMessage();
+        message.setMessage(ShortMessage.NOTE_ON, 0, 60, 64);
+        track.add(new MidiEvent(message, lTicks));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new StandardMidiFileWriter().write(sequence, 0, baos);
+        return baos.toByteArray();
+    }
+}
+
+
+/* MidiFileFormatCacheTestCase.java */
@@ -20,12 +20,131 @@
 
 package org.tritonus.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.sampled.convert.PCM2PCMConversionProvider;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 
 public class PCM2PCMConversionProviderTestCase
         extends BaseFormatConversionProviderTestCase {
+    private static final AudioFormat.Encoding PCM_SIGNED = AudioFormat.Encoding.PCM_SIGNED;
+    private static final AudioFormat.Encoding PCM_UNSIGNED = AudioFormat.Encoding.PCM_UNSIGNED;
+
+
     public PCM2PCMConversionProviderTestCase() {
         setResourcePrefix("pcm2pcm");
     }
+
+
+    /**
+     * Conversions without reduction of the sample size must be exact:
+     * sign, byte order, widening and expanding of channels, also combined.
+     */
+    @Test
+    public void testLosslessConversions() throws IOException {
+        AudioFormat[] formats = {
+                createFormat(PCM_UNSIGNED, 8, false), createFormat(PCM_SIGNED, 8, false),
+                createFormat(PCM_SIGNED, 16, false), createFormat(PCM_SIGNED, 16, true),
+                createFormat(PCM_SIGNED, 24, false), createFormat(PCM_SIGNED, 24, true),
+                createFormat(PCM_SIGNED, 32, false), createFormat(PCM_SIGNED, 32, true),
+        };
+        int[][] channels = {{1, 1}, {2, 2}, {1, 2}, {1, 3}};
+        PCM2PCMConversionProvider provider = new PCM2PCMConversionProvider();
+        for (AudioFormat source : formats) {
+            for (AudioFormat target : formats) {
+                if (source.getSampleSizeInBits() > target.getSampleSizeInBits()) {
+                    continue;
+                }
+                for (int[] channel : channels) {
+                    AudioFormat sourceFormat = withChannels(source, channel[0]);
+                    AudioFormat targetFormat = withChannels(target, channel[1]);
+                    String message = sourceFormat + " -> " + targetFormat;
+                    int frames = 300;
+                    byte[] abSource = new byte[frames * sourceFormat.getFrameSize()];
+                    for (int i = 0; i < abSource.length; i++) {
+                        abSource[i] = (byte) (i * 37 + i / 7);
+                    }
+                    AudioInputStream stream = provider.getAudioInputStream(
+                            targetFormat, new AudioInputStream(
+                                    new ByteArrayInputStream(abSource),
+                                    sourceFormat, frames));
+                    assertEquals(targetFormat.getFrameSize(),
+                            stream.getFormat().getFrameSize(), message);
+                    assertArrayEquals(convert(abSource, sourceFormat, targetFormat),
+                            read(stream), message);
+                }
+            }
+        }
+    }
+
+
+    private static AudioFormat createFormat(AudioFormat.Encoding encoding,
+                                            int nBits, boolean bBigEndian) {
+        return new AudioFormat(encoding, 44100.0F, nBits, 1, nBits / 8,
+                44100.0F, bBigEndian);
+    }
+
+
+    private static AudioFormat withChannels(AudioFormat format, int nChannels) {
+        return new AudioFormat(format.getEncoding(), format.getSampleRate(),
+                format.getSampleSizeInBits(), nChannels,
+                nChannels * format.getSampleSizeInBits() / 8,
+                format.getFrameRate(), format.isBigEndian());
+    }
+
+
+    /**
+     * Reference conversion, sample by sample, over a 32 bit value.
+     */
+    private static byte[] convert(byte[] abSource, AudioFormat sourceFormat,
+                                  AudioFormat targetFormat) {
+        int nSourceBytes = sourceFormat.getSampleSizeInBits() / 8;
+        int nTargetBytes = targetFormat.getSampleSizeInBits() / 8;
+        int nCopies = targetFormat.getChannels() / sourceFormat.getChannels();
+        int nSamples = abSource.length / nSourceBytes;
+        byte[] abTarget = new byte[nSamples * nCopies * nTargetBytes];
+        int nOut = 0;
+        for (int nSample = 0; nSample < nSamples; nSample++) {
+            int nValue = 0;
+            for (int i = 0; i < nSourceBytes; i++) {
+                int nIndex = sourceFormat.isBigEndian() ? i : nSourceBytes - 1 - i;
+                nValue |= (abSource[nSample * nSourceBytes + nIndex] & 0xFF) << (24 - 8 * i);
+            }
+            if (sourceFormat.getEncoding().equals(PCM_UNSIGNED)) {
+                nValue ^= 0x80000000;
+            }
+            if (targetFormat.getEncoding().equals(PCM_UNSIGNED)) {
+                nValue ^= 0x80000000;
+            }
+            for (int nCopy = 0; nCopy < nCopies; nCopy++) {
+                for (int i = 0; i < nTargetBytes; i++) {
+                    int nShift = targetFormat.isBigEndian() ? 24 - 8 * i
+                            : 24 - 8 * (nTargetBytes - 1 - i);
+                    abTarget[nOut++] = (byte) (nValue >> nShift);
+                }
+            }
+        }
+        return abTarget;
+    }
+
+
+    private static byte[] read(AudioInputStream stream) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] abBuffer = new byte[333];
+        int nRead;
+        while ((nRead = stream.read(abBuffer)) > 0) {
+            baos.write(abBuffer, 0, nRead);
+        }
+        return baos.toByteArray();
+    }
 }
 
 
@@ -0,0 +1,207 @@
+/*
+ * SampleRateConverterStreamTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test;
+
+import java.io.ByteArrayInputStream;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.sampled.convert.SampleRateConversionProvider.SampleRateConverterStream;
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class SampleRateConverterStreamTestCase {
+    private static final float SOURCE_SECONDS = 0.5f;
+
+
+    /**
+     * A sine well below both Nyquist frequencies must come out unchanged,
+     * in amplitude and phase.
+     */
+    @Test
+    public void testSine() {
+        float[][] rates = {
+                {44100, 48000}, {48000, 44100}, {48000, 16000},
+                {16000, 48000}, {44100, 22050}, {44100, 8000},
+                {44100, 11000}, {22050, 44100.5f},
+        };
+        int[] qualities = {
+                SampleRateConverterStream.RESAMPLE_QUALITY_LOW,
+                SampleRateConverterStream.RESAMPLE_QUALITY_MEDIUM,
+                SampleRateConverterStream.RESAMPLE_QUALITY_HIGH,
+        };
+        for (float[] rate : rates) {
+            for (int quality : qualities) {
+                float frequency = 1000.0f;
+                float[] output = convert(rate[0], rate[1], frequency, quality);
+                String message = rate[0] + " -> " + rate[1] + ", quality " + quality;
+                int expectedLength = (int) (SOURCE_SECONDS * rate[1]);
+                assertTrue(output.length > expectedLength * 0.9
+                        && output.length <= expectedLength + 1,
+                        "length " + output.length + ": " + message);
+                double maxError = 0.0;
+                // skip the beginning, where the history is silence, and the
+                // end, where the filter reaches into the silence after it
+                for (int i = output.length / 4; i < output.length * 7 / 8; i++) {
+                    double expected = 0.5 * Math.sin(2 * Math.PI * frequency * i / rate[1]);
+                    maxError = Math.max(maxError, Math.abs(output[i] - expected));
+                }
+                assertTrue(maxError < 0.005, "error " + maxError + ": " + message);
+            }
+        }
+    }
+
+
+    /**
+     * A sine above the target Nyquist frequency must be suppressed. Linear
+     * interpolation lets it through as an alias.
+     */
+    @Test
+    public void testAliasing() {
+        float frequency = 6000.0f;
+        float[] output = convert(44100, 8000, frequency,
+                SampleRateConverterStream.RESAMPLE_QUALITY_MEDIUM);
+        assertTrue(getRms(output) < 0.001, "rms resampled: " + getRms(output));
+        output = convert(44100, 8000, frequency, 0);
+        assertTrue(getRms(output) > 0.1, "rms linear: " + getRms(output));
+    }
+
+
+    /**
+     * All source frames are converted: the output has the length announced
+     * by getFrameLength(). The source lengths convert to whole frames.
+     */
+    @Test
+    public void testFrameLength() throws Exception {
+        float[][] rates = {
+                {44100, 48000}, {48000, 44100}, {48000, 16000},
+                {16000, 48000}, {44100, 22050}, {22050, 44100},
+        };
+        int[] qualities = {
+                0,
+                SampleRateConverterStream.RESAMPLE_QUALITY_LOW,
+                SampleRateConverterStream.RESAMPLE_QUALITY_MEDIUM,
+                SampleRateConverterStream.RESAMPLE_QUALITY_HIGH,
+        };
+        for (float[] rate : rates) {
+            for (int quality : qualities) {
+                SampleRateConverterStream stream = createStream(rate[0],
+                        rate[1], 1000.0f);
+                if (quality != 0) {
+                    stream.setConversionAlgorithm(SampleRateConverterStream.RESAMPLE);
+                    stream.setResampleQuality(quality);
+                }
+                String message = rate[0] + " -> " + rate[1] + ", quality " + quality;
+                assertEquals((long) (SOURCE_SECONDS * rate[1]),
+                        stream.getFrameLength(), "frame length: " + message);
+                long frames = 0;
+                byte[] abData = new byte[1000 * stream.getFormat().getFrameSize()];
+                int read;
+                while ((read = stream.read(abData)) > 0) {
+                    frames += read / stream.getFormat().getFrameSize();
+                }
+                assertEquals(stream.getFrameLength(), frames,
+                        "frames read: " + message);
+            }
+        }
+    }
+
+
+    @Test
+    public void testConversionAlgorithm() {
+        SampleRateConverterStream stream = createStream(44100, 48000, 1000);
+        stream.setConversionAlgorithm(SampleRateConverterStream.RESAMPLE);
+        assertEquals(SampleRateConverterStream.RESAMPLE,
+                stream.getConversionAlgorithm(), "algorithm");
+        stream.setResampleQuality(SampleRateConverterStream.RESAMPLE_QUALITY_HIGH);
+        assertEquals(SampleRateConverterStream.RESAMPLE_QUALITY_HIGH,
+                stream.getResampleQuality(), "quality");
+        stream.setResampleQuality(17);
+        assertEquals(SampleRateConverterStream.RESAMPLE_QUALITY_HIGH,
+                stream.getResampleQuality(), "invalid quality ignored");
+    }
+
+
+    /**
+     * Converts a mono sine with amplitude 0.5 and returns the output,
+     * read in odd block sizes. Quality 0 means linear interpolation.
+     */
+    private static float[] convert(float sourceRate, float targetRate,
+                                   float frequency, int quality) {
+        SampleRateConverterStream stream = createStream(sourceRate, targetRate,
+                frequency);
+        if (quality != 0) {
+            stream.setConversionAlgorithm(SampleRateConverterStream.RESAMPLE);
+            stream.setResampleQuality(quality);
+        }
+        float[] output = new float[(int) (SOURCE_SECONDS * targetRate) + 10];
+        int length = 0;
+        FloatSampleBuffer buffer = new FloatSampleBuffer(1, 0, targetRate);
+        while (!stream.isDone()) {
+            buffer.changeSampleCount(Math.min(777, output.length - length), false);
+            stream.read(buffer);
+            System.arraycopy(buffer.getChannel(0), 0, output, length,
+                    buffer.getSampleCount());
+            length += buffer.getSampleCount();
+            if (buffer.getSampleCount() == 0) {
+                break;
+            }
+        }
+        float[] result = new float[length];
+        System.arraycopy(output, 0, result, 0, length);
+        return result;
+    }
+
+
+    private static SampleRateConverterStream createStream(float sourceRate,
+                                                          float targetRate, float frequency) {
+        AudioFormat sourceFormat = new AudioFormat(sourceRate, 16, 1, true, false);
+        int frames = (int) (SOURCE_SECONDS * sourceRate);
+        FloatSampleBuffer source = new FloatSampleBuffer(1, frames, sourceRate);
+        float[] samples = source.getChannel(0);
+        for (int i = 0; i < frames; i++) {
+            samples[i] = (float) (0.5 * Math.sin(2 * Math.PI * frequency * i / sourceRate));
+        }
+        source.setDitherMode(FloatSampleBuffer.DITHER_MODE_OFF);
+        byte[] abData = source.convertToByteArray(sourceFormat);
+        AudioInputStream sourceStream = new AudioInputStream(
+                new ByteArrayInputStream(abData), sourceFormat, frames);
+        AudioFormat targetFormat = new AudioFormat(targetRate, 16, 1, true, false);
+        return new SampleRateConverterStream(sourceStream, targetFormat);
+    }
+
+
+    private static double getRms(float[] samples) {
+        double sum = 0.0;
+        // skip the beginning and the end of the source
+        int start = samples.length / 4;
+        int end = samples.length * 7 / 8;
+        for (int i = start; i < end; i++) {
+            sum += samples[i] * samples[i];
+        }
+        return Math.sqrt(sum / (end - start));
+    }
+}
+
+
+/* SampleRateConverterStreamTestCase.java */
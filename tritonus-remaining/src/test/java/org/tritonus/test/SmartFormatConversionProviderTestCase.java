@@ -0,0 +1,176 @@
+/*
+ * SmartFormatConversionProviderTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.spi.FormatConversionProvider;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.sampled.convert.LawDecoder;
+import org.tritonus.sampled.convert.LawEncoder;
+import org.tritonus.sampled.convert.PCM2PCMConversionProvider;
+import org.tritonus.sampled.convert.SmartFormatConversionProvider;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class SmartFormatConversionProviderTestCase {
+    private static final AudioFormat ULAW = new AudioFormat(
+            AudioFormat.Encoding.ULAW, 8000.0F, 8, 1, 1, 8000.0F, false);
+    private static final AudioFormat PCM16 = new AudioFormat(
+            8000.0F, 16, 1, true, true);
+    private static final AudioFormat PCM24 = new AudioFormat(
+            8000.0F, 24, 1, true, true);
+    private static final AudioFormat ALAW = new AudioFormat(
+            AudioFormat.Encoding.ALAW, 8000.0F, 8, 1, 1, 8000.0F, false);
+
+
+    @Test
+    public void testDirectConversion() {
+        SmartFormatConversionProvider provider = createProvider();
+        assertTrue(provider.isConversionSupported(PCM16, ULAW), "ulaw -> pcm16");
+        assertTrue(provider.isConversionSupported(ALAW, PCM16), "pcm16 -> alaw");
+    }
+
+
+    @Test
+    public void testChain() throws IOException {
+        SmartFormatConversionProvider provider = createProvider();
+        assertTrue(provider.isConversionSupported(PCM24, ULAW), "ulaw -> pcm24");
+        assertTrue(provider.isConversionSupported(ALAW, PCM24), "pcm24 -> alaw");
+
+        byte[] abUlaw = new byte[256];
+        for (int i = 0; i < abUlaw.length; i++) {
+            abUlaw[i] = (byte) i;
+        }
+        AudioInputStream stream = provider.getAudioInputStream(PCM24,
+                createStream(abUlaw, ULAW));
+        assertEquals(24, stream.getFormat().getSampleSizeInBits(), "sample size");
+        assertTrue(stream.getFormat().isBigEndian(), "big endian");
+        byte[] abActual = read(stream);
+
+        // the same conversion, chained by hand
+        AudioInputStream expected = new LawDecoder().getAudioInputStream(PCM16,
+                createStream(abUlaw, ULAW));
+        expected = new PCM2PCMConversionProvider().getAudioInputStream(PCM24,
+                expected);
+        assertArrayEquals(read(expected), abActual, "chained data");
+    }
+
+
+    @Test
+    public void testEncodingTargets() {
+        SmartFormatConversionProvider provider = createProvider();
+        assertTrue(Arrays.asList(provider.getTargetEncodings(PCM24))
+                .contains(AudioFormat.Encoding.ULAW), "target encodings");
+        assertTrue(provider.isConversionSupported(AudioFormat.Encoding.ALAW, PCM24),
+                "encoding");
+        AudioFormat[] formats = provider.getTargetFormats(
+                AudioFormat.Encoding.PCM_SIGNED, ULAW);
+        boolean bFound = false;
+        for (AudioFormat format : formats) {
+            bFound |= format.getSampleSizeInBits() == 32;
+        }
+        assertTrue(bFound, "32 bit reachable");
+    }
+
+
+    @Test
+    public void testUnsupported() {
+        SmartFormatConversionProvider provider = createProvider();
+        AudioFormat gsm = new AudioFormat(new AudioFormat.Encoding("GSM0610"),
+                8000.0F, -1, 1, 33, 50.0F, false);
+        assertFalse(provider.isConversionSupported(gsm, PCM16), "pcm -> gsm");
+        assertThrows(IllegalArgumentException.class,
+                () -> provider.getAudioInputStream(gsm,
+                        createStream(new byte[2], PCM16)));
+    }
+
+
+    @Test
+    public void testCacheAndInvalidation() {
+        AtomicInteger calls = new AtomicInteger();
+        FormatConversionProvider decoder = new CountingLawDecoder(calls);
+        SmartFormatConversionProvider provider = new SmartFormatConversionProvider(
+                Arrays.asList(decoder, new PCM2PCMConversionProvider()));
+        assertTrue(provider.isConversionSupported(PCM24, ULAW), "first");
+        int nCalls = calls.get();
+        assertTrue(nCalls > 0, "searched");
+        assertTrue(provider.isConversionSupported(PCM24, ULAW), "cached");
+        assertEquals(nCalls, calls.get(), "no search for cached result");
+
+        provider.setFormatConversionProviders(Collections.singletonList(
+                new PCM2PCMConversionProvider()));
+        assertFalse(provider.isConversionSupported(PCM24, ULAW), "after change");
+    }
+
+
+    private static SmartFormatConversionProvider createProvider() {
+        return new SmartFormatConversionProvider(Arrays.asList(
+                new LawDecoder(), new LawEncoder(),
+                new PCM2PCMConversionProvider()));
+    }
+
+
+    private static AudioInputStream createStream(byte[] abData, AudioFormat format) {
+        return new AudioInputStream(new ByteArrayInputStream(abData), format,
+                abData.length / format.getFrameSize());
+    }
+
+
+    private static byte[] read(AudioInputStream stream) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] abBuffer = new byte[1000];
+        int nRead;
+        while ((nRead = stream.read(abBuffer)) > 0) {
+            baos.write(abBuffer, 0, nRead);
+        }
+        return baos.toByteArray();
+    }
+
+
+    private static class CountingLawDecoder extends LawDecoder {
+        private final AtomicInteger m_calls;
+
+        CountingLawDecoder(AtomicInteger calls) {
+            m_calls = calls;
+        }
+
+        @Override
+        public AudioFormat[] getTargetFormats(AudioFormat.Encoding targetEncoding,
+                                              AudioFormat sourceFormat) {
+            m_calls.incrementAndGet();
+            return super.getTargetFormats(targetEncoding, sourceFormat);
+        }
+    }
+}
+
+
+/* SmartFormatConversionProviderTestCase.java */
@@ -0,0 +1,291 @@
+/*
+ * StandardMidiFileReaderTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiFileFormat;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.midi.file.StandardMidiFileParser;
+import org.tritonus.midi.file.StandardMidiFileReader;
+import org.tritonus.midi.file.StandardMidiFileWriter;
+import org.tritonus.share.midi.TMidiFileFormat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+public class StandardMidiFileReaderTestCase {
+    @Test
+    public void testInputStreamAndFile() throws Exception {
+        Sequence sequence = createSequence(3, 200);
+        byte[] abFile = write(sequence);
+        StandardMidiFileReader reader = new StandardMidiFileReader();
+        checkEquals(sequence, reader.getSequence(new ByteArrayInputStream(abFile)));
+
+        File file = File.createTempFile("tritonus", ".mid");
+        try {
+            Files.write(file.toPath(), abFile);
+            checkEquals(sequence, reader.getSequence(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    @Test
+    public void testLargeFile() throws Exception {
+        // large enough to be mapped and parsed in parallel
+        Sequence sequence = createSequence(6, 30000);
+        byte[] abFile = write(sequence);
+        File file = File.createTempFile("tritonus", ".mid");
+        try {
+            Files.write(file.toPath(), abFile);
+            checkEquals(sequence, new StandardMidiFileReader().getSequence(file));
+
+            CountingVisitor parallel = new CountingVisitor();
+            new StandardMidiFileParser(true).parse(file, parallel);
+            CountingVisitor sequential = new CountingVisitor();
+            new StandardMidiFileParser(false).parse(ByteBuffer.wrap(abFile), sequential);
+            assertEquals(sequential.m_events.get(), parallel.m_events.get(), "events");
+            assertEquals(sequential.m_checksum.get(), parallel.m_checksum.get(), "checksum");
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    @Test
+    public void testFileFormat() throws Exception {
+        Sequence sequence = createSequence(3, 200);
+        byte[] abFile = write(sequence);
+        File file = File.createTempFile("tritonus", ".mid");
+        try {
+            Files.write(file.toPath(), abFile);
+            MidiFileFormat format = new StandardMidiFileReader().getMidiFileFormat(file);
+            assertEquals(1, format.getType(), "type");
+            assertEquals(96, format.getResolution(), "resolution");
+            assertEquals(abFile.length, format.getByteLength(), "byte length");
+            assertEquals(3, ((TMidiFileFormat) format).getTrackCount(), "tracks");
+
+            // the header announces a fourth track
+            abFile[11] = 4;
+            Files.write(file.toPath(), abFile);
+            assertThrows(EOFException.class,
+                    () -> StandardMidiFileParser.readFileFormat(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    @Test
+    public void testFileFormatWithLength() throws Exception {
+        Sequence sequence = createSequence(3, 200);
+        sequence.getTracks()[0].add(new MidiEvent(createTempoMessage(1000000), 96));
+        sequence.getTracks()[0].add(new MidiEvent(createTempoMessage(250000), 384));
+        TMidiFileFormat format = new StandardMidiFileParser().readFileFormatWithLength(
+                ByteBuffer.wrap(write(sequence)));
+        assertEquals(sequence.getTickLength(), format.getTickLength(), "tick length");
+        assertEquals(sequence.getMicrosecondLength(), format.getMicrosecondLength(),
+                "microsecond length");
+
+        byte[] abFile = createFile(0xE728, new byte[]{0, (byte) 0x90, 60, 100,
+                (byte) 0x81, 0x48, (byte) 0xFF, 0x2F, 0});
+        format = new StandardMidiFileParser().readFileFormatWithLength(
+                ByteBuffer.wrap(abFile));
+        assertEquals(200, format.getTickLength(), "SMPTE tick length");
+        assertEquals(200000, format.getMicrosecondLength(), "SMPTE length");
+    }
+
+
+    @Test
+    public void testRunningStatus() throws Exception {
+        byte[] abFile = createFile(0x60, new byte[]{
+                0, (byte) 0x90, 60, 100,
+                10, 62, 101,                  // running status
+                0, (byte) 0xC1, 5,            // program change
+                5, 6,                         // running status, one data byte
+                0, (byte) 0xFF, 0x2F, 0});
+        Sequence sequence = new StandardMidiFileReader().getSequence(
+                new ByteArrayInputStream(abFile));
+        Track track = sequence.getTracks()[0];
+        assertEquals(5, track.size(), "events");
+        checkShortMessage(track.get(1), 10, 0x90, 62, 101);
+        checkShortMessage(track.get(3), 15, 0xC1, 6, 0);
+    }
+
+
+    @Test
+    public void testSmpteDivision() throws Exception {
+        byte[] abFile = createFile(0xE728, new byte[]{0, (byte) 0xFF, 0x2F, 0});
+        MidiFileFormat format = new StandardMidiFileReader().getMidiFileFormat(
+                new ByteArrayInputStream(abFile));
+        assertEquals(Sequence.SMPTE_25, format.getDivisionType(), "division type");
+        assertEquals(40, format.getResolution(), "resolution");
+    }
+
+
+    @Test
+    public void testCorruptFiles() {
+        final StandardMidiFileReader reader = new StandardMidiFileReader();
+        // status byte missing
+        final byte[] abNoStatus = createFile(0x60, new byte[]{0, 60, 100});
+        assertThrows(InvalidMidiDataException.class, () -> reader.getSequence(
+                new ByteArrayInputStream(abNoStatus)));
+        // event exceeds the track chunk
+        final byte[] abTruncated = createFile(0x60, new byte[]{0, (byte) 0x90, 60});
+        assertThrows(IOException.class, () -> reader.getSequence(
+                new ByteArrayInputStream(abTruncated)));
+        final byte[] abNoMidi = "RIFF....WAVEfmt ".getBytes();
+        assertThrows(InvalidMidiDataException.class, () -> reader.getSequence(
+                new ByteArrayInputStream(abNoMidi)));
+    }
+
+
+    private static Sequence createSequence(int nTracks, int nEvents)
+            throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, 96);
+        for (int nTrack = 0; nTrack < nTracks; nTrack++) {
+            Track track = sequence.createTrack();
+            MetaMessage name = new MetaMessage();
+            byte[] abName = ("track " + nTrack).getBytes();
+            name.setMessage(3, abName, abName.length);
+            track.add(new MidiEvent(name, 0));
+            SysexMessage sysex = new SysexMessage();
+            byte[] abSysex = {(byte) 0xF0, 0x7E, 0x7F, 0x09, 0x01, (byte) 0xF7};
+            sysex.setMessage(abSysex, abSysex.length);
+            track.add(new MidiEvent(sysex, 0));
+            for (int i = 0; i < nEvents; i++) {
+                ShortMessage message = new ShortMessage();
+                if (i % 10 == 0) {
+                    message.setMessage(ShortMessage.PROGRAM_CHANGE, nTrack, i % 128, 0);
+                } else {
+                    message.setMessage(ShortMessage.NOTE_ON, nTrack, i % 128, (i * 7) % 128);
+                }
+                track.add(new MidiEvent(message, i * (nTrack + 1)));
+            }
+        }
+        return sequence;
+    }
+
+
+    private static MetaMessage createTempoMessage(int nTempoInMPQ)
+            throws InvalidMidiDataException {
+        byte[] abData = {(byte) (nTempoInMPQ >> 16), (byte) (nTempoInMPQ >> 8),
+                (byte) nTempoInMPQ};
+        MetaMessage message = new MetaMessage();
+        message.setMessage(0x51, abData, abData.length);
+        return message;
+    }
+
+
+    private static byte[] write(Sequence sequence) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new StandardMidiFileWriter().write(sequence, 1, baos);
+        return baos.toByteArray();
+    }
+
+
+    /**
+     * Creates a type 0 file with one track chunk.
+     */
+    private static byte[] createFile(int nDivision, byte[] abTrack) {
+        ByteBuffer buffer = ByteBuffer.allocate(22 + abTrack.length);
+        buffer.putInt(0x4d546864).putInt(6).putShort((short) 0)
+                .putShort((short) 1).putShort((short) nDivision);
+        buffer.putInt(0x4d54726b).putInt(abTrack.length).put(abTrack);
+        return buffer.array();
+    }
+
+
+    private static void checkEquals(Sequence expected, Sequence actual) {
+        assertEquals(expected.getDivisionType(), actual.getDivisionType(), "division type");
+        assertEquals(expected.getResolution(), actual.getResolution(), "resolution");
+        Track[] aExpected = expected.getTracks();
+        Track[] aActual = actual.getTracks();
+        assertEquals(aExpected.length, aActual.length, "tracks");
+        for (int nTrack = 0; nTrack < aExpected.length; nTrack++) {
+            assertEquals(aExpected[nTrack].size(), aActual[nTrack].size(), "track size");
+            for (int i = 0; i < aExpected[nTrack].size(); i++) {
+                MidiEvent expectedEvent = aExpected[nTrack].get(i);
+                MidiEvent actualEvent = aActual[nTrack].get(i);
+                String strMessage = "track " + nTrack + ", event " + i;
+                assertEquals(expectedEvent.getTick(), actualEvent.getTick(), strMessage);
+                assertArrayEquals(expectedEvent.getMessage().getMessage(),
+                        actualEvent.getMessage().getMessage(), strMessage);
+            }
+        }
+    }
+
+
+    private static void checkShortMessage(MidiEvent event, long lTick,
+                                          int nStatus, int nData1, int nData2) {
+        assertEquals(lTick, event.getTick(), "tick");
+        MidiMessage message = event.getMessage();
+        ShortMessage shortMessage = (ShortMessage) message;
+        assertEquals(nStatus, shortMessage.getStatus(), "status");
+        assertEquals(nData1, shortMessage.getData1(), "data1");
+        assertEquals(nData2, shortMessage.getData2(), "data2");
+    }
+
+
+    private static class CountingVisitor
+            implements StandardMidiFileParser.Visitor {
+        private final AtomicLong m_events = new AtomicLong();
+        private final AtomicLong m_checksum = new AtomicLong();
+
+        public void shortMessage(int nTrack, long lTick, int nStatus,
+                                 int nData1, int nData2) {
+            add(nTrack, lTick, nStatus ^ (nData1 << 8) ^ (nData2 << 16));
+        }
+
+        public void sysexMessage(int nTrack, long lTick, int nStatus, byte[] abData) {
+            add(nTrack, lTick, nStatus + abData.length);
+        }
+
+        public void metaMessage(int nTrack, long lTick, int nType, byte[] abData) {
+            add(nTrack, lTick, nType + abData.length);
+        }
+
+        private void add(int nTrack, long lTick, int nValue) {
+            m_events.incrementAndGet();
+            m_checksum.addAndGet(((nTrack + 1) * 31L + lTick) * 17 + nValue);
+        }
+    }
+}
+
+
+/* StandardMidiFileReaderTestCase.java */
@@ -0,0 +1,147 @@
+/*
+ * StandardMidiFileWriterTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.midi.file.StandardMidiFileReader;
+import org.tritonus.midi.file.StandardMidiFileWriter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+public class StandardMidiFileWriterTestCase {
+    @Test
+    public void testStreamAndFile() throws Exception {
+        // large enough to be encoded in parallel
+        Sequence sequence = createSequence(Sequence.PPQ, 480, 4, 5000);
+        byte[] abSequential = write(new StandardMidiFileWriter(false), sequence, 1);
+        byte[] abParallel = write(new StandardMidiFileWriter(true), sequence, 1);
+        assertArrayEquals(abSequential, abParallel, "parallel encoding");
+
+        File file = File.createTempFile("tritonus", ".mid");
+        try {
+            int nBytes = new StandardMidiFileWriter().write(sequence, 1, file);
+            assertEquals(file.length(), nBytes, "bytes written");
+            assertArrayEquals(abSequential, Files.readAllBytes(file.toPath()), "file");
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Sequence sequence = createSequence(Sequence.PPQ, 96, 3, 300);
+        byte[] abFile = write(new StandardMidiFileWriter(), sequence, 1);
+        Sequence result = new StandardMidiFileReader().getSequence(
+                new ByteArrayInputStream(abFile));
+        checkEquals(sequence, result);
+    }
+
+
+    @Test
+    public void testSmpte() throws Exception {
+        Sequence sequence = createSequence(Sequence.SMPTE_30DROP, 80, 1, 10);
+        byte[] abFile = write(new StandardMidiFileWriter(), sequence, 0);
+        assertEquals((byte) -29, abFile[12], "frame rate");
+        assertEquals(80, abFile[13], "ticks per frame");
+        Sequence result = new StandardMidiFileReader().getSequence(
+                new ByteArrayInputStream(abFile));
+        assertEquals(Sequence.SMPTE_30DROP, result.getDivisionType(), "division type");
+        checkEquals(sequence, result);
+    }
+
+
+    /**
+     * The first event of each track is not at tick 0.
+     */
+    private static Sequence createSequence(float fDivisionType, int nResolution,
+                                           int nTracks, int nEvents)
+            throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(fDivisionType, nResolution);
+        for (int nTrack = 0; nTrack < nTracks; nTrack++) {
+            Track track = sequence.createTrack();
+            for (int i = 0; i < nEvents; i++) {
+                long lTick = 7 + i * 200L * (nTrack + 1);
+                ShortMessage message = new ShortMessage();
+                if (i % 10 == 0) {
+                    message.setMessage(ShortMessage.PROGRAM_CHANGE, nTrack, i % 128, 0);
+                } else {
+                    message.setMessage(ShortMessage.NOTE_ON, nTrack, i % 128, (i * 7) % 128);
+                }
+                track.add(new MidiEvent(message, lTick));
+                if (i % 100 == 50) {
+                    MetaMessage marker = new MetaMessage();
+                    byte[] abMarker = ("marker " + i).getBytes();
+                    marker.setMessage(6, abMarker, abMarker.length);
+                    track.add(new MidiEvent(marker, lTick));
+                    SysexMessage sysex = new SysexMessage();
+                    byte[] abSysex = {(byte) 0xF0, 0x7E, 0x7F, 0x09, 0x01, (byte) 0xF7};
+                    sysex.setMessage(abSysex, abSysex.length);
+                    track.add(new MidiEvent(sysex, lTick));
+                }
+            }
+        }
+        return sequence;
+    }
+
+
+    private static byte[] write(StandardMidiFileWriter writer, Sequence sequence,
+                                int nType) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int nBytes = writer.write(sequence, nType, baos);
+        assertEquals(baos.size(), nBytes, "bytes written");
+        return baos.toByteArray();
+    }
+
+
+    private static void checkEquals(Sequence expected, Sequence actual) {
+        assertEquals(expected.getResolution(), actual.getResolution(), "resolution");
+        Track[] aExpected = expected.getTracks();
+        Track[] aActual = actual.getTracks();
+        assertEquals(aExpected.length, aActual.length, "tracks");
+        for (int nTrack = 0; nTrack < aExpected.length; nTrack++) {
+            assertEquals(aExpected[nTrack].size(), aActual[nTrack].size(), "track size");
+            for (int i = 0; i < aExpected[nTrack].size(); i++) {
+                MidiEvent expectedEvent = aExpected[nTrack].get(i);
+                MidiEvent actualEvent = aActual[nTrack].get(i);
+                String strMessage = "track " + nTrack + ", event " + i;
+                assertEquals(expectedEvent.getTick(), actualEvent.getTick(), strMessage);
+                assertArrayEquals(expectedEvent.getMessage().getMessage(),
+                        actualEvent.getMessage().getMessage(), strMessage);
+            }
+        }
+    }
+}
+
+
+/* StandardMidiFileWriterTestCase.java */
@@ -20,11 +20,15 @@
 
 package org.tritonus.test;
 
+import java.nio.ByteBuffer;
+
 import org.junit.jupiter.api.Test;
 import org.tritonus.share.TCircularBuffer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
@@ -143,6 +147,177 @@ public class TCircularBufferTestCase {
     }
 
 
+    @Test
+    public void testSingleProducerSingleConsumerReadWrite() {
+        int nBufferSize = 8901 * 4;
+        int nResult;
+        byte[] abWriteArray = new byte[nBufferSize];
+        byte[] abReadArray = new byte[nBufferSize];
+        TCircularBuffer buffer = new TCircularBuffer(
+                nBufferSize, true, true, null, true);
+        assertTrue(buffer.isSingleProducerSingleConsumer(), "SPSC mode");
+        assertEquals(nBufferSize, buffer.availableWrite(), "availableWrite()");
+        for (int i = 0; i < abWriteArray.length; i++) {
+            abWriteArray[i] = (byte) (i % 256);
+        }
+        nResult = buffer.write(abWriteArray);
+        assertEquals(abWriteArray.length, nResult, "written length");
+        assertEquals(0, buffer.availableWrite(), "availableWrite()");
+        nResult = buffer.read(abReadArray);
+        assertEquals(abReadArray.length, nResult, "read length");
+        assertTrue(Util.compareByteArrays(abReadArray, 0, abWriteArray, 0, abReadArray.length), "data content");
+
+        // wraps around the end of the storage
+        buffer.write(new byte[nBufferSize / 3]);
+        nResult = buffer.write(abWriteArray, nBufferSize / 4, nBufferSize / 2);
+        assertEquals(nBufferSize / 2, nResult, "written length");
+        buffer.read(new byte[nBufferSize / 3]);
+        nResult = buffer.read(abReadArray, 0, nBufferSize / 2);
+        assertEquals(nBufferSize / 2, nResult, "read length");
+        assertTrue(Util.compareByteArrays(abReadArray, 0, abWriteArray, nBufferSize / 4, nBufferSize / 2), "data content");
+    }
+
+
+    @Test
+    public void testSingleProducerSingleConsumerThreads() throws Exception {
+        final int nBufferSize = 1000;
+        final int nTotal = 1000003;
+        final TCircularBuffer buffer = new TCircularBuffer(
+                nBufferSize, true, true, null, true);
+        Thread producer = new Thread(() -> {
+            byte[] abChunk = new byte[377];
+            int nWritten = 0;
+            while (nWritten < nTotal) {
+                int nLength = Math.min(abChunk.length, nTotal - nWritten);
+                for (int i = 0; i < nLength; i++) {
+                    abChunk[i] = (byte) (nWritten + i);
+                }
+                nWritten += buffer.write(abChunk, 0, nLength);
+            }
+            buffer.close();
+        });
+        producer.start();
+        byte[] abChunk = new byte[611];
+        int nRead = 0;
+        boolean bContentOk = true;
+        int nResult;
+        while ((nResult = buffer.read(abChunk)) != -1) {
+            for (int i = 0; i < nResult; i++) {
+                bContentOk &= abChunk[i] == (byte) (nRead + i);
+            }
+            nRead += nResult;
+        }
+        producer.join();
+        assertEquals(nTotal, nRead, "read length");
+        assertTrue(bContentOk, "data content");
+    }
+
+
+    @Test
+    public void testSingleProducerSingleConsumerTrigger() {
+        final int nBufferSize = 45678;
+        final TCircularBuffer[] buffer = new TCircularBuffer[1];
+        TestTrigger trigger = new TestTrigger() {
+            @Override
+            public void execute() {
+                super.execute();
+                buffer[0].write(new byte[nBufferSize / 4]);
+            }
+        };
+        buffer[0] = new TCircularBuffer(
+                nBufferSize, false, true, trigger, true);
+        int nResult = buffer[0].read(new byte[10]);
+        assertTrue(trigger.isCalled(), "trigger called");
+        assertEquals(10, nResult, "read length");
+
+        trigger.reset();
+        nResult = buffer[0].read(new byte[nBufferSize]);
+        assertTrue(trigger.isCalled(), "trigger called");
+        assertEquals(2 * (nBufferSize / 4) - 10, nResult, "read length");
+        buffer[0].close();
+        assertEquals(-1, buffer[0].read(new byte[10]), "read length");
+    }
+
+
+    @Test
+    public void testDirectStorage() {
+        for (boolean bSpsc : new boolean[] {false, true}) {
+            int nBufferSize = 4096;
+            TCircularBuffer buffer = new TCircularBuffer(
+                    ByteBuffer.allocateDirect(nBufferSize), true, true, null, bSpsc);
+            assertTrue(buffer.isDirect(), "direct storage");
+            assertEquals(nBufferSize, buffer.availableWrite(), "availableWrite()");
+            byte[] abWriteArray = new byte[nBufferSize];
+            for (int i = 0; i < abWriteArray.length; i++) {
+                abWriteArray[i] = (byte) (i % 251);
+            }
+            // wraps around the end of the storage
+            buffer.write(new byte[nBufferSize / 3]);
+            buffer.read(new byte[nBufferSize / 3]);
+            ByteBuffer source = ByteBuffer.wrap(abWriteArray, 100, nBufferSize / 2);
+            int nResult = buffer.write(source);
+            assertEquals(nBufferSize / 2, nResult, "written length");
+            assertFalse(source.hasRemaining(), "source consumed");
+            ByteBuffer target = ByteBuffer.allocateDirect(nBufferSize / 2);
+            nResult = buffer.read(target);
+            assertEquals(nBufferSize / 2, nResult, "read length");
+            assertFalse(target.hasRemaining(), "target filled");
+            byte[] abReadArray = new byte[nBufferSize / 2];
+            target.flip();
+            target.get(abReadArray);
+            assertTrue(Util.compareByteArrays(abReadArray, 0, abWriteArray, 100, abReadArray.length), "data content");
+        }
+    }
+
+
+    @Test
+    public void testIllegalDirectStorageSize() {
+        assertThrows(IllegalArgumentException.class, () -> new TCircularBuffer(
+                ByteBuffer.allocateDirect(1000), true, true, null, true));
+    }
+
+
+    @Test
+    public void testSlices() {
+        for (boolean bSpsc : new boolean[] {false, true}) {
+            int nBufferSize = 1024;
+            TCircularBuffer buffer = new TCircularBuffer(
+                    nBufferSize, false, false, null, bSpsc);
+            buffer.write(new byte[1000]);
+            buffer.read(new byte[1000]);
+
+            // free space wraps after 24 bytes
+            ByteBuffer slice = buffer.writeSlice(100);
+            assertEquals(24, slice.remaining(), "write slice length");
+            for (int i = 0; i < 24; i++) {
+                slice.put((byte) i);
+            }
+            buffer.commitWrite(24);
+            slice = buffer.writeSlice(100);
+            assertEquals(100, slice.remaining(), "write slice length");
+            for (int i = 24; i < 100; i++) {
+                slice.put((byte) i);
+            }
+            buffer.commitWrite(76);
+            assertEquals(100, buffer.availableRead(), "availableRead()");
+
+            slice = buffer.readSlice(1000);
+            assertEquals(24, slice.remaining(), "read slice length");
+            assertEquals(0, slice.get(slice.position()), "data content");
+            buffer.commitRead(24);
+            slice = buffer.readSlice(1000);
+            assertEquals(76, slice.remaining(), "read slice length");
+            assertEquals(24, slice.get(slice.position()), "data content");
+            assertEquals(99, slice.get(slice.limit() - 1), "data content");
+            buffer.commitRead(76);
+            assertEquals(0, buffer.availableRead(), "availableRead()");
+            assertThrows(IllegalArgumentException.class, () -> buffer.commitRead(1));
+            buffer.close();
+            assertNull(buffer.readSlice(10), "read slice of closed buffer");
+        }
+    }
+
+
     private static class TestTrigger
             implements TCircularBuffer.Trigger {
         private boolean m_bCalled = false;
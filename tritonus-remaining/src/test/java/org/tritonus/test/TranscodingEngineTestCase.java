@@ -0,0 +1,254 @@
+/*
+ * TranscodingEngineTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tritonus.share.sampled.TranscodingEngine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class TranscodingEngineTestCase {
+    private static final int FILES = 8;
+    private static final int FRAMES = 20000;
+    private static final AudioFormat FORMAT = new AudioFormat(8000.0F, 16, 1, true, false);
+
+    private File m_directory;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        m_directory = Files.createTempDirectory("tritonus").toFile();
+    }
+
+
+    @AfterEach
+    public void tearDown() {
+        for (File file : m_directory.listFiles()) {
+            file.delete();
+        }
+        m_directory.delete();
+    }
+
+
+    @Test
+    public void testConversion() throws Exception {
+        AudioFormat ulaw = new AudioFormat(AudioFormat.Encoding.ULAW, 8000.0F, 8, 1, 1, 8000.0F, true);
+        TranscodingEngine engine = new TranscodingEngine(3, 2);
+        AtomicInteger finished = new AtomicInteger();
+        List<TranscodingEngine.Job> jobs = new ArrayList<>();
+        long lSourceBytes = 0;
+        for (int i = 0; i < FILES; i++) {
+            File source = createSource("source" + i + ".wav");
+            lSourceBytes += source.length();
+            boolean bUlaw = i % 2 == 1;
+            File target = new File(m_directory, "target" + i + ".au");
+            jobs.add(engine.submit(source, target, AudioFileFormat.Type.AU,
+                    bUlaw ? ulaw : null,
+                    new TranscodingEngine.Listener() {
+                        public void progress(TranscodingEngine.Job job, long lFrames, long lTotalFrames) {
+                            assertTrue(lFrames <= lTotalFrames, "progress");
+                        }
+
+
+                        public void finished(TranscodingEngine.Job job, Throwable exception) {
+                            if (exception == null) {
+                                finished.incrementAndGet();
+                            }
+                        }
+                    }));
+        }
+        for (TranscodingEngine.Job job : jobs) {
+            job.get();
+            assertEquals(FRAMES, job.getFrames(), "frames converted");
+        }
+        engine.shutdown();
+        assertTrue(engine.awaitTermination(10, TimeUnit.SECONDS), "termination");
+
+        for (int i = 0; i < FILES; i++) {
+            File target = new File(m_directory, "target" + i + ".au");
+            AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(target);
+            assertEquals(AudioFileFormat.Type.AU, fileFormat.getType(), "type");
+            assertEquals(FRAMES, fileFormat.getFrameLength(), "frame length");
+            AudioFormat.Encoding expected = i % 2 == 1 ? AudioFormat.Encoding.ULAW : AudioFormat.Encoding.PCM_SIGNED;
+            assertEquals(expected, fileFormat.getFormat().getEncoding(), "encoding");
+        }
+        assertEquals(FILES, finished.get(), "finished callbacks");
+        assertEquals(FILES, engine.getCompletedFiles(), "completed files");
+        assertEquals(0, engine.getFailedFiles(), "failed files");
+        assertEquals(lSourceBytes, engine.getBytesRead(), "bytes read");
+        assertEquals(FILES * FRAMES / 8000.0, engine.getAudioSeconds(), 0.001, "audio seconds");
+        assertTrue(engine.getRealtimeFactor() > 0.0, "realtime factor");
+        assertTrue(engine.getFilesPerSecond() > 0.0, "files per second");
+        assertTrue(engine.getMegabytesPerSecond() > 0.0, "megabytes per second");
+    }
+
+
+    @Test
+    public void testCancel() throws Exception {
+        TranscodingEngine engine = new TranscodingEngine(1);
+        File source = createSource("source.wav");
+        File target = new File(m_directory, "target.au");
+        TranscodingEngine.Job job = engine.submit(source, target, AudioFileFormat.Type.AU, null,
+                new TranscodingEngine.Listener() {
+                    public void progress(TranscodingEngine.Job job, long lFrames, long lTotalFrames) {
+                        job.cancel(false);
+                    }
+
+
+                    public void finished(TranscodingEngine.Job job, Throwable exception) {
+                    }
+                });
+        assertThrows(CancellationException.class, job::get);
+        assertTrue(job.isCancelled(), "cancelled");
+        assertFalse(job.cancel(false), "cancel again");
+        engine.shutdown();
+        assertTrue(engine.awaitTermination(10, TimeUnit.SECONDS), "termination");
+        assertFalse(target.exists(), "target deleted");
+        assertEquals(1, engine.getFailedFiles(), "failed files");
+    }
+
+
+    @Test
+    public void testCancelPending() throws Exception {
+        TranscodingEngine engine = new TranscodingEngine(1, 2);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        TranscodingEngine.Job first = engine.submit(createSource("source0.wav"),
+                new File(m_directory, "target0.au"), AudioFileFormat.Type.AU, null,
+                new TranscodingEngine.Listener() {
+                    public void progress(TranscodingEngine.Job job, long lFrames, long lTotalFrames) {
+                        running.countDown();
+                        try {
+                            resume.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+
+
+                    public void finished(TranscodingEngine.Job job, Throwable exception) {
+                    }
+                });
+        assertTrue(running.await(10, TimeUnit.SECONDS), "first job running");
+
+        File target = createExistingTarget("target1.au");
+        TranscodingEngine.Job pending = engine.submit(createSource("source1.wav"),
+                target, AudioFileFormat.Type.AU);
+        assertTrue(pending.cancel(false), "cancel");
+        assertTrue(pending.isDone(), "done");
+        assertTrue(pending.isCancelled(), "cancelled");
+        assertThrows(CancellationException.class, pending::get);
+        assertEquals(1, engine.getFailedFiles(), "failed files");
+
+        // the place of the cancelled job is free while the first one runs
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<TranscodingEngine.Job> third = executor.submit(() -> engine.submit(
+                    createSource("source2.wav"), new File(m_directory, "target2.au"),
+                    AudioFileFormat.Type.AU));
+            third.get(10, TimeUnit.SECONDS);
+        } finally {
+            resume.countDown();
+            executor.shutdown();
+        }
+        first.get();
+        engine.shutdown();
+        assertTrue(engine.awaitTermination(10, TimeUnit.SECONDS), "termination");
+        assertEquals(2, engine.getCompletedFiles(), "completed files");
+        assertTrue(target.exists(), "target of cancelled job kept");
+        assertEquals(3, target.length(), "target of cancelled job unchanged");
+    }
+
+
+    @Test
+    public void testFailureBeforeWriting() throws Exception {
+        TranscodingEngine engine = new TranscodingEngine(1);
+        File target = createExistingTarget("target.au");
+        AudioFormat unsupported = new AudioFormat(new AudioFormat.Encoding("UNSUPPORTED"),
+                8000.0F, 8, 1, 1, 8000.0F, false);
+        TranscodingEngine.Job job = engine.submit(createSource("source.wav"), target,
+                AudioFileFormat.Type.AU, unsupported,
+                new TranscodingEngine.Listener() {
+                    public void progress(TranscodingEngine.Job job, long lFrames, long lTotalFrames) {
+                    }
+
+
+                    public void finished(TranscodingEngine.Job job, Throwable exception) {
+                        throw new IllegalStateException("listener");
+                    }
+                });
+        ExecutionException exception = assertThrows(ExecutionException.class, job::get);
+        assertTrue(exception.getCause() instanceof IllegalArgumentException,
+                "cause: " + exception.getCause());
+        assertTrue(target.exists(), "target kept");
+        assertEquals(3, target.length(), "target unchanged");
+
+        // the engine still runs jobs after the listener has thrown
+        File target2 = new File(m_directory, "target2.au");
+        engine.submit(createSource("source2.wav"), target2, AudioFileFormat.Type.AU).get();
+        assertEquals(FRAMES, AudioSystem.getAudioFileFormat(target2).getFrameLength(), "frame length");
+        engine.shutdown();
+    }
+
+
+    private File createExistingTarget(String strName) throws Exception {
+        File file = new File(m_directory, strName);
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        return file;
+    }
+
+
+    private File createSource(String strName) throws Exception {
+        byte[] abData = new byte[FRAMES * FORMAT.getFrameSize()];
+        for (int i = 0; i < abData.length; i++) {
+            abData[i] = (byte) (i * 11);
+        }
+        File file = new File(m_directory, strName);
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(abData), FORMAT, FRAMES),
+                AudioFileFormat.Type.WAVE, file);
+        return file;
+    }
+}
+
+
+/* TranscodingEngineTestCase.java */
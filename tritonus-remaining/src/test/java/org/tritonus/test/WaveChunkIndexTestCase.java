@@ -0,0 +1,283 @@
+/*
+ * WaveChunkIndexTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.sampled.file.WaveAudioFileReader;
+import org.tritonus.sampled.file.WaveChunkIndex;
+import org.tritonus.sampled.file.WaveTool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class WaveChunkIndexTestCase {
+    private static final int FRAMES = 500;
+    // 16 bit stereo
+    private static final int FRAME_SIZE = 4;
+    private static final byte[] LIST_DATA = "INFOICMT\u0003\0\0\0ab\0".getBytes(StandardCharsets.ISO_8859_1);
+
+
+    @Test
+    public void testRiff() throws Exception {
+        check(false);
+    }
+
+
+    @Test
+    public void testRF64() throws Exception {
+        check(true);
+    }
+
+
+    @Test
+    public void testCache() throws Exception {
+        File file = File.createTempFile("tritonus", ".wav");
+        try {
+            Files.write(file.toPath(), createFile(false, createData()));
+            WaveChunkIndex index = WaveChunkIndex.getIndex(file);
+            assertSame(index, WaveChunkIndex.getIndex(file), "cached index");
+
+            Files.write(file.toPath(), createFile(true, createData()));
+            WaveChunkIndex newIndex = WaveChunkIndex.getIndex(file);
+            assertNotSame(index, newIndex, "index of changed file");
+            assertTrue(newIndex.isRF64(), "RF64");
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * A file rewritten in place with the same size and modification
+     * time, but a shorter data chunk followed by a JUNK chunk.
+     */
+    @Test
+    public void testCacheSameSizeAndTime() throws Exception {
+        File file = File.createTempFile("tritonus", ".wav");
+        try {
+            byte[] abData = createData();
+            Files.write(file.toPath(), createFile(false, abData));
+            FileTime modified = Files.getLastModifiedTime(file.toPath());
+            WaveChunkIndex index = WaveChunkIndex.getIndex(file);
+
+            byte[] abShortData = Arrays.copyOf(abData, abData.length - 2 * FRAME_SIZE);
+            byte[] abFile = createFile(false, abShortData, new byte[0]);
+            assertEquals(file.length(), abFile.length, "file length");
+            Files.write(file.toPath(), abFile);
+            Files.setLastModifiedTime(file.toPath(), modified);
+            WaveChunkIndex newIndex = WaveChunkIndex.getIndex(file);
+            assertNotSame(index, newIndex, "index of rewritten file");
+            assertEquals(abShortData.length,
+                    newIndex.getChunk(WaveTool.WAVE_DATA_MAGIC).getLength(), "data length");
+            assertSame(newIndex, WaveChunkIndex.getIndex(file), "cached index");
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * A file replaced by another one with the same contents and
+     * modification time.
+     */
+    @Test
+    public void testCacheReplacedFile() throws Exception {
+        File file = File.createTempFile("tritonus", ".wav");
+        File replacement = File.createTempFile("tritonus", ".wav");
+        try {
+            byte[] abFile = createFile(false, createData());
+            Files.write(file.toPath(), abFile);
+            FileTime modified = Files.getLastModifiedTime(file.toPath());
+            WaveChunkIndex index = WaveChunkIndex.getIndex(file);
+
+            Files.write(replacement.toPath(), abFile);
+            Files.setLastModifiedTime(replacement.toPath(), modified);
+            Object fileKey = Files.readAttributes(replacement.toPath(),
+                    BasicFileAttributes.class).fileKey();
+            Files.move(replacement.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            WaveChunkIndex newIndex = WaveChunkIndex.getIndex(file);
+            if (fileKey != null) {
+                assertNotSame(index, newIndex, "index of replaced file");
+            }
+            assertEquals(index.getChunks().toString(), newIndex.getChunks().toString(), "chunks");
+        } finally {
+            file.delete();
+            replacement.delete();
+        }
+    }
+
+
+    private static void check(boolean bRF64) throws Exception {
+        byte[] abData = createData();
+        byte[] abFile = createFile(bRF64, abData);
+        File file = File.createTempFile("tritonus", ".wav");
+        try {
+            Files.write(file.toPath(), abFile);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                WaveChunkIndex index = WaveChunkIndex.createIndex(channel);
+                assertEquals(bRF64, index.isRF64(), "RF64");
+                assertEquals(abFile.length - 8, index.getRiffLength(), "riff length");
+                assertEquals(bRF64 ? 5 : 4, index.getChunks().size(), "chunks: " + index.getChunks());
+                WaveChunkIndex.Chunk dataChunk = index.getChunk(WaveTool.WAVE_DATA_MAGIC);
+                assertEquals(abData.length, dataChunk.getLength(), "data length");
+
+                // the LIST chunk after the data is read on demand
+                WaveChunkIndex.Chunk listChunk = index.getChunk(0x4C495354);
+                assertEquals(LIST_DATA.length, listChunk.getLength(), "list length");
+                ByteBuffer buffer = index.readChunk(channel, listChunk);
+                byte[] abList = new byte[(int) listChunk.getLength()];
+                buffer.get(abList);
+                assertArrayEquals(LIST_DATA, abList, "list contents");
+            }
+
+            WaveAudioFileReader reader = new WaveAudioFileReader();
+            try (AudioInputStream stream = reader.getAudioInputStream(file)) {
+                assertEquals(FRAMES, stream.getFrameLength(), "frame length");
+                byte[] abRead = new byte[abData.length + 100];
+                assertEquals(abData.length, stream.read(abRead), "bytes read");
+                for (int i = 0; i < abData.length; i++) {
+                    assertEquals(abData[i], abRead[i], "data byte " + i);
+                }
+                assertEquals(-1, stream.read(abRead), "end of data");
+            }
+
+            AudioFileFormat fileFormat = reader.getAudioFileFormat(file);
+            assertEquals(FRAMES, fileFormat.getFrameLength(), "file frame length");
+            assertEquals(abFile.length, fileFormat.getByteLength(), "file byte length");
+
+            // sequential reading of streams
+            AudioFileFormat streamFormat = reader.getAudioFileFormat(new ByteArrayInputStream(abFile));
+            assertEquals(FRAMES, streamFormat.getFrameLength(), "stream frame length");
+            assertEquals(2, streamFormat.getFormat().getChannels(), "channels");
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    private static byte[] createData() {
+        byte[] abData = new byte[FRAMES * FRAME_SIZE];
+        for (int i = 0; i < abData.length; i++) {
+            abData[i] = (byte) (i * 5 + 1);
+        }
+        return abData;
+    }
+
+
+    /**
+     * Create a file with a bext chunk in front of the format chunk and a
+     * LIST chunk of odd length after the data.
+     */
+    private static byte[] createFile(boolean bRF64, byte[] abData) {
+        return createFile(bRF64, abData, null);
+    }
+
+
+    /**
+     * Like createFile(boolean, byte[]), with a JUNK chunk after the data
+     * if abJunk is not null.
+     */
+    private static byte[] createFile(boolean bRF64, byte[] abData, byte[] abJunk) {
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        writeChunk(chunks, "bext", new byte[602]);
+        ByteBuffer format = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        format.putShort(WaveTool.WAVE_FORMAT_PCM);
+        format.putShort((short) 2);
+        format.putInt(8000);
+        format.putInt(8000 * FRAME_SIZE);
+        format.putShort((short) FRAME_SIZE);
+        format.putShort((short) 16);
+        writeChunk(chunks, "fmt ", format.array());
+        if (bRF64) {
+            writeChunkHeader(chunks, "data", (int) WaveTool.RF64_SIZE_IN_DS64);
+            chunks.write(abData, 0, abData.length);
+        } else {
+            writeChunk(chunks, "data", abData);
+        }
+        if (abJunk != null) {
+            writeChunk(chunks, "JUNK", abJunk);
+        }
+        writeChunk(chunks, "LIST", LIST_DATA);
+
+        int nDs64Length = bRF64 ? 8 + 28 : 0;
+        long lRiffLength = 4 + nDs64Length + chunks.size();
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        byte[] abMagic = (bRF64 ? "RF64" : "RIFF").getBytes(StandardCharsets.US_ASCII);
+        file.write(abMagic, 0, 4);
+        writeInt(file, bRF64 ? (int) WaveTool.RF64_SIZE_IN_DS64 : (int) lRiffLength);
+        file.write("WAVE".getBytes(StandardCharsets.US_ASCII), 0, 4);
+        if (bRF64) {
+            ByteBuffer ds64 = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+            ds64.putLong(lRiffLength);
+            ds64.putLong(abData.length);
+            ds64.putLong(FRAMES);
+            ds64.putInt(0);
+            writeChunk(file, "ds64", ds64.array());
+        }
+        byte[] abChunks = chunks.toByteArray();
+        file.write(abChunks, 0, abChunks.length);
+        return file.toByteArray();
+    }
+
+
+    private static void writeChunk(ByteArrayOutputStream stream, String strId, byte[] abData) {
+        writeChunkHeader(stream, strId, abData.length);
+        stream.write(abData, 0, abData.length);
+        if ((abData.length & 1) != 0) {
+            stream.write(0);
+        }
+    }
+
+
+    private static void writeChunkHeader(ByteArrayOutputStream stream, String strId, int nLength) {
+        stream.write(strId.getBytes(StandardCharsets.US_ASCII), 0, 4);
+        writeInt(stream, nLength);
+    }
+
+
+    private static void writeInt(ByteArrayOutputStream stream, int n) {
+        for (int i = 0; i < 4; i++) {
+            stream.write((n >> (8 * i)) & 0xFF);
+        }
+    }
+}
+
+
+/* WaveChunkIndexTestCase.java */
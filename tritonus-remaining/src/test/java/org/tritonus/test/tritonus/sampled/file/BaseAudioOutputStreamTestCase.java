@@ -32,6 +32,7 @@ import org.tritonus.share.sampled.file.TNonSeekableDataOutputStream;
 import org.tritonus.share.sampled.file.TSeekableDataOutputStream;
 import org.tritonus.test.Util;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
@@ -117,6 +118,50 @@ public abstract class BaseAudioOutputStreamTestCase {
     }
 
 
+    /**
+     * Data in the other endianness (or, for 8 bit, the other
+     * signedness) than the file format is converted while it is
+     * written. The buffer passed to write() must stay unchanged.
+     */
+    @Test
+    public void testImplicitConversion()
+            throws Exception {
+        for (int sampleSize : SAMPLE_SIZES) {
+            for (int channelCount : CHANNEL_COUNTS) {
+                boolean bSigned = sampleSize == 8 ? is8bitUnsigned() : true;
+                AudioFormat audioFormat = new AudioFormat(44100.0F,
+                        sampleSize, channelCount, bSigned, !getBigEndian());
+                byte[] abData = createAudioData(audioFormat.getFrameSize());
+                byte[] abOriginal = abData.clone();
+                AudioOutputStream aos = createAudioOutputStream(audioFormat,
+                        abData.length, false);
+                // twice, to reuse a conversion buffer
+                aos.write(abData, 0, abData.length / 2);
+                aos.write(abData, abData.length / 2, abData.length / 2);
+                aos.close();
+                assertArrayEquals(abOriginal, abData, "data passed to write(): " + audioFormat);
+
+                byte[] abExpected = abOriginal.clone();
+                int nBytesPerSample = sampleSize / 8;
+                for (int i = 0; i < abExpected.length; i += nBytesPerSample) {
+                    if (nBytesPerSample == 1) {
+                        abExpected[i] ^= (byte) 0x80;
+                    } else {
+                        for (int j = 0; j < nBytesPerSample; j++) {
+                            abExpected[i + j] = abOriginal[i + nBytesPerSample - 1 - j];
+                        }
+                    }
+                }
+                byte[] abResultingData = getWrittenData(false);
+                int nHeaderLength = getExpectedHeaderData(audioFormat, abData.length, false, true).length
+                        + getExpectedAdditionalHeaderLength();
+                assertTrue(Util.compareByteArrays(abExpected, 0, abResultingData, nHeaderLength, abExpected.length),
+                        "converted audio data: " + audioFormat);
+            }
+        }
+    }
+
+
     private void doTest(boolean bSeekable, boolean bLengthGiven)
             throws Exception {
         for (int sampleRate : SAMPLE_RATES) {
@@ -0,0 +1,151 @@
+/*
+ * WaveAudioFileWriterTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test.tritonus.sampled.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.sampled.file.WaveAudioFileWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class WaveAudioFileWriterTestCase {
+    private static final AudioFormat FORMAT = new AudioFormat(44100.0F, 16, 2, true, false);
+    private static final int FRAMES = 100000;
+
+
+    @Test
+    public void testPreallocatedWrite()
+            throws Exception {
+        File file = File.createTempFile("tritonus", ".wav");
+        try {
+            byte[] abData = new byte[FRAMES * FORMAT.getFrameSize()];
+            WaveAudioFileWriter writer = new WaveAudioFileWriter();
+            writer.setPreallocating(true);
+            AudioInputStream stream = new AudioInputStream(
+                    new ByteArrayInputStream(abData), FORMAT, FRAMES);
+            assertEquals(abData.length, writer.write(stream, AudioFileFormat.Type.WAVE, file), "bytes written");
+            assertTrue(file.length() > abData.length, "file length");
+            assertFalse(isOpen(file), "file still open");
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * A stream that fails while it is written to a preallocated file.
+     * The file has to be closed and truncated to the data written.
+     */
+    @Test
+    public void testFailedWrite()
+            throws Exception {
+        File file = File.createTempFile("tritonus", ".wav");
+        try {
+            int nLength = FRAMES * FORMAT.getFrameSize();
+            WaveAudioFileWriter writer = new WaveAudioFileWriter();
+            writer.setPreallocating(true);
+            AudioInputStream stream = new AudioInputStream(
+                    new FailingInputStream(nLength / 10), FORMAT, FRAMES);
+            assertThrows(IOException.class,
+                    () -> writer.write(stream, AudioFileFormat.Type.WAVE, file),
+                    "exception of the stream");
+            assertTrue(file.length() < nLength / 5, "file length: " + file.length());
+            assertFalse(isOpen(file), "file still open");
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Whether this process has a file descriptor of the file. Only
+     * known on systems with /proc/self/fd.
+     */
+    private static boolean isOpen(File file)
+            throws IOException {
+        Path fdDirectory = Paths.get("/proc/self/fd");
+        if (!Files.isDirectory(fdDirectory)) {
+            return false;
+        }
+        Path path = file.toPath().toRealPath();
+        try (DirectoryStream<Path> fds = Files.newDirectoryStream(fdDirectory)) {
+            for (Path fd : fds) {
+                try {
+                    if (Files.readSymbolicLink(fd).equals(path)) {
+                        return true;
+                    }
+                } catch (IOException e) {
+                    // closed while listing
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Delivers silence, then throws an IOException.
+     */
+    private static class FailingInputStream extends InputStream {
+        private int m_nRemaining;
+
+
+        public FailingInputStream(int nLength) {
+            m_nRemaining = nLength;
+        }
+
+
+        public int read()
+                throws IOException {
+            byte[] abData = new byte[1];
+            return read(abData, 0, 1) < 0 ? -1 : abData[0] & 0xFF;
+        }
+
+
+        public int read(byte[] abData, int nOffset, int nLength)
+                throws IOException {
+            if (m_nRemaining <= 0) {
+                throw new IOException("read error");
+            }
+            nLength = Math.min(nLength, m_nRemaining);
+            Arrays.fill(abData, nOffset, nOffset + nLength, (byte) 0);
+            m_nRemaining -= nLength;
+            return nLength;
+        }
+    }
+}
+
+
+/* WaveAudioFileWriterTestCase.java */
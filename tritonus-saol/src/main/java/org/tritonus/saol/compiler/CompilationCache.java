@@ -0,0 +1,334 @@
+/*
+ * CompilationCache.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.saol.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import org.tritonus.saol.engine.AbstractInstrument;
+import org.tritonus.share.TDebug;
+
+
+/**
+ * Cache of compiled orchestras on disk.
+ * <p>
+ * An entry holds the class files of the instruments of an orchestra
+ * and its global parameters. Entries are stored in files in the cache
+ * directory. They are named by a SHA-256 hash over the compiler
+ * version and the SAOL source, so an unchanged orchestra is found
+ * again. The compiler version is a SHA-256 hash over the class files
+ * of the parser, the compiler and the engine, so any change of them
+ * makes the entries of older builds unreachable. Files that cannot be
+ * read as an entry are treated as missing.
+ */
+public class CompilationCache {
+    /** Class files that are part of the compiler version. */
+    private static final String CODE_DIRECTORY = "org/tritonus/saol/";
+
+    /** "TSOC" */
+    private static final int MAGIC = 0x54534f43;
+    private static final int FORMAT_VERSION = 1;
+    private static final String ENTRY_SUFFIX = ".tsc";
+
+    private static String sm_strCodeVersion;
+
+    private final File m_directory;
+    private final String m_strCompilerVersion;
+
+
+    /**
+     * @param directory the directory to store the entries in. It is
+     *                  created when the first entry is stored.
+     */
+    public CompilationCache(File directory) {
+        this(directory, getCodeVersion());
+    }
+
+
+    CompilationCache(File directory, String strCompilerVersion) {
+        m_directory = directory;
+        m_strCompilerVersion = strCompilerVersion;
+    }
+
+
+    /**
+     * Returns the version string that is part of the key of all entries.
+     */
+    public String getCompilerVersion() {
+        return m_strCompilerVersion;
+    }
+
+
+    /**
+     * Look up the compiled orchestra of a SAOL source. The classes are
+     * defined in a new class loader.
+     *
+     * @return the orchestra, or null if there is no valid entry
+     */
+    public Entry load(byte[] abSource) {
+        File file = getEntryFile(abSource);
+        try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+            if (dataInputStream.readInt() != MAGIC
+                    || dataInputStream.readInt() != FORMAT_VERSION
+                    || !dataInputStream.readUTF().equals(m_strCompilerVersion)) {
+                return null;
+            }
+            SAOLGlobals saolGlobals = new SAOLGlobals();
+            saolGlobals.setARate(dataInputStream.readInt());
+            saolGlobals.setKRate(dataInputStream.readInt());
+            saolGlobals.setInChannels(dataInputStream.readInt());
+            saolGlobals.setOutChannels(dataInputStream.readInt());
+            saolGlobals.setInterp(dataInputStream.readInt());
+            int nClasses = dataInputStream.readInt();
+            Map<String, byte[]> classDataMap = new LinkedHashMap<>();
+            for (int i = 0; i < nClasses; i++) {
+                String strClassName = dataInputStream.readUTF();
+                byte[] abClassData = new byte[dataInputStream.readInt()];
+                dataInputStream.readFully(abClassData);
+                classDataMap.put(strClassName, abClassData);
+            }
+            MemoryClassLoader classLoader = new MemoryClassLoader();
+            Map<String, Class<AbstractInstrument>> instrumentMap = new HashMap<>();
+            for (Map.Entry<String, byte[]> classData : classDataMap.entrySet()) {
+                @SuppressWarnings("unchecked")
+                Class<AbstractInstrument> instrumentClass = (Class<AbstractInstrument>) classLoader.findClass(classData.getKey(), classData.getValue());
+                instrumentMap.put(classData.getKey(), instrumentClass);
+            }
+            return new Entry(saolGlobals, instrumentMap);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | LinkageError e) {
+            if (TDebug.TraceAllExceptions) {
+                TDebug.out(e);
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * Store the compiled orchestra of a SAOL source. The entry file is
+     * replaced atomically where the file system supports it.
+     *
+     * @param classDataMap maps instrument names, which are also the
+     *                     class names, to class files
+     */
+    public void store(byte[] abSource, SAOLGlobals saolGlobals, Map<String, byte[]> classDataMap)
+            throws IOException {
+        Path target = getEntryFile(abSource).toPath();
+        Files.createDirectories(m_directory.toPath());
+        Path temporary = Files.createTempFile(m_directory.toPath(), "entry", ".tmp");
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(temporary)) {
+                DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+                dataOutputStream.writeInt(MAGIC);
+                dataOutputStream.writeInt(FORMAT_VERSION);
+                dataOutputStream.writeUTF(m_strCompilerVersion);
+                dataOutputStream.writeInt(saolGlobals.getARate());
+                dataOutputStream.writeInt(saolGlobals.getKRate());
+                dataOutputStream.writeInt(saolGlobals.getInChannels());
+                dataOutputStream.writeInt(saolGlobals.getOutChannels());
+                dataOutputStream.writeInt(saolGlobals.getInterp());
+                dataOutputStream.writeInt(classDataMap.size());
+                for (Map.Entry<String, byte[]> classData : classDataMap.entrySet()) {
+                    dataOutputStream.writeUTF(classData.getKey());
+                    dataOutputStream.writeInt(classData.getValue().length);
+                    dataOutputStream.write(classData.getValue());
+                }
+                dataOutputStream.flush();
+            }
+            try {
+                Files.move(temporary, target,
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(temporary, target,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+
+    private File getEntryFile(byte[] abSource) {
+        MessageDigest digest = createDigest();
+        digest.update(m_strCompilerVersion.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        return new File(m_directory, toHex(digest.digest(abSource)) + ENTRY_SUFFIX);
+    }
+
+
+    private static String toHex(byte[] abHash) {
+        StringBuilder hex = new StringBuilder(abHash.length * 2);
+        for (byte b : abHash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+
+    /**
+     * Returns the hash over the class files below CODE_DIRECTORY, read
+     * from the directory or jar file CompilationCache was loaded from.
+     * If they cannot be read, a random value is returned, so that no
+     * entries are shared with other processes.
+     */
+    private static synchronized String getCodeVersion() {
+        if (sm_strCodeVersion == null) {
+            try {
+                sm_strCodeVersion = hashClassFiles(CompilationCache.class.getProtectionDomain().getCodeSource());
+            } catch (IOException | URISyntaxException | SecurityException e) {
+                if (TDebug.TraceAllExceptions) {
+                    TDebug.out(e);
+                }
+                sm_strCodeVersion = "unhashed " + UUID.randomUUID();
+            }
+        }
+        return sm_strCodeVersion;
+    }
+
+
+    private static String hashClassFiles(CodeSource codeSource)
+            throws IOException, URISyntaxException {
+        if (codeSource == null || codeSource.getLocation() == null) {
+            throw new IOException("location of classes unknown");
+        }
+        Path location = new File(codeSource.getLocation().toURI()).toPath();
+        // class file names mapped to their contents, in a stable order
+        SortedMap<String, byte[]> classFiles = new TreeMap<>();
+        if (Files.isDirectory(location)) {
+            Path directory = location.resolve(CODE_DIRECTORY);
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : (Iterable<Path>) paths::iterator) {
+                    if (path.toString().endsWith(".class")) {
+                        classFiles.put(location.relativize(path).toString()
+                                .replace(File.separatorChar, '/'),
+                                Files.readAllBytes(path));
+                    }
+                }
+            }
+        } else {
+            try (JarFile jarFile = new JarFile(location.toFile())) {
+                for (JarEntry entry : (Iterable<JarEntry>) jarFile.stream()::iterator) {
+                    String strName = entry.getName();
+                    if (strName.startsWith(CODE_DIRECTORY) && strName.endsWith(".class")) {
+                        try (InputStream inputStream = jarFile.getInputStream(entry)) {
+                            classFiles.put(strName, readAll(inputStream));
+                        }
+                    }
+                }
+            }
+        }
+        if (classFiles.isEmpty()) {
+            throw new IOException("no class files in " + location);
+        }
+        MessageDigest digest = createDigest();
+        for (Map.Entry<String, byte[]> classFile : classFiles.entrySet()) {
+            digest.update(classFile.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(classFile.getValue());
+        }
+        return toHex(digest.digest());
+    }
+
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] abBuffer = new byte[8192];
+        int nRead;
+        while ((nRead = inputStream.read(abBuffer)) != -1) {
+            outputStream.write(abBuffer, 0, nRead);
+        }
+        return outputStream.toByteArray();
+    }
+
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * A compiled orchestra.
+     */
+    public static class Entry {
+        private final SAOLGlobals m_saolGlobals;
+        private final Map<String, Class<AbstractInstrument>> m_instrumentMap;
+
+
+        public Entry(SAOLGlobals saolGlobals,
+                     Map<String, Class<AbstractInstrument>> instrumentMap) {
+            m_saolGlobals = saolGlobals;
+            m_instrumentMap = instrumentMap;
+        }
+
+
+        public SAOLGlobals getSAOLGlobals() {
+            return m_saolGlobals;
+        }
+
+
+        public Map<String, Class<AbstractInstrument>> getInstrumentMap() {
+            return m_instrumentMap;
+        }
+    }
+}
+
+
+/* CompilationCache.java */
@@ -17,11 +17,15 @@
 package org.tritonus.saol.compiler;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PushbackReader;
 import java.io.Reader;
+import java.nio.file.Files;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -48,20 +52,52 @@ public class Compiler {
 
     private File m_saolFile;
     private int m_nAction;
+    private CompilationCache m_cache;
 
     private Map<String, Class<AbstractInstrument>> m_instrumentMap;
+    private SAOLGlobals m_saolGlobals;
+    private boolean m_bFromCache;
+    private long m_lCompilationTime;
 
     public Compiler(File saolFile) {
         this(saolFile, ACTION_COMPILE_INSTRUMENTS);
     }
 
     public Compiler(File saolFile, int nAction) {
+        this(saolFile, nAction, null);
+    }
+
+    /**
+     * @param cache if not null, compiled instruments are taken from it
+     *              if the SAOL file is unchanged, and stored in it
+     *              otherwise
+     */
+    public Compiler(File saolFile, CompilationCache cache) {
+        this(saolFile, ACTION_COMPILE_INSTRUMENTS, cache);
+    }
+
+    private Compiler(File saolFile, int nAction, CompilationCache cache) {
         m_saolFile = saolFile;
         m_nAction = nAction;
+        m_cache = cache;
     }
 
     public void compile() throws Exception {
-        Reader reader = new FileReader(m_saolFile);
+        long lStart = System.nanoTime();
+        byte[] abSource = Files.readAllBytes(m_saolFile.toPath());
+        if (m_nAction == ACTION_COMPILE_INSTRUMENTS && m_cache != null) {
+            CompilationCache.Entry entry = m_cache.load(abSource);
+            if (entry != null) {
+                m_instrumentMap = entry.getInstrumentMap();
+                m_saolGlobals = entry.getSAOLGlobals();
+                m_bFromCache = true;
+                m_lCompilationTime = (System.nanoTime() - lStart) / 1000000;
+                TDebug.out("loaded " + m_instrumentMap.size() + " instruments from cache in " + m_lCompilationTime + " ms");
+                return;
+            }
+        }
+        // same charset as FileReader
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(abSource));
         reader = new BufferedReader(reader);
         PushbackReader pbReader = new PushbackReader(reader, 1024);
         Lexer lexer = new Lexer(pbReader);
@@ -75,8 +111,23 @@ public class Compiler {
 
         case ACTION_COMPILE_INSTRUMENTS:
             TDebug.out("compiling instruments...");
-            m_instrumentMap = compileInstruments(tree);
+            m_saolGlobals = new SAOLGlobals();
+            Map<String, byte[]> classDataMap = new LinkedHashMap<>();
+            m_instrumentMap = compileInstruments(tree, m_saolGlobals, classDataMap);
+            m_bFromCache = false;
+            m_lCompilationTime = (System.nanoTime() - lStart) / 1000000;
+            TDebug.out("compiled " + m_instrumentMap.size() + " instruments in " + m_lCompilationTime + " ms");
             TDebug.out("IM: " + m_instrumentMap);
+            if (m_cache != null) {
+                try {
+                    m_cache.store(abSource, m_saolGlobals, classDataMap);
+                } catch (IOException e) {
+                    // the compiled instruments are still usable
+                    if (TDebug.TraceAllExceptions) {
+                        TDebug.out(e);
+                    }
+                }
+            }
             break;
         }
     }
@@ -92,7 +143,7 @@ public class Compiler {
     /**
      * Returns a Map: instrument names (String) -> instrument classes (Class)
      */
-    private static Map<String, Class<AbstractInstrument>> compileInstruments(Start tree) {
+    private static Map<String, Class<AbstractInstrument>> compileInstruments(Start tree, SAOLGlobals saolGlobals, Map<String, byte[]> classDataMap) {
         InstrumentTable instrumentTable = new InstrumentTable();
         UserOpcodeTable opcodeTable = new UserOpcodeTable();
         TemplateTable templateTable = new TemplateTable();
@@ -110,7 +161,6 @@ public class Compiler {
         /*
          * Process the global section.
          */
-        SAOLGlobals saolGlobals = new SAOLGlobals();
         if (globalNode != null) {
             GlobalsSearcher gsearcher = new GlobalsSearcher(saolGlobals);
             globalNode.apply(gsearcher);
@@ -143,7 +193,7 @@ public class Compiler {
         /*
          * Compiling the instruments.
          */
-        InstrumentCompilation ic = new InstrumentCompilation(saolGlobals, instrumentMap);
+        InstrumentCompilation ic = new InstrumentCompilation(saolGlobals, instrumentMap, classDataMap);
         instruments = instrumentTable.values().iterator();
         while (instruments.hasNext()) {
             InstrumentEntry entry = instruments.next();
@@ -168,15 +218,43 @@ public class Compiler {
         return m_instrumentMap;
     }
 
+    /**
+     * Returns the global parameters of the orchestra, or null if no
+     * instruments were compiled.
+     */
+    public SAOLGlobals getSAOLGlobals() {
+        return m_saolGlobals;
+    }
+
+    /**
+     * Returns whether the instruments were loaded from the cache
+     * instead of being compiled.
+     */
+    public boolean isFromCache() {
+        return m_bFromCache;
+    }
+
+    /**
+     * Returns the time compile() took to compile or load the
+     * instruments, in milliseconds.
+     */
+    public long getCompilationTime() {
+        return m_lCompilationTime;
+    }
+
     public static void main(String[] arguments) {
         int nAction = ACTION_COMPILE_INSTRUMENTS;
+        CompilationCache cache = null;
         String strSaolFilename = arguments[0];
         if (arguments[0].equals("-d")) {
             nAction = ACTION_DUMP_TREE;
             strSaolFilename = arguments[1];
+        } else if (arguments[0].equals("-c")) {
+            cache = new CompilationCache(new File(arguments[1]));
+            strSaolFilename = arguments[2];
         }
         File saolFile = new File(strSaolFilename);
-        Compiler compiler = new Compiler(saolFile, nAction);
+        Compiler compiler = new Compiler(saolFile, nAction, cache);
         try {
             compiler.compile();
         } catch (Exception e) {
@@ -19,15 +19,22 @@ package org.tritonus.saol.compiler;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.bcel.Const;
 import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.generic.ALOAD;
+import org.apache.bcel.generic.ASTORE;
 import org.apache.bcel.generic.ArrayType;
 import org.apache.bcel.generic.BranchInstruction;
 import org.apache.bcel.generic.ClassGen;
 import org.apache.bcel.generic.CompoundInstruction;
 import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.FLOAD;
+import org.apache.bcel.generic.FSTORE;
 import org.apache.bcel.generic.FieldGen;
 import org.apache.bcel.generic.GOTO;
 import org.apache.bcel.generic.IFEQ;
@@ -36,6 +43,10 @@ import org.apache.bcel.generic.IFGT;
 import org.apache.bcel.generic.IFLE;
 import org.apache.bcel.generic.IFLT;
 import org.apache.bcel.generic.IFNE;
+import org.apache.bcel.generic.IF_ICMPLT;
+import org.apache.bcel.generic.IINC;
+import org.apache.bcel.generic.ILOAD;
+import org.apache.bcel.generic.ISTORE;
 import org.apache.bcel.generic.Instruction;
 import org.apache.bcel.generic.InstructionConst;
 import org.apache.bcel.generic.InstructionFactory;
@@ -53,6 +64,13 @@ import org.tritonus.saol.sablecc.node.*;
 /**
  * InstrumentCompilation.java
  * <p>
+ * Besides doAPass(), which computes one a-cycle, a block a-pass
+ * doABlock() is generated that loops over all a-cycles of a control
+ * period. It is compiled from a second walk over the statements of the
+ * instrument. In the loop, the variables of the instrument are held in
+ * local variables; they are loaded from the fields before the loop and
+ * stored back after it.
+ * <p>
  * This file is part of Tritonus: http://www.tritonus.org/
  */
 public class InstrumentCompilation extends DepthFirstAdapter {
@@ -73,10 +91,19 @@ public class InstrumentCompilation extends DepthFirstAdapter {
 
     private static final Type FLOAT_ARRAY = new ArrayType(Type.FLOAT, 1);
 
+    // local variables of doABlock(RTSystem, float[], int, int)
+    private static final int LOCAL_BLOCK = 2;
+    private static final int LOCAL_WIDTH = 3;
+    private static final int LOCAL_CYCLES = 4;
+    private static final int LOCAL_CYCLE = 5;
+    private static final int LOCAL_FIRST_VARIABLE = 6;
+
     private SAOLGlobals m_saolGlobals;
 
     // maps instrument names (String) to classes (Class)
     private Map<String, Class<AbstractInstrument>> m_instrumentMap;
+    // maps instrument names (String) to class files (byte[]); may be null
+    private Map<String, byte[]> m_classDataMap;
     private Map<Node, Object> m_nodeAttributes;
     private String m_strClassName;
     private ClassGen m_classGen;
@@ -95,10 +122,22 @@ public class InstrumentCompilation extends DepthFirstAdapter {
     // 2: doKPass()
     // 3: doAPass()
     private InstrumentMethod[] m_aMethods;
+    private BlockInstrumentMethod m_blockMethod;
+    private Set<String> m_scalarVariables;
+    private Set<String> m_arrayVariables;
 
     public InstrumentCompilation(SAOLGlobals saolGlobals, Map<String, Class<AbstractInstrument>> instrumentMap) {
+        this(saolGlobals, instrumentMap, null);
+    }
+
+    /**
+     * @param classDataMap if not null, the class file of each
+     *                     instrument is put into it, for caching
+     */
+    public InstrumentCompilation(SAOLGlobals saolGlobals, Map<String, Class<AbstractInstrument>> instrumentMap, Map<String, byte[]> classDataMap) {
         m_saolGlobals = saolGlobals;
         m_instrumentMap = instrumentMap;
+        m_classDataMap = classDataMap;
         m_nodeAttributes = new HashMap<>();
         m_aMethods = new InstrumentMethod[4];
     }
@@ -117,6 +156,9 @@ public class InstrumentCompilation extends DepthFirstAdapter {
         m_aMethods[METHOD_I] = new InstrumentMethod(m_classGen, "doIPass");
         m_aMethods[METHOD_K] = new InstrumentMethod(m_classGen, "doKPass");
         m_aMethods[METHOD_A] = new InstrumentMethod(m_classGen, "doAPass");
+        m_blockMethod = new BlockInstrumentMethod(m_classGen);
+        m_scalarVariables = new LinkedHashSet<>();
+        m_arrayVariables = new LinkedHashSet<>();
         m_aMethods[METHOD_CONSTR].appendInstruction(InstructionConst.ALOAD_0);
         Instruction invokeSuperInstruction = m_instructionFactory.createInvoke(SUPERCLASS_NAME, "<init>", Type.VOID, Type.NO_ARGS, Const.INVOKESPECIAL);
 //        Instruction invokeSuperInstruction = m_instructionFactory.createInvoke(SUPERCLASS_NAME, SUPERCLASS_CONSTRUCTOR_NAME, Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL);
@@ -124,6 +166,15 @@ public class InstrumentCompilation extends DepthFirstAdapter {
     }
 
     public void outAInstrdeclInstrdecl(AInstrdeclInstrdecl node) {
+        // second walk over the statements, generating doABlock()
+        InstrumentMethod aPass = m_aMethods[METHOD_A];
+        m_aMethods[METHOD_A] = m_blockMethod;
+        if (node.getBlock() != null) {
+            node.getBlock().apply(this);
+        }
+        m_aMethods[METHOD_A] = aPass;
+        m_blockMethod.finish();
+        createResetMethod();
         for (InstrumentMethod m_aMethod : m_aMethods) {
             m_aMethod.finish();
         }
@@ -135,6 +186,9 @@ public class InstrumentCompilation extends DepthFirstAdapter {
             @SuppressWarnings("unchecked")
             Class<AbstractInstrument> instrumentClass = (Class<AbstractInstrument>) m_classLoader.findClass(m_strClassName, abData);
             m_instrumentMap.put(m_strClassName, instrumentClass);
+            if (m_classDataMap != null) {
+                m_classDataMap.put(m_strClassName, abData);
+            }
             if (DEBUG) {
                 javaClass.dump(m_strClassName + CLASSFILENAME_SUFFIX);
             }
@@ -216,9 +270,26 @@ public class InstrumentCompilation extends DepthFirstAdapter {
     }
 
     public void inAOutputStatement(AOutputStatement node) {
+        if (getOutputWidth(node) > 1) {
+            throw new RuntimeException("output of more than one value is not supported");
+        }
+        if (getOutputWidth(node) == 1) {
+            m_aMethods[METHOD_A].beginOutput();
+        }
     }
 
     public void outAOutputStatement(AOutputStatement node) {
+        if (getOutputWidth(node) == 1) {
+            m_aMethods[METHOD_A].endOutput();
+        }
+    }
+
+    private static int getOutputWidth(AOutputStatement node) {
+        AExprlistExprlist exprlist = (AExprlistExprlist) node.getExprlist();
+        if (exprlist == null) {
+            return 0;
+        }
+        return 1 + exprlist.getExprlistTail().size();
     }
 
     public void inASpatializeStatement(ASpatializeStatement node) {
@@ -256,11 +327,9 @@ public class InstrumentCompilation extends DepthFirstAdapter {
      * instruction is executed.
      */
     public void outASimpleLvalue(ASimpleLvalue node) {
-        m_aMethods[METHOD_A].appendInstruction(InstructionConst.ALOAD_0);
         String strVariableName = node.getIdentifier().getText();
-        // TODO: use getClassName()
         // set the instruction to be executed after the rvalue is calculated
-        Instruction instruction = getInstructionFactory().createPutField(m_strClassName, strVariableName, Type.FLOAT);
+        Instruction instruction = m_aMethods[METHOD_A].prepareStore(strVariableName);
         setNodeAttribute(node, instruction);
     }
 
@@ -636,6 +705,7 @@ public class InstrumentCompilation extends DepthFirstAdapter {
     }
 
     private void addLocalVariable(String strVariableName) {
+        m_scalarVariables.add(strVariableName);
         FieldGen fieldGen;
         fieldGen = new FieldGen(Const.ACC_PRIVATE,
                 Type.FLOAT,
@@ -646,6 +716,7 @@ public class InstrumentCompilation extends DepthFirstAdapter {
     }
 
     private void addLocalArray(String strVariableName) {
+        m_arrayVariables.add(strVariableName);
         FieldGen fieldGen;
         fieldGen = new FieldGen(Const.ACC_PRIVATE,
                 FLOAT_ARRAY,
@@ -655,6 +726,26 @@ public class InstrumentCompilation extends DepthFirstAdapter {
 
     }
 
+    /**
+     * Generates reset(), which restores the state the constructor
+     * establishes: all variables 0.0. Instances of classes with this
+     * method are reused by RTSystem.
+     */
+    private void createResetMethod() {
+        InstrumentMethod resetMethod = new InstrumentMethod(m_classGen, "reset", Type.NO_ARGS, new String[0]);
+        for (String strVariableName : m_scalarVariables) {
+            resetMethod.appendInstruction(InstructionConst.ALOAD_0);
+            resetMethod.appendInstruction(InstructionConst.FCONST_0);
+            resetMethod.appendPutField(strVariableName);
+        }
+        for (String strVariableName : m_arrayVariables) {
+            resetMethod.appendGetField(strVariableName);
+            resetMethod.appendInstruction(InstructionConst.FCONST_0);
+            resetMethod.appendInstruction(getInstructionFactory().createInvoke("java.util.Arrays", "fill", Type.VOID, new Type[] {FLOAT_ARRAY, Type.FLOAT}, Const.INVOKESTATIC));
+        }
+        resetMethod.finish();
+    }
+
     /**
      * Returns the InstructionFactory.
      * This method is mainly for use by inner classes.
@@ -669,17 +760,24 @@ public class InstrumentCompilation extends DepthFirstAdapter {
 
         private ClassGen m_classGen;
         private MethodGen m_methodGen;
-        private InstructionList m_instructionList;
+        protected InstructionList m_instructionList;
         private BranchInstruction m_pendingBranchInstruction;
 
         public InstrumentMethod(ClassGen classGen, String strMethodName) {
+            this(classGen, strMethodName,
+                    new Type[] {new ObjectType("org.tritonus.saol.engine.RTSystem")},
+                    new String[] {"rtSystem"});
+        }
+
+        protected InstrumentMethod(ClassGen classGen, String strMethodName,
+                                   Type[] aArgumentTypes, String[] astrArgumentNames) {
             m_classGen = classGen;
             m_instructionList = new InstructionList();
             m_methodGen = new MethodGen(
                     Const.ACC_PUBLIC,
                     Type.VOID,
-                    new Type[] {new ObjectType("org.tritonus.saol.engine.RTSystem")},
-                    new String[] {"rtSystem"},
+                    aArgumentTypes,
+                    astrArgumentNames,
                     strMethodName,
                     m_classGen.getClassName(),
                     m_instructionList,
@@ -729,10 +827,35 @@ public class InstrumentCompilation extends DepthFirstAdapter {
             // System.out.println("class name: " + m_strClassName);
             // System.out.println("var name: " + strVariableName);
             appendInstruction(InstructionConst.ALOAD_0);
-            Instruction instruction = getInstructionFactory().createGetField(m_strClassName, strVariableName, Type.FLOAT);
+            Instruction instruction = getInstructionFactory().createGetField(m_strClassName, strVariableName, getVariableType(strVariableName));
             appendInstruction(instruction);
         }
 
+        /**
+         * Prepare the assignment to a scalar variable. Returns the
+         * instruction that does the assignment after the rvalue is
+         * calculated.
+         */
+        public Instruction prepareStore(String strVariableName) {
+            appendInstruction(InstructionConst.ALOAD_0);
+            // TODO: use getClassName()
+            return getInstructionFactory().createPutField(m_strClassName, strVariableName, Type.FLOAT);
+        }
+
+        /**
+         * Called before the value of an output statement is calculated.
+         */
+        public void beginOutput() {
+            appendInstruction(InstructionConst.ALOAD_1);
+        }
+
+        /**
+         * Called after the value of an output statement is calculated.
+         */
+        public void endOutput() {
+            appendInstruction(getInstructionFactory().createInvoke("org.tritonus.saol.engine.RTSystem", "output", Type.VOID, new Type[] {Type.FLOAT}, Const.INVOKEVIRTUAL));
+        }
+
         /**
          * NOTE: this method does not append an ALOAD_0 instruction!
          */
@@ -803,9 +926,99 @@ public class InstrumentCompilation extends DepthFirstAdapter {
         public void finish() {
             appendInstruction(InstructionConst.RETURN);
             m_methodGen.setMaxStack();
+            m_methodGen.setMaxLocals();
             m_classGen.addMethod(m_methodGen.getMethod());
         }
     }
+
+    /**
+     * The block a-pass: doABlock(RTSystem rtSystem, float[] afBlock,
+     * int nWidth, int nCycles). The statements are the body of a loop
+     * over the cycles. Variables are accessed as local variables.
+     */
+    private class BlockInstrumentMethod extends InstrumentMethod {
+
+        // maps variable names to local variable indices
+        private Map<String, Integer> m_localVariables;
+
+        public BlockInstrumentMethod(ClassGen classGen) {
+            super(classGen, "doABlock",
+                    new Type[] {new ObjectType("org.tritonus.saol.engine.RTSystem"), FLOAT_ARRAY, Type.INT, Type.INT},
+                    new String[] {"rtSystem", "afBlock", "nWidth", "nCycles"});
+            m_localVariables = new LinkedHashMap<>();
+        }
+
+        private int getLocalVariable(String strVariableName) {
+            Integer index = m_localVariables.get(strVariableName);
+            if (index == null) {
+                index = LOCAL_FIRST_VARIABLE + m_localVariables.size();
+                m_localVariables.put(strVariableName, index);
+            }
+            return index;
+        }
+
+        public void appendGetField(String strVariableName) {
+            int nIndex = getLocalVariable(strVariableName);
+            if (m_arrayVariables.contains(strVariableName)) {
+                appendInstruction(new ALOAD(nIndex));
+            } else {
+                appendInstruction(new FLOAD(nIndex));
+            }
+        }
+
+        public Instruction prepareStore(String strVariableName) {
+            return new FSTORE(getLocalVariable(strVariableName));
+        }
+
+        public void beginOutput() {
+        }
+
+        public void endOutput() {
+            appendInstruction(new ALOAD(LOCAL_BLOCK));
+            appendInstruction(new ILOAD(LOCAL_WIDTH));
+            appendInstruction(new ILOAD(LOCAL_CYCLE));
+            appendInstruction(getInstructionFactory().createInvoke(SUPERCLASS_NAME, "outputBlock", Type.VOID, new Type[] {Type.FLOAT, FLOAT_ARRAY, Type.INT, Type.INT}, Const.INVOKESTATIC));
+        }
+
+        /**
+         * Wraps the statements into the loop, with loading the
+         * variables before and storing them after the loop.
+         */
+        public void finish() {
+            appendInstruction(new IINC(LOCAL_CYCLE, 1));
+            // the first statement, or the increment if there is none
+            InstructionHandle body = m_instructionList.getStart();
+            InstructionHandle condition = appendInstruction(new ILOAD(LOCAL_CYCLE));
+            appendInstruction(new ILOAD(LOCAL_CYCLES));
+            appendInstruction(new IF_ICMPLT(body));
+            InstructionFactory factory = getInstructionFactory();
+            InstructionList prologue = new InstructionList();
+            for (Map.Entry<String, Integer> entry : m_localVariables.entrySet()) {
+                String strVariableName = entry.getKey();
+                int nIndex = entry.getValue();
+                prologue.append(InstructionConst.ALOAD_0);
+                prologue.append(factory.createGetField(m_strClassName, strVariableName, getVariableType(strVariableName)));
+                if (m_arrayVariables.contains(strVariableName)) {
+                    prologue.append(new ASTORE(nIndex));
+                } else {
+                    prologue.append(new FSTORE(nIndex));
+                    // store back after the loop
+                    appendInstruction(InstructionConst.ALOAD_0);
+                    appendInstruction(new FLOAD(nIndex));
+                    appendInstruction(factory.createPutField(m_strClassName, strVariableName, Type.FLOAT));
+                }
+            }
+            prologue.append(InstructionConst.ICONST_0);
+            prologue.append(new ISTORE(LOCAL_CYCLE));
+            prologue.append(new GOTO(condition));
+            m_instructionList.insert(prologue);
+            super.finish();
+        }
+    }
+
+    private Type getVariableType(String strVariableName) {
+        return m_arrayVariables.contains(strVariableName) ? FLOAT_ARRAY : Type.FLOAT;
+    }
 }
 
 /* InstrumentCompilation.java */
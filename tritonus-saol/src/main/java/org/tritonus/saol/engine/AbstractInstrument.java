@@ -38,6 +38,17 @@ public abstract class AbstractInstrument
     }
 
 
+    /**
+     * Restore the state of a newly constructed instance, so that it
+     * can play another note. This implementation does nothing.
+     * Instruments whose class overrides this method are reused by
+     * RTSystem after their note has ended; others are created anew
+     * for each note. Compiled instruments override it.
+     */
+    public void reset() {
+    }
+
+
     // should be a constructor argument, but is not to simplify instantiation and inheritance
     public void setOutput(Output output) {
         m_outputPort = output;
@@ -73,6 +84,36 @@ public abstract class AbstractInstrument
     }
 
 
+    /**
+     * Run the a-pass for a block of consecutive a-cycles.
+     * The samples output in cycle i are added to the elements
+     * i * nWidth to i * nWidth + nWidth - 1 of afBlock.
+     * This implementation calls doAPass() once per cycle; the
+     * samples it outputs via RTSystem.output() go to the block.
+     * Compiled instruments override this method with a loop over
+     * the cycles inside the method.
+     */
+    public void doABlock(RTSystem rtSystem, float[] afBlock, int nWidth, int nCycles) {
+        for (int i = 0; i < nCycles; i++) {
+            rtSystem.setBlockCycle(afBlock, nWidth, i);
+            doAPass(rtSystem);
+        }
+    }
+
+
+    /**
+     * Add a sample value to all channels of one cycle of a block.
+     * This is the output path of doABlock().
+     * The current hacky version allows only for mono samples.
+     */
+    public static void outputBlock(float fSample, float[] afBlock, int nWidth, int nCycle) {
+        int nStart = nCycle * nWidth;
+        for (int i = 0; i < nWidth; i++) {
+            afBlock[nStart + i] += fSample;
+        }
+    }
+
+
     /**
      * Gives the width of the output port.
      *
@@ -0,0 +1,107 @@
+/*
+ * InstrumentPool.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.saol.engine;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+
+
+/**
+ * Source of instances of one instrument class.
+ * Instances are created through a MethodHandle of the constructor
+ * taking an RTSystem. If the class overrides
+ * {@link AbstractInstrument#reset}, finished instances are reset and
+ * kept for later notes; otherwise they are left to the garbage
+ * collector.
+ * <p>
+ * Instances are obtained and released by the engine thread only;
+ * this class is not thread-safe.
+ */
+class InstrumentPool {
+    /** Maximum number of idle instances kept. */
+    private static final int MAX_IDLE = 256;
+
+    private final MethodHandle m_constructor;
+    private final boolean m_bReusable;
+    private final ArrayDeque<AbstractInstrument> m_idleInstruments;
+
+
+    public InstrumentPool(Class<? extends AbstractInstrument> instrumentClass)
+            throws NoSuchMethodException, IllegalAccessException {
+        m_constructor = MethodHandles.publicLookup().findConstructor(
+                instrumentClass,
+                MethodType.methodType(void.class, RTSystem.class))
+                .asType(MethodType.methodType(AbstractInstrument.class,
+                        RTSystem.class));
+        m_bReusable = instrumentClass.getMethod("reset").getDeclaringClass()
+                != AbstractInstrument.class;
+        m_idleInstruments = new ArrayDeque<>();
+    }
+
+
+    /**
+     * Obtain an instance, either an idle one or a new one.
+     */
+    public AbstractInstrument getInstrument(RTSystem rtSystem) {
+        AbstractInstrument instrument = m_idleInstruments.pollLast();
+        if (instrument != null) {
+            return instrument;
+        }
+        try {
+            return (AbstractInstrument) m_constructor.invokeExact(rtSystem);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+
+    /**
+     * Return an instance that has finished playing.
+     */
+    public void releaseInstrument(AbstractInstrument instrument) {
+        if (!m_bReusable) {
+            return;
+        }
+        if (m_idleInstruments.size() < MAX_IDLE) {
+            instrument.reset();
+            m_idleInstruments.addLast(instrument);
+        }
+    }
+
+
+    /**
+     * Returns whether released instances are kept.
+     */
+    public boolean isReusable() {
+        return m_bReusable;
+    }
+}
+
+
+/* InstrumentPool.java */
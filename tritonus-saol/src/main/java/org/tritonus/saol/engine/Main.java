@@ -24,6 +24,7 @@ import java.util.Map;
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 
+import org.tritonus.saol.compiler.CompilationCache;
 import org.tritonus.saol.compiler.Compiler;
 import org.tritonus.share.TDebug;
 
@@ -38,7 +39,9 @@ public class Main {
         File saolFile = new File(args[0]);
         File saslFile = new File(args[1]);
         File outputFile = new File(args[2]);
-        Compiler compiler = new Compiler(saolFile);
+        // optional: directory of the cache of compiled orchestras
+        CompilationCache cache = args.length > 3 ? new CompilationCache(new File(args[3])) : null;
+        Compiler compiler = new Compiler(saolFile, cache);
         try {
             compiler.compile();
         } catch (Exception e) {
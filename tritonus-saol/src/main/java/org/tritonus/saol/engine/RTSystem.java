@@ -17,11 +17,15 @@
 package org.tritonus.saol.engine;
 
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.tritonus.share.TDebug;
 
@@ -29,11 +33,34 @@ import org.tritonus.share.TDebug;
 /**
  * RTSystem.
  * <p>
+ * The active instruments are divided into partitions of
+ * PARTITION_SIZE instruments, in the order of activation. For each
+ * control period, the k-passes of a partition are run, then the
+ * a-passes of each instrument for the whole period, as one block,
+ * into a private buffer of the partition. If parallel rendering
+ * is enabled, partitions are rendered concurrently in the common
+ * ForkJoinPool. The partition buffers are then summed pairwise in a fixed
+ * tree order into the system output. The order of the additions depends
+ * only on the number of active instruments, so the output is the same
+ * for serial and parallel rendering, sample by sample.
+ * <p>
+ * Scheduled notes wait in a queue ordered by start time, so each
+ * i-pass only looks at the notes that are due. When a note starts, an
+ * instance is obtained from the InstrumentPool of its instrument;
+ * those of compiled instruments are reset and reused once their note
+ * has ended.
+ * <p>
  * This file is part of Tritonus: http://www.tritonus.org/
  */
 public class RTSystem extends Thread {
     private static final boolean DEBUG = false;
 
+    /**
+     * Number of instruments rendered together into one bus.
+     * Changing it changes the order of the summation of the samples.
+     */
+    private static final int PARTITION_SIZE = 16;
+
     private SystemOutput m_output;
     private Map<String, Class<AbstractInstrument>> m_instrumentMap;
     private boolean m_bRunning;
@@ -43,19 +70,42 @@ public class RTSystem extends Thread {
     private int m_nKRate;
     private int m_nAToKRateFactor;
     private List<AbstractInstrument> m_activeInstruments;
-    private final List<AbstractInstrument> m_scheduledInstruments;
+    private final PriorityQueue<ScheduledNote> m_scheduledNotes;
+    private long m_lScheduleSequence;
+    private final Map<Class<?>, InstrumentPool> m_instrumentPools;
     private int m_nScheduledEndTime;
     private float m_fFloatToIntTimeFactor;
     private float m_fIntToFloatTimeFactor;
+    private final boolean m_bParallel;
+    private final List<Partition> m_partitions;
+    /** Where RTSystem.output() goes, for the thread rendering. */
+    private final ThreadLocal<BlockCycle> m_blockCycle;
+    private float[] m_afFrame;
 
     public RTSystem(SystemOutput output, Map<String, Class<AbstractInstrument>> instrumentMap) {
+        this(output, instrumentMap, true);
+    }
+
+    /**
+     * @param bParallel whether partitions of instruments should be
+     *                  rendered in parallel
+     */
+    public RTSystem(SystemOutput output, Map<String, Class<AbstractInstrument>> instrumentMap, boolean bParallel) {
         m_output = output;
         m_instrumentMap = instrumentMap;
+        m_bParallel = bParallel;
         // TODO:
         setRates(44100, 100);
-        m_activeInstruments = new LinkedList<>();
-        m_scheduledInstruments = new LinkedList<>();
+        m_activeInstruments = new ArrayList<>();
+        // notes with the same start time in the order of scheduling
+        m_scheduledNotes = new PriorityQueue<>(
+                Comparator.comparingInt((ScheduledNote note) -> note.m_nStartTime)
+                        .thenComparingLong(note -> note.m_lSequence));
+        m_instrumentPools = new ConcurrentHashMap<>();
         m_nScheduledEndTime = Integer.MAX_VALUE;
+        m_partitions = new ArrayList<>();
+        m_blockCycle = ThreadLocal.withInitial(BlockCycle::new);
+        m_afFrame = new float[output.getWidth()];
     }
 
     private void setRates(int nARate, int nKRate) {
@@ -81,10 +131,8 @@ public class RTSystem extends Thread {
         m_nTime = 0;
         while (m_bRunning) {
             doI();
-            doK();
-            for (int i = 0; i < m_nAToKRateFactor; i++) {
-                doA();
-            }
+            render();
+            emit();
             advanceTime();
         }
         m_output.close();
@@ -95,64 +143,131 @@ public class RTSystem extends Thread {
             TDebug.out("doI()");
             TDebug.out("time: " + getTime());
         }
-        synchronized (m_scheduledInstruments) {
-            Iterator<AbstractInstrument> scheduledInstruments = m_scheduledInstruments.iterator();
-            while (scheduledInstruments.hasNext()) {
-                if (DEBUG) {
-                    TDebug.out("scheduled instrument");
+        while (true) {
+            ScheduledNote note;
+            synchronized (m_scheduledNotes) {
+                note = m_scheduledNotes.peek();
+                if (note == null || getTime() < note.m_nStartTime) {
+                    break;
                 }
-                AbstractInstrument instrument = scheduledInstruments.next();
-                if (DEBUG) {
-                    TDebug.out("instrument start time: " + instrument.getStartTime());
-                }
-                if (getTime() >= instrument.getStartTime()) {
-                    if (DEBUG) {
-                        TDebug.out("...activating");
-                    }
-                    scheduledInstruments.remove();
-                    instrument.doIPass(this);
-                    m_activeInstruments.add(instrument);
+                m_scheduledNotes.poll();
+            }
+            if (DEBUG) {
+                TDebug.out("...activating, start time: " + note.m_nStartTime);
+            }
+            AbstractInstrument instrument;
+            try {
+                instrument = note.m_pool.getInstrument(this);
+            } catch (RuntimeException e) {
+                // the note is dropped; the others play
+                if (TDebug.TraceAllExceptions) {
+                    TDebug.out(e);
                 }
+                continue;
             }
+            instrument.setStartAndEndTime(note.m_nStartTime, note.m_nEndTime);
+            instrument.doIPass(this);
+            m_activeInstruments.add(instrument);
         }
-        Iterator<AbstractInstrument> activeInstruments = m_activeInstruments.iterator();
-        while (activeInstruments.hasNext()) {
-            AbstractInstrument instrument = activeInstruments.next();
+        m_activeInstruments.removeIf(instrument -> {
             if (getTime() > instrument.getEndTime()) {
                 if (DEBUG) {
                     TDebug.out("...DEactivating");
                 }
-                activeInstruments.remove();
+                m_instrumentPools.get(instrument.getClass())
+                        .releaseInstrument(instrument);
+                return true;
             }
-        }
+            return false;
+        });
         if (getTime() >= getScheduledEndTime()) {
             stopEngine();
         }
     }
 
-    private void doK() {
-        for (AbstractInstrument instrument : m_activeInstruments) {
-            instrument.doKPass(this);
+    /**
+     * Run the k-pass and the a-passes of one control period for all
+     * active instruments, each partition into its own bus.
+     */
+    private void render() {
+        int nPartitions = (m_activeInstruments.size() + PARTITION_SIZE - 1) / PARTITION_SIZE;
+        int nWidth = m_output.getWidth();
+        while (m_partitions.size() < nPartitions) {
+            m_partitions.add(new Partition(nWidth, m_nAToKRateFactor));
+        }
+        if (m_bParallel && nPartitions > 1) {
+            ForkJoinPool.commonPool().invoke(new RenderTask(0, nPartitions));
+        } else {
+            for (int i = 0; i < nPartitions; i++) {
+                renderPartition(i);
+            }
+        }
+        // sum pairwise: partition i gets partition i + nStep
+        for (int nStep = 1; nStep < nPartitions; nStep *= 2) {
+            for (int i = 0; i + nStep < nPartitions; i += 2 * nStep) {
+                float[] afTarget = m_partitions.get(i).m_afBlock;
+                float[] afSource = m_partitions.get(i + nStep).m_afBlock;
+                for (int j = 0; j < afTarget.length; j++) {
+                    afTarget[j] += afSource[j];
+                }
+            }
+        }
+    }
+
+    private void renderPartition(int nPartition) {
+        Partition partition = m_partitions.get(nPartition);
+        List<AbstractInstrument> instruments = m_activeInstruments.subList(
+                nPartition * PARTITION_SIZE,
+                Math.min(m_activeInstruments.size(), (nPartition + 1) * PARTITION_SIZE));
+        float[] afBlock = partition.m_afBlock;
+        Arrays.fill(afBlock, 0.0F);
+        int nWidth = m_afFrame.length;
+        BlockCycle blockCycle = m_blockCycle.get();
+        try {
+            // output of the k-pass is discarded, as it always was
+            blockCycle.set(partition.m_afDiscarded, nWidth, 0);
+            for (AbstractInstrument instrument : instruments) {
+                instrument.doKPass(this);
+            }
+            // the samples of each cycle are still summed in instrument order
+            for (AbstractInstrument instrument : instruments) {
+                instrument.doABlock(this, afBlock, nWidth, m_nAToKRateFactor);
+            }
+        } finally {
+            blockCycle.set(null, 0, 0);
         }
     }
 
-    private void doA() throws IOException {
-        // TDebug.out("doA()");
-        m_output.clear();
-        for (AbstractInstrument instrument : m_activeInstruments) {
-            // TDebug.out("doA(): has active Instrument");
-            instrument.doAPass(this);
+    /**
+     * Write the a-cycles of the control period to the system output.
+     */
+    private void emit() throws IOException {
+        int nWidth = m_afFrame.length;
+        boolean bSilent = m_activeInstruments.isEmpty();
+        for (int i = 0; i < m_nAToKRateFactor; i++) {
+            m_output.clear();
+            if (!bSilent) {
+                System.arraycopy(m_partitions.get(0).m_afBlock, i * nWidth, m_afFrame, 0, nWidth);
+                m_output.output(m_afFrame);
+            }
+            m_output.emit();
         }
-        m_output.emit();
     }
 
     public void scheduleInstrument(String strInstrumentName, float fStartTime, float fDuration) {
-        AbstractInstrument instrument = createInstrumentInstance(strInstrumentName);
+        InstrumentPool pool;
+        try {
+            pool = getInstrumentPool(strInstrumentName);
+        } catch (Exception e) {
+            if (TDebug.TraceAllExceptions) {
+                TDebug.out(e);
+            }
+            return;
+        }
         int nStartTime = Math.round(fStartTime * m_fFloatToIntTimeFactor);
         int nEndTime = Math.round((fStartTime + fDuration) * m_fFloatToIntTimeFactor);
-        instrument.setStartAndEndTime(nStartTime, nEndTime);
-        synchronized (m_scheduledInstruments) {
-            m_scheduledInstruments.add(instrument);
+        synchronized (m_scheduledNotes) {
+            m_scheduledNotes.add(new ScheduledNote(pool, nStartTime, nEndTime, m_lScheduleSequence++));
             if (DEBUG) {
                 TDebug.out("adding instrument");
                 TDebug.out("start: " + nStartTime);
@@ -178,23 +293,119 @@ public class RTSystem extends Thread {
         return m_nTime;
     }
 
+    /**
+     * Add a sample value of the instrument currently rendered.
+     * This method is called by the instruments' a-cycle code.
+     */
     public void output(float fValue) {
-        m_output.output(fValue);
+        BlockCycle blockCycle = m_blockCycle.get();
+        if (blockCycle.m_afBlock != null) {
+            AbstractInstrument.outputBlock(fValue, blockCycle.m_afBlock,
+                    blockCycle.m_nWidth, blockCycle.m_nCycle);
+        } else {
+            m_output.output(fValue);
+        }
+    }
+
+    /**
+     * Set the cycle of a block that output() of the calling thread goes to.
+     * Used by AbstractInstrument.doABlock().
+     */
+    void setBlockCycle(float[] afBlock, int nWidth, int nCycle) {
+        m_blockCycle.get().set(afBlock, nWidth, nCycle);
     }
 
     private int getScheduledEndTime() {
         return m_nScheduledEndTime;
     }
 
-    private AbstractInstrument createInstrumentInstance(String strInstrumentName) {
-        AbstractInstrument instrument = null;
+    /**
+     * Obtain the pool of an instrument, creating it on first use.
+     */
+    private InstrumentPool getInstrumentPool(String strInstrumentName)
+            throws NoSuchMethodException, IllegalAccessException {
         Class<AbstractInstrument> instrumentClass = m_instrumentMap.get(strInstrumentName);
-        try {
-            Constructor<AbstractInstrument> constructor = instrumentClass.getConstructor(RTSystem.class);
-            instrument = constructor.newInstance(this);
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (instrumentClass == null) {
+            throw new IllegalArgumentException("unknown instrument: " + strInstrumentName);
+        }
+        InstrumentPool pool = m_instrumentPools.get(instrumentClass);
+        if (pool == null) {
+            pool = new InstrumentPool(instrumentClass);
+            InstrumentPool previous = m_instrumentPools.putIfAbsent(instrumentClass, pool);
+            if (previous != null) {
+                pool = previous;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * A note waiting for its start time.
+     */
+    private static class ScheduledNote {
+        private final InstrumentPool m_pool;
+        private final int m_nStartTime;
+        private final int m_nEndTime;
+        private final long m_lSequence;
+
+        public ScheduledNote(InstrumentPool pool, int nStartTime, int nEndTime, long lSequence) {
+            m_pool = pool;
+            m_nStartTime = nStartTime;
+            m_nEndTime = nEndTime;
+            m_lSequence = lSequence;
+        }
+    }
+
+    /**
+     * Private buffer of a partition with the samples of all a-cycles
+     * of the current control period.
+     */
+    private static class Partition {
+        private final float[] m_afBlock;
+        private final float[] m_afDiscarded;
+
+        public Partition(int nWidth, int nCycles) {
+            m_afBlock = new float[nWidth * nCycles];
+            m_afDiscarded = new float[nWidth];
+        }
+    }
+
+    /**
+     * A cycle of a block; the target of output() in one thread.
+     */
+    private static class BlockCycle {
+        private float[] m_afBlock;
+        private int m_nWidth;
+        private int m_nCycle;
+
+        public void set(float[] afBlock, int nWidth, int nCycle) {
+            m_afBlock = afBlock;
+            m_nWidth = nWidth;
+            m_nCycle = nCycle;
+        }
+    }
+
+    /**
+     * Renders a range of partitions, splitting it in halves.
+     */
+    private class RenderTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int m_nStart;
+        private final int m_nEnd;
+
+        public RenderTask(int nStart, int nEnd) {
+            m_nStart = nStart;
+            m_nEnd = nEnd;
+        }
+
+        protected void compute() {
+            if (m_nEnd - m_nStart == 1) {
+                renderPartition(m_nStart);
+            } else {
+                int nMiddle = (m_nStart + m_nEnd) >>> 1;
+                invokeAll(new RenderTask(m_nStart, nMiddle), new RenderTask(nMiddle, m_nEnd));
+            }
         }
-        return instrument;
     }
 }
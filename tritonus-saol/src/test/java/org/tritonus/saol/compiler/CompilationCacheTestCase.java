@@ -0,0 +1,148 @@
+/*
+ * CompilationCacheTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.saol.compiler;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.tritonus.saol.engine.AbstractInstrument;
+import org.tritonus.saol.engine.RTSystem;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class CompilationCacheTestCase {
+    private File m_directory;
+    private File m_saolFile;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        m_directory = Files.createTempDirectory("tritonus").toFile();
+        m_saolFile = new File(m_directory, "tone.saol");
+        Files.write(m_saolFile.toPath(),
+                InstrumentCompilationTestCase.ORCHESTRA.getBytes(StandardCharsets.US_ASCII));
+    }
+
+
+    @AfterEach
+    public void tearDown() {
+        for (File file : getEntryFiles()) {
+            file.delete();
+        }
+        m_saolFile.delete();
+        m_directory.delete();
+        // dumped to the working directory while DEBUG is on
+        new File("tone.class").delete();
+    }
+
+
+    @Test
+    public void testCompilerVersion() {
+        String strVersion = new CompilationCache(m_directory).getCompilerVersion();
+        assertEquals(strVersion, new CompilationCache(m_directory).getCompilerVersion(), "same classes");
+        // a SHA-256 hash over the class files
+        assertTrue(strVersion.matches("[0-9a-f]{64}"), "version: " + strVersion);
+    }
+
+
+    @Test
+    public void testHit() throws Exception {
+        Compiler compiled = compile(new CompilationCache(m_directory));
+        assertFalse(compiled.isFromCache(), "first compilation from cache");
+        assertEquals(1, getEntryFiles().length, "entries");
+
+        Compiler loaded = compile(new CompilationCache(m_directory));
+        assertTrue(loaded.isFromCache(), "second compilation from cache");
+        SAOLGlobals saolGlobals = loaded.getSAOLGlobals();
+        assertEquals(44100, saolGlobals.getARate(), "a-rate");
+        assertEquals(100, saolGlobals.getKRate(), "k-rate");
+        assertEquals(1, saolGlobals.getOutChannels(), "output channels");
+        assertArrayEquals(render(compiled), render(loaded), "output of loaded instrument");
+    }
+
+
+    @Test
+    public void testVersionChange() throws Exception {
+        compile(new CompilationCache(m_directory, "1"));
+        assertTrue(compile(new CompilationCache(m_directory, "1")).isFromCache(), "same version");
+        assertFalse(compile(new CompilationCache(m_directory, "2")).isFromCache(), "other version");
+        assertEquals(2, getEntryFiles().length, "entries");
+        assertNotEquals(new CompilationCache(m_directory).getCompilerVersion(), "1", "version");
+    }
+
+
+    @Test
+    public void testCorruptEntry() throws Exception {
+        compile(new CompilationCache(m_directory));
+        File[] entryFiles = getEntryFiles();
+        assertEquals(1, entryFiles.length, "entries");
+        byte[] abEntry = Files.readAllBytes(entryFiles[0].toPath());
+
+        // truncated in the middle of the class file
+        Files.write(entryFiles[0].toPath(), Arrays.copyOf(abEntry, abEntry.length - 10));
+        Compiler compiler = compile(new CompilationCache(m_directory));
+        assertFalse(compiler.isFromCache(), "truncated entry used");
+        assertNotNull(compiler.getInstrumentMap().get("tone"), "instrument");
+        assertArrayEquals(abEntry, Files.readAllBytes(entryFiles[0].toPath()), "entry rewritten");
+
+        // a class file that does not verify
+        for (int i = abEntry.length - 200; i < abEntry.length; i++) {
+            abEntry[i] = (byte) 0xFF;
+        }
+        Files.write(entryFiles[0].toPath(), abEntry);
+        assertFalse(compile(new CompilationCache(m_directory)).isFromCache(), "garbled entry used");
+        assertTrue(compile(new CompilationCache(m_directory)).isFromCache(), "rewritten entry used");
+    }
+
+
+    private Compiler compile(CompilationCache cache) throws Exception {
+        Compiler compiler = new Compiler(m_saolFile, cache);
+        compiler.compile();
+        return compiler;
+    }
+
+
+    private File[] getEntryFiles() {
+        File[] files = m_directory.listFiles((dir, strName) -> strName.endsWith(".tsc"));
+        return files != null ? files : new File[0];
+    }
+
+
+    private static float[] render(Compiler compiler) throws Exception {
+        Class<AbstractInstrument> instrumentClass = compiler.getInstrumentMap().get("tone");
+        InstrumentCompilationTestCase.Output output = new InstrumentCompilationTestCase.Output();
+        RTSystem rtSystem = new RTSystem(output, null);
+        AbstractInstrument instrument = InstrumentCompilationTestCase.create(instrumentClass, rtSystem);
+        return InstrumentCompilationTestCase.renderAPasses(instrument, rtSystem, output);
+    }
+}
+
+
+/* CompilationCacheTestCase.java */
@@ -0,0 +1,186 @@
+/*
+ * InstrumentCompilationTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.saol.compiler;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.saol.engine.AbstractInstrument;
+import org.tritonus.saol.engine.Bus;
+import org.tritonus.saol.engine.RTSystem;
+import org.tritonus.saol.engine.SystemOutput;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Compiles an instrument with a-rate state and compares the block
+ * a-pass, doABlock(), with calling doAPass() once per a-cycle.
+ */
+public class InstrumentCompilationTestCase {
+    /**
+     * The sine oscillator of the SAOL examples.
+     */
+    static final String ORCHESTRA =
+            "global {\n"
+            + "  srate 44100;\n"
+            + "  krate 100;\n"
+            + "  outchannels 1;\n"
+            + "}\n"
+            + "\n"
+            + "instr tone () {\n"
+            + "  asig x, y, init;\n"
+            + "\n"
+            + "  if (init == 0) {\n"
+            + "    init = 1;\n"
+            + "    x = 0.5;\n"
+            + "  }\n"
+            + "  x = x - 0.196307 * y;\n"
+            + "  y = y + 0.196307 * x;\n"
+            + "  output(y);\n"
+            + "}\n";
+
+    private static final String[] VARIABLES = {"x", "y", "init"};
+
+    // a-cycles of a control period at the rates of RTSystem
+    private static final int CYCLES = 441;
+
+
+    @Test
+    public void testBlockAPass() throws Exception {
+        Class<AbstractInstrument> instrumentClass = compile();
+        Output output = new Output();
+        RTSystem rtSystem = new RTSystem(output, null);
+        AbstractInstrument single = create(instrumentClass, rtSystem);
+        AbstractInstrument block = create(instrumentClass, rtSystem);
+        // the second period starts with the values stored after the first
+        for (int nPeriod = 0; nPeriod < 2; nPeriod++) {
+            float[] afExpected = renderAPasses(single, rtSystem, output);
+            float[] afBlock = new float[CYCLES];
+            block.doABlock(rtSystem, afBlock, 1, CYCLES);
+            assertArrayEquals(afExpected, afBlock, "samples of period " + nPeriod);
+            for (String strVariable : VARIABLES) {
+                assertEquals(getVariable(single, strVariable),
+                        getVariable(block, strVariable), 0.0F,
+                        "variable " + strVariable + " after period " + nPeriod);
+            }
+        }
+        // the variables promoted to local variables have been written back
+        assertEquals(1.0F, getVariable(block, "init"), 0.0F, "init");
+        assertTrue(getVariable(block, "y") != 0.0F, "y");
+    }
+
+
+    @Test
+    public void testReset() throws Exception {
+        Class<AbstractInstrument> instrumentClass = compile();
+        Output output = new Output();
+        RTSystem rtSystem = new RTSystem(output, null);
+        AbstractInstrument instrument = create(instrumentClass, rtSystem);
+        float[] afFirst = new float[CYCLES];
+        instrument.doABlock(rtSystem, afFirst, 1, CYCLES);
+        instrument.reset();
+        for (String strVariable : VARIABLES) {
+            assertEquals(0.0F, getVariable(instrument, strVariable), 0.0F,
+                    "variable " + strVariable + " after reset()");
+        }
+        float[] afSecond = new float[CYCLES];
+        instrument.doABlock(rtSystem, afSecond, 1, CYCLES);
+        assertArrayEquals(afFirst, afSecond, "samples after reset()");
+    }
+
+
+    /**
+     * Compile ORCHESTRA and return the class of the instrument.
+     */
+    static Class<AbstractInstrument> compile() throws Exception {
+        File file = File.createTempFile("tritonus", ".saol");
+        try {
+            Files.write(file.toPath(), ORCHESTRA.getBytes(StandardCharsets.US_ASCII));
+            Compiler compiler = new Compiler(file);
+            compiler.compile();
+            Map<String, Class<AbstractInstrument>> instrumentMap = compiler.getInstrumentMap();
+            Class<AbstractInstrument> instrumentClass = instrumentMap.get("tone");
+            assertNotNull(instrumentClass, "instrument class");
+            return instrumentClass;
+        } finally {
+            file.delete();
+            // dumped to the working directory while DEBUG is on
+            new File("tone.class").delete();
+        }
+    }
+
+
+    static AbstractInstrument create(Class<AbstractInstrument> instrumentClass,
+                                     RTSystem rtSystem) throws Exception {
+        return instrumentClass.getConstructor(RTSystem.class).newInstance(rtSystem);
+    }
+
+
+    /**
+     * Run doAPass() for one control period. Outside of doABlock(),
+     * RTSystem.output() goes to the system output.
+     */
+    static float[] renderAPasses(AbstractInstrument instrument, RTSystem rtSystem,
+                                 Output output) {
+        float[] afSamples = new float[CYCLES];
+        for (int i = 0; i < CYCLES; i++) {
+            output.clear();
+            instrument.doAPass(rtSystem);
+            afSamples[i] = output.getValues()[0];
+        }
+        return afSamples;
+    }
+
+
+    private static float getVariable(AbstractInstrument instrument, String strName)
+            throws Exception {
+        Field field = instrument.getClass().getDeclaredField(strName);
+        field.setAccessible(true);
+        return field.getFloat(instrument);
+    }
+
+
+    /**
+     * Mono system output that is only read by the test.
+     */
+    static class Output extends Bus implements SystemOutput {
+        public Output() {
+            super(1);
+        }
+
+
+        public void emit() {
+        }
+
+
+        public void close() {
+        }
+    }
+}
+
+
+/* InstrumentCompilationTestCase.java */
@@ -0,0 +1,207 @@
+/*
+ * InstrumentPoolTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.saol.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests the reuse of instrument instances and the order in which
+ * scheduled notes start.
+ */
+public class InstrumentPoolTestCase {
+    private static final int CYCLES = 441;
+
+
+    @Test
+    public void testReuse() throws Exception {
+        RTSystem rtSystem = createRTSystem(new HashMap<>());
+        InstrumentPool pool = new InstrumentPool(ResettableTone.class);
+        assertTrue(pool.isReusable(), "reusable");
+
+        AbstractInstrument instrument = pool.getInstrument(rtSystem);
+        float[] afFirst = playNote(instrument, rtSystem);
+        pool.releaseInstrument(instrument);
+
+        AbstractInstrument reused = pool.getInstrument(rtSystem);
+        assertSame(instrument, reused, "instance reused");
+        float[] afSecond = playNote(reused, rtSystem);
+        assertArrayEquals(afFirst, afSecond, "output of reused instance");
+    }
+
+
+    @Test
+    public void testNoReuseWithoutReset() throws Exception {
+        RTSystem rtSystem = createRTSystem(new HashMap<>());
+        InstrumentPool pool = new InstrumentPool(Tone.class);
+        assertFalse(pool.isReusable(), "reusable");
+
+        AbstractInstrument instrument = pool.getInstrument(rtSystem);
+        playNote(instrument, rtSystem);
+        pool.releaseInstrument(instrument);
+        assertNotSame(instrument, pool.getInstrument(rtSystem), "instance reused");
+    }
+
+
+    @Test
+    public void testStartOrder() throws Exception {
+        Map<String, Class<AbstractInstrument>> instrumentMap = new HashMap<>();
+        instrumentMap.put("recorder", cast(StartRecorder.class));
+        RTSystem rtSystem = createRTSystem(instrumentMap);
+        float[] afStartTimes = {0.05F, 0.01F, 0.03F, 0.0F, 0.03F, 0.02F};
+        List<Integer> expected = new ArrayList<>();
+        for (float fStartTime : afStartTimes) {
+            rtSystem.scheduleInstrument("recorder", fStartTime, 0.01F);
+            expected.add(Math.round(fStartTime * 100));
+        }
+        Collections.sort(expected);
+        rtSystem.scheduleEnd(0.1F);
+        List<Integer> started = StartRecorder.getStartTimes();
+        synchronized (started) {
+            started.clear();
+        }
+        rtSystem.start();
+        rtSystem.join();
+        synchronized (started) {
+            assertEquals(expected, started, "times of the i-passes");
+        }
+    }
+
+
+    private static RTSystem createRTSystem(Map<String, Class<AbstractInstrument>> instrumentMap) {
+        return new RTSystem(new RTSystemTestCase.RecordingOutput(1), instrumentMap, false);
+    }
+
+
+    /**
+     * Run the i-pass and the k- and a-passes of two control periods.
+     */
+    private static float[] playNote(AbstractInstrument instrument, RTSystem rtSystem) {
+        instrument.setStartAndEndTime(7, 9);
+        instrument.doIPass(rtSystem);
+        float[] afBlock = new float[CYCLES * 2];
+        float[] afPeriod = new float[CYCLES];
+        for (int nPeriod = 0; nPeriod < 2; nPeriod++) {
+            instrument.doKPass(rtSystem);
+            Arrays.fill(afPeriod, 0.0F);
+            instrument.doABlock(rtSystem, afPeriod, 1, CYCLES);
+            System.arraycopy(afPeriod, 0, afBlock, nPeriod * CYCLES, CYCLES);
+        }
+        return afBlock;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static Class<AbstractInstrument> cast(Class<? extends AbstractInstrument> instrumentClass) {
+        return (Class<AbstractInstrument>) instrumentClass;
+    }
+
+
+    /**
+     * An oscillator that starts on its first a-cycle and decays at
+     * k-rate. Its state after a note differs from the initial state.
+     */
+    public static class Tone extends AbstractInstrument {
+        protected float m_fA;
+        protected float m_fX;
+        protected float m_fY;
+        protected boolean m_bInitialized;
+
+
+        public Tone(RTSystem rtSystem) {
+            m_fA = 0.05F;
+        }
+
+
+        public void doKPass(RTSystem rtSystem) {
+            m_fA *= 0.9F;
+        }
+
+
+        public void doAPass(RTSystem rtSystem) {
+            if (!m_bInitialized) {
+                m_bInitialized = true;
+                m_fX = 0.5F;
+            }
+            m_fX = m_fX - m_fA * m_fY;
+            m_fY = m_fY + m_fA * m_fX;
+            rtSystem.output(m_fY);
+        }
+    }
+
+
+    /**
+     * Tone that restores the state of its constructor.
+     */
+    public static class ResettableTone extends Tone {
+        public ResettableTone(RTSystem rtSystem) {
+            super(rtSystem);
+        }
+
+
+        public void reset() {
+            m_fA = 0.05F;
+            m_fX = 0.0F;
+            m_fY = 0.0F;
+            m_bInitialized = false;
+        }
+    }
+
+
+    /**
+     * Records the time of each i-pass. It has to be the start time
+     * of the note.
+     */
+    public static class StartRecorder extends AbstractInstrument {
+        private static final List<Integer> sm_startTimes = new ArrayList<>();
+
+
+        public StartRecorder(RTSystem rtSystem) {
+        }
+
+
+        public static List<Integer> getStartTimes() {
+            return sm_startTimes;
+        }
+
+
+        public void doIPass(RTSystem rtSystem) {
+            synchronized (sm_startTimes) {
+                sm_startTimes.add(rtSystem.getTime());
+            }
+        }
+    }
+}
+
+
+/* InstrumentPoolTestCase.java */
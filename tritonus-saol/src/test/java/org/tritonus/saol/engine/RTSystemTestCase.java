@@ -0,0 +1,176 @@
+/*
+ * RTSystemTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.saol.engine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Renders an orchestra of hand-written instruments with parallel
+ * rendering of the partitions on and off. The output has to be the
+ * same, sample by sample.
+ */
+public class RTSystemTestCase {
+    // k-rate of RTSystem
+    private static final int K_RATE = 100;
+    private static final int WIDTH = 2;
+
+
+    @Test
+    public void testFewInstruments() throws Exception {
+        checkParallel(10);
+    }
+
+
+    /**
+     * More active instruments than fit into one partition.
+     */
+    @Test
+    public void testManyInstruments() throws Exception {
+        checkParallel(40);
+    }
+
+
+    private static void checkParallel(int nNotes) throws Exception {
+        float[] afSerial = render(nNotes, false);
+        float[] afParallel = render(nNotes, true);
+        assertEquals(afSerial.length, afParallel.length, "length");
+        assertTrue(countNonZero(afSerial) > afSerial.length / 2, "output is silent");
+        // bit by bit, as assertArrayEquals compares floats by their bits
+        assertArrayEquals(afSerial, afParallel, "output of parallel rendering");
+    }
+
+
+    /**
+     * Plays nNotes notes, starting every control period. All notes
+     * sound together for the last 0.1 seconds before the first one
+     * ends.
+     */
+    private static float[] render(int nNotes, boolean bParallel) throws Exception {
+        Map<String, Class<AbstractInstrument>> instrumentMap = new HashMap<>();
+        instrumentMap.put("tone", cast(Tone.class));
+        RecordingOutput output = new RecordingOutput(WIDTH);
+        RTSystem rtSystem = new RTSystem(output, instrumentMap, bParallel);
+        float fLastStart = (nNotes - 1) / (float) K_RATE;
+        for (int i = 0; i < nNotes; i++) {
+            float fStart = i / (float) K_RATE;
+            float fDuration = fLastStart - fStart + 0.1F + (i % 3) * 0.01F;
+            rtSystem.scheduleInstrument("tone", fStart, fDuration);
+        }
+        rtSystem.scheduleEnd(fLastStart + 0.2F);
+        rtSystem.start();
+        rtSystem.join();
+        return output.getSamples();
+    }
+
+
+    private static int countNonZero(float[] afSamples) {
+        int nCount = 0;
+        for (float fSample : afSamples) {
+            if (fSample != 0.0F) {
+                nCount++;
+            }
+        }
+        return nCount;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static Class<AbstractInstrument> cast(Class<? extends AbstractInstrument> instrumentClass) {
+        return (Class<AbstractInstrument>) instrumentClass;
+    }
+
+
+    /**
+     * A sine oscillator whose frequency depends on the start time of
+     * the note and decays at k-rate.
+     */
+    public static class Tone extends AbstractInstrument {
+        private float m_fA;
+        private float m_fX;
+        private float m_fY;
+
+
+        public Tone(RTSystem rtSystem) {
+        }
+
+
+        public void doIPass(RTSystem rtSystem) {
+            m_fA = 0.01F + 0.003F * (getStartTime() % 37);
+            m_fX = 0.5F;
+            m_fY = 0.0F;
+        }
+
+
+        public void doKPass(RTSystem rtSystem) {
+            m_fA *= 0.999F;
+        }
+
+
+        public void doAPass(RTSystem rtSystem) {
+            m_fX = m_fX - m_fA * m_fY;
+            m_fY = m_fY + m_fA * m_fX;
+            rtSystem.output(m_fY * 0.1F);
+        }
+    }
+
+
+    /**
+     * Keeps all frames emitted.
+     */
+    static class RecordingOutput extends Bus implements SystemOutput {
+        private float[] m_afSamples = new float[0];
+        private int m_nLength;
+
+
+        public RecordingOutput(int nWidth) {
+            super(nWidth);
+        }
+
+
+        public void emit() {
+            float[] afValues = getValues();
+            if (m_nLength + afValues.length > m_afSamples.length) {
+                m_afSamples = Arrays.copyOf(m_afSamples, Math.max(1024, m_afSamples.length * 2));
+            }
+            System.arraycopy(afValues, 0, m_afSamples, m_nLength, afValues.length);
+            m_nLength += afValues.length;
+        }
+
+
+        public void close() {
+        }
+
+
+        public float[] getSamples() {
+            return Arrays.copyOf(m_afSamples, m_nLength);
+        }
+    }
+}
+
+
+/* RTSystemTestCase.java */
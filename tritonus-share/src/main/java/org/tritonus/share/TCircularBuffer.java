@@ -18,37 +18,185 @@
 
 package org.tritonus.share;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
+
+/**
+ * Circular byte buffer with optional blocking on read and write.
+ * <p>
+ * The buffer has two implementations. The default one guards every
+ * access with the object monitor, so any number of threads may read
+ * and write. The single-producer/single-consumer (SPSC) implementation
+ * requires that at most one thread writes and at most one thread
+ * reads at a time (the two may be the same thread, as is the case
+ * when the trigger fills the buffer). It works without locks: the
+ * read and write cursors are published through volatile fields,
+ * positions are computed by masking with a power-of-two storage size
+ * and a blocked side is parked and only unparked if it is actually
+ * waiting.
+ * <p>
+ * The SPSC implementation is selected by passing true as
+ * bSingleProducerSingleConsumer or, for code using the constructor
+ * without that parameter, by setting the system property
+ * tritonus.CircularBufferSingleProducerSingleConsumer to true.
+ * <p>
+ * The storage is a byte array by default. Alternatively, any
+ * ByteBuffer can be passed as storage, for instance a direct buffer
+ * or a buffer mapped from a file. Besides the array based methods,
+ * data can be transferred from and to ByteBuffers, and the contents
+ * can be accessed in place: {@link #writeSlice(int)} returns a view
+ * of free space that a producer fills and then hands over with
+ * {@link #commitWrite(int)}; {@link #readSlice(int)} returns a view of
+ * readable data that is released with {@link #commitRead(int)}.
+ * Slices require that there is only one reader and one writer at a
+ * time, whatever the implementation.
+ */
 public class TCircularBuffer {
     private boolean m_bBlockingRead;
     private boolean m_bBlockingWrite;
+    /** The storage. Views and slices are created from it. */
+    private ByteBuffer m_storage;
+    /** The array of m_storage or null if it is not accessible. */
     private byte[] m_abData;
+    /** Used by the reading side to transfer data out of a non-array storage. */
+    private ByteBuffer m_readView;
+    /** Used by the writing side to transfer data into a non-array storage. */
+    private ByteBuffer m_writeView;
+    /** Returned by readSlice(). */
+    private ByteBuffer m_readSlice;
+    /** Returned by writeSlice(). */
+    private ByteBuffer m_writeSlice;
     private int m_nSize;
-    private long m_lReadPos;
-    private long m_lWritePos;
+    private volatile long m_lReadPos;
+    private volatile long m_lWritePos;
     private Trigger m_trigger;
-    private boolean m_bOpen;
+    private volatile boolean m_bOpen;
+    private final boolean m_bSingleProducerSingleConsumer;
+    /** Storage size - 1. Only used in SPSC mode. */
+    private final int m_nMask;
+    /** Reader parked because the buffer is empty. Only used in SPSC mode. */
+    private volatile Thread m_blockedReader;
+    /** Writer parked because the buffer is full. Only used in SPSC mode. */
+    private volatile Thread m_blockedWriter;
 
     public TCircularBuffer(int nSize, boolean bBlockingRead, boolean bBlockingWrite, Trigger trigger) {
+        this(nSize, bBlockingRead, bBlockingWrite, trigger,
+                TSettings.CircularBufferSingleProducerSingleConsumer);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param nSize                         capacity of the buffer in bytes.
+     * @param bSingleProducerSingleConsumer if true, the lock-free
+     *                                      implementation is used. The caller
+     *                                      guarantees that there is at most one
+     *                                      reading and one writing thread at a
+     *                                      time.
+     */
+    public TCircularBuffer(int nSize, boolean bBlockingRead, boolean bBlockingWrite, Trigger trigger,
+                           boolean bSingleProducerSingleConsumer) {
+        // in SPSC mode, the storage is rounded up so that positions
+        // can be masked instead of computed by modulo. The usable
+        // capacity is still nSize.
+        this(ByteBuffer.wrap(new byte[bSingleProducerSingleConsumer ? getPowerOfTwoSize(nSize) : nSize]),
+                nSize, bBlockingRead, bBlockingWrite, trigger, bSingleProducerSingleConsumer);
+    }
+
+    /**
+     * Constructor for a buffer with externally supplied storage.
+     * The bytes between the position and the limit of storage are
+     * used; the buffer's capacity is their number. This allows
+     * to back the circular buffer with a direct or memory-mapped
+     * ByteBuffer.
+     *
+     * @param storage                       the storage. It must not be
+     *                                      accessed otherwise while the
+     *                                      circular buffer is in use.
+     * @param bSingleProducerSingleConsumer if true, the lock-free
+     *                                      implementation is used. In this
+     *                                      case, the number of remaining
+     *                                      bytes in storage has to be a
+     *                                      power of two.
+     * @throws IllegalArgumentException if the SPSC implementation is
+     *                                  requested and the size of the
+     *                                  storage is not a power of two.
+     */
+    public TCircularBuffer(ByteBuffer storage, boolean bBlockingRead, boolean bBlockingWrite, Trigger trigger,
+                           boolean bSingleProducerSingleConsumer) {
+        this(checkStorage(storage, bSingleProducerSingleConsumer), storage.remaining(),
+                bBlockingRead, bBlockingWrite, trigger, bSingleProducerSingleConsumer);
+    }
+
+    private TCircularBuffer(ByteBuffer storage, int nSize, boolean bBlockingRead, boolean bBlockingWrite,
+                            Trigger trigger, boolean bSingleProducerSingleConsumer) {
         m_bBlockingRead = bBlockingRead;
         m_bBlockingWrite = bBlockingWrite;
         m_nSize = nSize;
-        m_abData = new byte[m_nSize];
+        m_bSingleProducerSingleConsumer = bSingleProducerSingleConsumer;
+        m_storage = storage;
+        if (storage.hasArray() && storage.arrayOffset() == 0) {
+            m_abData = storage.array();
+        } else {
+            m_abData = null;
+            m_readView = storage.duplicate();
+            m_writeView = storage.duplicate();
+        }
+        m_readSlice = storage.duplicate();
+        m_writeSlice = storage.duplicate();
+        m_nMask = bSingleProducerSingleConsumer ? storage.capacity() - 1 : 0;
         m_lReadPos = 0;
         m_lWritePos = 0;
         m_trigger = trigger;
         m_bOpen = true;
     }
 
+    private static int getPowerOfTwoSize(int nSize) {
+        return nSize <= 1 ? 1 : Integer.highestOneBit(nSize - 1) << 1;
+    }
+
+    private static ByteBuffer checkStorage(ByteBuffer storage, boolean bSingleProducerSingleConsumer) {
+        int nSize = storage.remaining();
+        if (bSingleProducerSingleConsumer && (nSize == 0 || (nSize & (nSize - 1)) != 0)) {
+            throw new IllegalArgumentException("storage size has to be a power of two: " + nSize);
+        }
+        return storage.slice();
+    }
+
     public void close() {
         m_bOpen = false;
-        // TODO: call notify() ?
+        if (m_bSingleProducerSingleConsumer) {
+            unpark(m_blockedReader);
+            unpark(m_blockedWriter);
+        } else {
+            // wakes up threads blocked in readSlice() or writeSlice()
+            synchronized (this) {
+                notifyAll();
+            }
+        }
     }
 
     private boolean isOpen() {
         return m_bOpen;
     }
 
+    /**
+     * Returns whether the lock-free single-producer/single-consumer
+     * implementation is used.
+     */
+    public boolean isSingleProducerSingleConsumer() {
+        return m_bSingleProducerSingleConsumer;
+    }
+
+    /**
+     * Returns whether the storage is a direct ByteBuffer.
+     */
+    public boolean isDirect() {
+        return m_storage.isDirect();
+    }
+
     public int availableRead() {
         return (int) (m_lWritePos - m_lReadPos);
     }
@@ -58,11 +206,18 @@ public class TCircularBuffer {
     }
 
     private int getReadPos() {
-        return (int) (m_lReadPos % m_nSize);
+        return getStoragePos(m_lReadPos);
     }
 
     private int getWritePos() {
-        return (int) (m_lWritePos % m_nSize);
+        return getStoragePos(m_lWritePos);
+    }
+
+    private int getStoragePos(long lPos) {
+        if (m_bSingleProducerSingleConsumer) {
+            return (int) lPos & m_nMask;
+        }
+        return (int) (lPos % m_nSize);
     }
 
     public int read(byte[] abData) {
@@ -70,6 +225,26 @@ public class TCircularBuffer {
     }
 
     public int read(byte[] abData, int nOffset, int nLength) {
+        return read(abData, nOffset, null, nLength);
+    }
+
+    /**
+     * Reads data into a ByteBuffer.
+     * The semantics are the same as for {@link #read(byte[], int, int)},
+     * with the remaining bytes of buffer as length. The position of
+     * buffer is advanced by the number of bytes read.
+     *
+     * @return the number of bytes read or -1 if the buffer is closed
+     * and empty.
+     */
+    public int read(ByteBuffer buffer) {
+        return read(null, 0, buffer, buffer.remaining());
+    }
+
+    /**
+     * Reads into either abData (if buffer is null) or buffer.
+     */
+    private int read(byte[] abData, int nOffset, ByteBuffer buffer, int nLength) {
         if (TDebug.TraceCircularBuffer) {
             TDebug.out(">TCircularBuffer.read(): called.");
             dumpInternalState();
@@ -87,6 +262,9 @@ public class TCircularBuffer {
                 return -1;
             }
         }
+        if (m_bSingleProducerSingleConsumer) {
+            return readSingleConsumer(abData, nOffset, buffer, nLength);
+        }
         synchronized (this) {
             if (m_trigger != null && availableRead() < nLength) {
                 if (TDebug.TraceCircularBuffer) {
@@ -111,7 +289,7 @@ public class TCircularBuffer {
                 int nAvailable = Math.min(availableRead(), nRemainingBytes);
                 while (nAvailable > 0) {
                     int nToRead = Math.min(nAvailable, m_nSize - getReadPos());
-                    System.arraycopy(m_abData, getReadPos(), abData, nOffset, nToRead);
+                    copyOut(getReadPos(), abData, nOffset, buffer, nToRead);
                     m_lReadPos += nToRead;
                     nOffset += nToRead;
                     nAvailable -= nToRead;
@@ -133,10 +311,32 @@ public class TCircularBuffer {
     }
 
     public int write(byte[] abData, int nOffset, int nLength) {
+        return write(abData, nOffset, null, nLength);
+    }
+
+    /**
+     * Writes the remaining bytes of a ByteBuffer.
+     * The semantics are the same as for {@link #write(byte[], int, int)}.
+     * The position of buffer is advanced by the number of bytes
+     * written.
+     *
+     * @return the number of bytes written.
+     */
+    public int write(ByteBuffer buffer) {
+        return write(null, 0, buffer, buffer.remaining());
+    }
+
+    /**
+     * Writes from either abData (if buffer is null) or buffer.
+     */
+    private int write(byte[] abData, int nOffset, ByteBuffer buffer, int nLength) {
         if (TDebug.TraceCircularBuffer) {
             TDebug.out(">TCircularBuffer.write(): called; nLength: " + nLength);
             dumpInternalState();
         }
+        if (m_bSingleProducerSingleConsumer) {
+            return writeSingleProducer(abData, nOffset, buffer, nLength);
+        }
         synchronized (this) {
             if (TDebug.TraceCircularBuffer) {
                 TDebug.out("entered synchronized block.");
@@ -158,8 +358,7 @@ public class TCircularBuffer {
                 int nAvailable = Math.min(availableWrite(), nRemainingBytes);
                 while (nAvailable > 0) {
                     int nToWrite = Math.min(nAvailable, m_nSize - getWritePos());
-                    //TDebug.out("src buf size= " + abData.length + ", offset = " + nOffset + ", dst buf size=" + m_abData.length + " write pos=" + getWritePos() + " len=" + nToWrite);
-                    System.arraycopy(abData, nOffset, m_abData, getWritePos(), nToWrite);
+                    copyIn(abData, nOffset, buffer, getWritePos(), nToWrite);
                     m_lWritePos += nToWrite;
                     nOffset += nToWrite;
                     nAvailable -= nToWrite;
@@ -176,6 +375,330 @@ public class TCircularBuffer {
         }
     }
 
+    private int readSingleConsumer(byte[] abData, int nOffset, ByteBuffer buffer, int nLength) {
+        if (m_trigger != null && availableRead() < nLength) {
+            if (TDebug.TraceCircularBuffer) {
+                TDebug.out("executing trigger.");
+            }
+            m_trigger.execute();
+        }
+        if (!m_bBlockingRead) {
+            nLength = Math.min(availableRead(), nLength);
+        }
+        int nStorageSize = m_nMask + 1;
+        long lReadPos = m_lReadPos;
+        int nRemainingBytes = nLength;
+        while (nRemainingBytes > 0) {
+            int nAvailable = (int) (m_lWritePos - lReadPos);
+            if (nAvailable == 0) {
+                if (!isOpen()) {
+                    break;
+                }
+                awaitData(lReadPos);
+                continue;
+            }
+            nAvailable = Math.min(nAvailable, nRemainingBytes);
+            int nPos = (int) lReadPos & m_nMask;
+            int nFirst = Math.min(nAvailable, nStorageSize - nPos);
+            copyOut(nPos, abData, nOffset, buffer, nFirst);
+            if (nFirst < nAvailable) {
+                copyOut(0, abData, nOffset + nFirst, buffer, nAvailable - nFirst);
+            }
+            lReadPos += nAvailable;
+            nOffset += nAvailable;
+            nRemainingBytes -= nAvailable;
+            // publish the consumed space, then wake a waiting writer
+            m_lReadPos = lReadPos;
+            unpark(m_blockedWriter);
+        }
+        int nRead = nLength - nRemainingBytes;
+        if (TDebug.TraceCircularBuffer) {
+            TDebug.out("After read:");
+            dumpInternalState();
+            TDebug.out("< completed. Read " + nRead + " bytes");
+        }
+        if (nRead == 0 && nLength > 0) {
+            return -1;
+        }
+        return nRead;
+    }
+
+    private int writeSingleProducer(byte[] abData, int nOffset, ByteBuffer buffer, int nLength) {
+        if (!m_bBlockingWrite) {
+            nLength = Math.min(availableWrite(), nLength);
+        }
+        int nStorageSize = m_nMask + 1;
+        long lWritePos = m_lWritePos;
+        int nRemainingBytes = nLength;
+        while (nRemainingBytes > 0) {
+            int nAvailable = m_nSize - (int) (lWritePos - m_lReadPos);
+            if (nAvailable == 0) {
+                if (!isOpen()) {
+                    break;
+                }
+                awaitSpace(lWritePos);
+                continue;
+            }
+            nAvailable = Math.min(nAvailable, nRemainingBytes);
+            int nPos = (int) lWritePos & m_nMask;
+            int nFirst = Math.min(nAvailable, nStorageSize - nPos);
+            copyIn(abData, nOffset, buffer, nPos, nFirst);
+            if (nFirst < nAvailable) {
+                copyIn(abData, nOffset + nFirst, buffer, 0, nAvailable - nFirst);
+            }
+            lWritePos += nAvailable;
+            nOffset += nAvailable;
+            nRemainingBytes -= nAvailable;
+            // publish the data, then wake a waiting reader
+            m_lWritePos = lWritePos;
+            unpark(m_blockedReader);
+        }
+        int nWritten = nLength - nRemainingBytes;
+        if (TDebug.TraceCircularBuffer) {
+            TDebug.out("After write:");
+            dumpInternalState();
+            TDebug.out("< completed. Wrote " + nWritten + " bytes");
+        }
+        return nWritten;
+    }
+
+    /**
+     * Returns a view of readable data, without copying it.
+     * The view covers at most nMaxLength bytes. It may be shorter
+     * than the readable data if these wrap around the end of the
+     * storage. If fewer than nMaxLength bytes are readable, the
+     * trigger is executed. In blocking read mode, this method waits
+     * until at least one byte is readable.
+     * <p>
+     * The data is not removed from the buffer until
+     * {@link #commitRead(int)} is called. The returned view is reused
+     * and is only valid until then.
+     *
+     * @return the view, which may be empty, or null if the buffer is
+     * closed and empty.
+     */
+    public ByteBuffer readSlice(int nMaxLength) {
+        if (m_bSingleProducerSingleConsumer) {
+            if (m_trigger != null && availableRead() < nMaxLength) {
+                m_trigger.execute();
+            }
+            if (m_bBlockingRead && nMaxLength > 0) {
+                awaitData(m_lReadPos);
+            }
+            return getReadSlice(nMaxLength);
+        }
+        synchronized (this) {
+            if (m_trigger != null && availableRead() < nMaxLength) {
+                m_trigger.execute();
+            }
+            while (m_bBlockingRead && nMaxLength > 0 && availableRead() == 0 && isOpen()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    if (TDebug.TraceAllExceptions) {
+                        TDebug.out(e);
+                    }
+                }
+            }
+            return getReadSlice(nMaxLength);
+        }
+    }
+
+    private ByteBuffer getReadSlice(int nMaxLength) {
+        int nAvailable = availableRead();
+        if (nAvailable == 0 && !isOpen()) {
+            return null;
+        }
+        int nPos = getReadPos();
+        int nLength = Math.min(Math.min(nMaxLength, nAvailable), m_storage.capacity() - nPos);
+        setWindow(m_readSlice, nPos, nPos + nLength);
+        return m_readSlice;
+    }
+
+    /**
+     * Removes data from the buffer that was obtained with
+     * {@link #readSlice(int)}.
+     *
+     * @param nLength the number of bytes consumed. Has to be less or
+     *                equal to the length of the slice.
+     */
+    public void commitRead(int nLength) {
+        if (nLength < 0 || nLength > availableRead()) {
+            throw new IllegalArgumentException("illegal length: " + nLength);
+        }
+        if (m_bSingleProducerSingleConsumer) {
+            m_lReadPos += nLength;
+            unpark(m_blockedWriter);
+        } else {
+            synchronized (this) {
+                m_lReadPos += nLength;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns a view of free space that can be filled in place.
+     * The view covers at most nMaxLength bytes. It may be shorter
+     * than the free space if it wraps around the end of the storage.
+     * In blocking write mode, this method waits until at least one
+     * byte is free or the buffer is closed.
+     * <p>
+     * Data written to the view becomes readable when
+     * {@link #commitWrite(int)} is called. The returned view is reused
+     * and is only valid until then.
+     */
+    public ByteBuffer writeSlice(int nMaxLength) {
+        if (m_bSingleProducerSingleConsumer) {
+            if (m_bBlockingWrite && nMaxLength > 0) {
+                awaitSpace(m_lWritePos);
+            }
+            return getWriteSlice(nMaxLength);
+        }
+        synchronized (this) {
+            while (m_bBlockingWrite && nMaxLength > 0 && availableWrite() == 0 && isOpen()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    if (TDebug.TraceAllExceptions) {
+                        TDebug.out(e);
+                    }
+                }
+            }
+            return getWriteSlice(nMaxLength);
+        }
+    }
+
+    private ByteBuffer getWriteSlice(int nMaxLength) {
+        int nPos = getWritePos();
+        int nLength = Math.min(Math.min(nMaxLength, availableWrite()), m_storage.capacity() - nPos);
+        setWindow(m_writeSlice, nPos, nPos + nLength);
+        return m_writeSlice;
+    }
+
+    /**
+     * Makes data readable that was written to a view obtained with
+     * {@link #writeSlice(int)}.
+     *
+     * @param nLength the number of bytes written. Has to be less or
+     *                equal to the length of the slice.
+     */
+    public void commitWrite(int nLength) {
+        if (nLength < 0 || nLength > availableWrite()) {
+            throw new IllegalArgumentException("illegal length: " + nLength);
+        }
+        if (m_bSingleProducerSingleConsumer) {
+            m_lWritePos += nLength;
+            unpark(m_blockedReader);
+        } else {
+            synchronized (this) {
+                m_lWritePos += nLength;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Copies nLength bytes from the storage position nPos to either
+     * abData or buffer.
+     */
+    private void copyOut(int nPos, byte[] abData, int nOffset, ByteBuffer buffer, int nLength) {
+        if (buffer != null) {
+            if (m_abData != null) {
+                buffer.put(m_abData, nPos, nLength);
+            } else {
+                setWindow(m_readView, nPos, nPos + nLength);
+                buffer.put(m_readView);
+            }
+        } else if (m_abData != null) {
+            System.arraycopy(m_abData, nPos, abData, nOffset, nLength);
+        } else {
+            setWindow(m_readView, nPos, nPos + nLength);
+            m_readView.get(abData, nOffset, nLength);
+        }
+    }
+
+    /**
+     * Copies nLength bytes from either abData or buffer to the storage
+     * position nPos.
+     */
+    private void copyIn(byte[] abData, int nOffset, ByteBuffer buffer, int nPos, int nLength) {
+        if (buffer != null) {
+            if (m_abData != null) {
+                buffer.get(m_abData, nPos, nLength);
+            } else {
+                setWindow(m_writeView, nPos, nPos + nLength);
+                // Buffer: see setWindow()
+                Buffer source = buffer;
+                int nLimit = source.limit();
+                source.limit(source.position() + nLength);
+                m_writeView.put(buffer);
+                source.limit(nLimit);
+            }
+        } else if (m_abData != null) {
+            System.arraycopy(abData, nOffset, m_abData, nPos, nLength);
+        } else {
+            setWindow(m_writeView, nPos, nPos + nLength);
+            m_writeView.put(abData, nOffset, nLength);
+        }
+    }
+
+    /**
+     * Sets position and limit of a view.
+     * Goes through Buffer so that the code runs on Java 8, where
+     * ByteBuffer does not override these methods.
+     */
+    private static void setWindow(Buffer buffer, int nPosition, int nLimit) {
+        buffer.clear();
+        buffer.position(nPosition);
+        buffer.limit(nLimit);
+    }
+
+    /**
+     * Parks the reading thread until data beyond lReadPos has been
+     * written or the buffer is closed. The waiter is registered
+     * before the cursor is rechecked, so a writer that publishes
+     * in between always sees it.
+     */
+    private void awaitData(long lReadPos) {
+        m_blockedReader = Thread.currentThread();
+        while (m_lWritePos == lReadPos && isOpen()) {
+            LockSupport.park(this);
+            clearInterrupt();
+        }
+        m_blockedReader = null;
+    }
+
+    /**
+     * Parks the writing thread until there is free space or the
+     * buffer is closed.
+     */
+    private void awaitSpace(long lWritePos) {
+        m_blockedWriter = Thread.currentThread();
+        while (lWritePos - m_lReadPos == m_nSize && isOpen()) {
+            LockSupport.park(this);
+            clearInterrupt();
+        }
+        m_blockedWriter = null;
+    }
+
+    /**
+     * Interrupts are ignored while waiting, as in the monitor based
+     * implementation. Without clearing the flag park() would return
+     * immediately and the wait would turn into a busy loop.
+     */
+    private static void clearInterrupt() {
+        if (Thread.interrupted() && TDebug.TraceAllExceptions) {
+            TDebug.out(new InterruptedException());
+        }
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
     private void dumpInternalState() {
         TDebug.out("m_lReadPos  = " + m_lReadPos + " ^= " + getReadPos());
         TDebug.out("m_lWritePos = " + m_lWritePos + " ^= " + getWritePos());
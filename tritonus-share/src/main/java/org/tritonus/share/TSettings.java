@@ -38,6 +38,19 @@ public class TSettings {
 
     public static boolean AlsaUsePlughw = getBooleanProperty("AlsaUsePlughw");
 
+    /**
+     * If true, TCircularBuffer instances created without an explicit
+     * mode use the lock-free single-producer/single-consumer
+     * implementation instead of the monitor based one.
+     */
+    public static boolean CircularBufferSingleProducerSingleConsumer = getBooleanProperty("CircularBufferSingleProducerSingleConsumer");
+
+    /**
+     * If true, sample rate converter streams use the band-limited
+     * RESAMPLE algorithm instead of linear interpolation by default.
+     */
+    public static boolean SampleRateConversionResample = getBooleanProperty("SampleRateConversionResample");
+
 
     private static boolean getBooleanProperty(String strName) {
         String strPropertyName = PROPERTY_PREFIX + strName;
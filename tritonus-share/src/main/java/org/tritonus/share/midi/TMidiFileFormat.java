@@ -36,10 +36,12 @@ import javax.sound.midi.MidiFileFormat;
  * This class is used by org.tritonus.midi.file.StandardMidiFileReader.
  * Its purpose is to carry the number of tracks from
  * getMidiFileFormat() to getSequence().
+ * It can also carry the length in ticks, if it is known.
  */
 public class TMidiFileFormat
         extends MidiFileFormat {
     private int m_nTrackCount;
+    private long m_lTickLength;
 
 
     public TMidiFileFormat(int nType,
@@ -54,12 +56,40 @@ public class TMidiFileFormat
                 nByteLength,
                 lMicrosecondLength);
         m_nTrackCount = nTrackCount;
+        m_lTickLength = UNKNOWN_LENGTH;
+    }
+
+
+    public TMidiFileFormat(int nType,
+                           float fDivisionType,
+                           int nResolution,
+                           int nByteLength,
+                           long lMicrosecondLength,
+                           long lTickLength,
+                           int nTrackCount) {
+        this(nType,
+                fDivisionType,
+                nResolution,
+                nByteLength,
+                lMicrosecondLength,
+                nTrackCount);
+        m_lTickLength = lTickLength;
     }
 
 
     public int getTrackCount() {
         return m_nTrackCount;
     }
+
+
+    /**
+     * Obtain the length of the sequence in ticks.
+     *
+     * @return the length in ticks, or UNKNOWN_LENGTH
+     */
+    public long getTickLength() {
+        return m_lTickLength;
+    }
 }
 
 
@@ -0,0 +1,269 @@
+/*
+ * FloatArrayPool.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+
+package org.tritonus.share.sampled;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A pool of float arrays, used by FloatSampleBuffer for its channels.
+ * <p>
+ * Arrays are kept in size classes: class n holds arrays with at least
+ * 2^n elements. {@link #get(int)} returns an array of the smallest class
+ * that fits, so the array may be larger than requested. Arrays allocated
+ * by the pool have a power-of-two length.
+ * <p>
+ * Each thread has a small cache per size class, so that getting and
+ * releasing arrays on one thread does not synchronize. If a thread's
+ * cache is empty or full, arrays are taken from or put into a shared
+ * stack per size class. If that is full, too, released arrays are left
+ * to the garbage collector. Neither path allocates memory once the
+ * caches are set up, so a decoding loop that releases what it gets
+ * runs without creating garbage.
+ * <p>
+ * The counters (see {@link #getAllocationCount()}) allow to verify this:
+ * in steady state, the allocation count must not increase.
+ * <p>
+ * Subclasses may override get() and release() to plug in other
+ * strategies.
+ *
+ * @see FloatSampleBuffer#setArrayPool(FloatArrayPool)
+ */
+public class FloatArrayPool {
+
+    /** smallest size class: 2^4 = 16 elements */
+    private static final int MIN_CLASS = 4;
+    /** largest size class: 2^24 elements (64 MB) */
+    private static final int MAX_CLASS = 24;
+    private static final int CLASS_COUNT = MAX_CLASS + 1;
+
+    /** number of arrays per size class cached by each thread */
+    private static final int THREAD_CACHE_SIZE = 4;
+    /** default number of arrays per size class in the shared stacks */
+    public static final int DEFAULT_SHARED_SIZE = 32;
+
+    private static final FloatArrayPool defaultPool = new FloatArrayPool();
+
+    /** shared stacks: [class][index] */
+    private final float[][][] shared;
+    /** fill level of the shared stacks */
+    private final int[] sharedCount;
+
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+
+    private final AtomicLong allocationCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+    private final AtomicLong releaseCount = new AtomicLong();
+    private final AtomicLong discardCount = new AtomicLong();
+
+    /**
+     * Create a pool with DEFAULT_SHARED_SIZE shared arrays per size class.
+     */
+    public FloatArrayPool() {
+        this(DEFAULT_SHARED_SIZE);
+    }
+
+    /**
+     * Create a pool.
+     *
+     * @param sharedSize the maximum number of arrays kept per size class in
+     *                   the stacks shared among threads.
+     */
+    public FloatArrayPool(int sharedSize) {
+        if (sharedSize < 0) {
+            throw new IllegalArgumentException("negative shared size");
+        }
+        shared = new float[CLASS_COUNT][sharedSize][];
+        sharedCount = new int[CLASS_COUNT];
+    }
+
+    /**
+     * @return a pool instance shared by the whole application
+     */
+    public static FloatArrayPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Get an array with at least <code>minLength</code> elements. The
+     * contents of the array are undefined.
+     */
+    public float[] get(int minLength) {
+        if (minLength < 0) {
+            throw new IllegalArgumentException("negative length");
+        }
+        int sizeClass = getSizeClass(minLength);
+        if (sizeClass > MAX_CLASS) {
+            allocationCount.incrementAndGet();
+            return new float[minLength];
+        }
+        float[] array = threadCache.get().pop(sizeClass);
+        if (array == null) {
+            array = popShared(sizeClass);
+        }
+        if (array == null) {
+            allocationCount.incrementAndGet();
+            return new float[1 << sizeClass];
+        }
+        reuseCount.incrementAndGet();
+        return array;
+    }
+
+    /**
+     * Return an array to the pool. The caller must not use the array
+     * afterwards. Arrays not obtained from this pool are accepted, too.
+     * Arrays that are too small or too large to be pooled are ignored.
+     */
+    public void release(float[] array) {
+        if (array == null) {
+            return;
+        }
+        releaseCount.incrementAndGet();
+        // the largest class whose minimum size the array satisfies
+        int sizeClass = 31 - Integer.numberOfLeadingZeros(array.length);
+        if (sizeClass < MIN_CLASS || sizeClass > MAX_CLASS) {
+            discardCount.incrementAndGet();
+            return;
+        }
+        if (!threadCache.get().push(sizeClass, array) && !pushShared(sizeClass, array)) {
+            discardCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of arrays that had to be newly allocated by get()
+     */
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+    /**
+     * @return the number of times get() returned a pooled array
+     */
+    public long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    /**
+     * @return the number of calls to release() with a non-null array
+     */
+    public long getReleaseCount() {
+        return releaseCount.get();
+    }
+
+    /**
+     * @return the number of released arrays that were not pooled, either
+     * because of their size or because the pool was full
+     */
+    public long getDiscardCount() {
+        return discardCount.get();
+    }
+
+    /**
+     * Set all counters to 0.
+     */
+    public void resetStatistics() {
+        allocationCount.set(0);
+        reuseCount.set(0);
+        releaseCount.set(0);
+        discardCount.set(0);
+    }
+
+    /**
+     * @return the smallest size class that holds minLength elements
+     */
+    private static int getSizeClass(int minLength) {
+        if (minLength <= (1 << MIN_CLASS)) {
+            return MIN_CLASS;
+        }
+        return 32 - Integer.numberOfLeadingZeros(minLength - 1);
+    }
+
+    private float[] popShared(int sizeClass) {
+        float[][] stack = shared[sizeClass];
+        synchronized (stack) {
+            int count = sharedCount[sizeClass];
+            if (count == 0) {
+                return null;
+            }
+            count--;
+            float[] array = stack[count];
+            stack[count] = null;
+            sharedCount[sizeClass] = count;
+            return array;
+        }
+    }
+
+    private boolean pushShared(int sizeClass, float[] array) {
+        float[][] stack = shared[sizeClass];
+        synchronized (stack) {
+            int count = sharedCount[sizeClass];
+            if (count == stack.length) {
+                return false;
+            }
+            stack[count] = array;
+            sharedCount[sizeClass] = count + 1;
+            return true;
+        }
+    }
+
+    /**
+     * The per-thread part of the pool.
+     */
+    private static class ThreadCache {
+        private final float[][][] arrays = new float[CLASS_COUNT][THREAD_CACHE_SIZE][];
+        private final int[] counts = new int[CLASS_COUNT];
+
+        float[] pop(int sizeClass) {
+            int count = counts[sizeClass];
+            if (count == 0) {
+                return null;
+            }
+            count--;
+            float[] array = arrays[sizeClass][count];
+            arrays[sizeClass][count] = null;
+            counts[sizeClass] = count;
+            return array;
+        }
+
+        boolean push(int sizeClass, float[] array) {
+            int count = counts[sizeClass];
+            if (count == THREAD_CACHE_SIZE) {
+                return false;
+            }
+            arrays[sizeClass][count] = array;
+            counts[sizeClass] = count + 1;
+            return true;
+        }
+    }
+}
+
+
+/* FloatArrayPool.java */
@@ -126,6 +126,32 @@ import javax.sound.sampled.AudioFormat;
  * Use the <code>reset</code> functions to clear the memory and remove hidden
  * samples and channels.
  * <p>
+ * Pooling:<br>
+ * With an array pool set (see <code>setArrayPool</code> and
+ * <code>setDefaultArrayPool</code>), channel arrays are taken from the pool
+ * instead of being allocated, and arrays that are dropped (by
+ * <code>reset</code>, non-lazy <code>init</code> and channel removal, or
+ * when a channel is enlarged) are returned to it. <code>release()</code>
+ * returns all arrays. This avoids garbage for variable block sizes.
+ * Arrays obtained with <code>getChannel(int)</code> must then not be used
+ * after they have been dropped by this buffer.
+ * <code>getAllocationCount()</code> tells how many arrays this buffer
+ * requested.
+ * <p>
+ * Interleaved storage:<br>
+ * With <code>setInterleavedStorage(true)</code>, the buffer keeps the
+ * samples of all channels in a single interleaved float array, as long as
+ * only operations on all channels are used: conversion from and to bytes,
+ * <code>changeSampleCount</code>, <code>makeSilence</code> and
+ * <code>linearFade</code> on all channels. This saves de-interleaving and
+ * re-interleaving when the data is only passed through. As soon as a
+ * channel is accessed individually (<code>getChannel</code>,
+ * <code>copyChannel</code>, <code>mixDownChannels</code>,
+ * <code>linearFade(channel, ...)</code>, channel insertion and removal,
+ * etc.), the planar channel arrays are created from the interleaved data
+ * and are used from then on, until the buffer is initialized again.
+ * <code>getInterleavedSamples()</code> goes the other way.
+ * <p>
  * Note that the lazy mechanism implies that the arrays returned from
  * <code>getChannel(int)</code> may have a greater size than getSampleCount().
  * Consequently, be sure to never rely on the length field of the sample arrays.
@@ -186,6 +212,25 @@ public class FloatSampleBuffer {
     // e.g. the sample rate converter may want to force dithering
     private int ditherMode = DITHER_MODE_AUTOMATIC;
 
+    /** the pool used by new instances, null for no pooling */
+    private static FloatArrayPool defaultArrayPool = null;
+
+    // the pool for the channel arrays, or null
+    private FloatArrayPool arrayPool = defaultArrayPool;
+
+    // number of channel arrays requested from the pool or the heap
+    private long allocationCount = 0;
+
+    // if true, init() and initFromByteArray() use interleaved storage
+    private boolean interleavedStorage = false;
+
+    // all channels in one array, frame by frame, or null
+    private float[] interleavedSamples = null;
+
+    // true if interleavedSamples holds the data and the channel arrays are
+    // stale
+    private boolean interleavedCurrent = false;
+
     // ////////////////////////////// initialization //////////////////////
 
     /**
@@ -235,6 +280,9 @@ public class FloatSampleBuffer {
      * Initialize this sample buffer to have the specified channels, sample
      * count, and sample rate. If lazy is true, as much as possible will
      * existing arrays be reused. Otherwise, any hidden channels are freed.
+     * <p>
+     * In interleaved storage mode, the buffer uses the interleaved array
+     * afterwards and the samples are undefined.
      *
      * @param newChannelCount
      * @param newSampleCount
@@ -250,7 +298,9 @@ public class FloatSampleBuffer {
                     "invalid parameters in initialization of FloatSampleBuffer.");
         }
         setSampleRate(newSampleRate);
-        if (this.sampleCount != newSampleCount
+        if (interleavedStorage) {
+            initInterleaved(newChannelCount, newSampleCount, lazy);
+        } else if (this.sampleCount != newSampleCount
                 || this.channelCount != newChannelCount) {
             createChannels(newChannelCount, newSampleCount, lazy);
         }
@@ -277,12 +327,36 @@ public class FloatSampleBuffer {
     private void grow(int newChannelCount, boolean lazy) {
         if (channels.length < newChannelCount || !lazy) {
             Object[] newChannels = new Object[newChannelCount];
-            System.arraycopy(channels, 0, newChannels, 0,
-                    Math.min(channelCount, newChannelCount));
+            int keep = Math.min(channelCount, newChannelCount);
+            System.arraycopy(channels, 0, newChannels, 0, keep);
+            // the other arrays are dropped
+            for (int ch = keep; ch < channels.length; ch++) {
+                releaseChannelArray((float[]) channels[ch]);
+            }
             this.channels = newChannels;
         }
     }
 
+    /**
+     * Get a new array for a channel, from the pool if one is set.
+     */
+    private float[] allocateChannelArray(int size) {
+        allocationCount++;
+        if (arrayPool != null) {
+            return arrayPool.get(size);
+        }
+        return new float[size];
+    }
+
+    /**
+     * Return a dropped channel array to the pool, if one is set.
+     */
+    private void releaseChannelArray(float[] array) {
+        if (arrayPool != null && array != null) {
+            arrayPool.release(array);
+        }
+    }
+
     private void createChannels(int newChannelCount, int newSampleCount,
                                 boolean lazy) {
         // shortcut
@@ -304,6 +378,89 @@ public class FloatSampleBuffer {
         grow(newChannelCount, lazy);
     }
 
+    /**
+     * Set up the interleaved array for the new size. The channel arrays are
+     * kept for later use as planar views, unless not lazy.
+     */
+    private void initInterleaved(int newChannelCount, int newSampleCount,
+                                 boolean lazy) {
+        int size = newChannelCount * newSampleCount;
+        if (!lazy) {
+            releaseChannels();
+            releaseChannelArray(interleavedSamples);
+            interleavedSamples = null;
+        }
+        if (interleavedSamples == null || interleavedSamples.length < size) {
+            releaseChannelArray(interleavedSamples);
+            interleavedSamples = allocateChannelArray(size);
+        }
+        setSampleCountImpl(newSampleCount);
+        setChannelCountImpl(newChannelCount);
+        interleavedCurrent = true;
+    }
+
+    /**
+     * Make the channel arrays current: if the data is in the interleaved
+     * array, it is de-interleaved to the channel arrays.
+     */
+    private void ensurePlanar() {
+        if (!interleavedCurrent) {
+            return;
+        }
+        interleavedCurrent = false;
+        if (channels.length < channelCount) {
+            Object[] newChannels = new Object[channelCount];
+            System.arraycopy(channels, 0, newChannels, 0, channels.length);
+            channels = newChannels;
+        }
+        float[] input = interleavedSamples;
+        for (int ch = 0; ch < channelCount; ch++) {
+            float[] samples = (float[]) channels[ch];
+            if (samples == null || samples.length < sampleCount) {
+                releaseChannelArray(samples);
+                samples = allocateChannelArray(sampleCount);
+                channels[ch] = samples;
+            }
+            for (int i = 0, j = ch; i < sampleCount; i++, j += channelCount) {
+                samples[i] = input[j];
+            }
+        }
+    }
+
+    /**
+     * Make the interleaved array current: if the data is in the channel
+     * arrays, it is interleaved.
+     */
+    private void ensureInterleaved() {
+        if (interleavedCurrent) {
+            return;
+        }
+        int size = channelCount * sampleCount;
+        if (interleavedSamples == null || interleavedSamples.length < size) {
+            releaseChannelArray(interleavedSamples);
+            interleavedSamples = allocateChannelArray(size);
+        }
+        float[] output = interleavedSamples;
+        for (int ch = 0; ch < channelCount; ch++) {
+            float[] samples = (float[]) channels[ch];
+            for (int i = 0, j = ch; i < sampleCount; i++, j += channelCount) {
+                output[j] = samples[i];
+            }
+        }
+        interleavedCurrent = true;
+    }
+
+    /**
+     * Return all channel arrays, including hidden ones, to the pool.
+     */
+    private void releaseChannels() {
+        for (int ch = 0; ch < channels.length; ch++) {
+            releaseChannelArray((float[]) channels[ch]);
+            channels[ch] = null;
+        }
+        channels = new Object[0];
+    }
+
     /**
      * Resets this buffer with the audio data specified in the arguments. This
      * FloatSampleBuffer's sample count will be set to
@@ -338,10 +495,34 @@ public class FloatSampleBuffer {
                 lazy);
 
         // save format for automatic dithering mode
-        originalFormatType = FloatSampleTools.getFormatType(format);
-
+        originalFormatType = getInputFormatType(format);
+
+        if (interleavedCurrent) {
+            // interleaved bytes to interleaved floats: one loop
+            FloatSampleTools.byte2floatGeneric(buffer, offset,
+                    format.getFrameSize() / format.getChannels(),
+                    interleavedSamples, 0, sampleCount * channelCount,
+                    originalFormatType);
+            return;
+        }
         FloatSampleTools.byte2float(buffer, offset, channels, 0, sampleCount,
-                format);
+                originalFormatType, format.getChannels(), format.getFrameSize());
+    }
+
+    // cache for performance
+    private AudioFormat lastInputFormat = null;
+    private int lastInputFormatCode = 0;
+
+    /**
+     * Returns the format code of an input format. The code is cached, so
+     * that the conversion kernel is only looked up once per format.
+     */
+    private int getInputFormatType(AudioFormat format) {
+        if (format != lastInputFormat) {
+            lastInputFormatCode = FloatSampleTools.getFormatType(format);
+            lastInputFormat = format;
+        }
+        return lastInputFormatCode;
     }
 
     /**
@@ -350,6 +531,20 @@ public class FloatSampleBuffer {
     public void initFromFloatSampleBuffer(FloatSampleBuffer source) {
         init(source.getChannelCount(), source.getSampleCount(),
                 source.getSampleRate());
+        if (interleavedCurrent) {
+            if (source.interleavedCurrent) {
+                System.arraycopy(source.interleavedSamples, 0,
+                        interleavedSamples, 0, sampleCount * channelCount);
+                return;
+            }
+            for (int ch = 0; ch < channelCount; ch++) {
+                float[] samples = source.getChannel(ch);
+                for (int i = 0, j = ch; i < sampleCount; i++, j += channelCount) {
+                    interleavedSamples[j] = samples[i];
+                }
+            }
+            return;
+        }
         for (int ch = 0; ch < getChannelCount(); ch++) {
             System.arraycopy(source.getChannel(ch), 0, getChannel(ch), 0,
                     sampleCount);
@@ -387,14 +582,17 @@ public class FloatSampleBuffer {
         if (lChannels > format.getChannels()) {
             lChannels = format.getChannels();
         }
-        for (int channel = 0; channel < lChannels; channel++) {
-            float[] data = getChannel(channel);
-
+        if (interleavedCurrent && format.getChannels() == channelCount) {
             FloatSampleTools.byte2floatGeneric(buffer, srcByteOffset,
-                    format.getFrameSize(), data, dstSampleOffset, aSampleCount,
-                    format);
-            srcByteOffset += format.getFrameSize() / format.getChannels();
+                    format.getFrameSize() / channelCount, interleavedSamples,
+                    dstSampleOffset * channelCount, aSampleCount * channelCount,
+                    getInputFormatType(format));
+            return aSampleCount;
         }
+        ensurePlanar();
+        FloatSampleTools.byte2float(buffer, srcByteOffset, channels,
+                dstSampleOffset, aSampleCount, getInputFormatType(format),
+                lChannels, format.getFrameSize());
         return aSampleCount;
     }
 
@@ -414,6 +612,20 @@ public class FloatSampleBuffer {
         init(newChannels, newSampleCount, newSampleRate, false);
     }
 
+    /**
+     * Deletes all channels and returns all arrays, including the ones of
+     * hidden channels, to the array pool. Without a pool, this is the same
+     * as <code>reset()</code>.
+     */
+    public void release() {
+        releaseChannels();
+        releaseChannelArray(interleavedSamples);
+        interleavedSamples = null;
+        interleavedCurrent = false;
+        setChannelCountImpl(0);
+        setSampleCountImpl(0);
+    }
+
     // //////////////////////// conversion back to bytes ///////////////////
 
     /**
@@ -485,6 +697,16 @@ public class FloatSampleBuffer {
             lastConvertToByteArrayFormat = format;
             lastConvertToByteArrayFormatCode = FloatSampleTools.getFormatType(format);
         }
+        if (interleavedCurrent && channelCount > 0) {
+            // interleaved floats to interleaved bytes: one loop
+            FloatSampleTools.float2byteGeneric(interleavedSamples,
+                    readOffset * channelCount, buffer, writeOffset,
+                    format.getFrameSize() / channelCount,
+                    lenInSamples * channelCount,
+                    lastConvertToByteArrayFormatCode,
+                    getConvertDitherBits(lastConvertToByteArrayFormatCode));
+            return byteCount;
+        }
         FloatSampleTools.float2byte(channels, readOffset, buffer, writeOffset,
                 lenInSamples, lastConvertToByteArrayFormatCode,
                 format.getChannels(), format.getFrameSize(),
@@ -528,16 +750,36 @@ public class FloatSampleBuffer {
             setSampleCountImpl(newSampleCount);
             return;
         }
+        if (interleavedCurrent) {
+            // frames are contiguous, so old samples stay in place
+            int oldSize = oldSampleCount * channelCount;
+            int newSize = newSampleCount * channelCount;
+            float[] samples = interleavedSamples;
+            if (samples.length < newSize) {
+                samples = allocateChannelArray(newSize);
+                if (keepOldSamples && oldSize > 0) {
+                    System.arraycopy(interleavedSamples, 0, samples, 0, oldSize);
+                }
+                releaseChannelArray(interleavedSamples);
+                interleavedSamples = samples;
+            }
+            if (keepOldSamples) {
+                makeSilence(samples, oldSize, newSize - oldSize);
+            }
+            setSampleCountImpl(newSampleCount);
+            return;
+        }
         // shortcut for one or 2 channels
         if (channelCount == 1 || channelCount == 2) {
             float[] ch = getChannel(0);
             if (ch.length < newSampleCount) {
-                float[] newCh = new float[newSampleCount];
+                float[] newCh = allocateChannelArray(newSampleCount);
                 if (keepOldSamples && oldSampleCount > 0) {
                     // copy old samples
                     System.arraycopy(ch, 0, newCh, 0, oldSampleCount);
                 }
                 channels[0] = newCh;
+                releaseChannelArray(ch);
             } else if (keepOldSamples) {
                 // silence out excess samples (according to the specification)
                 for (int i = oldSampleCount; i < newSampleCount; i++) {
@@ -547,12 +789,13 @@ public class FloatSampleBuffer {
             if (channelCount == 2) {
                 ch = getChannel(1);
                 if (ch.length < newSampleCount) {
-                    float[] newCh = new float[newSampleCount];
+                    float[] newCh = allocateChannelArray(newSampleCount);
                     if (keepOldSamples && oldSampleCount > 0) {
                         // copy old samples
                         System.arraycopy(ch, 0, newCh, 0, oldSampleCount);
                     }
                     channels[1] = newCh;
+                    releaseChannelArray(ch);
                 } else if (keepOldSamples) {
                     // silence out excess samples (according to the
                     // specification)
@@ -569,7 +812,8 @@ public class FloatSampleBuffer {
         if (keepOldSamples) {
             oldChannels = getAllChannels();
         }
-        init(getChannelCount(), newSampleCount, getSampleRate());
+        // the sample count is increased here
+        createChannels(getChannelCount(), newSampleCount, LAZY_DEFAULT);
         if (keepOldSamples) {
             // copy old channels and eventually silence out new samples
             int copyCount = Math.min(newSampleCount, oldSampleCount);
@@ -605,6 +849,11 @@ public class FloatSampleBuffer {
             throw new IllegalArgumentException(
                     "offset and/or sampleCount out of bounds");
         }
+        if (interleavedCurrent) {
+            makeSilence(interleavedSamples, offset * channelCount,
+                    count * channelCount);
+            return;
+        }
         // silence all channels
         int localChannelCount = getChannelCount();
         for (int ch = 0; ch < localChannelCount; ch++) {
@@ -659,6 +908,20 @@ public class FloatSampleBuffer {
      * @param count    the number of samples to fade
      */
     public void linearFade(float startVol, float endVol, int offset, int count) {
+        if (interleavedCurrent) {
+            if (count <= 0) return;
+            int end = (count + offset) * channelCount;
+            float inc = (endVol - startVol) / count;
+            float[] samples = interleavedSamples;
+            float curr = startVol;
+            for (int i = offset * channelCount; i < end; i += channelCount) {
+                for (int j = i; j < i + channelCount; j++) {
+                    samples[j] *= curr;
+                }
+                curr += inc;
+            }
+            return;
+        }
         for (int channel = 0; channel < getChannelCount(); channel++) {
             linearFade(channel, startVol, endVol, offset, count);
         }
@@ -721,6 +984,7 @@ public class FloatSampleBuffer {
      * elements, thus not wasting memory.
      */
     public void insertChannel(int index, boolean silent, boolean lazy) {
+        ensurePlanar();
         // first grow the array of channels, if necessary. Intentionally lazy
         grow(this.channelCount + 1, true);
         int physSize = channels.length;
@@ -740,11 +1004,13 @@ public class FloatSampleBuffer {
             }
         }
         if (newChannel == null) {
-            newChannel = new float[getSampleCount()];
+            newChannel = allocateChannelArray(getSampleCount());
         }
+        // the hidden channel in the first free slot, if any, is dropped
+        releaseChannelArray((float[]) channels[virtSize]);
         // move channels after index
-        for (int i = index; i < virtSize; i++) {
-            channels[i + 1] = channels[i];
+        for (int i = virtSize; i > index; i--) {
+            channels[i] = channels[i - 1];
         }
         channels[index] = newChannel;
         setChannelCountImpl(this.channelCount + 1);
@@ -766,12 +1032,16 @@ public class FloatSampleBuffer {
      * calls to addChannel or insertChannel.
      */
     public void removeChannel(int channel, boolean lazy) {
+        ensurePlanar();
         float[] toBeDeleted = (float[]) channels[channel];
         // move all channels after it
         for (int i = channel; i < this.channelCount - 1; i++) {
             channels[i] = channels[i + 1];
         }
         if (!lazy) {
+            // the last slot still references the last channel
+            channels[this.channelCount - 1] = null;
+            releaseChannelArray(toBeDeleted);
             grow(this.channelCount - 1, true);
         } else {
             // if not already, insert this channel at the end
@@ -1000,12 +1270,104 @@ public class FloatSampleBuffer {
             throw new IllegalArgumentException(
                     "FloatSampleBuffer.setSamplesFromBytes: frameCount too large");
         }
+        if (interleavedCurrent && format.getChannels() == channelCount) {
+            FloatSampleTools.byte2floatGeneric(input, inByteOffset,
+                    format.getFrameSize() / channelCount, interleavedSamples,
+                    floatOffset * channelCount, frameCount * channelCount,
+                    getInputFormatType(format));
+            return;
+        }
+        ensurePlanar();
         FloatSampleTools.byte2float(input, inByteOffset, channels, floatOffset,
                 frameCount, format, false);
     }
 
     // ////////////////////////////// properties /////////////////////////////
 
+    /**
+     * Set the pool used by new instances of FloatSampleBuffer.
+     *
+     * @param pool the pool, or null to disable pooling for new instances
+     */
+    public static void setDefaultArrayPool(FloatArrayPool pool) {
+        defaultArrayPool = pool;
+    }
+
+    public static FloatArrayPool getDefaultArrayPool() {
+        return defaultArrayPool;
+    }
+
+    /**
+     * Set the pool for the channel arrays of this buffer. Arrays that
+     * this buffer already holds are returned to the new pool when they
+     * are dropped.
+     *
+     * @param pool the pool, or null to disable pooling
+     */
+    public void setArrayPool(FloatArrayPool pool) {
+        this.arrayPool = pool;
+    }
+
+    public FloatArrayPool getArrayPool() {
+        return arrayPool;
+    }
+
+    /**
+     * @return the number of channel arrays this buffer requested from its
+     * pool or, without a pool, allocated. In steady state, this count does
+     * not increase.
+     */
+    public long getAllocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * Enable or disable interleaved storage. When enabled, the next
+     * initialization (e.g. <code>initFromByteArray</code>) stores the
+     * samples interleaved. When disabled, interleaved data is converted to
+     * the channel arrays immediately.
+     */
+    public void setInterleavedStorage(boolean interleaved) {
+        if (!interleaved) {
+            ensurePlanar();
+            releaseChannelArray(interleavedSamples);
+            interleavedSamples = null;
+        }
+        this.interleavedStorage = interleaved;
+    }
+
+    public boolean isInterleavedStorage() {
+        return interleavedStorage;
+    }
+
+    /**
+     * @return true if the samples are currently held in the interleaved
+     * array, i.e. no planar view has been created since the last
+     * initialization
+     */
+    public boolean isInterleaved() {
+        return interleavedCurrent;
+    }
+
+    /**
+     * Get the samples of all channels interleaved, frame by frame. If the
+     * planar channel arrays are current, they are interleaved first, and
+     * arrays obtained with <code>getChannel(int)</code> must not be used
+     * anymore.<br>
+     * NOTE: the returned array may be larger than getSampleCount() *
+     * getChannelCount().
+     *
+     * @throws IllegalStateException if interleaved storage is not enabled
+     */
+    public float[] getInterleavedSamples() {
+        if (!interleavedStorage) {
+            throw new IllegalStateException(
+                    "FloatSampleBuffer: interleaved storage not enabled.");
+        }
+        ensureInterleaved();
+        return interleavedSamples;
+    }
+
     public int getChannelCount() {
         return channelCount;
     }
@@ -1082,6 +1444,7 @@ public class FloatSampleBuffer {
             throw new IllegalArgumentException(
                     "FloatSampleBuffer: invalid channel number.");
         }
+        ensurePlanar();
         return (float[]) channels[channel];
     }
 
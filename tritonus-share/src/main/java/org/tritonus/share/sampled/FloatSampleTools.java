@@ -44,7 +44,13 @@ import javax.sound.sampled.AudioFormat;
  * <li>32-bit
  * </ul>
  * 8-bit data can be unsigned or signed. All other data is only supported in
- * signed encoding.
+ * signed encoding. In addition, 32-bit IEEE floating point samples
+ * (<code>PCM_FLOAT</code>) are supported.
+ * <p>
+ * The conversion loops are specialized per sample format: the format is
+ * evaluated once per call, not once per sample. Data with more than one
+ * channel is converted in a single pass over the interleaved bytes, with
+ * a separate loop for stereo.
  *
  * @author Florian Bomers
  * @see FloatSampleBuffer
@@ -68,6 +74,7 @@ public class FloatSampleTools {
     // format bit-flags
     static final int F_SIGNED = 8;
     static final int F_BIGENDIAN = 16;
+    static final int F_FLOAT = 32;
 
     // supported formats
     static final int CT_8S = F_8 | F_SIGNED;
@@ -80,6 +87,8 @@ public class FloatSampleTools {
     static final int CT_24_4SL = F_24_4 | F_SIGNED;
     static final int CT_32SB = F_32 | F_SIGNED | F_BIGENDIAN;
     static final int CT_32SL = F_32 | F_SIGNED;
+    static final int CT_32FB = F_32 | F_FLOAT | F_SIGNED | F_BIGENDIAN;
+    static final int CT_32FL = F_32 | F_FLOAT | F_SIGNED;
 
     // ///////////////////////// initialization ////////////////////// //
 
@@ -113,6 +122,14 @@ public class FloatSampleTools {
      * @throws IllegalArgumentException
      */
     static int getFormatType(AudioFormat format) {
+        if (format.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT)) {
+            if (format.getSampleSizeInBits() != 32
+                    || format.getFrameSize() != 4 * format.getChannels()) {
+                throw new IllegalArgumentException(
+                        "unsupported encoding: only 32-bit float supported.");
+            }
+            return format.isBigEndian() ? CT_32FB : CT_32FL;
+        }
         boolean signed = format.getEncoding().equals(
                 AudioFormat.Encoding.PCM_SIGNED);
         if (!signed
@@ -213,7 +230,11 @@ public class FloatSampleTools {
             res += "32bit";
             break;
         }
-        res += ((formatType & F_SIGNED) == F_SIGNED) ? " signed" : " unsigned";
+        if ((formatType & F_FLOAT) == F_FLOAT) {
+            res += " float";
+        } else {
+            res += ((formatType & F_SIGNED) == F_SIGNED) ? " signed" : " unsigned";
+        }
         if ((formatType & F_SAMPLE_WIDTH_MASK) != F_8) {
             res += ((formatType & F_BIGENDIAN) == F_BIGENDIAN) ? " big endian"
                     : " little endian";
@@ -289,10 +310,38 @@ public class FloatSampleTools {
                 data = new float[frameCount + outOffset];
                 output[channel] = data;
             }
+        }
+        byte2float(input, inByteOffset, output, outOffset, frameCount,
+                getFormatType(format), channels, format.getFrameSize());
+    }
 
-            byte2floatGeneric(input, inByteOffset, format.getFrameSize(), data,
-                    outOffset, frameCount, format);
-            inByteOffset += format.getFrameSize() / format.getChannels();
+    /**
+     * Converts the first <code>channels</code> channels of interleaved
+     * input data to the float arrays in <code>output</code>, which must
+     * be large enough. The format type must have been obtained with
+     * getFormatType(AudioFormat), so that callers can determine it once
+     * per format.
+     *
+     * @param output    an array of float[] arrays
+     * @param frameSize the number of bytes per frame in input
+     */
+    static void byte2float(byte[] input, int inByteOffset, Object[] output,
+                           int outOffset, int frameCount, int formatType, int channels,
+                           int frameSize) {
+        if (channels == 1) {
+            byte2floatGeneric(input, inByteOffset, frameSize,
+                    (float[]) output[0], outOffset, frameCount, formatType);
+        } else if (channels == 2) {
+            byte2floatStereo(input, inByteOffset, frameSize,
+                    (float[]) output[0], (float[]) output[1], outOffset,
+                    frameCount, formatType);
+        } else {
+            float[][] channelData = new float[channels][];
+            for (int channel = 0; channel < channels; channel++) {
+                channelData[channel] = (float[]) output[channel];
+            }
+            byte2floatMultiChannel(input, inByteOffset, frameSize,
+                    channelData, outOffset, frameCount, formatType);
         }
     }
 
@@ -335,7 +384,7 @@ public class FloatSampleTools {
         }
         for (int channel = 0; channel < channels; channel++) {
             float[] data;
-            if (output.size() < channel) {
+            if (output.size() <= channel) {
                 data = new float[frameCount + outOffset];
                 output.add(data);
             } else {
@@ -345,11 +394,10 @@ public class FloatSampleTools {
                     output.set(channel, data);
                 }
             }
-
-            byte2floatGeneric(input, inByteOffset, format.getFrameSize(), data,
-                    outOffset, frameCount, format);
-            inByteOffset += format.getFrameSize() / format.getChannels();
         }
+        byte2float(input, inByteOffset, output.toArray(), outOffset,
+                frameCount, getFormatType(format), channels,
+                format.getFrameSize());
     }
 
     /**
@@ -478,71 +526,312 @@ public class FloatSampleTools {
         // }
         int endCount = outOffset + sampleCount;
         int inIndex = inByteOffset;
-        for (int outIndex = outOffset; outIndex < endCount; outIndex++, inIndex += inByteStep) {
-            // do conversion
-            switch (formatType) {
-            case CT_8S:
+        int outIndex = outOffset;
+        switch (formatType) {
+        case CT_8S:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
                 output[outIndex] = input[inIndex] * invTwoPower7;
-                break;
-            case CT_8U:
+            }
+            break;
+        case CT_8U:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
                 output[outIndex] = ((input[inIndex] & 0xFF) - 128) * invTwoPower7;
-                break;
-            case CT_16SB:
-                output[outIndex] = ((input[inIndex] << 8)
-                        | (input[inIndex + 1] & 0xFF))
-                        * invTwoPower15;
-                break;
-            case CT_16SL:
-                output[outIndex] = ((input[inIndex + 1] << 8)
-                        | (input[inIndex] & 0xFF))
-                        * invTwoPower15;
-                break;
-            case CT_24_3SB:
-                output[outIndex] = ((input[inIndex] << 16)
-                        | ((input[inIndex + 1] & 0xFF) << 8)
-                        | (input[inIndex + 2] & 0xFF))
-                        * invTwoPower23;
-                break;
-            case CT_24_3SL:
-                output[outIndex] = ((input[inIndex + 2] << 16)
-                        | ((input[inIndex + 1] & 0xFF) << 8)
-                        | (input[inIndex] & 0xFF))
-                        * invTwoPower23;
-                break;
-            case CT_24_4SB:
-                output[outIndex] = ((input[inIndex + 1] << 16)
-                        | ((input[inIndex + 2] & 0xFF) << 8)
-                        | (input[inIndex + 3] & 0xFF))
-                        * invTwoPower23;
-                break;
-            case CT_24_4SL:
-                // TODO: verify the indexes
-                output[outIndex] = ((input[inIndex + 3] << 16)
-                        | ((input[inIndex + 2] & 0xFF) << 8)
-                        | (input[inIndex + 1] & 0xFF))
-                        * invTwoPower23;
-                break;
-            case CT_32SB:
-                output[outIndex] = ((input[inIndex] << 24)
-                        | ((input[inIndex + 1] & 0xFF) << 16)
-                        | ((input[inIndex + 2] & 0xFF) << 8)
-                        | (input[inIndex + 3] & 0xFF))
-                        * invTwoPower31;
-                break;
-            case CT_32SL:
-                output[outIndex] = ((input[inIndex + 3] << 24)
-                        | ((input[inIndex + 2] & 0xFF) << 16)
-                        | ((input[inIndex + 1] & 0xFF) << 8)
-                        | (input[inIndex] & 0xFF))
-                        * invTwoPower31;
-                break;
-            default:
-                throw new IllegalArgumentException("unsupported format="
-                        + formatType2Str(formatType));
             }
+            break;
+        case CT_16SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                output[outIndex] = get16B(input, inIndex) * invTwoPower15;
+            }
+            break;
+        case CT_16SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                output[outIndex] = get16L(input, inIndex) * invTwoPower15;
+            }
+            break;
+        case CT_24_3SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                output[outIndex] = get24B(input, inIndex) * invTwoPower23;
+            }
+            break;
+        case CT_24_3SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                output[outIndex] = get24L(input, inIndex) * invTwoPower23;
+            }
+            break;
+        case CT_24_4SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                output[outIndex] = get24B(input, inIndex + 1) * invTwoPower23;
+            }
+            break;
+        case CT_24_4SL:
+            // TODO: verify the indexes
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                output[outIndex] = get24L(input, inIndex + 1) * invTwoPower23;
+            }
+            break;
+        case CT_32SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                output[outIndex] = get32B(input, inIndex) * invTwoPower31;
+            }
+            break;
+        case CT_32SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                output[outIndex] = get32L(input, inIndex) * invTwoPower31;
+            }
+            break;
+        case CT_32FB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                output[outIndex] = Float.intBitsToFloat(get32B(input, inIndex));
+            }
+            break;
+        case CT_32FL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                output[outIndex] = Float.intBitsToFloat(get32L(input, inIndex));
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("unsupported format="
+                    + formatType2Str(formatType));
+        }
+    }
+
+    /**
+     * Converts interleaved stereo data to two float arrays in one pass.
+     * Like byte2floatGeneric, but both channels of a frame are converted
+     * together. inByteStep is the frame size, so this can also be used to
+     * extract the first two channels of data with more channels.
+     */
+    static void byte2floatStereo(byte[] input, int inByteOffset,
+                                 int inByteStep, float[] left, float[] right, int outOffset,
+                                 int sampleCount, int formatType) {
+        int endCount = outOffset + sampleCount;
+        int inIndex = inByteOffset;
+        int outIndex = outOffset;
+        switch (formatType) {
+        case CT_8S:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = input[inIndex] * invTwoPower7;
+                right[outIndex] = input[inIndex + 1] * invTwoPower7;
+            }
+            break;
+        case CT_8U:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = ((input[inIndex] & 0xFF) - 128) * invTwoPower7;
+                right[outIndex] = ((input[inIndex + 1] & 0xFF) - 128) * invTwoPower7;
+            }
+            break;
+        case CT_16SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = get16B(input, inIndex) * invTwoPower15;
+                right[outIndex] = get16B(input, inIndex + 2) * invTwoPower15;
+            }
+            break;
+        case CT_16SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = get16L(input, inIndex) * invTwoPower15;
+                right[outIndex] = get16L(input, inIndex + 2) * invTwoPower15;
+            }
+            break;
+        case CT_24_3SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = get24B(input, inIndex) * invTwoPower23;
+                right[outIndex] = get24B(input, inIndex + 3) * invTwoPower23;
+            }
+            break;
+        case CT_24_3SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = get24L(input, inIndex) * invTwoPower23;
+                right[outIndex] = get24L(input, inIndex + 3) * invTwoPower23;
+            }
+            break;
+        case CT_24_4SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = get24B(input, inIndex + 1) * invTwoPower23;
+                right[outIndex] = get24B(input, inIndex + 5) * invTwoPower23;
+            }
+            break;
+        case CT_24_4SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = get24L(input, inIndex + 1) * invTwoPower23;
+                right[outIndex] = get24L(input, inIndex + 5) * invTwoPower23;
+            }
+            break;
+        case CT_32SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = get32B(input, inIndex) * invTwoPower31;
+                right[outIndex] = get32B(input, inIndex + 4) * invTwoPower31;
+            }
+            break;
+        case CT_32SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = get32L(input, inIndex) * invTwoPower31;
+                right[outIndex] = get32L(input, inIndex + 4) * invTwoPower31;
+            }
+            break;
+        case CT_32FB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = Float.intBitsToFloat(get32B(input, inIndex));
+                right[outIndex] = Float.intBitsToFloat(get32B(input, inIndex + 4));
+            }
+            break;
+        case CT_32FL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                left[outIndex] = Float.intBitsToFloat(get32L(input, inIndex));
+                right[outIndex] = Float.intBitsToFloat(get32L(input, inIndex + 4));
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("unsupported format="
+                    + formatType2Str(formatType));
+        }
+    }
+
+    /**
+     * Converts interleaved data with any number of channels to one float
+     * array per channel in one pass. Like byte2floatStereo, each frame is
+     * read once and its samples are written to all arrays in
+     * <code>output</code>. inByteStep is the frame size, so this can also
+     * be used to extract the first output.length channels of data with
+     * more channels.
+     */
+    static void byte2floatMultiChannel(byte[] input, int inByteOffset,
+                                       int inByteStep, float[][] output, int outOffset,
+                                       int sampleCount, int formatType) {
+        int channels = output.length;
+        int endCount = outOffset + sampleCount;
+        int inIndex = inByteOffset;
+        int outIndex = outOffset;
+        switch (formatType) {
+        case CT_8S:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 1) {
+                    output[channel][outIndex] = input[sampleIndex] * invTwoPower7;
+                }
+            }
+            break;
+        case CT_8U:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 1) {
+                    output[channel][outIndex] = ((input[sampleIndex] & 0xFF) - 128) * invTwoPower7;
+                }
+            }
+            break;
+        case CT_16SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 2) {
+                    output[channel][outIndex] = get16B(input, sampleIndex) * invTwoPower15;
+                }
+            }
+            break;
+        case CT_16SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 2) {
+                    output[channel][outIndex] = get16L(input, sampleIndex) * invTwoPower15;
+                }
+            }
+            break;
+        case CT_24_3SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 3) {
+                    output[channel][outIndex] = get24B(input, sampleIndex) * invTwoPower23;
+                }
+            }
+            break;
+        case CT_24_3SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 3) {
+                    output[channel][outIndex] = get24L(input, sampleIndex) * invTwoPower23;
+                }
+            }
+            break;
+        case CT_24_4SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 4) {
+                    output[channel][outIndex] = get24B(input, sampleIndex + 1) * invTwoPower23;
+                }
+            }
+            break;
+        case CT_24_4SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 4) {
+                    output[channel][outIndex] = get24L(input, sampleIndex + 1) * invTwoPower23;
+                }
+            }
+            break;
+        case CT_32SB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 4) {
+                    output[channel][outIndex] = get32B(input, sampleIndex) * invTwoPower31;
+                }
+            }
+            break;
+        case CT_32SL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 4) {
+                    output[channel][outIndex] = get32L(input, sampleIndex) * invTwoPower31;
+                }
+            }
+            break;
+        case CT_32FB:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 4) {
+                    output[channel][outIndex] = Float.intBitsToFloat(get32B(input, sampleIndex));
+                }
+            }
+            break;
+        case CT_32FL:
+            for (; outIndex < endCount; outIndex++, inIndex += inByteStep) {
+                int sampleIndex = inIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 4) {
+                    output[channel][outIndex] = Float.intBitsToFloat(get32L(input, sampleIndex));
+                }
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("unsupported format="
+                    + formatType2Str(formatType));
         }
     }
 
+    // the sample readers are small enough to be inlined by the JIT
+
+    private static int get16B(byte[] b, int i) {
+        return (b[i] << 8) | (b[i + 1] & 0xFF);
+    }
+
+    private static int get16L(byte[] b, int i) {
+        return (b[i + 1] << 8) | (b[i] & 0xFF);
+    }
+
+    private static int get24B(byte[] b, int i) {
+        return (b[i] << 16) | ((b[i + 1] & 0xFF) << 8) | (b[i + 2] & 0xFF);
+    }
+
+    private static int get24L(byte[] b, int i) {
+        return (b[i + 2] << 16) | ((b[i + 1] & 0xFF) << 8) | (b[i] & 0xFF);
+    }
+
+    private static int get32B(byte[] b, int i) {
+        return (b[i] << 24) | ((b[i + 1] & 0xFF) << 16)
+                | ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+    }
+
+    private static int get32L(byte[] b, int i) {
+        return (b[i + 3] << 24) | ((b[i + 2] & 0xFF) << 16)
+                | ((b[i + 1] & 0xFF) << 8) | (b[i] & 0xFF);
+    }
+
     // /////////////////// FLOAT 2 BYTE /////////////////////////////////// //
 
     private static byte quantize8(float sample, float ditherBits) {
@@ -637,12 +926,13 @@ public class FloatSampleTools {
     public static void float2byte(List<float[]> input, int inOffset,
                                   byte[] output, int outByteOffset, int frameCount,
                                   AudioFormat format, float ditherBits) {
-        for (int channel = 0; channel < format.getChannels(); channel++) {
-            float[] data = input.get(channel);
-            float2byteGeneric(data, inOffset, output, outByteOffset,
-                    format.getFrameSize(), frameCount, format, ditherBits);
-            outByteOffset += format.getFrameSize() / format.getChannels();
+        if (input.size() < format.getChannels()) {
+            throw new IllegalArgumentException("too few channels in input: "
+                    + input.size());
         }
+        float2byte(input.toArray(), inOffset, output, outByteOffset,
+                frameCount, getFormatType(format), format.getChannels(),
+                format.getFrameSize(), ditherBits);
     }
 
     /**
@@ -654,13 +944,9 @@ public class FloatSampleTools {
     public static void float2byte(Object[] input, int inOffset, byte[] output,
                                   int outByteOffset, int frameCount, AudioFormat format,
                                   float ditherBits) {
-        int channels = format.getChannels();
-        for (int channel = 0; channel < channels; channel++) {
-            float[] data = (float[]) input[channel];
-            float2byteGeneric(data, inOffset, output, outByteOffset,
-                    format.getFrameSize(), frameCount, format, ditherBits);
-            outByteOffset += format.getFrameSize() / format.getChannels();
-        }
+        float2byte(input, inOffset, output, outByteOffset, frameCount,
+                getFormatType(format), format.getChannels(),
+                format.getFrameSize(), ditherBits);
     }
 
     /**
@@ -675,12 +961,22 @@ public class FloatSampleTools {
     static void float2byte(Object[] input, int inOffset, byte[] output,
                            int outByteOffset, int frameCount, int formatCode, int channels,
                            int frameSize, float ditherBits) {
-        int sampleSize = frameSize / channels;
-        for (int channel = 0; channel < channels; channel++) {
-            float[] data = (float[]) input[channel];
-            float2byteGeneric(data, inOffset, output, outByteOffset, frameSize,
-                    frameCount, formatCode, ditherBits);
-            outByteOffset += sampleSize;
+        if (channels == 1) {
+            float2byteGeneric((float[]) input[0], inOffset, output,
+                    outByteOffset, frameSize, frameCount, formatCode,
+                    ditherBits);
+        } else if (channels == 2) {
+            float2byteStereo((float[]) input[0], (float[]) input[1], inOffset,
+                    output, outByteOffset, frameSize, frameCount, formatCode,
+                    ditherBits);
+        } else {
+            float[][] channelData = new float[channels][];
+            for (int channel = 0; channel < channels; channel++) {
+                channelData[channel] = (float[]) input[channel];
+            }
+            float2byteMultiChannel(channelData, inOffset, output,
+                    outByteOffset, frameSize, frameCount, formatCode,
+                    ditherBits);
         }
     }
 
@@ -803,75 +1099,353 @@ public class FloatSampleTools {
             random = new Random();
         }
         int endSample = inOffset + sampleCount;
-        int iSample;
+        int inIndex = inOffset;
         int outIndex = outByteOffset;
-        for (int inIndex = inOffset; inIndex < endSample; inIndex++, outIndex += outByteStep) {
-            // do conversion
-            switch (formatType) {
-            case CT_8S:
+        switch (formatType) {
+        case CT_8S:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
                 output[outIndex] = quantize8(input[inIndex] * twoPower7,
                         ditherBits);
-                break;
-            case CT_8U:
+            }
+            break;
+        case CT_8U:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
                 output[outIndex] = (byte) (quantize8(
                         (input[inIndex] * twoPower7), ditherBits) + 128);
-                break;
-            case CT_16SB:
-                iSample = quantize16(input[inIndex] * twoPower15, ditherBits);
-                output[outIndex] = (byte) (iSample >> 8);
-                output[outIndex + 1] = (byte) (iSample & 0xFF);
-                break;
-            case CT_16SL:
-                iSample = quantize16(input[inIndex] * twoPower15, ditherBits);
-                output[outIndex + 1] = (byte) (iSample >> 8);
-                output[outIndex] = (byte) (iSample & 0xFF);
-                break;
-            case CT_24_3SB:
-                iSample = quantize24(input[inIndex] * twoPower23, ditherBits);
-                output[outIndex] = (byte) (iSample >> 16);
-                output[outIndex + 1] = (byte) ((iSample >>> 8) & 0xFF);
-                output[outIndex + 2] = (byte) (iSample & 0xFF);
-                break;
-            case CT_24_3SL:
-                iSample = quantize24(input[inIndex] * twoPower23, ditherBits);
-                output[outIndex + 2] = (byte) (iSample >> 16);
-                output[outIndex + 1] = (byte) ((iSample >>> 8) & 0xFF);
-                output[outIndex] = (byte) (iSample & 0xFF);
-                break;
-            case CT_24_4SB:
-                // TODO: verify
-                iSample = quantize24(input[inIndex] * twoPower23, ditherBits);
-                output[outIndex + 0] = 0;
-                output[outIndex + 1] = (byte) (iSample >> 16);
-                output[outIndex + 2] = (byte) ((iSample >>> 8) & 0xFF);
-                output[outIndex + 3] = (byte) (iSample & 0xFF);
-                break;
-            case CT_24_4SL:
-                // TODO: verify
-                iSample = quantize24(input[inIndex] * twoPower23, ditherBits);
-                output[outIndex + 3] = (byte) (iSample >> 16);
-                output[outIndex + 2] = (byte) ((iSample >>> 8) & 0xFF);
-                output[outIndex + 1] = (byte) (iSample & 0xFF);
-                output[outIndex + 0] = 0;
-                break;
-            case CT_32SB:
-                iSample = quantize32(input[inIndex] * twoPower31, ditherBits);
-                output[outIndex] = (byte) (iSample >> 24);
-                output[outIndex + 1] = (byte) ((iSample >>> 16) & 0xFF);
-                output[outIndex + 2] = (byte) ((iSample >>> 8) & 0xFF);
-                output[outIndex + 3] = (byte) (iSample & 0xFF);
-                break;
-            case CT_32SL:
-                iSample = quantize32(input[inIndex] * twoPower31, ditherBits);
-                output[outIndex + 3] = (byte) (iSample >> 24);
-                output[outIndex + 2] = (byte) ((iSample >>> 16) & 0xFF);
-                output[outIndex + 1] = (byte) ((iSample >>> 8) & 0xFF);
-                output[outIndex] = (byte) (iSample & 0xFF);
-                break;
-            default:
-                throw new IllegalArgumentException("unsupported format="
-                        + formatType2Str(formatType));
+            }
+            break;
+        case CT_16SB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put16B(output, outIndex,
+                        quantize16(input[inIndex] * twoPower15, ditherBits));
+            }
+            break;
+        case CT_16SL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put16L(output, outIndex,
+                        quantize16(input[inIndex] * twoPower15, ditherBits));
+            }
+            break;
+        case CT_24_3SB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put24B(output, outIndex,
+                        quantize24(input[inIndex] * twoPower23, ditherBits));
+            }
+            break;
+        case CT_24_3SL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put24L(output, outIndex,
+                        quantize24(input[inIndex] * twoPower23, ditherBits));
+            }
+            break;
+        case CT_24_4SB:
+            // TODO: verify
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                output[outIndex] = 0;
+                put24B(output, outIndex + 1,
+                        quantize24(input[inIndex] * twoPower23, ditherBits));
+            }
+            break;
+        case CT_24_4SL:
+            // TODO: verify
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put24L(output, outIndex + 1,
+                        quantize24(input[inIndex] * twoPower23, ditherBits));
+                output[outIndex] = 0;
+            }
+            break;
+        case CT_32SB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put32B(output, outIndex,
+                        quantize32(input[inIndex] * twoPower31, ditherBits));
+            }
+            break;
+        case CT_32SL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put32L(output, outIndex,
+                        quantize32(input[inIndex] * twoPower31, ditherBits));
+            }
+            break;
+        case CT_32FB:
+            // no quantization, so no dithering
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put32B(output, outIndex, Float.floatToRawIntBits(input[inIndex]));
+            }
+            break;
+        case CT_32FL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put32L(output, outIndex, Float.floatToRawIntBits(input[inIndex]));
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("unsupported format="
+                    + formatType2Str(formatType));
+        }
+    }
+
+    /**
+     * Converts two float arrays to interleaved stereo data in one pass.
+     * Like float2byteGeneric, but both channels of a frame are converted
+     * together. outByteStep is the frame size.
+     */
+    static void float2byteStereo(float[] left, float[] right, int inOffset,
+                                 byte[] output, int outByteOffset, int outByteStep,
+                                 int sampleCount, int formatType, float ditherBits) {
+        int sampleSize = getSampleSize(formatType);
+        if (inOffset < 0 || inOffset + sampleCount > left.length
+                || inOffset + sampleCount > right.length || sampleCount < 0) {
+            throw new IllegalArgumentException("invalid input index: "
+                    + "input.length=" + Math.min(left.length, right.length)
+                    + " inOffset=" + inOffset + " sampleCount=" + sampleCount);
+        }
+        if (outByteOffset < 0
+                || outByteOffset + (sampleCount * outByteStep) >= (output.length + outByteStep)
+                || outByteStep < 2 * sampleSize) {
+            throw new IllegalArgumentException("invalid output index: "
+                    + "output.length=" + output.length + " outByteOffset="
+                    + outByteOffset + " outByteStep=" + outByteStep
+                    + " sampleCount=" + sampleCount + " format="
+                    + formatType2Str(formatType));
+        }
+        if (ditherBits != 0.0f && random == null) {
+            // create the random number generator for dithering
+            random = new Random();
+        }
+        int endSample = inOffset + sampleCount;
+        int inIndex = inOffset;
+        int outIndex = outByteOffset;
+        switch (formatType) {
+        case CT_8S:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                output[outIndex] = quantize8(left[inIndex] * twoPower7, ditherBits);
+                output[outIndex + 1] = quantize8(right[inIndex] * twoPower7, ditherBits);
+            }
+            break;
+        case CT_8U:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                output[outIndex] = (byte) (quantize8(left[inIndex] * twoPower7, ditherBits) + 128);
+                output[outIndex + 1] = (byte) (quantize8(right[inIndex] * twoPower7, ditherBits) + 128);
+            }
+            break;
+        case CT_16SB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put16B(output, outIndex, quantize16(left[inIndex] * twoPower15, ditherBits));
+                put16B(output, outIndex + 2, quantize16(right[inIndex] * twoPower15, ditherBits));
+            }
+            break;
+        case CT_16SL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put16L(output, outIndex, quantize16(left[inIndex] * twoPower15, ditherBits));
+                put16L(output, outIndex + 2, quantize16(right[inIndex] * twoPower15, ditherBits));
+            }
+            break;
+        case CT_24_3SB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put24B(output, outIndex, quantize24(left[inIndex] * twoPower23, ditherBits));
+                put24B(output, outIndex + 3, quantize24(right[inIndex] * twoPower23, ditherBits));
+            }
+            break;
+        case CT_24_3SL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put24L(output, outIndex, quantize24(left[inIndex] * twoPower23, ditherBits));
+                put24L(output, outIndex + 3, quantize24(right[inIndex] * twoPower23, ditherBits));
+            }
+            break;
+        case CT_32SB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put32B(output, outIndex, quantize32(left[inIndex] * twoPower31, ditherBits));
+                put32B(output, outIndex + 4, quantize32(right[inIndex] * twoPower31, ditherBits));
+            }
+            break;
+        case CT_32SL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put32L(output, outIndex, quantize32(left[inIndex] * twoPower31, ditherBits));
+                put32L(output, outIndex + 4, quantize32(right[inIndex] * twoPower31, ditherBits));
+            }
+            break;
+        case CT_32FB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put32B(output, outIndex, Float.floatToRawIntBits(left[inIndex]));
+                put32B(output, outIndex + 4, Float.floatToRawIntBits(right[inIndex]));
+            }
+            break;
+        case CT_32FL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                put32L(output, outIndex, Float.floatToRawIntBits(left[inIndex]));
+                put32L(output, outIndex + 4, Float.floatToRawIntBits(right[inIndex]));
+            }
+            break;
+        default:
+            // rare formats (24 bit in 4 bytes) go through the generic loop
+            float2byteGeneric(left, inOffset, output, outByteOffset,
+                    outByteStep, sampleCount, formatType, ditherBits);
+            float2byteGeneric(right, inOffset, output, outByteOffset
+                    + sampleSize, outByteStep, sampleCount, formatType, ditherBits);
+        }
+    }
+
+    /**
+     * Converts one float array per channel to interleaved data in one
+     * pass. Like float2byteStereo, all samples of a frame are written
+     * together. outByteStep is the frame size.
+     */
+    static void float2byteMultiChannel(float[][] input, int inOffset,
+                                       byte[] output, int outByteOffset, int outByteStep,
+                                       int sampleCount, int formatType, float ditherBits) {
+        int channels = input.length;
+        int sampleSize = getSampleSize(formatType);
+        int inputLength = Integer.MAX_VALUE;
+        for (float[] data : input) {
+            inputLength = Math.min(inputLength, data.length);
+        }
+        if (inOffset < 0 || inOffset + sampleCount > inputLength
+                || sampleCount < 0) {
+            throw new IllegalArgumentException("invalid input index: "
+                    + "input.length=" + inputLength
+                    + " inOffset=" + inOffset + " sampleCount=" + sampleCount);
+        }
+        if (outByteOffset < 0
+                || outByteOffset + (sampleCount * outByteStep) >= (output.length + outByteStep)
+                || outByteStep < channels * sampleSize) {
+            throw new IllegalArgumentException("invalid output index: "
+                    + "output.length=" + output.length + " outByteOffset="
+                    + outByteOffset + " outByteStep=" + outByteStep
+                    + " sampleCount=" + sampleCount + " format="
+                    + formatType2Str(formatType));
+        }
+        if (ditherBits != 0.0f && random == null) {
+            // create the random number generator for dithering
+            random = new Random();
+        }
+        int endSample = inOffset + sampleCount;
+        int inIndex = inOffset;
+        int outIndex = outByteOffset;
+        switch (formatType) {
+        case CT_8S:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                int sampleIndex = outIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 1) {
+                    output[sampleIndex] = quantize8(input[channel][inIndex] * twoPower7, ditherBits);
+                }
+            }
+            break;
+        case CT_8U:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                int sampleIndex = outIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 1) {
+                    output[sampleIndex] = (byte) (quantize8(input[channel][inIndex] * twoPower7, ditherBits) + 128);
+                }
+            }
+            break;
+        case CT_16SB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                int sampleIndex = outIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 2) {
+                    put16B(output, sampleIndex, quantize16(input[channel][inIndex] * twoPower15, ditherBits));
+                }
+            }
+            break;
+        case CT_16SL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                int sampleIndex = outIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 2) {
+                    put16L(output, sampleIndex, quantize16(input[channel][inIndex] * twoPower15, ditherBits));
+                }
+            }
+            break;
+        case CT_24_3SB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                int sampleIndex = outIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 3) {
+                    put24B(output, sampleIndex, quantize24(input[channel][inIndex] * twoPower23, ditherBits));
+                }
+            }
+            break;
+        case CT_24_3SL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                int sampleIndex = outIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 3) {
+                    put24L(output, sampleIndex, quantize24(input[channel][inIndex] * twoPower23, ditherBits));
+                }
+            }
+            break;
+        case CT_32SB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                int sampleIndex = outIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 4) {
+                    put32B(output, sampleIndex, quantize32(input[channel][inIndex] * twoPower31, ditherBits));
+                }
+            }
+            break;
+        case CT_32SL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                int sampleIndex = outIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 4) {
+                    put32L(output, sampleIndex, quantize32(input[channel][inIndex] * twoPower31, ditherBits));
+                }
+            }
+            break;
+        case CT_32FB:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                int sampleIndex = outIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 4) {
+                    put32B(output, sampleIndex, Float.floatToRawIntBits(input[channel][inIndex]));
+                }
+            }
+            break;
+        case CT_32FL:
+            for (; inIndex < endSample; inIndex++, outIndex += outByteStep) {
+                int sampleIndex = outIndex;
+                for (int channel = 0; channel < channels; channel++, sampleIndex += 4) {
+                    put32L(output, sampleIndex, Float.floatToRawIntBits(input[channel][inIndex]));
+                }
+            }
+            break;
+        default:
+            // rare formats (24 bit in 4 bytes) go through the generic loop
+            for (int channel = 0; channel < channels; channel++) {
+                float2byteGeneric(input[channel], inOffset, output,
+                        outByteOffset + channel * sampleSize, outByteStep,
+                        sampleCount, formatType, ditherBits);
             }
         }
     }
+
+    // the sample writers are small enough to be inlined by the JIT
+
+    private static void put16B(byte[] b, int i, int sample) {
+        b[i] = (byte) (sample >> 8);
+        b[i + 1] = (byte) (sample & 0xFF);
+    }
+
+    private static void put16L(byte[] b, int i, int sample) {
+        b[i + 1] = (byte) (sample >> 8);
+        b[i] = (byte) (sample & 0xFF);
+    }
+
+    private static void put24B(byte[] b, int i, int sample) {
+        b[i] = (byte) (sample >> 16);
+        b[i + 1] = (byte) ((sample >>> 8) & 0xFF);
+        b[i + 2] = (byte) (sample & 0xFF);
+    }
+
+    private static void put24L(byte[] b, int i, int sample) {
+        b[i + 2] = (byte) (sample >> 16);
+        b[i + 1] = (byte) ((sample >>> 8) & 0xFF);
+        b[i] = (byte) (sample & 0xFF);
+    }
+
+    private static void put32B(byte[] b, int i, int sample) {
+        b[i] = (byte) (sample >> 24);
+        b[i + 1] = (byte) ((sample >>> 16) & 0xFF);
+        b[i + 2] = (byte) ((sample >>> 8) & 0xFF);
+        b[i + 3] = (byte) (sample & 0xFF);
+    }
+
+    private static void put32L(byte[] b, int i, int sample) {
+        b[i + 3] = (byte) (sample >> 24);
+        b[i + 2] = (byte) ((sample >>> 16) & 0xFF);
+        b[i + 1] = (byte) ((sample >>> 8) & 0xFF);
+        b[i] = (byte) (sample & 0xFF);
+    }
 }
@@ -30,10 +30,12 @@ package org.tritonus.share.sampled.convert;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import javax.sound.sampled.AudioFormat;
 
 import org.tritonus.share.TCircularBuffer;
 import org.tritonus.share.TDebug;
+import org.tritonus.share.TSettings;
 
 
 /**
@@ -45,6 +47,10 @@ import org.tritonus.share.TDebug;
  * These types of converters therefore need an
  * internal buffer, which is realized in this
  * class.
+ * The buffer is filled from {@link #execute()}, which runs on the
+ * reading thread. So setting the system property
+ * tritonus.CircularBufferSingleProducerSingleConsumer to true is safe
+ * for subclasses that do not write from other threads.
  *
  * @author Matthias Pfisterer
  */
@@ -118,6 +124,38 @@ public abstract class TAsynchronousFilteredAudioInputStream
     }
 
 
+    /**
+     * Constructor.
+     * With this constructor, the storage of the circular buffer
+     * is passed in. This way, the buffer can be placed in a direct
+     * or memory-mapped ByteBuffer instead of the Java heap.
+     *
+     * @param lLength       length of this stream in frames. May be
+     *                      AudioSystem.NOT_SPECIFIED.
+     * @param bufferStorage storage of the circular buffer. Its
+     *                      remaining bytes are used. If the lock-free
+     *                      circular buffer implementation is enabled,
+     *                      their number has to be a power of two.
+     * @see TCircularBuffer#TCircularBuffer(ByteBuffer, boolean, boolean, TCircularBuffer.Trigger, boolean)
+     */
+    public TAsynchronousFilteredAudioInputStream(
+            AudioFormat outputFormat, long lLength,
+            ByteBuffer bufferStorage,
+            int nMinAvailable) {
+        // see above for the ByteArrayInputStream
+        super(new ByteArrayInputStream(EMPTY_BYTE_ARRAY),
+                outputFormat,
+                lLength);
+        m_circularBuffer = new TCircularBuffer(
+                bufferStorage,
+                false, // blocking read
+                true, // blocking write
+                this, // trigger
+                TSettings.CircularBufferSingleProducerSingleConsumer);
+        m_nMinAvailable = nMinAvailable;
+    }
+
+
     /**
      * Returns the circular buffer.
      */
@@ -194,17 +232,60 @@ public abstract class TAsynchronousFilteredAudioInputStream
     }
 
 
+    /**
+     * Reads data into a ByteBuffer.
+     * Up to the remaining bytes of buffer are read. The position of
+     * buffer is advanced by the number of bytes read.
+     *
+     * @return the number of bytes read or -1 if the end of the stream
+     * is reached.
+     */
+    public int read(ByteBuffer buffer)
+            throws IOException {
+        return m_circularBuffer.read(buffer);
+    }
+
+
+    /**
+     * Returns a view of decoded data without copying it.
+     * The view is valid until {@link #commitRead(int)} is called.
+     * It contains at most nMaxLength bytes, but may contain less
+     * even if the end of the stream is not yet reached.
+     *
+     * @return the view, or null if the end of the stream is reached.
+     * @see TCircularBuffer#readSlice(int)
+     */
+    public ByteBuffer readSlice(int nMaxLength)
+            throws IOException {
+        return m_circularBuffer.readSlice(nMaxLength);
+    }
+
+
+    /**
+     * Consumes data obtained with {@link #readSlice(int)}.
+     *
+     * @param nLength number of bytes consumed.
+     */
+    public void commitRead(int nLength)
+            throws IOException {
+        m_circularBuffer.commitRead(nLength);
+    }
+
+
     @Override
     public long skip(long lSkip)
             throws IOException {
-        // TODO: this is quite inefficient
-        for (long lSkipped = 0; lSkipped < lSkip; lSkipped++) {
-            int nReturn = read();
-            if (nReturn == -1) {
-                return lSkipped;
+        long lSkipped = 0;
+        while (lSkipped < lSkip) {
+            ByteBuffer slice = m_circularBuffer.readSlice((int) Math.min(lSkip - lSkipped, Integer.MAX_VALUE));
+            if (slice == null || !slice.hasRemaining()) {
+                break;
             }
+            int nLength = slice.remaining();
+            m_circularBuffer.commitRead(nLength);
+            lSkipped += nLength;
         }
-        return lSkip;
+        return lSkipped;
     }
 
 
@@ -0,0 +1,247 @@
+/*
+ * AudioFileSniffer.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.share.sampled.file;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.sound.sampled.spi.AudioFileReader;
+
+import org.tritonus.share.TDebug;
+
+
+/**
+ * Detection of the file format with a single read of the header.
+ * <p>
+ * AudioSystem passes a stream to one AudioFileReader after the other,
+ * and each of them reads the header again. This class reads the first
+ * SNIFF_LENGTH bytes once and asks the TAudioFileReaders whether they
+ * recognize the magic bytes (see
+ * {@link TAudioFileReader#matchesHeader}). The readers that do are
+ * tried first. The other readers, including those that are no
+ * TAudioFileReaders, are only tried if none of them could read the
+ * file.
+ * <p>
+ * Streams that do not support mark() are wrapped once into a
+ * BufferedInputStream that holds the header, so that the readers do
+ * not wrap them again.
+ */
+public class AudioFileSniffer {
+    /**
+     * Number of bytes examined. This is also the mark limit while
+     * readers are tried, so it is larger than the mark limits of the
+     * readers.
+     */
+    public static final int SNIFF_LENGTH = 8192;
+
+    private final List<AudioFileReader> m_readers;
+
+
+    /**
+     * Create a sniffer for the installed AudioFileReader providers.
+     */
+    public AudioFileSniffer() {
+        this(getInstalledReaders());
+    }
+
+
+    /**
+     * Create a sniffer for the given readers. Readers are tried in
+     * list order within the readers recognizing the header and within
+     * the others.
+     */
+    public AudioFileSniffer(List<? extends AudioFileReader> readers) {
+        m_readers = Collections.unmodifiableList(new ArrayList<AudioFileReader>(readers));
+    }
+
+
+    public List<AudioFileReader> getReaders() {
+        return m_readers;
+    }
+
+
+    public AudioFileFormat getAudioFileFormat(InputStream inputStream)
+            throws UnsupportedAudioFileException, IOException {
+        inputStream = getMarkableStream(inputStream);
+        for (AudioFileReader reader : getReaders(readHeader(inputStream))) {
+            inputStream.mark(SNIFF_LENGTH);
+            try {
+                return reader.getAudioFileFormat(inputStream);
+            } catch (UnsupportedAudioFileException e) {
+                traceFailure(reader, e);
+            } finally {
+                inputStream.reset();
+            }
+        }
+        throw new UnsupportedAudioFileException("stream of unsupported format");
+    }
+
+
+    public AudioInputStream getAudioInputStream(InputStream inputStream)
+            throws UnsupportedAudioFileException, IOException {
+        inputStream = getMarkableStream(inputStream);
+        for (AudioFileReader reader : getReaders(readHeader(inputStream))) {
+            inputStream.mark(SNIFF_LENGTH);
+            try {
+                return reader.getAudioInputStream(inputStream);
+            } catch (UnsupportedAudioFileException e) {
+                traceFailure(reader, e);
+                inputStream.reset();
+            }
+        }
+        throw new UnsupportedAudioFileException("stream of unsupported format");
+    }
+
+
+    public AudioFileFormat getAudioFileFormat(File file)
+            throws UnsupportedAudioFileException, IOException {
+        for (AudioFileReader reader : getReaders(readHeader(file))) {
+            try {
+                return reader.getAudioFileFormat(file);
+            } catch (UnsupportedAudioFileException e) {
+                traceFailure(reader, e);
+            }
+        }
+        throw new UnsupportedAudioFileException("file of unsupported format");
+    }
+
+
+    public AudioInputStream getAudioInputStream(File file)
+            throws UnsupportedAudioFileException, IOException {
+        for (AudioFileReader reader : getReaders(readHeader(file))) {
+            try {
+                return reader.getAudioInputStream(file);
+            } catch (UnsupportedAudioFileException e) {
+                traceFailure(reader, e);
+            }
+        }
+        throw new UnsupportedAudioFileException("file of unsupported format");
+    }
+
+
+    /**
+     * Returns the readers in the order they should be tried for a
+     * header: first those recognizing it, then the others.
+     */
+    private List<AudioFileReader> getReaders(Header header) {
+        List<AudioFileReader> matching = new ArrayList<>();
+        List<AudioFileReader> others = new ArrayList<>();
+        for (AudioFileReader reader : m_readers) {
+            if (reader instanceof TAudioFileReader
+                    && ((TAudioFileReader) reader).matchesHeader(header.m_abData, header.m_nLength)) {
+                matching.add(reader);
+            } else {
+                others.add(reader);
+            }
+        }
+        if (TDebug.TraceAudioFileReader) {
+            TDebug.out("AudioFileSniffer.getReaders(): matching: " + matching);
+        }
+        matching.addAll(others);
+        return matching;
+    }
+
+
+    private static InputStream getMarkableStream(InputStream inputStream) {
+        if (inputStream.markSupported()) {
+            return inputStream;
+        }
+        return new BufferedInputStream(inputStream, SNIFF_LENGTH);
+    }
+
+
+    private static Header readHeader(InputStream inputStream)
+            throws IOException {
+        inputStream.mark(SNIFF_LENGTH);
+        try {
+            return readHeaderFrom(inputStream);
+        } finally {
+            inputStream.reset();
+        }
+    }
+
+
+    private static Header readHeader(File file)
+            throws IOException {
+        try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+            return readHeaderFrom(inputStream);
+        }
+    }
+
+
+    private static Header readHeaderFrom(InputStream inputStream)
+            throws IOException {
+        byte[] abData = new byte[SNIFF_LENGTH];
+        int nLength = 0;
+        while (nLength < abData.length) {
+            int nRead = inputStream.read(abData, nLength, abData.length - nLength);
+            if (nRead < 0) {
+                break;
+            }
+            nLength += nRead;
+        }
+        return new Header(abData, nLength);
+    }
+
+
+    private static List<AudioFileReader> getInstalledReaders() {
+        List<AudioFileReader> readers = new ArrayList<>();
+        for (AudioFileReader reader : ServiceLoader.load(AudioFileReader.class)) {
+            readers.add(reader);
+        }
+        return readers;
+    }
+
+
+    private static void traceFailure(AudioFileReader reader, Exception e) {
+        if (TDebug.TraceAudioFileReader) {
+            TDebug.out("AudioFileSniffer: " + reader.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+    }
+
+
+    private static class Header {
+        private final byte[] m_abData;
+        private final int m_nLength;
+
+
+        public Header(byte[] abData, int nLength) {
+            m_abData = abData;
+            m_nLength = nLength;
+        }
+    }
+}
+
+
+/* AudioFileSniffer.java */
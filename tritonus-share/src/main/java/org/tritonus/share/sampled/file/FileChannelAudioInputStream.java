@@ -0,0 +1,227 @@
+/*
+ * FileChannelAudioInputStream.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.share.sampled.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+
+/**
+ * AudioInputStream that reads the audio data of a file by positional
+ * reads from a FileChannel.
+ * <p>
+ * The audio data is a contiguous region of the file, starting at a
+ * given offset, with a fixed frame size. As the position in the file
+ * is computed from the frame position, skip(), mark() and reset()
+ * take constant time, and {@link #setFramePosition} allows to seek to
+ * any frame. Bulk reads into ByteBuffers avoid copying through an
+ * intermediate array.
+ * <p>
+ * Like AudioInputStream, this class always reads an integral number
+ * of frames. If the frame length is not specified, the data extends to
+ * the end of the file. Instances are not thread-safe. Closing the
+ * stream closes the channel.
+ */
+public class FileChannelAudioInputStream
+        extends AudioInputStream {
+    private final FileChannel m_channel;
+    private final long m_lDataOffset;
+    private long m_lMarkedFramePosition;
+
+
+    /**
+     * @param channel      the channel to read from. It is owned by the
+     *                     new stream.
+     * @param format       the format of the audio data. The frame size
+     *                     has to be specified.
+     * @param lFrameLength the length of the audio data in frames, or
+     *                     AudioSystem.NOT_SPECIFIED
+     * @param lDataOffset  the position of the first frame in the file
+     */
+    public FileChannelAudioInputStream(FileChannel channel,
+                                       AudioFormat format,
+                                       long lFrameLength,
+                                       long lDataOffset) {
+        // all reading methods are overridden; the stream is not used
+        super(new ByteArrayInputStream(new byte[0]), format, lFrameLength);
+        if (format.getFrameSize() <= 0) {
+            throw new IllegalArgumentException("frame size has to be specified");
+        }
+        m_channel = channel;
+        m_lDataOffset = lDataOffset;
+    }
+
+
+    /**
+     * Returns the current position in frames, counted from the start
+     * of the audio data.
+     */
+    public long getFramePosition() {
+        return framePos;
+    }
+
+
+    /**
+     * Set the position of the next read. The position may be beyond
+     * the end of the data; then reading returns -1.
+     *
+     * @param lFramePosition the position in frames, counted from the
+     *                       start of the audio data
+     */
+    public void setFramePosition(long lFramePosition) {
+        if (lFramePosition < 0) {
+            throw new IllegalArgumentException("frame position must not be negative");
+        }
+        framePos = lFramePosition;
+    }
+
+
+    @Override
+    public int read()
+            throws IOException {
+        if (frameSize != 1) {
+            throw new IOException("cannot read a single byte if frame size > 1");
+        }
+        byte[] abData = new byte[1];
+        int nRead = read(abData, 0, 1);
+        return nRead <= 0 ? -1 : abData[0] & 0xFF;
+    }
+
+
+    @Override
+    public int read(byte[] abData, int nOffset, int nLength)
+            throws IOException {
+        return read(ByteBuffer.wrap(abData, nOffset, nLength));
+    }
+
+
+    /**
+     * Read an integral number of frames into a buffer, as many as fit
+     * into its remaining space. The position of the buffer is advanced
+     * by the number of bytes read.
+     *
+     * @return the number of bytes read, or -1 at the end of the data
+     */
+    public int read(ByteBuffer buffer)
+            throws IOException {
+        long lFrames = Math.min(buffer.remaining() / frameSize, getRemainingFrames());
+        if (lFrames <= 0) {
+            return buffer.remaining() < frameSize && getRemainingFrames() > 0 ? 0 : -1;
+        }
+        int nLength = (int) (lFrames * frameSize);
+        // through Buffer: the ByteBuffer overrides of limit(int) and
+        // position(int) do not exist on Java 8
+        Buffer window = buffer;
+        int nLimit = window.limit();
+        window.limit(window.position() + nLength);
+        long lPosition = m_lDataOffset + framePos * frameSize;
+        int nRead = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                int n = m_channel.read(buffer, lPosition + nRead);
+                if (n < 0) {
+                    break;
+                }
+                nRead += n;
+            }
+        } finally {
+            window.limit(nLimit);
+        }
+        // the file may end within a frame
+        int nPartial = nRead % frameSize;
+        window.position(window.position() - nPartial);
+        nRead -= nPartial;
+        if (nRead == 0) {
+            return -1;
+        }
+        framePos += nRead / frameSize;
+        return nRead;
+    }
+
+
+    @Override
+    public long skip(long lLength)
+            throws IOException {
+        long lFrames = Math.max(0, Math.min(lLength / frameSize, getRemainingFrames()));
+        framePos += lFrames;
+        return lFrames * frameSize;
+    }
+
+
+    @Override
+    public int available()
+            throws IOException {
+        return (int) Math.min(getRemainingFrames() * frameSize, Integer.MAX_VALUE);
+    }
+
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+
+    @Override
+    public void mark(int nReadLimit) {
+        m_lMarkedFramePosition = framePos;
+    }
+
+
+    @Override
+    public void reset()
+            throws IOException {
+        framePos = m_lMarkedFramePosition;
+    }
+
+
+    @Override
+    public void close()
+            throws IOException {
+        m_channel.close();
+    }
+
+
+    /**
+     * Returns the number of frames from the current position to the end
+     * of the data or the end of the file, whichever comes first.
+     */
+    private long getRemainingFrames()
+            throws IOException {
+        long lFileFrames = (m_channel.size() - m_lDataOffset) / frameSize;
+        if (frameLength != AudioSystem.NOT_SPECIFIED) {
+            lFileFrames = Math.min(lFileFrames, frameLength);
+        }
+        return Math.max(0, lFileFrames - framePos);
+    }
+}
+
+
+/* FileChannelAudioInputStream.java */
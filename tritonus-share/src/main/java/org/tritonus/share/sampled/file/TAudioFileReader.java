@@ -35,8 +35,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
@@ -85,6 +89,40 @@ public abstract class TAudioFileReader
     }
 
 
+    /**
+     * Whether getAudioInputStream(File) may return a
+     * FileChannelAudioInputStream. Such a stream allows to seek in
+     * constant time. This implementation returns false.
+     * Subclasses may return true if getAudioFileFormat(InputStream, long)
+     * reads the header exactly up to the start of the audio data, the
+     * audio data is contiguous up to the end of its length, and
+     * getAudioInputStream(InputStream, long) is not overridden.
+     * The stream is only used for formats with a specified frame size.
+     */
+    protected boolean isFileChannelSupported() {
+        return false;
+    }
+
+
+    /**
+     * Checks the magic bytes at the beginning of a file.
+     * This is used by AudioFileSniffer to pick the readers to try
+     * first, without reading the header once per reader.
+     * This implementation returns false. Subclasses for formats with
+     * magic bytes should return true if the header starts with them.
+     * A reader that returns false is still tried if no reader
+     * recognizes the header.
+     *
+     * @param abHeader the first bytes of the file
+     * @param nLength  the number of valid bytes in abHeader. It may be
+     *                 less than the file format needs if the file is
+     *                 short.
+     */
+    protected boolean matchesHeader(byte[] abHeader, int nLength) {
+        return false;
+    }
+
+
     /**
      * Get an AudioFileFormat object for a File.
      * This method calls getAudioFileFormat(InputStream, long).
@@ -230,6 +268,9 @@ public abstract class TAudioFileReader
             TDebug.out("TAudioFileReader.getAudioInputStream(File): begin (class: " + getClass().getSimpleName() + ")");
         }
         long lFileLengthInBytes = file.length();
+        if (isFileChannelSupported() && !isRereading()) {
+            return getFileChannelAudioInputStream(file, lFileLengthInBytes);
+        }
         InputStream inputStream = Files.newInputStream(file.toPath());
         AudioInputStream audioInputStream;
         try {
@@ -245,6 +286,38 @@ public abstract class TAudioFileReader
     }
 
 
+    /**
+     * Reads the header through a stream on a FileChannel. After that,
+     * the position of the channel is the start of the audio data.
+     * The channel stream does not buffer.
+     */
+    private AudioInputStream getFileChannelAudioInputStream(File file, long lFileLengthInBytes)
+            throws UnsupportedAudioFileException, IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        AudioInputStream audioInputStream;
+        try {
+            InputStream inputStream = Channels.newInputStream(channel);
+            AudioFileFormat audioFileFormat = getAudioFileFormat(inputStream, lFileLengthInBytes);
+            AudioFormat format = audioFileFormat.getFormat();
+            if (format.getFrameSize() > 0) {
+                audioInputStream = new FileChannelAudioInputStream(channel,
+                        format, audioFileFormat.getFrameLength(),
+                        channel.position());
+            } else {
+                audioInputStream = new AudioInputStream(inputStream,
+                        format, audioFileFormat.getFrameLength());
+            }
+        } catch (UnsupportedAudioFileException | IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (TDebug.TraceAudioFileReader) {
+            TDebug.out("TAudioFileReader.getAudioInputStream(File): end (FileChannel)");
+        }
+        return audioInputStream;
+    }
+
+
     /**
      * Get an AudioInputStream object for a URL.
      * This method calls getAudioInputStream(InputStream, long).
@@ -378,6 +451,21 @@ public abstract class TAudioFileReader
     }
 
 
+    /**
+     * Returns the big endian int at an offset of a header, or 0 if
+     * the header is too short.
+     */
+    protected static int getBigEndianInt(byte[] abHeader, int nLength, int nOffset) {
+        if (nOffset + 4 > nLength) {
+            return 0;
+        }
+        return ((abHeader[nOffset] & 0xFF) << 24)
+                | ((abHeader[nOffset + 1] & 0xFF) << 16)
+                | ((abHeader[nOffset + 2] & 0xFF) << 8)
+                | (abHeader[nOffset + 3] & 0xFF);
+    }
+
+
     protected static int calculateFrameSize(int nSampleSize, int nNumChannels) {
         return ((nSampleSize + 7) / 8) * nNumChannels;
     }
@@ -91,6 +91,13 @@ public abstract class TAudioFileWriter
     private Collection<AudioFormat> m_audioFormats;
 
 
+    /**
+     * Whether files are extended to their expected length before the
+     * audio data is written.
+     */
+    private boolean m_bPreallocating;
+
+
     /**
      * Inheriting classes should call this constructor
      * in order to make use of the functionality of TAudioFileWriter.
@@ -107,6 +114,21 @@ public abstract class TAudioFileWriter
         }
     }
 
+    /**
+     * Set whether write(..., File) extends files to the length of the
+     * audio data before writing it, if the length is known. This
+     * avoids growing a file with each write. The default is false.
+     */
+    public void setPreallocating(boolean bPreallocating) {
+        m_bPreallocating = bPreallocating;
+    }
+
+
+    public boolean isPreallocating() {
+        return m_bPreallocating;
+    }
+
+
     // implementing the interface
     @Override
     public AudioFileFormat.Type[] getAudioFileTypes() {
@@ -203,16 +225,38 @@ public abstract class TAudioFileWriter
             }
         }
         long lLengthInBytes = AudioUtils.getLengthInBytes(audioInputStream);
-        TDataOutputStream dataOutputStream = new TSeekableDataOutputStream(file);
-        AudioOutputStream audioOutputStream =
-                getAudioOutputStream(
-                        outputFormat,
-                        lLengthInBytes,
-                        fileType,
-                        dataOutputStream);
-        int written = writeImpl(audioInputStream,
-                audioOutputStream,
-                bNeedsConversion);
+        TFileChannelDataOutputStream dataOutputStream = new TFileChannelDataOutputStream(file);
+        int written;
+        boolean bWritten = false;
+        try {
+            if (isPreallocating() && lLengthInBytes != AudioSystem.NOT_SPECIFIED) {
+                // the header is not known here; the file grows by its size
+                dataOutputStream.preallocate(lLengthInBytes);
+            }
+            AudioOutputStream audioOutputStream =
+                    getAudioOutputStream(
+                            outputFormat,
+                            lLengthInBytes,
+                            fileType,
+                            dataOutputStream);
+            written = writeImpl(audioInputStream,
+                    audioOutputStream,
+                    bNeedsConversion);
+            bWritten = true;
+        } finally {
+            if (!bWritten) {
+                // release the channel and truncate a preallocated file
+                // to what has been written; writeImpl() closes it on
+                // success
+                try {
+                    dataOutputStream.close();
+                } catch (IOException e) {
+                    if (TDebug.TraceAllExceptions) {
+                        TDebug.out(e);
+                    }
+                }
+            }
+        }
         if (TDebug.TraceAudioFileWriter) {
             TDebug.out("< wrote " + written + " bytes.");
         }
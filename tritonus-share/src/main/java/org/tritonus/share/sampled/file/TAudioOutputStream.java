@@ -61,6 +61,9 @@ public abstract class TAudioOutputStream
     /** if this flag is set, do endian conversion for 16-bit PCM data */
     private boolean m_doEndianConversion;
 
+    /** converted copy of the data passed to write() */
+    private byte[] m_abConversionBuffer;
+
     protected TAudioOutputStream(AudioFormat audioFormat,
                                  long lLength,
                                  TDataOutputStream dataOutputStream,
@@ -172,12 +175,19 @@ public abstract class TAudioOutputStream
         }
         // TODO: throw an exception if nLength==0 ? (to indicate end of file ?)
         if (nLength > 0) {
-            handleImplicitConversions(abData, nOffset, nLength);
-            m_dataOutputStream.write(abData, nOffset, nLength);
+            if (m_doSignConversion || m_doEndianConversion) {
+                // convert a copy, so that the data passed in is not
+                // modified and need not be converted back
+                if (m_abConversionBuffer == null || m_abConversionBuffer.length < nLength) {
+                    m_abConversionBuffer = new byte[nLength];
+                }
+                System.arraycopy(abData, nOffset, m_abConversionBuffer, 0, nLength);
+                handleImplicitConversions(m_abConversionBuffer, 0, nLength);
+                m_dataOutputStream.write(m_abConversionBuffer, 0, nLength);
+            } else {
+                m_dataOutputStream.write(abData, nOffset, nLength);
+            }
             m_lCalculatedLength += nLength;
-            // if we converted something, need to undo the conversion to
-            // guarantee integrity of data
-            handleImplicitConversions(abData, nOffset, nLength);
         }
         if (TDebug.TraceAudioOutputStream) {
             TDebug.out("TAudioOutputStream.write(): calculated (total) length: " + m_lCalculatedLength + " bytes = " + (m_lCalculatedLength / getFormat().getFrameSize()) + " frames");
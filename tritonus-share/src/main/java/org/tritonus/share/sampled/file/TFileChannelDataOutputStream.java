@@ -0,0 +1,317 @@
+/*
+ * TFileChannelDataOutputStream.java
+ *
+ * This file is part of Tritonus: http://www.tritonus.org/
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/*
+|<---            this code is formatted to fit into 80 columns             --->|
+*/
+
+package org.tritonus.share.sampled.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.tritonus.share.TDebug;
+
+
+/**
+ * A seekable TDataOutputStream writing to a FileChannel.
+ * <p>
+ * All values are collected in a direct staging buffer, so writing the
+ * fields of a header does not cause a system call per field. Audio
+ * data that does not fit into the staging buffer is written together
+ * with the buffered bytes in one gathering write. After seek(), the
+ * bytes written (typically a patched header) are written in one piece
+ * at the new position when the stream is flushed, seeks again or is
+ * closed.
+ * <p>
+ * The staging buffer is reused by the next stream created in the same
+ * thread after this one is closed. Instances are not thread-safe.
+ */
+public class TFileChannelDataOutputStream
+        implements TDataOutputStream {
+    /**
+     * Size of the staging buffer in bytes.
+     */
+    public static final int BUFFER_SIZE = 65536;
+
+    private static final ThreadLocal<ByteBuffer> sm_idleBuffer = new ThreadLocal<ByteBuffer>();
+
+    private final FileChannel m_channel;
+    private ByteBuffer m_buffer;
+    // the highest position written, for truncating preallocated files
+    private long m_lEnd;
+    private boolean m_bPreallocated;
+
+
+    /**
+     * Open a file for writing. An existing file is truncated.
+     */
+    public TFileChannelDataOutputStream(File file)
+            throws IOException {
+        this(FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+
+    /**
+     * Write to a channel, starting at its current position.
+     * The channel is owned by the new stream.
+     */
+    public TFileChannelDataOutputStream(FileChannel channel) {
+        m_channel = channel;
+        m_buffer = sm_idleBuffer.get();
+        if (m_buffer == null) {
+            m_buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        } else {
+            sm_idleBuffer.set(null);
+        }
+        // clear() and flip() are called through Buffer: the ByteBuffer
+        // overrides do not exist on Java 8
+        ((Buffer) m_buffer).clear();
+        m_buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+
+    /**
+     * Extend the file to a length before writing. If the final length
+     * of the file is known, this avoids growing the file with each
+     * write. When the stream is closed, the file is truncated to the
+     * length actually written.
+     *
+     * @param lLength the expected length of the file in bytes
+     */
+    public void preallocate(long lLength)
+            throws IOException {
+        if (lLength > m_channel.size()) {
+            ByteBuffer zero = ByteBuffer.allocate(1);
+            m_channel.write(zero, lLength - 1);
+            m_bPreallocated = true;
+            if (TDebug.TraceAudioOutputStream) {
+                TDebug.out("TFileChannelDataOutputStream.preallocate(): " + lLength + " bytes");
+            }
+        }
+    }
+
+
+    public boolean supportsSeek() {
+        return true;
+    }
+
+
+    public void seek(long position)
+            throws IOException {
+        flush();
+        m_channel.position(position);
+    }
+
+
+    public long getFilePointer()
+            throws IOException {
+        return m_channel.position() + m_buffer.position();
+    }
+
+
+    public long length()
+            throws IOException {
+        long lLength = Math.max(m_lEnd, getFilePointer());
+        return m_bPreallocated ? lLength : Math.max(lLength, m_channel.size());
+    }
+
+
+    /**
+     * Write the buffered bytes to the channel.
+     */
+    public void flush()
+            throws IOException {
+        ((Buffer) m_buffer).flip();
+        while (m_buffer.hasRemaining()) {
+            m_channel.write(m_buffer);
+        }
+        ((Buffer) m_buffer).clear();
+        updateEnd();
+    }
+
+
+    public void write(int b)
+            throws IOException {
+        ensureRemaining(1);
+        m_buffer.put((byte) b);
+    }
+
+
+    public void write(byte[] abData)
+            throws IOException {
+        write(abData, 0, abData.length);
+    }
+
+
+    public void write(byte[] abData, int nOffset, int nLength)
+            throws IOException {
+        if (nLength <= m_buffer.remaining()) {
+            m_buffer.put(abData, nOffset, nLength);
+            return;
+        }
+        // buffered bytes and data in one system call
+        ((Buffer) m_buffer).flip();
+        ByteBuffer data = ByteBuffer.wrap(abData, nOffset, nLength);
+        ByteBuffer[] aBuffers = new ByteBuffer[]{m_buffer, data};
+        while (data.hasRemaining()) {
+            m_channel.write(aBuffers);
+        }
+        ((Buffer) m_buffer).clear();
+        updateEnd();
+    }
+
+
+    public void writeBoolean(boolean bValue)
+            throws IOException {
+        write(bValue ? 1 : 0);
+    }
+
+
+    public void writeByte(int nValue)
+            throws IOException {
+        write(nValue);
+    }
+
+
+    public void writeShort(int nValue)
+            throws IOException {
+        ensureRemaining(2);
+        m_buffer.putShort((short) nValue);
+    }
+
+
+    public void writeChar(int nValue)
+            throws IOException {
+        ensureRemaining(2);
+        m_buffer.putChar((char) nValue);
+    }
+
+
+    public void writeInt(int nValue)
+            throws IOException {
+        ensureRemaining(4);
+        m_buffer.putInt(nValue);
+    }
+
+
+    public void writeLong(long lValue)
+            throws IOException {
+        ensureRemaining(8);
+        m_buffer.putLong(lValue);
+    }
+
+
+    public void writeFloat(float fValue)
+            throws IOException {
+        writeInt(Float.floatToIntBits(fValue));
+    }
+
+
+    public void writeDouble(double dValue)
+            throws IOException {
+        writeLong(Double.doubleToLongBits(dValue));
+    }
+
+
+    public void writeBytes(String strValue)
+            throws IOException {
+        for (int i = 0; i < strValue.length(); i++) {
+            write(strValue.charAt(i));
+        }
+    }
+
+
+    public void writeChars(String strValue)
+            throws IOException {
+        for (int i = 0; i < strValue.length(); i++) {
+            writeChar(strValue.charAt(i));
+        }
+    }
+
+
+    public void writeUTF(String strValue)
+            throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        new DataOutputStream(byteArrayOutputStream).writeUTF(strValue);
+        write(byteArrayOutputStream.toByteArray());
+    }
+
+
+    public void writeLittleEndian32(int value)
+            throws IOException {
+        writeInt(Integer.reverseBytes(value));
+    }
+
+
+    public void writeLittleEndian16(short value)
+            throws IOException {
+        writeShort(Short.reverseBytes(value));
+    }
+
+
+    /**
+     * Flush the buffer, truncate a preallocated file to the length
+     * written and close the channel.
+     */
+    public void close()
+            throws IOException {
+        if (m_buffer == null) {
+            return;
+        }
+        try {
+            flush();
+            if (m_bPreallocated) {
+                m_channel.truncate(m_lEnd);
+            }
+        } finally {
+            sm_idleBuffer.set(m_buffer);
+            m_buffer = null;
+            m_channel.close();
+        }
+    }
+
+
+    private void ensureRemaining(int nLength)
+            throws IOException {
+        if (m_buffer.remaining() < nLength) {
+            flush();
+        }
+    }
+
+
+    private void updateEnd()
+            throws IOException {
+        m_lEnd = Math.max(m_lEnd, m_channel.position());
+    }
+}
+
+
+/* TFileChannelDataOutputStream.java */
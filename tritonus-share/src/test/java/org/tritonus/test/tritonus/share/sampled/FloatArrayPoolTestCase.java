@@ -0,0 +1,120 @@
+/*
+ * FloatArrayPoolTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test.tritonus.share.sampled;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.share.sampled.FloatArrayPool;
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class FloatArrayPoolTestCase {
+    @Test
+    public void testGetRelease() {
+        FloatArrayPool pool = new FloatArrayPool();
+        float[] array = pool.get(1000);
+        assertEquals(1024, array.length, "size class");
+        assertEquals(1, pool.getAllocationCount(), "allocations");
+        pool.release(array);
+        assertSame(array, pool.get(600), "reused array");
+        assertEquals(1, pool.getReuseCount(), "reuses");
+        assertNotSame(array, pool.get(1025), "array of larger class");
+        assertEquals(2, pool.getAllocationCount(), "allocations");
+
+        // foreign arrays go to the largest class they satisfy
+        float[] foreign = new float[1500];
+        pool.release(foreign);
+        assertSame(foreign, pool.get(1024), "reused foreign array");
+        pool.release(new float[3]);
+        assertEquals(1, pool.getDiscardCount(), "discarded");
+    }
+
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        final FloatArrayPool pool = new FloatArrayPool();
+        final float[][] arrays = new float[10][];
+        Thread thread = new Thread(() -> {
+            for (int i = 0; i < arrays.length; i++) {
+                arrays[i] = pool.get(100);
+            }
+            for (float[] array : arrays) {
+                pool.release(array);
+            }
+        });
+        thread.start();
+        thread.join();
+        // the other thread's cache holds some arrays, the rest is shared
+        pool.resetStatistics();
+        for (int i = 0; i < arrays.length; i++) {
+            pool.get(100);
+        }
+        assertTrue(pool.getReuseCount() > 0, "arrays reused from shared pool");
+    }
+
+
+    @Test
+    public void testSteadyStateWithoutAllocation() {
+        FloatArrayPool pool = new FloatArrayPool();
+        AudioFormat format = new AudioFormat(44100.0f, 16, 2, true, false);
+        FloatSampleBuffer buffer = new FloatSampleBuffer();
+        buffer.setArrayPool(pool);
+        int[] packetSizes = {1152, 576, 2048, 128, 1000, 2047};
+        byte[] abData = new byte[2048 * format.getFrameSize()];
+        // warm up
+        for (int size : packetSizes) {
+            decode(buffer, abData, size, format);
+        }
+        long allocations = pool.getAllocationCount();
+        for (int i = 0; i < 100; i++) {
+            for (int size : packetSizes) {
+                decode(buffer, abData, size, format);
+            }
+        }
+        assertEquals(allocations, pool.getAllocationCount(), "allocations in steady state");
+        assertTrue(pool.getReuseCount() > 0, "arrays reused");
+
+        buffer.release();
+        assertEquals(0, buffer.getChannelCount(), "channels after release");
+        long reuses = pool.getReuseCount();
+        FloatSampleBuffer buffer2 = new FloatSampleBuffer(2, 2048, 44100.0f);
+        assertEquals(2, buffer2.getAllocationCount(), "requested arrays");
+        buffer2.setArrayPool(pool);
+        buffer2.reset(2, 1000, 44100.0f);
+        assertTrue(pool.getReuseCount() > reuses, "released arrays reused");
+    }
+
+
+    private static void decode(FloatSampleBuffer buffer, byte[] abData,
+                               int frames, AudioFormat format) {
+        // a non-lazy reset drops all arrays, as variable packet sizes would
+        buffer.reset(format.getChannels(), frames, format.getSampleRate());
+        buffer.setSamplesFromBytes(abData, 0, format, 0, frames);
+        buffer.changeSampleCount(frames + 100, true);
+    }
+}
+
+
+/* FloatArrayPoolTestCase.java */
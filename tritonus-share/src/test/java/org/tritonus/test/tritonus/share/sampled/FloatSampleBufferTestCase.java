@@ -0,0 +1,148 @@
+/*
+ * FloatSampleBufferTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test.tritonus.share.sampled;
+
+import java.util.Random;
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class FloatSampleBufferTestCase {
+    private static final int FRAMES = 1000;
+
+    private static final AudioFormat FORMAT =
+            new AudioFormat(44100.0f, 16, 3, true, false);
+
+
+    @Test
+    public void testInterleavedRoundTrip() {
+        byte[] abData = createData(17);
+        FloatSampleBuffer buffer = createInterleaved(abData);
+        assertTrue(buffer.isInterleaved(), "interleaved storage used");
+        assertEquals(FRAMES, buffer.getSampleCount(), "sample count");
+        assertEquals(3, buffer.getChannelCount(), "channel count");
+        assertArrayEquals(abData, buffer.convertToByteArray(FORMAT), "round trip");
+        assertTrue(buffer.isInterleaved(), "no planar view created");
+    }
+
+
+    /**
+     * Operations on all channels must give the same result in interleaved
+     * and planar storage.
+     */
+    @Test
+    public void testOperationsOnAllChannels() {
+        byte[] abData = createData(18);
+        FloatSampleBuffer interleaved = createInterleaved(abData);
+        FloatSampleBuffer planar = createPlanar(abData);
+        for (FloatSampleBuffer buffer : new FloatSampleBuffer[] {interleaved, planar}) {
+            buffer.linearFade(0.0f, 1.0f, 100, 500);
+            buffer.makeSilence(900, 50);
+            buffer.changeSampleCount(FRAMES + 3000, true);
+            buffer.changeSampleCount(FRAMES / 2, true);
+            buffer.changeSampleCount(FRAMES, true);
+        }
+        assertTrue(interleaved.isInterleaved(), "no planar view created");
+        assertArrayEquals(planar.convertToByteArray(FORMAT),
+                interleaved.convertToByteArray(FORMAT), "result");
+        for (int ch = 0; ch < 3; ch++) {
+            assertEquals(0.0f, interleaved.getChannel(ch)[FRAMES - 1], "silence after grow");
+        }
+    }
+
+
+    @Test
+    public void testPlanarViews() {
+        byte[] abData = createData(19);
+        FloatSampleBuffer interleaved = createInterleaved(abData);
+        FloatSampleBuffer planar = createPlanar(abData);
+        for (int ch = 0; ch < 3; ch++) {
+            assertArrayEquals(planar.getChannel(ch), interleaved.getChannel(ch),
+                    "channel " + ch);
+        }
+        assertFalse(interleaved.isInterleaved(), "planar view created");
+
+        for (FloatSampleBuffer buffer : new FloatSampleBuffer[] {interleaved, planar}) {
+            buffer.linearFade(1, 1.0f, 0.0f, 0, FRAMES);
+            buffer.copyChannel(0, 2);
+        }
+        // back to interleaved
+        float[] samples = interleaved.getInterleavedSamples();
+        assertTrue(interleaved.isInterleaved(), "interleaved again");
+        for (int i = 0; i < FRAMES; i++) {
+            for (int ch = 0; ch < 3; ch++) {
+                assertEquals(planar.getChannel(ch)[i], samples[i * 3 + ch],
+                        "sample " + i + " of channel " + ch);
+            }
+        }
+        assertArrayEquals(planar.convertToByteArray(FORMAT),
+                interleaved.convertToByteArray(FORMAT), "result");
+
+        interleaved.mixDownChannels();
+        planar.mixDownChannels();
+        assertEquals(1, interleaved.getChannelCount(), "channels after mix down");
+        assertArrayEquals(planar.getChannel(0), interleaved.getChannel(0), "mix down");
+    }
+
+
+    @Test
+    public void testDisableInterleavedStorage() {
+        byte[] abData = createData(20);
+        FloatSampleBuffer buffer = createInterleaved(abData);
+        buffer.setInterleavedStorage(false);
+        assertFalse(buffer.isInterleaved(), "planar storage");
+        assertArrayEquals(abData, buffer.convertToByteArray(FORMAT), "data kept");
+        buffer.initFromByteArray(abData, 0, abData.length, FORMAT);
+        assertFalse(buffer.isInterleaved(), "planar storage");
+    }
+
+
+    private static byte[] createData(long seed) {
+        byte[] abData = new byte[FRAMES * FORMAT.getFrameSize()];
+        new Random(seed).nextBytes(abData);
+        return abData;
+    }
+
+
+    private static FloatSampleBuffer createInterleaved(byte[] abData) {
+        FloatSampleBuffer buffer = new FloatSampleBuffer();
+        buffer.setInterleavedStorage(true);
+        buffer.setDitherMode(FloatSampleBuffer.DITHER_MODE_OFF);
+        buffer.initFromByteArray(abData, 0, abData.length, FORMAT);
+        return buffer;
+    }
+
+
+    private static FloatSampleBuffer createPlanar(byte[] abData) {
+        FloatSampleBuffer buffer = new FloatSampleBuffer();
+        buffer.setDitherMode(FloatSampleBuffer.DITHER_MODE_OFF);
+        buffer.initFromByteArray(abData, 0, abData.length, FORMAT);
+        return buffer;
+    }
+}
+
+
+/* FloatSampleBufferTestCase.java */
@@ -0,0 +1,169 @@
+/*
+ * FloatSampleToolsTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test.tritonus.share.sampled;
+
+import java.util.Arrays;
+import java.util.Random;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.share.sampled.FloatSampleBuffer;
+import org.tritonus.share.sampled.FloatSampleTools;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+
+public class FloatSampleToolsTestCase {
+    private static final int FRAMES = 1000;
+
+
+    /**
+     * Converts planar float data to bytes and back for all supported
+     * formats. The per-channel (planar) conversion uses the stereo and
+     * multichannel kernels where applicable; the result has to match
+     * the interleaved conversion, which always uses the generic loop.
+     */
+    @Test
+    public void testConversionKernels() {
+        Random random = new Random(4711);
+        for (int channels = 1; channels <= 6; channels++) {
+            for (AudioFormat format : getFormats(channels)) {
+                float[][] samples = createSamples(random, format, channels);
+                float[] interleaved = new float[FRAMES * channels];
+                for (int i = 0; i < FRAMES; i++) {
+                    for (int ch = 0; ch < channels; ch++) {
+                        interleaved[i * channels + ch] = samples[ch][i];
+                    }
+                }
+
+                byte[] abPlanar = new byte[FRAMES * format.getFrameSize()];
+                FloatSampleTools.float2byte(samples, 0, abPlanar, 0, FRAMES,
+                        format, 0.0f);
+                byte[] abInterleaved = new byte[FRAMES * format.getFrameSize()];
+                FloatSampleTools.float2byteInterleaved(interleaved, 0,
+                        abInterleaved, 0, FRAMES, format, 0.0f);
+                assertArrayEquals(abInterleaved, abPlanar, "bytes: " + format);
+
+                Object[] output = new Object[channels];
+                for (int ch = 0; ch < channels; ch++) {
+                    output[ch] = new float[FRAMES];
+                }
+                FloatSampleTools.byte2float(abPlanar, 0, output, 0, FRAMES, format);
+                for (int ch = 0; ch < channels; ch++) {
+                    assertArrayEquals(samples[ch], (float[]) output[ch],
+                            "channel " + ch + ": " + format);
+                    float[] channel = new float[FRAMES];
+                    FloatSampleTools.byte2float(ch, abPlanar, 0, channel, 0,
+                            FRAMES, format);
+                    assertArrayEquals(samples[ch], channel,
+                            "single channel " + ch + ": " + format);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Converts the first channels of 5 channel data.
+     */
+    @Test
+    public void testFirstChannels() {
+        Random random = new Random(815);
+        for (AudioFormat format : getFormats(5)) {
+            float[][] samples = createSamples(random, format, 5);
+            byte[] abData = new byte[FRAMES * format.getFrameSize()];
+            FloatSampleTools.float2byte(Arrays.asList(samples), 0, abData, 0,
+                    FRAMES, format, 0.0f);
+            for (int channels = 1; channels <= 4; channels++) {
+                Object[] output = new Object[channels];
+                for (int ch = 0; ch < channels; ch++) {
+                    output[ch] = new float[FRAMES];
+                }
+                FloatSampleTools.byte2float(abData, 0, output, 0, FRAMES,
+                        format, false);
+                for (int ch = 0; ch < channels; ch++) {
+                    assertArrayEquals(samples[ch], (float[]) output[ch],
+                            "channel " + ch + " of " + channels + ": " + format);
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void testFloatSampleBuffer() {
+        AudioFormat format = new AudioFormat(44100.0f, 16, 2, true, false);
+        byte[] abData = new byte[FRAMES * format.getFrameSize()];
+        new Random(17).nextBytes(abData);
+        FloatSampleBuffer buffer = new FloatSampleBuffer(abData, 0,
+                abData.length, format);
+        buffer.setDitherMode(FloatSampleBuffer.DITHER_MODE_OFF);
+        byte[] abResult = buffer.convertToByteArray(format);
+        assertArrayEquals(abData, abResult, "round trip");
+    }
+
+
+    private static AudioFormat[] getFormats(int channels) {
+        float rate = 44100.0f;
+        return new AudioFormat[] {
+                new AudioFormat(rate, 8, channels, true, false),
+                new AudioFormat(rate, 8, channels, false, false),
+                new AudioFormat(rate, 16, channels, true, false),
+                new AudioFormat(rate, 16, channels, true, true),
+                new AudioFormat(rate, 24, channels, true, false),
+                new AudioFormat(rate, 24, channels, true, true),
+                new AudioFormat(Encoding.PCM_SIGNED, rate, 24, channels,
+                        4 * channels, rate, false),
+                new AudioFormat(Encoding.PCM_SIGNED, rate, 24, channels,
+                        4 * channels, rate, true),
+                new AudioFormat(rate, 32, channels, true, false),
+                new AudioFormat(rate, 32, channels, true, true),
+                new AudioFormat(Encoding.PCM_FLOAT, rate, 32, channels,
+                        4 * channels, rate, false),
+                new AudioFormat(Encoding.PCM_FLOAT, rate, 32, channels,
+                        4 * channels, rate, true),
+        };
+    }
+
+
+    /**
+     * Creates samples that can be represented exactly in format.
+     */
+    private static float[][] createSamples(Random random, AudioFormat format,
+                                           int channels) {
+        float[][] samples = new float[channels][FRAMES];
+        int bits = Math.min(format.getSampleSizeInBits(), 24);
+        boolean isFloat = format.getEncoding().equals(Encoding.PCM_FLOAT);
+        for (int ch = 0; ch < channels; ch++) {
+            for (int i = 0; i < FRAMES; i++) {
+                if (isFloat) {
+                    samples[ch][i] = random.nextFloat() * 4.0f - 2.0f;
+                } else {
+                    int n = random.nextInt(1 << bits) - (1 << (bits - 1));
+                    samples[ch][i] = n / (float) (1 << (bits - 1));
+                }
+            }
+        }
+        return samples;
+    }
+}
+
+
+/* FloatSampleToolsTestCase.java */
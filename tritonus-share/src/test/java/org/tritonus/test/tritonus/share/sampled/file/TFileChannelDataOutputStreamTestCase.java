@@ -0,0 +1,99 @@
+/*
+ * TFileChannelDataOutputStreamTestCase.java
+ */
+
+/*
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.tritonus.test.tritonus.share.sampled.file;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.tritonus.share.sampled.file.TDataOutputStream;
+import org.tritonus.share.sampled.file.TFileChannelDataOutputStream;
+import org.tritonus.test.Util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+public class TFileChannelDataOutputStreamTestCase
+        extends BaseDataOutputStreamTestCase {
+    private File m_file;
+
+
+    public TFileChannelDataOutputStreamTestCase() {
+        super(true); // seekable
+    }
+
+
+    protected TDataOutputStream createDataOutputStream()
+            throws Exception {
+        m_file = File.createTempFile("dataoutputstream", ".tmp");
+        m_file.deleteOnExit();
+        return new TFileChannelDataOutputStream(m_file);
+    }
+
+
+    protected byte[] getWrittenData()
+            throws Exception {
+        return Util.getByteArrayFromFile(m_file);
+    }
+
+
+    /**
+     * A header, audio data larger than the buffer and a patched header,
+     * in a preallocated file that is larger than the data.
+     */
+    @Test
+    public void testPatchAndPreallocate()
+            throws Exception {
+        byte[] abData = new byte[TFileChannelDataOutputStream.BUFFER_SIZE * 2 + 3];
+        for (int i = 0; i < abData.length; i++) {
+            abData[i] = (byte) (i * 13);
+        }
+        TFileChannelDataOutputStream dataOutputStream =
+                (TFileChannelDataOutputStream) createDataOutputStream();
+        dataOutputStream.preallocate(abData.length * 2);
+        dataOutputStream.writeInt(0x52494646);
+        dataOutputStream.writeLittleEndian32(-1);
+        dataOutputStream.write(abData);
+        dataOutputStream.writeByte(0x7F);
+        assertEquals(8 + abData.length + 1, dataOutputStream.getFilePointer(), "file pointer");
+        assertEquals(8 + abData.length + 1, dataOutputStream.length(), "length");
+        dataOutputStream.seek(4);
+        dataOutputStream.writeLittleEndian32(abData.length + 1);
+        dataOutputStream.close();
+
+        byte[] abWritten = Files.readAllBytes(m_file.toPath());
+        assertEquals(8 + abData.length + 1, abWritten.length, "file length");
+        byte[] abExpected = new byte[abWritten.length];
+        abExpected[0] = 'R';
+        abExpected[1] = 'I';
+        abExpected[2] = 'F';
+        abExpected[3] = 'F';
+        int nLength = abData.length + 1;
+        for (int i = 0; i < 4; i++) {
+            abExpected[4 + i] = (byte) (nLength >> (8 * i));
+        }
+        System.arraycopy(abData, 0, abExpected, 8, abData.length);
+        abExpected[abExpected.length - 1] = 0x7F;
+        assertArrayEquals(abExpected, abWritten, "file contents");
+    }
+}
+
+
+/* TFileChannelDataOutputStreamTestCase.java */
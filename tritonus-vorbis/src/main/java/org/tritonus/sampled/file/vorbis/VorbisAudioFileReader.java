@@ -50,6 +50,8 @@ public class VorbisAudioFileReader
         extends TAudioFileReader {
     private static final int INITAL_READ_LENGTH = 4096;
     private static final int MARK_LIMIT = INITAL_READ_LENGTH + 1;
+    /** "OggS" */
+    private static final int OGG_MAGIC = 0x4F676753;
 
 
     // TODO: refresh from time to time to allow adding the lib at runtime...
@@ -61,6 +63,14 @@ public class VorbisAudioFileReader
     }
 
 
+    /**
+     * Recognizes the capture pattern of an Ogg page.
+     */
+    protected boolean matchesHeader(byte[] abHeader, int nLength) {
+        return getBigEndianInt(abHeader, nLength, 0) == OGG_MAGIC;
+    }
+
+
     @Override
     protected AudioFileFormat getAudioFileFormat(InputStream inputStream,
                                                  long lFileSizeInBytes)